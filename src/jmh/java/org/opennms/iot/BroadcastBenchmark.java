@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opennms.iot.ble.proto.Channel;
+import org.opennms.iot.ble.proto.Client;
+import org.opennms.iot.ble.proto.Encoding;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.SampleBlock;
+import org.opennms.iot.ble.proto.Sensor;
+import org.opennms.iot.muse.EEGHandler;
+import org.opennms.iot.schema.FieldDef;
+import org.opennms.iot.schema.MetricDef;
+
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Measures what broadcasting an EEG event costs the thread that received it, with
+ * local subscribers that serialize every event on their delivery threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    private static final FieldDef[] EEG_FIELDS = {
+            FieldDef.EEG_TP9, FieldDef.EEG_AF7, FieldDef.EEG_AF8, FieldDef.EEG_TP10, FieldDef.EEG_RIGHT_AUX
+    };
+
+    @Param({"1", "10", "100"})
+    public int subscribers;
+
+    @Param({"SAMPLE_BLOCKS", "METRICS"})
+    public Encoding encoding;
+
+    private BLEExporterImpl bleExporterSvc;
+    private Event event;
+
+    @Setup
+    public void setUp() {
+        bleExporterSvc = new BLEExporterImpl();
+        for (int i = 0; i < subscribers; i++) {
+            bleExporterSvc.streamSharedEvents(Client.newBuilder()
+                    .setName("subscriber-" + i)
+                    .setEncoding(encoding)
+                    .build(), new StreamObserver<SharedEvent>() {
+                @Override
+                public void onNext(SharedEvent value) {
+                    value.getBytes();
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    // pass
+                }
+
+                @Override
+                public void onCompleted() {
+                    // pass
+                }
+            });
+        }
+
+        // One Muse EEG frame
+        SampleBlock.Builder blockBuilder = MetricDef.EEG.newBlock()
+                .setStartTimestamp(1588222530705L)
+                .setSamplePeriodMs(1000.0d / 256);
+        for (FieldDef field : EEG_FIELDS) {
+            Channel.Builder channelBuilder = field.newChannel().setScale(EEGHandler.EEG_SCALE);
+            for (int i = 0; i < 12; i++) {
+                channelBuilder.addIntValues(i * 100 - 2048);
+            }
+            blockBuilder.addChannels(channelBuilder);
+        }
+        event = Event.newBuilder()
+                .setSensor(Sensor.newBuilder().setHwAddress("00:55:DA:B5:35:5A"))
+                .addBlocks(blockBuilder)
+                .build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        bleExporterSvc.shutdown();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        bleExporterSvc.broadcast(event);
+    }
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.FieldValue;
+import org.opennms.iot.ble.proto.Metric;
+import org.opennms.iot.ble.proto.Sensor;
+
+import io.grpc.Drainable;
+import io.grpc.MethodDescriptor;
+import io.grpc.protobuf.ProtoUtils;
+
+/**
+ * Measures what the transport does for every message sent to every subscriber: stream the
+ * message through the method's marshaller and copy the result into its own buffer.
+ *
+ * With the generated marshaller the event is re-encoded for each subscriber, whereas the
+ * shared marshaller encodes it once and only copies the bytes after that.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int subscribers;
+
+    private final MethodDescriptor.Marshaller<Event> protoMarshaller = ProtoUtils.marshaller(Event.getDefaultInstance());
+
+    private Event event;
+
+    @Setup
+    public void setUp() {
+        // One Muse EEG packet worth of metrics
+        Event.Builder eventBuilder = Event.newBuilder()
+                .setSensor(Sensor.newBuilder().setHwAddress("00:55:DA:B5:35:5A"));
+        for (int i = 0; i < 12; i++) {
+            Metric.Builder metricBuilder = eventBuilder.addMetricsBuilder()
+                    .setName("eeg")
+                    .setTimestamp(1588222530705L + i * 4);
+            for (String channel : new String[]{"tp9", "af7", "af8", "tp10", "right_aux"}) {
+                metricBuilder.putFields(channel, FieldValue.newBuilder().setFloatValue(i * 48.828125 - 1000).build());
+            }
+        }
+        event = eventBuilder.build();
+    }
+
+    @Benchmark
+    public void serializePerSubscriber(Blackhole bh) throws IOException {
+        // Use a fresh copy so that the memoized size from the previous invocation doesn't help
+        Event e = event.toBuilder().build();
+        BlackholeOutputStream out = new BlackholeOutputStream(bh);
+        for (int i = 0; i < subscribers; i++) {
+            drain(protoMarshaller.stream(e), out);
+        }
+    }
+
+    @Benchmark
+    public void serializeOnce(Blackhole bh) throws IOException {
+        SharedEvent e = new SharedEvent(event.toBuilder().build());
+        BlackholeOutputStream out = new BlackholeOutputStream(bh);
+        for (int i = 0; i < subscribers; i++) {
+            drain(SharedEvent.MARSHALLER.stream(e), out);
+        }
+    }
+
+    private static void drain(InputStream is, OutputStream out) throws IOException {
+        ((Drainable)is).drainTo(out);
+    }
+
+    private static class BlackholeOutputStream extends OutputStream {
+        private final Blackhole bh;
+
+        BlackholeOutputStream(Blackhole bh) {
+            this.bh = bh;
+        }
+
+        @Override
+        public void write(int b) {
+            bh.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bh.consume(b);
+            bh.consume(len);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.az;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opennms.iot.ble.proto.Encoding;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.FieldValue;
+import org.opennms.iot.ble.proto.Metric;
+import org.opennms.iot.ble.proto.Sensor;
+import org.opennms.iot.handlers.PolarH7Handler;
+
+import com.azure.messaging.eventhubs.EventData;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Maps;
+
+/**
+ * Compares the streaming mappers with the previous ones, which built a tree of objects for
+ * every event and serialized it with an ObjectMapper.
+ *
+ * Note that the previous TSI mapper only wrote the first metric of the event, so on EEG events
+ * it does a twelfth of the work of the streaming one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapperBenchmark {
+
+    @Param({"polar-h7", "eeg"})
+    public String sensor;
+
+    private final TSIMapper tsiMapper = new TSIMapper();
+    private final IOMTMapper iomtMapper = new IOMTMapper();
+    private final ProtobufMapper protobufMapper = new ProtobufMapper(Encoding.METRICS);
+
+    private Event event;
+
+    @Setup
+    public void setUp() {
+        if ("eeg".equals(sensor)) {
+            // One Muse EEG packet worth of metrics
+            Event.Builder eventBuilder = Event.newBuilder()
+                    .setSensor(Sensor.newBuilder().setHwAddress("00:55:DA:B5:35:5A"));
+            for (int i = 0; i < 12; i++) {
+                Metric.Builder metricBuilder = eventBuilder.addMetricsBuilder()
+                        .setName("eeg")
+                        .setTimestamp(1588222530705L + i * 4);
+                for (String channel : new String[]{"tp9", "af7", "af8", "tp10", "right_aux"}) {
+                    metricBuilder.putFields(channel, FieldValue.newBuilder().setFloatValue(i * 48.828125 - 1000).build());
+                }
+            }
+            event = eventBuilder.build();
+        } else {
+            event = Event.newBuilder()
+                    .setSensor(Sensor.newBuilder().setHwAddress("00:22:D0:26:58:91"))
+                    .addMetrics(Metric.newBuilder()
+                            .setName(PolarH7Handler.METRIC_NAME)
+                            .setTimestamp(1588538411000L)
+                            .putFields(PolarH7Handler.BPM_FIELD, FieldValue.newBuilder().setIntValue(72).build())
+                            .putFields("rr0", FieldValue.newBuilder().setFloatValue(833.0).build()))
+                    .build();
+        }
+    }
+
+    @Benchmark
+    public EventData tsiStreaming() {
+        return tsiMapper.mapEvent(event);
+    }
+
+    @Benchmark
+    public EventData tsiObjectMapper() throws JsonProcessingException {
+        return new EventData(ObjectMapperTSI.toTSIJson(event));
+    }
+
+    @Benchmark
+    public EventData iomtStreaming() {
+        return iomtMapper.mapEvent(event);
+    }
+
+    @Benchmark
+    public EventData iomtObjectMapper() throws JsonProcessingException {
+        return new EventData(ObjectMapperIOMT.toEventHubJson(event));
+    }
+
+    @Benchmark
+    public EventData protobuf() {
+        return protobufMapper.mapEvent(event);
+    }
+
+    private static class ObjectMapperTSI {
+        private static final ObjectMapper objectMapper = new ObjectMapper();
+
+        static String toTSIJson(Event event) throws JsonProcessingException {
+            Message msg = new Message();
+            for (Metric metric : event.getMetricsList()) {
+                msg.deviceId = event.getSensor().getHwAddress();
+                msg.timestamp = Instant.ofEpochMilli(metric.getTimestamp()).toString();
+                for (String key : metric.getFieldsMap().keySet()) {
+                    double valueAsDouble = Double.NaN;
+                    FieldValue value = metric.getFieldsMap().get(key);
+                    switch(value.getValueCase()) {
+                        case FLOAT_VALUE:
+                            valueAsDouble = value.getFloatValue();
+                            break;
+                        case INT_VALUE:
+                            valueAsDouble = value.getIntValue();
+                            break;
+                        case BOOL_VALUE:
+                            valueAsDouble = value.getBoolValue() ? 0 : 1;
+                            break;
+                        case STRING_VALUE:
+                        case VALUE_NOT_SET:
+                            continue;
+                    }
+                    msg.addValue(key, valueAsDouble);
+                }
+                break;
+            }
+            return objectMapper.writeValueAsString(msg);
+        }
+
+        public static class Message {
+            @JsonProperty
+            String deviceId;
+            @JsonProperty
+            String timestamp;
+            @JsonProperty
+            List<Map<String,Double>> series = new LinkedList<>();
+
+            public void addValue(String key, double value) {
+                if (series.isEmpty()) {
+                    series.add(new LinkedHashMap<>());
+                }
+                series.get(0).put(key, value);
+            }
+        }
+    }
+
+    private static class ObjectMapperIOMT {
+        private static final ObjectMapper objectMapper = new ObjectMapper();
+
+        static String toEventHubJson(Event event) throws JsonProcessingException {
+            Message msg = new Message();
+            msg.body.deviceId = event.getSensor().getHwAddress();
+            for (Metric metric : event.getMetricsList()) {
+                if (PolarH7Handler.METRIC_NAME.equals(metric.getName())) {
+                    int bpm = (int)metric.getFieldsMap().get(PolarH7Handler.BPM_FIELD).getIntValue();
+                    msg.body.heartRate = Integer.toString(bpm);
+                    msg.body.endDate = Instant.ofEpochMilli(metric.getTimestamp()).toString();
+                    for (String key : metric.getFieldsMap().keySet()) {
+                        if (key.startsWith("rr")) {
+                            msg.body.rr = Double.toString(metric.getFieldsMap().get(key).getFloatValue());
+                            break;
+                        }
+                    }
+                }
+            }
+            return objectMapper.writeValueAsString(msg);
+        }
+
+        public static class Message {
+            @JsonProperty
+            Body body = new Body();
+        }
+
+        public static class Body {
+            @JsonProperty
+            String deviceId;
+            @JsonProperty
+            String endDate;
+            @JsonProperty
+            String heartRate;
+            @JsonProperty
+            String rr;
+            @JsonProperty(required = true)
+            Map<String,String> properties = Maps.newLinkedHashMap();
+            @JsonProperty
+            Map<String,String> systemProperties = Maps.newLinkedHashMap();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.handlers;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.Sensor;
+
+/**
+ * Measures decoding the notifications of the Polar H7 and TI CC2650 sensors into events.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerBenchmark {
+
+    private static final Sensor POLAR = Sensor.newBuilder().setHwAddress("00:22:D0:26:58:91").build();
+    private static final Sensor CC2650 = Sensor.newBuilder().setHwAddress("54:6C:0E:53:45:B7").build();
+
+    // 72 bpm as a uint8, followed by 2 RR intervals
+    private static final byte[] HEART_RATE = {0x10, 72, 0x41, 0x03, 0x2c, 0x03};
+    // Ambient temperature and humidity
+    private static final byte[] HUMIDITY = {(byte)0x9c, 0x66, (byte)0xb8, 0x7a};
+    // Object and ambient temperatures
+    private static final byte[] TEMPERATURE = {(byte)0xa0, 0x0b, (byte)0x80, 0x0c};
+
+    @Benchmark
+    public Event polarH7HeartRate() {
+        return PolarH7Handler.toEvent(POLAR, HEART_RATE, 1588538411000L);
+    }
+
+    @Benchmark
+    public Event cc2650Humidity() {
+        return TICC2650Handler.toHumidityEvent(CC2650, HUMIDITY, 1588538411000L);
+    }
+
+    @Benchmark
+    public float cc2650Temperature() {
+        int objectTempRaw = (TEMPERATURE[0] & 0xff) | (TEMPERATURE[1] << 8);
+        int ambientTempRaw = (TEMPERATURE[2] & 0xff) | (TEMPERATURE[3] << 8);
+        return TICC2650Handler.convertCelsius(objectTempRaw) + TICC2650Handler.convertCelsius(ambientTempRaw);
+    }
+}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.muse;
+
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.opennms.iot.SensorDescriptor;
+
+/**
+ * Measures decoding Muse EEG packets: a single channel, into a new ChannelSamples or into a reusable
+ * array, a whole frame of 5 channels from the notifications to the broadcast event, and building
+ * the event from an already decoded frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EEGBenchmark {
+
+    // From muselsl, sample 5382 of one channel
+    private static final byte[] PACKET = Base64.getDecoder().decode("FQYW2p8AAavp7mcdoACPUYBzoAA=");
+
+    // In the order in which the notifications are usually received
+    private static final int[] HANDLES = {44, 41, 38, 32, 35};
+
+    private final byte[][] packets = new byte[HANDLES.length][];
+    private MuseHandler museHandler;
+    private EEGHandler eegHandler;
+    private EEGSample eegSample;
+    private int sampleIndex = 0;
+    private final short[] rawSlab = new short[EEGHandler.SAMPLES_PER_PACKET];
+
+    @Setup
+    public void setUp(Blackhole bh) {
+        for (int i = 0; i < HANDLES.length; i++) {
+            packets[i] = PACKET.clone();
+        }
+        museHandler = new MuseHandler(SensorDescriptor.forAddress("00:55:DA:B5:35:5A"));
+        museHandler.registerConsumer(bh::consume);
+        eegHandler = new EEGHandler(museHandler);
+
+        Map<Integer, ChannelSamples> data = new LinkedHashMap<>();
+        for (int i = 0; i < HANDLES.length; i++) {
+            data.put(i, EEGHandler.unpack_eeg_channel(PACKET));
+        }
+        List<Long> timestamps = LongStream.range(0, 12)
+                .mapToObj(i -> 1588222530705L + i * 4)
+                .collect(Collectors.toList());
+        eegSample = new EEGSample(data, timestamps);
+    }
+
+    @Benchmark
+    public ChannelSamples unpackEegChannel() {
+        return EEGHandler.unpack_eeg_channel(PACKET);
+    }
+
+    @Benchmark
+    public int decodeEegChannel() {
+        EEGHandler.decodeEegChannel(PACKET, rawSlab, 0);
+        return rawSlab[11];
+    }
+
+    @Benchmark
+    public void handleEegFrame() {
+        // Keep the sample index going so that no frame is reported missing
+        sampleIndex = (sampleIndex + 1) & 0xFFFF;
+        for (int i = 0; i < HANDLES.length; i++) {
+            packets[i][0] = (byte)(sampleIndex >> 8);
+            packets[i][1] = (byte)sampleIndex;
+            eegHandler.handle_eeg(HANDLES[i], packets[i]);
+        }
+    }
+
+    @Benchmark
+    public void broadcastEegSample() {
+        museHandler.broadcastEegSample(eegSample, System.nanoTime());
+    }
+}
@@ -0,0 +1,427 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opennms.iot.ble.proto.Client;
+import org.opennms.iot.ble.proto.Encoding;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.history.ReplayCursor;
+import org.opennms.iot.schema.Dictionary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * A single consumer of the event stream.
+ *
+ * Events are filtered and pushed into a bounded queue by the broadcasting thread and are
+ * drained on the given executor, only while the underlying gRPC call is ready
+ * to accept more messages. The broadcasting thread never blocks on a consumer.
+ *
+ * @param <T> type of message sent to the observer
+ */
+public abstract class AbstractSubscriber<T> {
+    private static final Logger LOG = LoggerFactory.getLogger(AbstractSubscriber.class);
+
+    public enum OverflowPolicy {
+        /**
+         * Evict the oldest queued event to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Discard the new event, keeping what is already queued.
+         */
+        DROP_NEWEST,
+        /**
+         * Terminate the stream with RESOURCE_EXHAUSTED.
+         */
+        DISCONNECT
+    }
+
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    private final long id = NEXT_ID.incrementAndGet();
+    private volatile Client client;
+    private volatile SubscriptionFilter filter;
+    protected final StreamObserver<T> observer;
+    private final ServerCallStreamObserver<T> callObserver;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final Executor executor;
+
+    private final ArrayDeque<SharedEvent> queue;
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+    private volatile Throwable terminalError;
+    private volatile Runnable onClose;
+    private volatile boolean dictionarySent = false;
+    private volatile ReplayCursor replay;
+    private volatile long liveFromSequence = 0;
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private volatile int maxLag = 0;
+    // Guarded by the queue, set while events are being dropped so that each episode is only logged once
+    private boolean overflowing = false;
+
+    protected AbstractSubscriber(Client client, StreamObserver<T> observer, int capacity, OverflowPolicy overflowPolicy, Executor executor) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + capacity);
+        }
+        setClient(client);
+        this.observer = Objects.requireNonNull(observer);
+        this.capacity = capacity;
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy);
+        this.executor = Objects.requireNonNull(executor);
+        this.queue = new ArrayDeque<>(Math.min(capacity, 64));
+
+        if (observer instanceof ServerCallStreamObserver) {
+            callObserver = (ServerCallStreamObserver<T>)observer;
+            callObserver.setOnReadyHandler(this::scheduleDrain);
+            // Also fired when the deadline expires
+            callObserver.setOnCancelHandler(() -> {
+                LOG.debug("Subscriber {} cancelled.", getName());
+                close();
+            });
+        } else {
+            // Local observers (i.e. exporters) have no transport level flow control
+            callObserver = null;
+        }
+    }
+
+    /**
+     * Replace the subscription spec, and with it the filter applied to subsequent events.
+     */
+    public void setClient(Client client) {
+        this.client = Objects.requireNonNull(client);
+        this.filter = SubscriptionFilter.fromClient(client);
+        // Re-announce in case the encoding changed
+        this.dictionarySent = false;
+    }
+
+    /**
+     * Replace the filter without changing the subscription spec.
+     */
+    public void setFilter(SubscriptionFilter filter) {
+        this.filter = Objects.requireNonNull(filter);
+    }
+
+    /**
+     * Called once, when the subscriber is closed for any reason.
+     */
+    public void setOnClose(Runnable onClose) {
+        this.onClose = onClose;
+    }
+
+    /**
+     * Filter and queue the event for delivery. Never blocks.
+     *
+     * @param event event to deliver
+     * @return true if the event was queued, false if it was filtered out or dropped
+     */
+    public boolean offer(Event event) {
+        return offer(new SharedEvent(event));
+    }
+
+    /**
+     * Filter and queue the event for delivery. Never blocks.
+     *
+     * The given instance is queued as-is when the filter leaves the event untouched,
+     * so that its serialized form is shared with the other subscribers.
+     *
+     * @param sharedEvent event to deliver
+     * @return true if the event was queued, false if it was filtered out or dropped
+     */
+    public boolean offer(SharedEvent sharedEvent) {
+        if (closed || terminalError != null) {
+            return false;
+        }
+        Event filtered = filter.apply(sharedEvent.getEvent());
+        if (filtered == null) {
+            return false;
+        }
+        SharedEvent event = filtered == sharedEvent.getEvent() ? sharedEvent : new SharedEvent(filtered, sharedEvent.getSequence());
+        boolean accepted = true;
+        synchronized (queue) {
+            if (queue.size() >= capacity) {
+                if (!overflowing && overflowPolicy != OverflowPolicy.DISCONNECT) {
+                    overflowing = true;
+                    LOG.warn("Subscriber {} fell more than {} events behind. Dropping the {} events until it catches up.",
+                            getName(), capacity, overflowPolicy == OverflowPolicy.DROP_OLDEST ? "oldest" : "newest");
+                }
+                switch (overflowPolicy) {
+                    case DROP_OLDEST:
+                        queue.poll();
+                        dropped.incrementAndGet();
+                        break;
+                    case DROP_NEWEST:
+                        accepted = false;
+                        break;
+                    case DISCONNECT:
+                        LOG.warn("Subscriber {} fell more than {} events behind. Disconnecting.", getName(), capacity);
+                        terminalError = Status.RESOURCE_EXHAUSTED
+                                .withDescription("Subscriber fell too far behind.")
+                                .asRuntimeException();
+                        accepted = false;
+                        break;
+                }
+            } else {
+                overflowing = false;
+            }
+            if (accepted) {
+                queue.add(event);
+                enqueued.incrementAndGet();
+                if (queue.size() > maxLag) {
+                    maxLag = queue.size();
+                }
+            }
+        }
+        if (!accepted) {
+            dropped.incrementAndGet();
+        }
+        scheduleDrain();
+        return accepted;
+    }
+
+    /**
+     * Deliver the events from the cursor before any live event. Live events that are also
+     * covered by the cursor are skipped, so nothing is delivered twice.
+     *
+     * The caller is expected to call {@link #scheduleDrain()} once the subscriber is registered.
+     */
+    public void replay(ReplayCursor cursor) {
+        liveFromSequence = cursor.getEndSequence();
+        replay = cursor;
+    }
+
+    /**
+     * Stop delivering events without notifying the observer. Anything still queued is discarded.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        replay = null;
+        synchronized (queue) {
+            queue.clear();
+        }
+        Runnable callback = onClose;
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Move events from the queue to the observer. Only ever invoked by a single thread at a time.
+     *
+     * Implementations should stop as soon as {@link #canDeliver()} returns false.
+     */
+    protected abstract void deliver();
+
+    /**
+     * @return true if the subscriber has work other than queued events, i.e. a partial batch
+     * that is ready to be flushed
+     */
+    protected boolean hasPendingOutput() {
+        return false;
+    }
+
+    protected boolean canDeliver() {
+        return !closed && terminalError == null && isReady();
+    }
+
+    /**
+     * @return the next event to deliver, or null if there is none. When using the dictionary,
+     * the first event returned is the one announcing it, followed by any replayed events and
+     * then by the queued live events.
+     */
+    protected SharedEvent poll() {
+        if (!dictionarySent && getEncoding() == Encoding.DICTIONARY) {
+            dictionarySent = true;
+            return Dictionary.ANNOUNCEMENT;
+        }
+        ReplayCursor cursor = replay;
+        if (cursor != null) {
+            SharedEvent event;
+            while ((event = cursor.next()) != null) {
+                Event filtered = filter.apply(SampleBlocks.encode(event.getEvent(), getEncoding()));
+                if (filtered != null) {
+                    replayed.incrementAndGet();
+                    return new SharedEvent(filtered, event.getSequence());
+                }
+            }
+            LOG.debug("Subscriber {} replayed {} events. {} were evicted before they could be replayed.",
+                    getName(), replayed.get(), cursor.getSkippedCount());
+            replay = null;
+        }
+        synchronized (queue) {
+            SharedEvent event;
+            do {
+                event = queue.poll();
+            } while (event != null && event.getSequence() != 0 && event.getSequence() < liveFromSequence);
+            return event;
+        }
+    }
+
+    protected void onDelivered(int numEvents) {
+        delivered.addAndGet(numEvents);
+    }
+
+    private boolean isReady() {
+        return callObserver == null || callObserver.isReady();
+    }
+
+    protected void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        do {
+            try {
+                if (canDeliver()) {
+                    deliver();
+                }
+                if (terminalError != null && !closed) {
+                    close();
+                    observer.onError(terminalError);
+                }
+            } catch (RuntimeException e) {
+                LOG.warn("Delivery to subscriber {} failed. Closing.", getName(), e);
+                close();
+            } finally {
+                draining.set(false);
+            }
+            // Re-check: an event may have been queued, or the call may have become ready,
+            // after we last looked but before we released the flag
+        } while (hasPendingWork() && draining.compareAndSet(false, true));
+    }
+
+    private boolean hasPendingWork() {
+        if (closed) {
+            return false;
+        }
+        if (terminalError != null) {
+            return true;
+        }
+        if (!isReady()) {
+            return false;
+        }
+        if (hasPendingOutput() || replay != null) {
+            return true;
+        }
+        synchronized (queue) {
+            return !queue.isEmpty();
+        }
+    }
+
+    /**
+     * @return unique identifier of the subscriber within the process, since names can be shared
+     */
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        Client c = client;
+        return c.getName().isEmpty() ? c.getId() : c.getName();
+    }
+
+    public Client getClient() {
+        return client;
+    }
+
+    public Encoding getEncoding() {
+        return client.getEncoding();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return number of events waiting to be delivered
+     */
+    public int getLag() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * @return largest number of events ever waiting to be delivered
+     */
+    public int getMaxLag() {
+        return maxLag;
+    }
+
+    public long getEnqueuedCount() {
+        return enqueued.get();
+    }
+
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getReplayedCount() {
+        return replayed.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+                "name='" + getName() + '\'' +
+                ", lag=" + getLag() +
+                ", maxLag=" + maxLag +
+                ", enqueued=" + enqueued +
+                ", delivered=" + delivered +
+                ", dropped=" + dropped +
+                ", replayed=" + replayed +
+                ", filter=" + filter +
+                ", closed=" + closed +
+                '}';
+    }
+}
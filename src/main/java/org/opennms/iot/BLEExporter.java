@@ -1,27 +1,51 @@
 package org.opennms.iot;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.ParserProperties;
+import org.opennms.iot.az.BatchingProducer;
 import org.opennms.iot.az.EventHubExporter;
+import org.opennms.iot.az.EventHubSender;
+import org.opennms.iot.az.EventSender;
+import org.opennms.iot.az.EventSenderPool;
 import org.opennms.iot.az.IOMTMapper;
+import org.opennms.iot.az.PartitionStrategy;
+import org.opennms.iot.az.ProtobufMapper;
 import org.opennms.iot.az.TSIMapper;
 import org.opennms.iot.ble.proto.Client;
+import org.opennms.iot.ble.proto.Encoding;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.connection.ConnectionManager;
+import org.opennms.iot.discovery.DeviceDiscovery;
+import org.opennms.iot.gatt.GattLayoutCache;
+import org.opennms.iot.history.History;
+import org.opennms.iot.metrics.LatestValues;
+import org.opennms.iot.metrics.MetricsEndpoint;
+import org.opennms.iot.spool.Spool;
+import org.opennms.iot.stats.PipelineLatency;
+import org.opennms.iot.trace.PacketTrace;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.azure.messaging.eventhubs.EventData;
 import com.google.common.base.Strings;
 
 import io.grpc.Server;
@@ -42,21 +66,108 @@ public class BLEExporter {
     @Option(name="-tsiEventHub",usage="Event hub name for TSI formatted data")
     private String tsiEventHub;
 
+    @Option(name="-protobufEventHub",usage="Event hub name for protobuf encoded data")
+    private String protobufEventHub;
+
+    @Option(name="-protobufEncoding",usage="Encoding of the events sent to the protobuf Event hub: METRICS or SAMPLE_BLOCKS")
+    private Encoding protobufEncoding = Encoding.SAMPLE_BLOCKS;
+
     @Option(name="-connectionString",usage="Azure connection string used for Event hub")
     private String connectionString;
 
     @Option(name="-sessionName",usage="Session name - used to identify one or more runs.")
     private String sessionName = "Default session";
 
+    @Option(name="-subscriberQueueSize",usage="Maximum number of events queued for each subscriber")
+    private int subscriberQueueSize = BLEExporterImpl.DEFAULT_QUEUE_SIZE;
+
+    @Option(name="-overflowPolicy",usage="What to do when the queue of a gRPC subscriber is full. The Event hub exporters use -exporterOverflowPolicy instead.")
+    private AbstractSubscriber.OverflowPolicy overflowPolicy = AbstractSubscriber.OverflowPolicy.DROP_OLDEST;
+
+    @Option(name="-exporterOverflowPolicy",usage="What to do when the queue of an Event hub exporter is full. Drops are logged.")
+    private AbstractSubscriber.OverflowPolicy exporterOverflowPolicy = AbstractSubscriber.OverflowPolicy.DROP_NEWEST;
+
+    @Option(name="-historySeconds",usage="How long to keep events for subscribers that request a replay, 0 (the default) to disable")
+    private int historySeconds = 0;
+
+    @Option(name="-historyBytesPerSensor",usage="Off-heap memory used to keep the history of each sensor")
+    private int historyBytesPerSensor = History.DEFAULT_BYTES_PER_SENSOR;
+
+    @Option(name="-historyMaxBytes",usage="Off-heap memory used to keep the history of all sensors. Sensors seen after it is used up have no history.")
+    private long historyMaxBytes = History.DEFAULT_MAX_BYTES;
+
+    @Option(name="-spoolDirectory",usage="Directory in which to store events until they are forwarded to Event hub")
+    private File spoolDirectory;
+
+    @Option(name="-spoolMaxMb",usage="Disk space used to store events for each Event hub, in MiB")
+    private long spoolMaxMb = Spool.DEFAULT_MAX_BYTES / (1024 * 1024);
+
+    @Option(name="-eventHubLingerMs",usage="How long an event may wait for more events to join its batch before it is sent to Event hub")
+    private long eventHubLingerMs = BatchingProducer.DEFAULT_LINGER_MS;
+
+    @Option(name="-eventHubMaxBatchKb",usage="Maximum size of the batches sent to Event hub, in KiB")
+    private int eventHubMaxBatchKb = BatchingProducer.DEFAULT_MAX_BATCH_BYTES / 1024;
+
+    @Option(name="-eventHubMaxInFlight",usage="Maximum number of batches being sent to each Event hub at any time")
+    private int eventHubMaxInFlight = BatchingProducer.DEFAULT_MAX_IN_FLIGHT;
+
+    @Option(name="-eventHubPacking",usage="How to pack the events of a batch into Event hub messages. Events sent to the protobuf Event hub are packed as an EVENT_BATCH unless NONE.")
+    private BatchingProducer.Packing eventHubPacking = BatchingProducer.Packing.NONE;
+
+    @Option(name="-eventHubCompression",usage="How to compress packed Event hub messages")
+    private BatchingProducer.Compression eventHubCompression = BatchingProducer.Compression.NONE;
+
+    @Option(name="-eventHubPartitionStrategy",usage="How to pick the Event hub partition of each event")
+    private PartitionStrategy.Type eventHubPartitionStrategy = PartitionStrategy.Type.MAC;
+
+    @Option(name="-eventHubPartitions",usage="Number of partitions of the Event hub, used by the ROUND_ROBIN and CONSISTENT_HASH strategies. Retrieved from the Event hub when 0.")
+    private int eventHubPartitions = 0;
+
+    @Option(name="-eventHubProducers",usage="Number of connections used to send to each Event hub in parallel")
+    private int eventHubProducers = 1;
+
+    @Option(name="-metricsPort",usage="Port on which to serve metrics to Prometheus, 0 to disable")
+    private int metricsPort = 9003;
+
+    @Option(name="-metricsMaxSensors",usage="Maximum number of sensors whose latest values are served to Prometheus")
+    private int metricsMaxSensors = LatestValues.DEFAULT_MAX_SENSORS;
+
+    @Option(name="-latencyLogSeconds",usage="How often to log the latency of each stage of the pipeline, 0 to disable")
+    private int latencyLogSeconds = 60;
+
+    @Option(name="-packetTraceSampling",usage="Keep 1 in every N BLE notifications in the packet trace, 0 to disable it. The trace is returned by the DumpPacketTrace RPC.")
+    private int packetTraceSampling = 1;
+
+    @Option(name="-gattCacheDirectory",usage="Directory in which to remember the services of each sensor between runs, so that reconnecting doesn't wait for service discovery")
+    private File gattCacheDirectory;
+
+    @Option(name="-maxConcurrentConnects",usage="Maximum number of connection attempts in progress on each Bluetooth adapter")
+    private int maxConcurrentConnects = ConnectionManager.DEFAULT_MAX_CONCURRENT_CONNECTS;
+
+    @Option(name="-reconnectInitialMs",usage="Delay before reconnecting to a sensor, doubled on each failed attempt, with jitter")
+    private long reconnectInitialMs = ConnectionManager.DEFAULT_INITIAL_BACKOFF_MS;
+
+    @Option(name="-reconnectMaxMs",usage="Maximum delay between attempts to reconnect to a sensor")
+    private long reconnectMaxMs = ConnectionManager.DEFAULT_MAX_BACKOFF_MS;
+
+    @Option(name="-discoveryIntervalMs",usage="How often to list the devices discovered by BlueZ, for all the sensors")
+    private long discoveryIntervalMs = DeviceDiscovery.DEFAULT_SCAN_INTERVAL_MS;
+
     @Argument
     private List<String> arguments = new ArrayList<>();
 
-    private BLEExporterImpl bleExporterSvc = new BLEExporterImpl();
+    private BLEExporterImpl bleExporterSvc;
 
+    private DeviceDiscovery discovery;
+    private ConnectionManager connectionManager;
     private List<SensorTracker> sensorTrackers = new LinkedList<>();
 
     private EventHubExporter iomtEventHubExporter;
     private EventHubExporter tsiEventHubExporter;
+    private EventHubExporter protobufEventHubExporter;
+
+    private LatestValues latestValues;
+    private MetricsEndpoint metricsEndpoint;
 
     private boolean running = true;
 
@@ -74,6 +185,18 @@ public class BLEExporter {
             if( arguments.isEmpty() ) {
                 throw new CmdLineException(parser, "At least one device address is required.");
             }
+            if (eventHubPacking == BatchingProducer.Packing.EVENT_BATCH
+                    && (!Strings.isNullOrEmpty(iomtEventHub) || !Strings.isNullOrEmpty(tsiEventHub))) {
+                throw new CmdLineException(parser, "EVENT_BATCH packing only applies to protobuf encoded events.");
+            }
+            if (protobufEncoding == Encoding.DICTIONARY) {
+                throw new CmdLineException(parser, "Events encoded with a dictionary cannot be exported.");
+            }
+            try {
+                connectionManager = new ConnectionManager(maxConcurrentConnects, reconnectInitialMs, reconnectMaxMs);
+            } catch (IllegalArgumentException e) {
+                throw new CmdLineException(parser, e.getMessage(), e);
+            }
         } catch( CmdLineException e ) {
             System.err.println(e.getMessage());
             System.err.println("ble_exporter [options...] arguments...");
@@ -84,6 +207,9 @@ public class BLEExporter {
         }
         NativeLibrary.load();
 
+        History history = historySeconds > 0 ? new History(historySeconds, historyBytesPerSensor, historyMaxBytes) : null;
+        bleExporterSvc = new BLEExporterImpl(subscriberQueueSize, overflowPolicy, history);
+
         /*
          * To start looking of the device, we first must initialize the TinyB library. The way of interacting with the
          * library is through the BluetoothManager. There can be only one BluetoothManager at one time, and the
@@ -92,11 +218,11 @@ public class BLEExporter {
         BluetoothManager manager = BluetoothManager.getBluetoothManager();
 
         /*
-         * The manager will try to initialize a BluetoothAdapter if any adapter is present in the system. To initialize
-         * discovery we can call startDiscovery, which will put the default adapter in discovery mode.
+         * The manager will try to initialize a BluetoothAdapter if any adapter is present in the system. Discovery
+         * puts the default adapter in discovery mode, and indexes the devices found for all the sensor trackers.
          */
-        boolean discoveryStarted = manager.startDiscovery();
-        LOG.info("Discovery started: {}", discoveryStarted);
+        discovery = new DeviceDiscovery(manager, discoveryIntervalMs);
+        discovery.start();
 
         // Now start the gRPC service
         startGrpcServer();
@@ -104,8 +230,18 @@ public class BLEExporter {
         // Start forwarding events to EventHub
         startEventHubExporter();
 
+        startMetricsEndpoint();
+
+        if (latencyLogSeconds > 0) {
+            PipelineLatency.get().startLogging(latencyLogSeconds, TimeUnit.SECONDS);
+        }
+
+        PacketTrace.get().setSampleEvery(packetTraceSampling);
+
+        GattLayoutCache layoutCache = new GattLayoutCache(gattCacheDirectory != null ? gattCacheDirectory.toPath() : null);
+        HandlerRegistry handlerRegistry = HandlerRegistry.load();
         sensorTrackers = arguments.stream()
-                .map(mac -> new SensorTracker(bleExporterSvc, mac))
+                .map(mac -> new SensorTracker(bleExporterSvc, latestValues, discovery, layoutCache, handlerRegistry, connectionManager, mac))
                 .collect(Collectors.toList());
 
         Lock lock = new ReentrantLock();
@@ -124,9 +260,6 @@ public class BLEExporter {
 
         sensorTrackers.forEach(SensorTracker::start);
 
-        // TODO: Eventually stop discovery
-        //  manager.stopDiscovery();
-
         // Wait until stopped
         LOG.info("Waiting...");
         while (running) {
@@ -138,9 +271,28 @@ public class BLEExporter {
             }
         }
         sensorTrackers.forEach(SensorTracker::stop);
+        discovery.close();
+        stopEventHubExporters();
+        if (metricsEndpoint != null) {
+            metricsEndpoint.close();
+        }
+        PipelineLatency.get().stopLogging();
     }
 
-    private void startEventHubExporter() {
+    private void startMetricsEndpoint() throws IOException {
+        if (metricsPort <= 0) {
+            LOG.debug("No metrics port given. Metrics will not be served.");
+            return;
+        }
+        latestValues = new LatestValues(metricsMaxSensors);
+        List<EventHubExporter> exporters = Stream.of(iomtEventHubExporter, tsiEventHubExporter, protobufEventHubExporter)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        metricsEndpoint = new MetricsEndpoint(metricsPort, latestValues, PipelineLatency.get(), connectionManager.getStats(),
+                bleExporterSvc.getSubscriberStats(), EventHubExporter.collectorOf(exporters));
+    }
+
+    private void startEventHubExporter() throws IOException {
         if (Strings.isNullOrEmpty(connectionString)) {
             LOG.debug("No connection string given. Forwarder will not be started.");
             return;
@@ -148,18 +300,76 @@ public class BLEExporter {
         if (!Strings.isNullOrEmpty(iomtEventHub)) {
             LOG.debug("Starting to export events as IOMT to event hub: {}", iomtEventHub);
             IOMTMapper iomtMapper = new IOMTMapper();
-            iomtEventHubExporter = new EventHubExporter(connectionString, iomtEventHub, iomtMapper::mapEvent);
+            iomtEventHubExporter = newEventHubExporter(iomtEventHub, iomtMapper::mapEvent, eventHubPacking);
             bleExporterSvc.streamEvents(Client.newBuilder()
                     .setName(sessionName + "-iomt")
-                    .build(), iomtEventHubExporter);
+                    .build(), iomtEventHubExporter, exporterOverflowPolicy);
         }
         if (!Strings.isNullOrEmpty(tsiEventHub)) {
             LOG.debug("Starting to export events as TSI to event hub: {}", tsiEventHub);
             TSIMapper tsiMapper = new TSIMapper();
-            tsiEventHubExporter = new EventHubExporter(connectionString, tsiEventHub, tsiMapper::mapEvent);
+            tsiEventHubExporter = newEventHubExporter(tsiEventHub, tsiMapper::mapEvent, eventHubPacking);
             bleExporterSvc.streamEvents(Client.newBuilder()
                     .setName(sessionName + "-tsi")
-                    .build(), tsiEventHubExporter);
+                    .build(), tsiEventHubExporter, exporterOverflowPolicy);
+        }
+        if (!Strings.isNullOrEmpty(protobufEventHub)) {
+            LOG.debug("Starting to export events as protobuf to event hub: {}", protobufEventHub);
+            ProtobufMapper protobufMapper = new ProtobufMapper(protobufEncoding);
+            protobufEventHubExporter = newEventHubExporter(protobufEventHub, protobufMapper::mapEvent,
+                    eventHubPacking == BatchingProducer.Packing.NONE ? BatchingProducer.Packing.NONE : BatchingProducer.Packing.EVENT_BATCH);
+            bleExporterSvc.streamEvents(Client.newBuilder()
+                    .setName(sessionName + "-protobuf")
+                    .setEncoding(protobufEncoding)
+                    .build(), protobufEventHubExporter, exporterOverflowPolicy);
+        }
+    }
+
+    private EventHubExporter newEventHubExporter(String eventHubName, Function<Event, EventData> mapper,
+                                                 BatchingProducer.Packing packing) throws IOException {
+        PartitionStrategy partitionStrategy = PartitionStrategy.create(eventHubPartitionStrategy, sessionName,
+                getPartitionIds(eventHubName));
+        EventSender sender = eventHubProducers > 1
+                ? new EventSenderPool(eventHubProducers, () -> new EventHubSender(connectionString, eventHubName))
+                : new EventHubSender(connectionString, eventHubName);
+        BatchingProducer producer = new BatchingProducer(eventHubName, sender, eventHubLingerMs, eventHubMaxBatchKb * 1024,
+                eventHubMaxInFlight, BatchingProducer.DEFAULT_MAX_BUFFERED_EVENTS, packing, eventHubCompression);
+        return new EventHubExporter(eventHubName, mapper, openSpool(eventHubName), producer, partitionStrategy);
+    }
+
+    private List<String> getPartitionIds(String eventHubName) {
+        if (eventHubPartitionStrategy != PartitionStrategy.Type.ROUND_ROBIN
+                && eventHubPartitionStrategy != PartitionStrategy.Type.CONSISTENT_HASH) {
+            return Collections.emptyList();
+        }
+        if (eventHubPartitions > 0) {
+            return IntStream.range(0, eventHubPartitions)
+                    .mapToObj(Integer::toString)
+                    .collect(Collectors.toList());
+        }
+        try (EventHubSender sender = new EventHubSender(connectionString, eventHubName)) {
+            List<String> partitionIds = sender.getPartitionIds();
+            LOG.info("Event hub {} has partitions: {}", eventHubName, partitionIds);
+            return partitionIds;
+        }
+    }
+
+    private Spool openSpool(String eventHubName) throws IOException {
+        if (spoolDirectory == null) {
+            return null;
+        }
+        return new Spool(spoolDirectory.toPath().resolve(eventHubName), Spool.DEFAULT_SEGMENT_SIZE, spoolMaxMb * 1024 * 1024);
+    }
+
+    private void stopEventHubExporters() {
+        if (iomtEventHubExporter != null) {
+            iomtEventHubExporter.close();
+        }
+        if (tsiEventHubExporter != null) {
+            tsiEventHubExporter.close();
+        }
+        if (protobufEventHubExporter != null) {
+            protobufEventHubExporter.close();
         }
     }
 
@@ -191,6 +401,9 @@ public class BLEExporter {
         if (server != null) {
             server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
         }
+        if (bleExporterSvc != null) {
+            bleExporterSvc.shutdown();
+        }
     }
 
 }
\ No newline at end of file
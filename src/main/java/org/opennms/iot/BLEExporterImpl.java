@@ -28,31 +28,289 @@
 
 package org.opennms.iot;
 
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.opennms.iot.ble.proto.BLEExporterGrpc;
+import org.opennms.iot.ble.proto.BatchingClient;
 import org.opennms.iot.ble.proto.Client;
 import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.PacketTraceDump;
+import org.opennms.iot.ble.proto.PacketTraceRequest;
+import org.opennms.iot.ble.proto.Stats;
+import org.opennms.iot.ble.proto.StatsRequest;
+import org.opennms.iot.history.History;
+import org.opennms.iot.schema.Dictionary;
+import org.opennms.iot.stats.PipelineLatency;
+import org.opennms.iot.trace.PacketTrace;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.grpc.BindableService;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.ServiceDescriptor;
+import io.grpc.stub.ServerCalls;
 import io.grpc.stub.StreamObserver;
 
-public class BLEExporterImpl extends BLEExporterGrpc.BLEExporterImplBase {
+/**
+ * Implements the BLEExporter service.
+ *
+ * Rather than extending the generated base class, the service is bound with marshallers that
+ * stream pre-serialized events, so that broadcasting an event to N subscribers encodes it once
+ * instead of N times.
+ */
+public class BLEExporterImpl implements BindableService {
     private static final Logger LOG = LoggerFactory.getLogger(BLEExporterImpl.class);
 
-    private List<StreamObserver<Event>> observers = new CopyOnWriteArrayList<>();
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    private final int queueSize;
+    private final AbstractSubscriber.OverflowPolicy overflowPolicy;
+
+    private final ExecutorService deliveryExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+            .setNameFormat("subscriber-delivery-%d")
+            .setDaemon(true)
+            .build());
+
+    private final ScheduledExecutorService lingerTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("subscriber-linger-%d")
+            .setDaemon(true)
+            .build());
+
+    private final Set<AbstractSubscriber<?>> subscribers = ConcurrentHashMap.newKeySet();
+    private final SubscriberStats subscriberStats = new SubscriberStats(Collections.unmodifiableSet(subscribers));
+
+    private final History history;
+
+    public BLEExporterImpl() {
+        this(DEFAULT_QUEUE_SIZE, AbstractSubscriber.OverflowPolicy.DROP_OLDEST, null);
+    }
+
+    /**
+     * @param history where to record events for replay, or null to disable replays
+     */
+    public BLEExporterImpl(int queueSize, AbstractSubscriber.OverflowPolicy overflowPolicy, History history) {
+        this.queueSize = queueSize;
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy);
+        this.history = history;
+    }
 
     @Override
+    public ServerServiceDefinition bindService() {
+        MethodDescriptor<Client, SharedEvent> streamEventsMethod = BLEExporterGrpc.getStreamEventsMethod()
+                .toBuilder(BLEExporterGrpc.getStreamEventsMethod().getRequestMarshaller(), SharedEvent.MARSHALLER)
+                .build();
+        MethodDescriptor<Client, SharedEvent> subscribeMethod = BLEExporterGrpc.getSubscribeMethod()
+                .toBuilder(BLEExporterGrpc.getSubscribeMethod().getRequestMarshaller(), SharedEvent.MARSHALLER)
+                .build();
+        MethodDescriptor<BatchingClient, SharedEventBatch> streamEventBatchesMethod = BLEExporterGrpc.getStreamEventBatchesMethod()
+                .toBuilder(BLEExporterGrpc.getStreamEventBatchesMethod().getRequestMarshaller(), SharedEventBatch.MARSHALLER)
+                .build();
+        MethodDescriptor<StatsRequest, Stats> getStatsMethod = BLEExporterGrpc.getGetStatsMethod();
+        MethodDescriptor<PacketTraceRequest, PacketTraceDump> dumpPacketTraceMethod = BLEExporterGrpc.getDumpPacketTraceMethod();
+        ServiceDescriptor serviceDescriptor = ServiceDescriptor.newBuilder(BLEExporterGrpc.SERVICE_NAME)
+                .setSchemaDescriptor(BLEExporterGrpc.getServiceDescriptor().getSchemaDescriptor())
+                .addMethod(streamEventsMethod)
+                .addMethod(subscribeMethod)
+                .addMethod(streamEventBatchesMethod)
+                .addMethod(getStatsMethod)
+                .addMethod(dumpPacketTraceMethod)
+                .build();
+        return ServerServiceDefinition.builder(serviceDescriptor)
+                .addMethod(streamEventsMethod, ServerCalls.asyncServerStreamingCall(this::streamSharedEvents))
+                .addMethod(subscribeMethod, ServerCalls.asyncBidiStreamingCall(this::subscribe))
+                .addMethod(streamEventBatchesMethod, ServerCalls.asyncServerStreamingCall(this::streamEventBatches))
+                .addMethod(getStatsMethod, ServerCalls.asyncUnaryCall(this::getStats))
+                .addMethod(dumpPacketTraceMethod, ServerCalls.asyncUnaryCall(this::dumpPacketTrace))
+                .build();
+    }
+
+    /**
+     * Register a local consumer, i.e. an exporter, for the events matching the given spec.
+     *
+     * Local consumers are not subject to the overflow policy of the gRPC subscribers. When one falls
+     * behind, the newest events are dropped so that what it already queued is delivered in order.
+     */
     public void streamEvents(Client request, StreamObserver<Event> observer) {
-        observers.add(0, observer);
+        streamEvents(request, observer, AbstractSubscriber.OverflowPolicy.DROP_NEWEST);
+    }
+
+    /**
+     * Register a local consumer, i.e. an exporter, for the events matching the given spec.
+     *
+     * @param overflowPolicy what to do when the consumer's queue is full
+     */
+    public void streamEvents(Client request, StreamObserver<Event> observer, AbstractSubscriber.OverflowPolicy overflowPolicy) {
+        addSubscriber(new Subscriber(request, new StreamObserver<SharedEvent>() {
+            @Override
+            public void onNext(SharedEvent event) {
+                observer.onNext(event.getEvent());
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                observer.onError(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                observer.onCompleted();
+            }
+        }, queueSize, Objects.requireNonNull(overflowPolicy), deliveryExecutor));
+    }
+
+    public void streamSharedEvents(Client request, StreamObserver<SharedEvent> observer) {
+        addSubscriber(new Subscriber(request, observer, queueSize, overflowPolicy, deliveryExecutor));
+    }
+
+    public StreamObserver<Client> subscribe(StreamObserver<SharedEvent> observer) {
+        // Handlers can only be registered on the call before we return, so create the subscriber
+        // now and have it match nothing until we get the first spec
+        Subscriber subscriber = new Subscriber(Client.getDefaultInstance(), observer, queueSize, overflowPolicy, deliveryExecutor);
+        subscriber.setFilter(SubscriptionFilter.NONE);
+        addSubscriber(subscriber);
+        return new StreamObserver<Client>() {
+            private boolean first = true;
+
+            @Override
+            public void onNext(Client client) {
+                LOG.debug("Updating subscription for {}: {}", subscriber.getName(), client);
+                subscriber.setClient(client);
+                if (first) {
+                    first = false;
+                    // Already registered, so the cursor only needs to be attached
+                    long replayFrom = getReplayStart(client);
+                    if (replayFrom > 0 && history != null) {
+                        history.openCursor(replayFrom, subscriber::replay);
+                        subscriber.scheduleDrain();
+                    }
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                LOG.debug("Subscription for {} failed.", subscriber.getName(), t);
+                subscriber.close();
+            }
+
+            @Override
+            public void onCompleted() {
+                // The client is done changing the spec, keep streaming with the last one
+                LOG.debug("Subscription for {} is now fixed.", subscriber.getName());
+            }
+        };
     }
 
-    public synchronized void broadcast(Event event) {
-        LOG.debug("Broadcasting event to {} observers: {}", observers.size(), event);
-        observers.forEach(o -> {
-            o.onNext(event);
+    public void streamEventBatches(BatchingClient request, StreamObserver<SharedEventBatch> observer) {
+        addSubscriber(new BatchSubscriber(request, observer, queueSize, overflowPolicy, deliveryExecutor, lingerTimer));
+    }
+
+    public void getStats(StatsRequest request, StreamObserver<Stats> observer) {
+        observer.onNext(PipelineLatency.get().toStats());
+        observer.onCompleted();
+    }
+
+    public void dumpPacketTrace(PacketTraceRequest request, StreamObserver<PacketTraceDump> observer) {
+        observer.onNext(PacketTrace.get().toProto(request));
+        observer.onCompleted();
+    }
+
+    private void addSubscriber(AbstractSubscriber<?> subscriber) {
+        subscriber.setOnClose(() -> {
+            subscribers.remove(subscriber);
+            LOG.info("Removed subscriber: {}", subscriber);
         });
+        long replayFrom = getReplayStart(subscriber.getClient());
+        if (replayFrom > 0 && history != null) {
+            // Register while the history is locked so that every event is either replayed or delivered live
+            history.openCursor(replayFrom, cursor -> {
+                subscriber.replay(cursor);
+                subscribers.add(subscriber);
+            });
+            subscriber.scheduleDrain();
+        } else {
+            if (replayFrom > 0) {
+                LOG.warn("Subscriber {} requested a replay, but history is disabled.", subscriber.getName());
+            }
+            subscribers.add(subscriber);
+        }
+        LOG.info("Added subscriber: {}", subscriber);
+    }
+
+    private static long getReplayStart(Client client) {
+        if (client.getReplaySince() > 0) {
+            return client.getReplaySince();
+        }
+        if (client.getReplaySeconds() > 0) {
+            return System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(client.getReplaySeconds());
+        }
+        return 0;
+    }
+
+    public void broadcast(Event event) {
+        long start = System.nanoTime();
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Broadcasting event to {} subscribers: {}", subscribers.size(), event);
+        }
+        // Only convert to each encoding once, and only if someone wants it. Each variant is
+        // serialized at most once, by whichever delivery thread gets to it first. The history
+        // needs the bytes of the unconverted event up front, so with it enabled that one is
+        // serialized here instead.
+        SharedEvent blocksEvent = history != null ? history.append(event) : new SharedEvent(event);
+        SharedEvent metricsEvent = null;
+        SharedEvent dictionaryEvent = null;
+        for (AbstractSubscriber<?> subscriber : subscribers) {
+            switch (subscriber.getEncoding()) {
+                case METRICS:
+                    if (metricsEvent == null) {
+                        metricsEvent = share(event, SampleBlocks.toMetrics(event), blocksEvent);
+                    }
+                    subscriber.offer(metricsEvent);
+                    break;
+                case DICTIONARY:
+                    if (dictionaryEvent == null) {
+                        dictionaryEvent = share(event, Dictionary.compact(event), blocksEvent);
+                    }
+                    subscriber.offer(dictionaryEvent);
+                    break;
+                default:
+                    subscriber.offer(blocksEvent);
+            }
+        }
+        PipelineLatency.get().record(PipelineLatency.Stage.FANOUT, event, start);
+    }
+
+    private static SharedEvent share(Event event, Event converted, SharedEvent sharedEvent) {
+        return converted == event ? sharedEvent : new SharedEvent(converted, sharedEvent.getSequence());
+    }
+
+    /**
+     * @return the current subscribers, along with their delivery counters
+     */
+    public Collection<AbstractSubscriber<?>> getSubscribers() {
+        return Collections.unmodifiableSet(subscribers);
+    }
+
+    /**
+     * @return the lag and delivery counters of each subscriber, for the metrics endpoint
+     */
+    public SubscriberStats getSubscriberStats() {
+        return subscriberStats;
+    }
+
+    public void shutdown() {
+        subscribers.forEach(AbstractSubscriber::close);
+        deliveryExecutor.shutdownNow();
+        lingerTimer.shutdownNow();
     }
 }
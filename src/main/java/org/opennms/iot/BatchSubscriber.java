@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.iot.ble.proto.BatchingClient;
+import org.opennms.iot.stats.Histogram;
+import org.opennms.iot.stats.PipelineLatency;
+
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Coalesces events into batches, flushed when they reach the requested size or
+ * once the first event in the batch has waited for the linger time.
+ */
+public class BatchSubscriber extends AbstractSubscriber<SharedEventBatch> {
+
+    public static final int DEFAULT_LINGER_MS = 20;
+    public static final int DEFAULT_MAX_BATCH_BYTES = 16 * 1024;
+
+    private final long lingerNanos;
+    private final int maxBatchBytes;
+    private final ScheduledExecutorService timer;
+
+    // Only accessed from deliver(), which is never called concurrently
+    private List<SharedEvent> batch = new ArrayList<>();
+    private int batchBytes = 0;
+    private long batchStartedAt;
+    private ScheduledFuture<?> lingerTimeout;
+
+    private volatile boolean lingerExpired = false;
+
+    private final Histogram batchEvents = new Histogram();
+    private final Histogram batchBytesHistogram = new Histogram();
+    private final Histogram lingerMicros = new Histogram();
+
+    public BatchSubscriber(BatchingClient request, StreamObserver<SharedEventBatch> observer, int capacity,
+                           OverflowPolicy overflowPolicy, Executor executor, ScheduledExecutorService timer) {
+        super(request.getClient(), observer, capacity, overflowPolicy, executor);
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(request.getLingerMs() > 0 ? request.getLingerMs() : DEFAULT_LINGER_MS);
+        this.maxBatchBytes = request.getMaxBatchBytes() > 0 ? request.getMaxBatchBytes() : DEFAULT_MAX_BATCH_BYTES;
+        this.timer = Objects.requireNonNull(timer);
+    }
+
+    @Override
+    protected void deliver() {
+        if (lingerExpired) {
+            lingerExpired = false;
+            if (batch.size() > 0 && System.nanoTime() - batchStartedAt >= lingerNanos) {
+                flush();
+            }
+        }
+        while (canDeliver()) {
+            SharedEvent event = poll();
+            if (event == null) {
+                break;
+            }
+            if (batch.size() == 0) {
+                batchStartedAt = System.nanoTime();
+                lingerTimeout = timer.schedule(this::onLingerExpired, lingerNanos, TimeUnit.NANOSECONDS);
+            }
+            batch.add(event);
+            batchBytes += SharedEventBatch.computeEventSize(event);
+            if (batchBytes >= maxBatchBytes) {
+                flush();
+            }
+        }
+    }
+
+    private void flush() {
+        if (lingerTimeout != null) {
+            lingerTimeout.cancel(false);
+            lingerTimeout = null;
+        }
+        int numEvents = batch.size();
+        batchEvents.record(numEvents);
+        batchBytesHistogram.record(batchBytes);
+        lingerMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - batchStartedAt));
+
+        observer.onNext(new SharedEventBatch(batch));
+        onDelivered(numEvents);
+        for (SharedEvent event : batch) {
+            PipelineLatency.get().record(PipelineLatency.Stage.DELIVERY, event.getEvent(), event.getCreatedNanos());
+        }
+
+        batch = new ArrayList<>();
+        batchBytes = 0;
+    }
+
+    private void onLingerExpired() {
+        lingerExpired = true;
+        scheduleDrain();
+    }
+
+    @Override
+    protected boolean hasPendingOutput() {
+        return lingerExpired;
+    }
+
+    /**
+     * @return number of events in each batch sent
+     */
+    public Histogram getBatchEvents() {
+        return batchEvents;
+    }
+
+    /**
+     * @return size of each batch sent, in bytes
+     */
+    public Histogram getBatchBytes() {
+        return batchBytesHistogram;
+    }
+
+    /**
+     * @return time between the first event joining a batch and the batch being sent, in microseconds
+     */
+    public Histogram getLingerMicros() {
+        return lingerMicros;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() +
+                "{batchEvents=" + batchEvents +
+                ", batchBytes=" + batchBytesHistogram +
+                ", lingerMicros=" + lingerMicros +
+                '}';
+    }
+}
@@ -28,96 +28,26 @@
 
 package org.opennms.iot;
 
-import java.util.List;
+import java.util.function.Consumer;
 
-import org.opennms.iot.ble.proto.Sensor;
+import org.opennms.iot.trace.PacketTrace;
 
 import tinyb.BluetoothDevice;
 import tinyb.BluetoothGattCharacteristic;
-import tinyb.BluetoothGattService;
-import tinyb.BluetoothManager;
 
 public class Bluetooth {
 
-    public static Sensor.Builder buildSensorFromDevice(BluetoothDevice device) {
-        device.getRSSI();
-        device.getTxPower();
-        return Sensor.newBuilder()
-                .setHwAddress(device.getAddress());
-    }
-
-    static void printDevice(BluetoothDevice device) {
-        System.out.print("Address = " + device.getAddress());
-        System.out.print(" Name = " + device.getName());
-        System.out.print(" Connected = " + device.getConnected());
-        System.out.println();
-    }
-
-
-    /*
-     * After discovery is started, new devices will be detected. We can get a list of all devices through the manager's
-     * getDevices method. We can the look through the list of devices to find the device with the MAC which we provided
-     * as a parameter. We continue looking until we find it, or we try 15 times (1 minutes).
+    /**
+     * Subscribe to the notifications of the characteristic, recording every packet in the {@link PacketTrace}.
+     *
+     * @param name name of the characteristic in the trace
      */
-    static BluetoothDevice getDevice(String address) throws InterruptedException {
-        BluetoothManager manager = BluetoothManager.getBluetoothManager();
-        BluetoothDevice sensor = null;
-        for (int i = 0; (i < 15); ++i) {
-            List<BluetoothDevice> list = manager.getDevices();
-            if (list == null)
-                return null;
-
-            for (BluetoothDevice device : list) {
-                printDevice(device);
-                /*
-                 * Here we check if the address matches.
-                 */
-                if (device.getAddress().equals(address))
-                    sensor = device;
-            }
-
-            if (sensor != null) {
-                return sensor;
-            }
-            Thread.sleep(4000);
-        }
-        return null;
-    }
-
-    public static BluetoothGattService getService(BluetoothDevice device, String UUID) throws InterruptedException {
-        System.out.println("Services exposed by device:");
-        BluetoothGattService tempService = null;
-        List<BluetoothGattService> bluetoothServices = null;
-
-        boolean first = true;
-        do {
-            if (first) {
-                first = false;
-            } else {
-                Thread.sleep(4000);
-            }
-            bluetoothServices = device.getServices();
-            if (bluetoothServices == null)
-                return null;
-
-            for (BluetoothGattService service : bluetoothServices) {
-                System.out.println("UUID: " + service.getUUID());
-                if (service.getUUID().equals(UUID))
-                    tempService = service;
-            }
-        } while (bluetoothServices.isEmpty());
-        return tempService;
-    }
-
-    public static BluetoothGattCharacteristic getCharacteristic(BluetoothGattService service, String UUID) {
-        List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
-        if (characteristics == null)
-            return null;
-
-        for (BluetoothGattCharacteristic characteristic : characteristics) {
-            if (characteristic.getUUID().equals(UUID))
-                return characteristic;
-        }
-        return null;
+    public static void enableNotifications(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
+                                           String name, Consumer<byte[]> callback) {
+        PacketTrace.Source trace = PacketTrace.get().getSource(device.getAddress() + " " + name);
+        characteristic.enableValueNotifications(bytes -> {
+            trace.record(bytes);
+            callback.accept(bytes);
+        });
     }
 }
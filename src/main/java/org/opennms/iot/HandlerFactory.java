@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.opennms.iot.gatt.GattServices;
+
+import tinyb.BluetoothDevice;
+
+/**
+ * Creates the handlers for one type of device.
+ *
+ * Implementations are discovered with {@link java.util.ServiceLoader}, so new types of devices can be
+ * supported by adding a jar that lists its factory in {@code META-INF/services/org.opennms.iot.HandlerFactory}.
+ * Each factory declares the devices it claims up front, so that the {@link HandlerRegistry} can pick it
+ * from the services of the device without probing it.
+ */
+public interface HandlerFactory {
+
+    /**
+     * @return name of the type of device, for logging
+     */
+    String getName();
+
+    /**
+     * @return UUIDs of the GATT services that identify the devices handled, any of which is enough
+     */
+    default Set<String> getServiceUuids() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * @return prefixes of the names advertised by the devices handled, used when none of their services is claimed
+     */
+    default Set<String> getNamePrefixes() {
+        return Collections.emptySet();
+    }
+
+    Handler createHandler(BluetoothDevice device, GattServices gatt);
+
+}
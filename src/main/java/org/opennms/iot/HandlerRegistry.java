@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.opennms.iot.gatt.GattLayout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatch table from the services and advertised names of a device to the factory of its handler.
+ *
+ * The table is built once from the declarations of the factories. When a device matches several
+ * factories, the first one registered wins, i.e. the first one listed on the class path.
+ */
+public class HandlerRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(HandlerRegistry.class);
+
+    private final List<HandlerFactory> factories;
+    private final Map<String, Integer> factoryIndexByServiceUuid = new HashMap<>();
+    private final Map<String, Integer> factoryIndexByNamePrefix = new HashMap<>();
+    // Distinct lengths of the prefixes, so that a name is matched with one lookup per length
+    private final SortedSet<Integer> namePrefixLengths = new TreeSet<>();
+
+    public HandlerRegistry(Iterable<HandlerFactory> factories) {
+        List<HandlerFactory> registered = new ArrayList<>();
+        for (HandlerFactory factory : factories) {
+            int index = registered.size();
+            registered.add(factory);
+            for (String uuid : factory.getServiceUuids()) {
+                Integer previous = factoryIndexByServiceUuid.putIfAbsent(normalizeUuid(uuid), index);
+                if (previous != null) {
+                    LOG.warn("Service {} is claimed by both {} and {}. Using {}.", uuid,
+                            registered.get(previous).getName(), factory.getName(), registered.get(previous).getName());
+                }
+            }
+            for (String prefix : factory.getNamePrefixes()) {
+                factoryIndexByNamePrefix.putIfAbsent(prefix, index);
+                namePrefixLengths.add(prefix.length());
+            }
+        }
+        this.factories = Collections.unmodifiableList(registered);
+    }
+
+    /**
+     * @return the registry of the factories found on the class path
+     */
+    public static HandlerRegistry load() {
+        HandlerRegistry registry = new HandlerRegistry(ServiceLoader.load(HandlerFactory.class));
+        LOG.info("Found handlers for: {}", registry);
+        return registry;
+    }
+
+    /**
+     * @param layout services of the device
+     * @param name name advertised by the device, or null if it has none
+     * @return the factory for the device, or null if it isn't supported
+     */
+    public HandlerFactory lookup(GattLayout layout, String name) {
+        int best = Integer.MAX_VALUE;
+        for (String uuid : layout.getServiceUuids()) {
+            Integer index = factoryIndexByServiceUuid.get(uuid);
+            if (index != null && index < best) {
+                best = index;
+            }
+        }
+        if (best == Integer.MAX_VALUE && name != null) {
+            for (int length : namePrefixLengths) {
+                if (length > name.length()) {
+                    break;
+                }
+                Integer index = factoryIndexByNamePrefix.get(name.substring(0, length));
+                if (index != null && index < best) {
+                    best = index;
+                }
+            }
+        }
+        return best == Integer.MAX_VALUE ? null : factories.get(best);
+    }
+
+    public List<HandlerFactory> getFactories() {
+        return factories;
+    }
+
+    // Same as GattLayout
+    private static String normalizeUuid(String uuid) {
+        return uuid.toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (HandlerFactory factory : factories) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(factory.getName());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot;
+
+import org.opennms.iot.ble.proto.Channel;
+import org.opennms.iot.ble.proto.Encoding;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.FieldValue;
+import org.opennms.iot.ble.proto.Metric;
+import org.opennms.iot.ble.proto.SampleBlock;
+import org.opennms.iot.schema.Dictionary;
+
+/**
+ * Helpers for working with {@link SampleBlock}s.
+ */
+public class SampleBlocks {
+
+    private SampleBlocks() {}
+
+    /**
+     * Convert an event with sample blocks to the given encoding.
+     *
+     * @return the event itself if it is already suitable, otherwise a converted copy
+     */
+    public static Event encode(Event event, Encoding encoding) {
+        switch (encoding) {
+            case METRICS:
+                return toMetrics(event);
+            case DICTIONARY:
+                return Dictionary.compact(event);
+            default:
+                return event;
+        }
+    }
+
+    /**
+     * Convert the sample blocks in the given event to the equivalent metrics.
+     *
+     * @param event event to convert
+     * @return the event itself if it has no blocks, otherwise a copy with the blocks replaced by metrics
+     */
+    public static Event toMetrics(Event event) {
+        if (event.getBlocksCount() == 0) {
+            return event;
+        }
+        Event.Builder eventBuilder = event.toBuilder().clearBlocks();
+        for (SampleBlock block : event.getBlocksList()) {
+            addMetrics(block, eventBuilder);
+        }
+        return eventBuilder.build();
+    }
+
+    private static void addMetrics(SampleBlock block, Event.Builder eventBuilder) {
+        if (block.getSamplePeriodMs() <= 0) {
+            Metric.Builder metricBuilder = Metric.newBuilder()
+                    .setName(block.getName())
+                    .setTimestamp(block.getStartTimestamp());
+            for (Channel channel : block.getChannelsList()) {
+                int numValues = size(channel);
+                for (int i = 0; i < numValues; i++) {
+                    String fieldName = channel.getEnumerated() ? channel.getName() + i : channel.getName();
+                    metricBuilder.putFields(fieldName, getFieldValue(channel, i));
+                }
+            }
+            eventBuilder.addMetrics(metricBuilder);
+            return;
+        }
+
+        int numSamples = 0;
+        for (Channel channel : block.getChannelsList()) {
+            numSamples = Math.max(numSamples, size(channel));
+        }
+        for (int i = 0; i < numSamples; i++) {
+            Metric.Builder metricBuilder = Metric.newBuilder()
+                    .setName(block.getName())
+                    .setTimestamp(getTimestamp(block, i));
+            for (Channel channel : block.getChannelsList()) {
+                if (i < size(channel)) {
+                    metricBuilder.putFields(channel.getName(), getFieldValue(channel, i));
+                }
+            }
+            eventBuilder.addMetrics(metricBuilder);
+        }
+    }
+
+    /**
+     * @return the timestamp of the sample at the given index, in ms since the epoch
+     */
+    public static long getTimestamp(SampleBlock block, int index) {
+        return block.getStartTimestamp() + (long)(index * block.getSamplePeriodMs());
+    }
+
+    /**
+     * @return the number of values in the channel
+     */
+    public static int size(Channel channel) {
+        return channel.getIntValuesCount() > 0 ? channel.getIntValuesCount() : channel.getDoubleValuesCount();
+    }
+
+    /**
+     * @return the value at the given index, with the scale and offset applied
+     */
+    public static double getValue(Channel channel, int index) {
+        if (channel.getIntValuesCount() > 0) {
+            int value = channel.getIntValues(index);
+            return channel.getScale() != 0 ? channel.getOffset() + channel.getScale() * value : value;
+        }
+        return channel.getDoubleValues(index);
+    }
+
+    private static FieldValue getFieldValue(Channel channel, int index) {
+        if (channel.getIntValuesCount() > 0 && channel.getScale() == 0) {
+            return FieldValue.newBuilder().setIntValue(channel.getIntValues(index)).build();
+        }
+        return FieldValue.newBuilder().setFloatValue(getValue(channel, index)).build();
+    }
+}
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.iot.ble.proto.Sensor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import tinyb.BluetoothDevice;
+import tinyb.BluetoothException;
+
+/**
+ * Holds the {@link Sensor} message attached to every event from a given device.
+ *
+ * The message is built once and only rebuilt when the link quality changes, so handlers can
+ * attach it to events without making any native calls. RSSI is updated from tinyb's RSSI
+ * notifications, and both RSSI and TX power are re-sampled in the background every
+ * {@link #SAMPLE_INTERVAL_MS} since BlueZ only signals RSSI changes while discovering.
+ */
+public class SensorDescriptor {
+    private static final Logger LOG = LoggerFactory.getLogger(SensorDescriptor.class);
+
+    public static final long SAMPLE_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final Map<String, SensorDescriptor> descriptorsByAddress = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("sensor-sampler-%d")
+            .setDaemon(true)
+            .build());
+
+    private final String address;
+    private final BluetoothDevice device;
+    private ScheduledFuture<?> sampling;
+
+    private volatile Sensor sensor;
+    private double rssi;
+    private double txPower;
+
+    SensorDescriptor(String address, BluetoothDevice device) {
+        this.address = Objects.requireNonNull(address);
+        this.device = device;
+        this.sensor = Sensor.newBuilder().setHwAddress(address).build();
+    }
+
+    /**
+     * Get the descriptor for the given device, creating it and starting to sample the
+     * link quality if this is the first time the device is seen.
+     */
+    public static SensorDescriptor forDevice(BluetoothDevice device) {
+        return descriptorsByAddress.computeIfAbsent(device.getAddress(), address -> {
+            SensorDescriptor descriptor = new SensorDescriptor(address, device);
+            descriptor.start();
+            return descriptor;
+        });
+    }
+
+    /**
+     * Get a descriptor that isn't backed by a device, i.e. to decode recorded packets.
+     * Its link quality is never sampled, and it isn't returned by {@link #forDevice(BluetoothDevice)}.
+     */
+    public static SensorDescriptor forAddress(String address) {
+        return new SensorDescriptor(address, null);
+    }
+
+    /**
+     * Stop sampling and forget the descriptor for the given device, i.e. when it disconnects.
+     */
+    public static void release(String address) {
+        // BlueZ reports addresses in upper case
+        SensorDescriptor descriptor = descriptorsByAddress.remove(address.toUpperCase(Locale.ROOT));
+        if (descriptor != null) {
+            descriptor.stop();
+        }
+    }
+
+    private void start() {
+        try {
+            device.enableRSSINotifications(this::updateRssi);
+        } catch (BluetoothException e) {
+            LOG.debug("Could not enable RSSI notifications for {}. Relying on sampling.", address, e);
+        }
+        sampling = sampler.scheduleWithFixedDelay(this::sample, 0, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void stop() {
+        if (sampling != null) {
+            sampling.cancel(false);
+        }
+        try {
+            device.disableRSSINotifications();
+        } catch (BluetoothException e) {
+            LOG.debug("Could not disable RSSI notifications for {}.", address, e);
+        }
+    }
+
+    private void sample() {
+        try {
+            updateRssi(device.getRSSI());
+            updateTxPower(device.getTxPower());
+        } catch (BluetoothException e) {
+            // The properties are not available for all devices, or while disconnected
+            LOG.debug("Could not sample link quality for {}.", address, e);
+        } catch (RuntimeException e) {
+            // Keep sampling, the executor would otherwise silently stop
+            LOG.error("Unexpected error while sampling link quality for {}.", address, e);
+        }
+    }
+
+    synchronized void updateRssi(short rssi) {
+        if (this.rssi != rssi) {
+            this.rssi = rssi;
+            rebuild();
+        }
+    }
+
+    synchronized void updateTxPower(short txPower) {
+        if (this.txPower != txPower) {
+            this.txPower = txPower;
+            rebuild();
+        }
+    }
+
+    private void rebuild() {
+        sensor = Sensor.newBuilder()
+                .setHwAddress(address)
+                .setRssi(rssi)
+                .setTxPower(txPower)
+                .build();
+    }
+
+    /**
+     * @return the latest sensor message. Never makes a native call.
+     */
+    public Sensor getSensor() {
+        return sensor;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+}
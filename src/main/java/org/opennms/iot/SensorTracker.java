@@ -31,9 +31,13 @@ package org.opennms.iot;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
-import org.opennms.iot.handlers.PolarH7Handler;
-import org.opennms.iot.handlers.TICC2650Handler;
-import org.opennms.iot.muse.MuseHandler;
+import org.opennms.iot.connection.ConnectionManager;
+import org.opennms.iot.connection.DeviceConnection;
+import org.opennms.iot.discovery.DeviceDiscovery;
+import org.opennms.iot.gatt.GattLayout;
+import org.opennms.iot.gatt.GattLayoutCache;
+import org.opennms.iot.gatt.GattServices;
+import org.opennms.iot.metrics.LatestValues;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,13 +47,42 @@ import tinyb.BluetoothException;
 public class SensorTracker implements Runnable {
     private static final Logger LOG = LoggerFactory.getLogger(SensorTracker.class);
 
+    /**
+     * How long to wait for the services of a sensor that was never seen before to be discovered.
+     */
+    public static final long SERVICE_RESOLUTION_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
     private final BLEExporterImpl bleExporterSvc;
+    private final LatestValues latestValues;
+    private final DeviceDiscovery discovery;
+    private final GattLayoutCache layoutCache;
+    private final HandlerRegistry handlerRegistry;
+    private final ConnectionManager connectionManager;
 
     private final String sensorMac;
     private Thread thread;
 
-    public SensorTracker(BLEExporterImpl bleExporterSvc, String sensorMac) {
+    public SensorTracker(BLEExporterImpl bleExporterSvc, DeviceDiscovery discovery, GattLayoutCache layoutCache,
+                         HandlerRegistry handlerRegistry, ConnectionManager connectionManager, String sensorMac) {
+        this(bleExporterSvc, null, discovery, layoutCache, handlerRegistry, connectionManager, sensorMac);
+    }
+
+    /**
+     * @param latestValues where to record the latest values of the sensor, or null if they are not exposed
+     * @param discovery where to wait for the sensor to be discovered
+     * @param layoutCache where to remember the services of the sensor between connections
+     * @param handlerRegistry where to find the handler for the sensor
+     * @param connectionManager how to connect, and when to reconnect, to the sensor
+     */
+    public SensorTracker(BLEExporterImpl bleExporterSvc, LatestValues latestValues, DeviceDiscovery discovery,
+                         GattLayoutCache layoutCache, HandlerRegistry handlerRegistry, ConnectionManager connectionManager,
+                         String sensorMac) {
         this.bleExporterSvc = Objects.requireNonNull(bleExporterSvc);
+        this.latestValues = latestValues;
+        this.discovery = Objects.requireNonNull(discovery);
+        this.layoutCache = Objects.requireNonNull(layoutCache);
+        this.handlerRegistry = Objects.requireNonNull(handlerRegistry);
+        this.connectionManager = Objects.requireNonNull(connectionManager);
         this.sensorMac = Objects.requireNonNull(sensorMac);
     }
 
@@ -61,57 +94,60 @@ public class SensorTracker implements Runnable {
 
     @Override
     public void run() {
+        DeviceConnection connection = connectionManager.newConnection(sensorMac);
         try {
             boolean first = true;
             while(true) {
                 if (first) {
                     first = false;
                 } else {
-                   Thread.sleep(5000);
+                    connection.awaitRetry();
                 }
 
                 LOG.info("Trying to connect to sensor: {}", sensorMac);
-                BluetoothDevice sensor = Bluetooth.getDevice(sensorMac);
+                BluetoothDevice sensor = discovery.getDevice(sensorMac, 1, TimeUnit.MINUTES);
                 if (sensor == null) {
                     LOG.warn("No sensor found with the provided address: {}", sensorMac);
                     continue;
                 }
                 LOG.info("Found sensor: {}", sensorMac);
 
-                try {
-                    if (sensor.connect())
-                        LOG.info("Connected to sensor: {}", sensorMac);
-                    else {
-                        LOG.warn("Could not connect to sensor: {}", sensorMac);
-                        continue;
-                    }
-                } catch (BluetoothException ble) {
-                    LOG.warn("Could not connect to sensor: {}", sensorMac, ble);
+                if (!connection.connect(sensor)) {
                     continue;
                 }
 
-
                 try {
-                    Handler handler;
-                    // FIXME - we need a nicer way to register these
-                    if (TICC2650Handler.handles(sensor)) {
-                        handler = new TICC2650Handler(sensor);
-                    } else if (PolarH7Handler.handles(sensor)) {
-                        handler = new PolarH7Handler(sensor);
-                    } else if (MuseHandler.handles(sensor)) {
-                        handler = new MuseHandler(sensor);
-                    } else {
+                    GattLayout knownLayout = layoutCache.get(sensorMac);
+                    GattServices gatt = GattServices.resolve(sensor, knownLayout, SERVICE_RESOLUTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    if (gatt == null) {
+                        LOG.warn("No services discovered on sensor: {}", sensorMac);
+                        sensor.disconnect();
+                        continue;
+                    }
+                    GattLayout layout = gatt.getLayout();
+                    LOG.debug("Services of sensor {}: {}", sensorMac, layout.getServiceUuids());
+                    layoutCache.put(sensorMac, layout);
+
+                    HandlerFactory factory = handlerRegistry.lookup(layout, sensor.getName());
+                    if (factory == null) {
                         throw new UnsupportedOperationException("Unsupported sensor :(");
                     }
+                    LOG.info("Handling sensor {} as: {}", sensorMac, factory.getName());
+                    Handler handler = factory.createHandler(sensor, gatt);
+                    if (latestValues != null) {
+                        handler.registerConsumer(latestValues::update);
+                    }
                     handler.registerConsumer(bleExporterSvc::broadcast);
                     handler.startGatheringData();
-                    while(sensor.getConnected()) {
-                        Thread.sleep(1000);
+                    while (!connection.awaitDisconnect(1, TimeUnit.SECONDS)) {
                         handler.onKeepAlive();
                     }
                     LOG.warn("Sensor {} disconnected.", sensorMac);
                 } catch (BluetoothException blEx) {
                     LOG.warn("Bluetooth exception with sensor: {}", sensorMac, blEx);
+                } finally {
+                    connection.onDisconnected();
+                    SensorDescriptor.release(sensorMac);
                 }
             }
         } catch (InterruptedException e) {
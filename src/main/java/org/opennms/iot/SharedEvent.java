@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Objects;
+
+import org.opennms.iot.ble.proto.Event;
+
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.protobuf.ProtoUtils;
+
+/**
+ * An event along with its serialized form.
+ *
+ * The same instance is queued for every subscriber that receives the event unchanged, so
+ * the event is encoded at most once no matter how many subscribers it is streamed to.
+ */
+public class SharedEvent {
+
+    /**
+     * Streams the memoized bytes instead of re-encoding the event on every call.
+     */
+    public static final MethodDescriptor.Marshaller<SharedEvent> MARSHALLER = new MethodDescriptor.Marshaller<SharedEvent>() {
+        private final MethodDescriptor.Marshaller<Event> delegate = ProtoUtils.marshaller(Event.getDefaultInstance());
+
+        @Override
+        public InputStream stream(SharedEvent value) {
+            return new BytesInputStream(value.getBytes());
+        }
+
+        @Override
+        public SharedEvent parse(InputStream stream) {
+            return new SharedEvent(delegate.parse(stream));
+        }
+    };
+
+    private final Event event;
+    private final long sequence;
+    private final long createdNanos;
+    private volatile byte[] bytes;
+
+    public SharedEvent(Event event) {
+        this(event, 0);
+    }
+
+    public SharedEvent(Event event, long sequence) {
+        this(event, sequence, System.nanoTime(), null);
+    }
+
+    private SharedEvent(Event event, long sequence, long createdNanos, byte[] bytes) {
+        this.event = Objects.requireNonNull(event);
+        this.sequence = sequence;
+        this.createdNanos = createdNanos;
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return the same event tagged with the given sequence number, sharing any bytes already encoded
+     */
+    public SharedEvent withSequence(long sequence) {
+        return new SharedEvent(event, sequence, createdNanos, bytes);
+    }
+
+    public Event getEvent() {
+        return event;
+    }
+
+    /**
+     * @return the sequence number assigned when the event was recorded in the history, or 0 if it wasn't
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return when the instance was created, as returned by {@link System#nanoTime()}
+     */
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    /**
+     * @return the serialized event, encoded on first use. Must not be modified.
+     */
+    public byte[] getBytes() {
+        byte[] b = bytes;
+        if (b == null) {
+            synchronized (this) {
+                b = bytes;
+                if (b == null) {
+                    b = event.toByteArray();
+                    bytes = b;
+                }
+            }
+        }
+        return b;
+    }
+
+    public int getSerializedSize() {
+        return event.getSerializedSize();
+    }
+
+    /**
+     * Lets the transport copy the bytes straight into its own buffers.
+     */
+    static class BytesInputStream extends ByteArrayInputStream implements KnownLength, Drainable {
+
+        BytesInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        @Override
+        public synchronized int drainTo(OutputStream target) throws IOException {
+            int len = count - pos;
+            target.write(buf, pos, len);
+            pos = count;
+            return len;
+        }
+    }
+}
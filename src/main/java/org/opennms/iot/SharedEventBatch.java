@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import org.opennms.iot.ble.proto.EventBatch;
+
+import com.google.protobuf.CodedOutputStream;
+
+import io.grpc.MethodDescriptor;
+import io.grpc.protobuf.ProtoUtils;
+
+/**
+ * A batch of {@link SharedEvent}s, serialized as an {@link EventBatch} by concatenating
+ * the already encoded events.
+ */
+public class SharedEventBatch {
+
+    public static final MethodDescriptor.Marshaller<SharedEventBatch> MARSHALLER = new MethodDescriptor.Marshaller<SharedEventBatch>() {
+        private final MethodDescriptor.Marshaller<EventBatch> delegate = ProtoUtils.marshaller(EventBatch.getDefaultInstance());
+
+        @Override
+        public InputStream stream(SharedEventBatch value) {
+            return new SharedEvent.BytesInputStream(value.toByteArray());
+        }
+
+        @Override
+        public SharedEventBatch parse(InputStream stream) {
+            return new SharedEventBatch(delegate.parse(stream).getEventsList().stream()
+                    .map(SharedEvent::new)
+                    .collect(Collectors.toList()));
+        }
+    };
+
+    private final List<SharedEvent> events;
+
+    public SharedEventBatch(List<SharedEvent> events) {
+        this.events = Collections.unmodifiableList(Objects.requireNonNull(events));
+    }
+
+    public List<SharedEvent> getEvents() {
+        return events;
+    }
+
+    public int getEventsCount() {
+        return events.size();
+    }
+
+    /**
+     * @return the number of bytes the given event adds to a batch
+     */
+    public static int computeEventSize(SharedEvent event) {
+        return CodedOutputStream.computeTagSize(EventBatch.EVENTS_FIELD_NUMBER)
+                + CodedOutputStream.computeUInt32SizeNoTag(event.getSerializedSize())
+                + event.getSerializedSize();
+    }
+
+    public byte[] toByteArray() {
+        int size = 0;
+        for (SharedEvent event : events) {
+            size += computeEventSize(event);
+        }
+        byte[] bytes = new byte[size];
+        CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        try {
+            for (SharedEvent event : events) {
+                output.writeByteArray(EventBatch.EVENTS_FIELD_NUMBER, event.getBytes());
+            }
+            output.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes;
+    }
+
+    public EventBatch toEventBatch() {
+        return EventBatch.newBuilder()
+                .addAllEvents(events.stream().map(SharedEvent::getEvent).collect(Collectors.toList()))
+                .build();
+    }
+}
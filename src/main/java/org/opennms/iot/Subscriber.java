@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot;
+
+import java.util.concurrent.Executor;
+
+import org.opennms.iot.ble.proto.Client;
+import org.opennms.iot.stats.PipelineLatency;
+
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Delivers every event as its own message.
+ */
+public class Subscriber extends AbstractSubscriber<SharedEvent> {
+
+    public Subscriber(Client client, StreamObserver<SharedEvent> observer, int capacity, OverflowPolicy overflowPolicy, Executor executor) {
+        super(client, observer, capacity, overflowPolicy, executor);
+    }
+
+    @Override
+    protected void deliver() {
+        while (canDeliver()) {
+            SharedEvent event = poll();
+            if (event == null) {
+                break;
+            }
+            observer.onNext(event);
+            onDelivered(1);
+            PipelineLatency.get().record(PipelineLatency.Stage.DELIVERY, event.getEvent(), event.getCreatedNanos());
+        }
+    }
+}
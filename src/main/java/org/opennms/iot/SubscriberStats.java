@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import org.opennms.iot.metrics.Collector;
+import org.opennms.iot.metrics.ExpositionBuffer;
+import org.opennms.iot.stats.Histogram;
+
+/**
+ * Lag and delivery counters of each subscriber, including the local exporters, along with the
+ * size and linger time of the batches sent to those that stream batches.
+ *
+ * Samples are labelled with the name of the subscriber, along with its id since several clients
+ * can use the same name. Subscribers come and go, so the labels are rendered on every scrape
+ * rather than up front.
+ */
+public class SubscriberStats implements Collector {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final Collection<AbstractSubscriber<?>> subscribers;
+
+    public SubscriberStats(Collection<AbstractSubscriber<?>> subscribers) {
+        this.subscribers = Objects.requireNonNull(subscribers);
+    }
+
+    @Override
+    public void writeTo(ExpositionBuffer buffer) {
+        List<AbstractSubscriber<?>> snapshot = new ArrayList<>(subscribers);
+        snapshot.sort(Comparator.comparingLong(AbstractSubscriber::getId));
+        List<String[]> labels = new ArrayList<>(snapshot.size());
+        for (AbstractSubscriber<?> subscriber : snapshot) {
+            labels.add(new String[]{"subscriber", subscriber.getName(), "id", Long.toString(subscriber.getId())});
+        }
+        buffer.writeAscii("# HELP ble_subscribers Number of subscribers, including the local exporters.\n")
+                .writeAscii("# TYPE ble_subscribers gauge\n")
+                .writeAscii("ble_subscribers ").writeLong(snapshot.size()).write('\n');
+        write(buffer, "ble_subscriber_lag_events", "gauge", "Events waiting to be delivered to each subscriber.",
+                snapshot, labels, AbstractSubscriber::getLag);
+        write(buffer, "ble_subscriber_max_lag_events", "gauge", "Largest number of events ever waiting to be delivered to each subscriber.",
+                snapshot, labels, AbstractSubscriber::getMaxLag);
+        write(buffer, "ble_subscriber_enqueued_events_total", "counter", "Events queued for each subscriber.",
+                snapshot, labels, AbstractSubscriber::getEnqueuedCount);
+        write(buffer, "ble_subscriber_delivered_events_total", "counter", "Events delivered to each subscriber, including the replayed ones.",
+                snapshot, labels, AbstractSubscriber::getDeliveredCount);
+        write(buffer, "ble_subscriber_dropped_events_total", "counter", "Events dropped because a subscriber fell behind.",
+                snapshot, labels, AbstractSubscriber::getDroppedCount);
+        write(buffer, "ble_subscriber_replayed_events_total", "counter", "Events replayed from the history to each subscriber.",
+                snapshot, labels, AbstractSubscriber::getReplayedCount);
+
+        List<BatchSubscriber> batchSubscribers = new ArrayList<>();
+        List<String[]> batchLabels = new ArrayList<>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (snapshot.get(i) instanceof BatchSubscriber) {
+                batchSubscribers.add((BatchSubscriber) snapshot.get(i));
+                batchLabels.add(labels.get(i));
+            }
+        }
+        writeSummary(buffer, "ble_subscriber_batch_events", "Number of events in each batch sent to a subscriber.",
+                batchSubscribers, batchLabels, BatchSubscriber::getBatchEvents, 1);
+        writeSummary(buffer, "ble_subscriber_batch_bytes", "Size of each batch sent to a subscriber.",
+                batchSubscribers, batchLabels, BatchSubscriber::getBatchBytes, 1);
+        writeSummary(buffer, "ble_subscriber_batch_linger_seconds", "Time from the first event joining a batch to the batch being sent.",
+                batchSubscribers, batchLabels, BatchSubscriber::getLingerMicros, 1e6d);
+    }
+
+    private static void write(ExpositionBuffer buffer, String name, String type, String help,
+                              List<AbstractSubscriber<?>> subscribers, List<String[]> labels,
+                              ToLongFunction<AbstractSubscriber<?>> value) {
+        buffer.writeAscii("# HELP ").writeAscii(name).write(' ').writeAscii(help).write('\n')
+                .writeAscii("# TYPE ").writeAscii(name).write(' ').writeAscii(type).write('\n');
+        for (int i = 0; i < subscribers.size(); i++) {
+            buffer.write(ExpositionBuffer.samplePrefix(name, labels.get(i)))
+                    .writeLong(value.applyAsLong(subscribers.get(i)))
+                    .write('\n');
+        }
+    }
+
+    private static void writeSummary(ExpositionBuffer buffer, String name, String help,
+                                     List<BatchSubscriber> subscribers, List<String[]> labels,
+                                     Function<BatchSubscriber, Histogram> histogramOf, double divisor) {
+        buffer.writeAscii("# HELP ").writeAscii(name).write(' ').writeAscii(help).write('\n')
+                .writeAscii("# TYPE ").writeAscii(name).writeAscii(" summary\n");
+        for (int i = 0; i < subscribers.size(); i++) {
+            Histogram histogram = histogramOf.apply(subscribers.get(i));
+            String[] subscriberLabels = labels.get(i);
+            String[] quantileLabels = Arrays.copyOf(subscriberLabels, subscriberLabels.length + 2);
+            quantileLabels[subscriberLabels.length] = "quantile";
+            for (double quantile : QUANTILES) {
+                quantileLabels[subscriberLabels.length + 1] = Double.toString(quantile);
+                buffer.write(ExpositionBuffer.samplePrefix(name, quantileLabels))
+                        .writeDouble(histogram.getValueAtPercentile(quantile * 100) / divisor)
+                        .write('\n');
+            }
+            buffer.write(ExpositionBuffer.samplePrefix(name + "_sum", subscriberLabels))
+                    .writeDouble(histogram.getSum() / divisor)
+                    .write('\n');
+            buffer.write(ExpositionBuffer.samplePrefix(name + "_count", subscriberLabels))
+                    .writeLong(histogram.getCount())
+                    .write('\n');
+        }
+    }
+}
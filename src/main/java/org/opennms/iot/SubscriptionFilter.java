@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.opennms.iot.ble.proto.Channel;
+import org.opennms.iot.ble.proto.Client;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.FieldValue;
+import org.opennms.iot.ble.proto.Metric;
+import org.opennms.iot.ble.proto.SampleBlock;
+import org.opennms.iot.schema.Dictionary;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Server side filter built from the sensors, metrics and fields requested by a {@link Client}.
+ *
+ * Metric names are matched against both metrics and sample blocks, and field names against
+ * both fields and channels. Empty sets match everything.
+ */
+public class SubscriptionFilter {
+
+    public static final SubscriptionFilter ALL = new SubscriptionFilter(ImmutableSet.of(), ImmutableSet.of(), ImmutableSet.of());
+
+    public static final SubscriptionFilter NONE = new SubscriptionFilter(ImmutableSet.of(), ImmutableSet.of(), ImmutableSet.of()) {
+        @Override
+        public boolean matchesAll() {
+            return false;
+        }
+
+        @Override
+        public Event apply(Event event) {
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return "SubscriptionFilter{NONE}";
+        }
+    };
+
+    private final Set<String> sensors;
+    private final Set<String> metrics;
+    private final Set<String> fields;
+
+    private SubscriptionFilter(Set<String> sensors, Set<String> metrics, Set<String> fields) {
+        this.sensors = sensors;
+        this.metrics = metrics;
+        this.fields = fields;
+    }
+
+    public static SubscriptionFilter fromClient(Client client) {
+        if (client.getSensorsCount() == 0 && client.getMetricsCount() == 0 && client.getFieldsCount() == 0) {
+            return ALL;
+        }
+        return new SubscriptionFilter(normalizeAddresses(client.getSensorsList()),
+                ImmutableSet.copyOf(client.getMetricsList()),
+                ImmutableSet.copyOf(client.getFieldsList()));
+    }
+
+    private static Set<String> normalizeAddresses(Collection<String> addresses) {
+        return ImmutableSet.copyOf(addresses.stream()
+                .map(SubscriptionFilter::normalizeAddress)
+                .collect(Collectors.toList()));
+    }
+
+    private static String normalizeAddress(String address) {
+        return address.toUpperCase(Locale.ROOT);
+    }
+
+    public boolean matchesAll() {
+        return sensors.isEmpty() && metrics.isEmpty() && fields.isEmpty();
+    }
+
+    /**
+     * Apply the filter to the given event.
+     *
+     * @param event event to filter
+     * @return the event itself if it matches completely, a pruned copy if only some of
+     * the metrics or fields match, or null if nothing matches
+     */
+    public Event apply(Event event) {
+        if (matchesAll()) {
+            return event;
+        }
+        if (!sensors.isEmpty() && !sensors.contains(normalizeAddress(event.getSensor().getHwAddress()))) {
+            return null;
+        }
+        if (metrics.isEmpty() && fields.isEmpty()) {
+            return event;
+        }
+
+        Event.Builder eventBuilder = null;
+        for (int i = 0; i < event.getMetricsCount(); i++) {
+            Metric metric = event.getMetrics(i);
+            Metric filtered = apply(metric);
+            if (eventBuilder == null && filtered != metric) {
+                // First mismatch, copy everything we've kept so far
+                eventBuilder = event.toBuilder().clearMetrics().clearBlocks();
+                eventBuilder.addAllMetrics(event.getMetricsList().subList(0, i));
+            }
+            if (eventBuilder != null && filtered != null) {
+                eventBuilder.addMetrics(filtered);
+            }
+        }
+        for (int i = 0; i < event.getBlocksCount(); i++) {
+            SampleBlock block = event.getBlocks(i);
+            SampleBlock filtered = apply(block);
+            if (eventBuilder == null && filtered != block) {
+                eventBuilder = event.toBuilder().clearBlocks();
+                eventBuilder.addAllBlocks(event.getBlocksList().subList(0, i));
+            }
+            if (eventBuilder != null && filtered != null) {
+                eventBuilder.addBlocks(filtered);
+            }
+        }
+        if (eventBuilder == null) {
+            return event.getMetricsCount() + event.getBlocksCount() > 0 ? event : null;
+        }
+        return eventBuilder.getMetricsCount() + eventBuilder.getBlocksCount() > 0 ? eventBuilder.build() : null;
+    }
+
+    private Metric apply(Metric metric) {
+        if (!metrics.isEmpty() && !metrics.contains(metric.getName())) {
+            return null;
+        }
+        if (fields.isEmpty()) {
+            return metric;
+        }
+        Map<String, FieldValue> fieldsMap = metric.getFieldsMap();
+        if (fields.containsAll(fieldsMap.keySet())) {
+            return metric;
+        }
+        Metric.Builder metricBuilder = metric.toBuilder().clearFields();
+        for (Map.Entry<String, FieldValue> entry : fieldsMap.entrySet()) {
+            if (fields.contains(entry.getKey())) {
+                metricBuilder.putFields(entry.getKey(), entry.getValue());
+            }
+        }
+        return metricBuilder.getFieldsCount() > 0 ? metricBuilder.build() : null;
+    }
+
+    private SampleBlock apply(SampleBlock block) {
+        if (!metrics.isEmpty() && !metrics.contains(Dictionary.getName(block))) {
+            return null;
+        }
+        if (fields.isEmpty()) {
+            return block;
+        }
+        boolean allMatch = true;
+        for (Channel channel : block.getChannelsList()) {
+            if (!fields.contains(Dictionary.getName(channel))) {
+                allMatch = false;
+                break;
+            }
+        }
+        if (allMatch) {
+            return block;
+        }
+        SampleBlock.Builder blockBuilder = block.toBuilder().clearChannels();
+        for (Channel channel : block.getChannelsList()) {
+            if (fields.contains(Dictionary.getName(channel))) {
+                blockBuilder.addChannels(channel);
+            }
+        }
+        return blockBuilder.getChannelsCount() > 0 ? blockBuilder.build() : null;
+    }
+
+    @Override
+    public String toString() {
+        return "SubscriptionFilter{" +
+                "sensors=" + sensors +
+                ", metrics=" + metrics +
+                ", fields=" + fields +
+                '}';
+    }
+}
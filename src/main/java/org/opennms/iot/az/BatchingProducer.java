@@ -0,0 +1,684 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.az;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+
+import org.opennms.iot.ble.proto.EventBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.azure.messaging.eventhubs.EventData;
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * Accumulates events into one batch per route, i.e. partition key or partition, and sends the batches asynchronously.
+ *
+ * A batch is sent once it reaches the maximum size, or once its oldest event has waited for the
+ * linger time. At most one batch per route is in flight at a time, so events with the same
+ * route are sent in the order they were added, and a failed batch is retried before any later event
+ * with the same route. Batches for different routes are sent in parallel. Both the number of batches
+ * in flight and the number of buffered events are bounded.
+ *
+ * When packing, the events of a batch are concatenated into the body of a single {@link EventData},
+ * which can then be compressed. The packed event has the properties of the first event of the batch,
+ * along with properties describing the packing and compression.
+ */
+public class BatchingProducer implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(BatchingProducer.class);
+
+    public enum Packing {
+        /**
+         * Send each event as a separate EventData.
+         */
+        NONE,
+        /**
+         * Send the events of a batch as newline delimited JSON.
+         */
+        NDJSON,
+        /**
+         * Send the events of a batch as a JSON array.
+         */
+        JSON_ARRAY,
+        /**
+         * Send the events of a batch as an EventBatch protobuf message. Only suitable for protobuf encoded events.
+         */
+        EVENT_BATCH
+    }
+
+    public enum Compression {
+        NONE,
+        GZIP
+    }
+
+    public static final String PACKING_PROPERTY = "packing";
+    public static final String CONTENT_ENCODING_PROPERTY = "content-encoding";
+
+    public static final long DEFAULT_LINGER_MS = 50;
+    public static final int DEFAULT_MAX_BATCH_BYTES = 128 * 1024;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    public static final int DEFAULT_MAX_BUFFERED_EVENTS = 16 * 1024;
+
+    // Rough allowance for the AMQP framing of each event in a batch
+    private static final int EVENT_OVERHEAD_BYTES = 32;
+    private static final long MIN_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final long STATS_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long CLOSE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private final String name;
+    private final EventSender sender;
+    private final long lingerNanos;
+    private final int maxBatchBytes;
+    private final int maxInFlight;
+    private final int maxBufferedEvents;
+    private final Packing packing;
+    private final Compression compression;
+    private final Thread flusher;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // Lanes are moved to the back once they send, so that every route gets its turn when the in-flight limit is reached
+    private final Map<Route, Lane> lanes = new LinkedHashMap<>();
+    private int numBuffered = 0;
+    private int numInFlight = 0;
+    private boolean closing = false;
+
+    // Stats, guarded by the lock
+    private long sentEvents = 0;
+    private long sentBatches = 0;
+    private long sentBytes = 0;
+    private long failedSends = 0;
+    private long dropped = 0;
+    private double fillRatioSum = 0;
+    private long latencyNanosSum = 0;
+    private long maxLatencyNanos = 0;
+    private long statsLoggedAt = System.nanoTime();
+    private long statsLoggedSentEvents = 0;
+    private long statsLoggedSentBatches = 0;
+    private double statsLoggedFillRatioSum = 0;
+    private long statsLoggedLatencyNanosSum = 0;
+    private long intervalMaxLatencyNanos = 0;
+    private double throughput = 0;
+
+    public BatchingProducer(String name, EventSender sender) {
+        this(name, sender, DEFAULT_LINGER_MS, DEFAULT_MAX_BATCH_BYTES, DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_BUFFERED_EVENTS, Packing.NONE, Compression.NONE);
+    }
+
+    /**
+     * @param name used to identify the producer in logs, i.e. the name of the event hub
+     * @param lingerMs how long an event may wait for more events to join its batch
+     * @param maxBatchBytes send a batch as soon as it reaches this size
+     * @param maxInFlight maximum number of batches being sent at any time
+     * @param maxBufferedEvents maximum number of events waiting to be sent, including those in flight
+     * @param compression how to compress packed events, ignored without packing
+     */
+    public BatchingProducer(String name, EventSender sender, long lingerMs, int maxBatchBytes, int maxInFlight,
+                            int maxBufferedEvents, Packing packing, Compression compression) {
+        if (lingerMs < 0 || maxBatchBytes < 1 || maxInFlight < 1 || maxBufferedEvents < 1) {
+            throw new IllegalArgumentException(String.format("Invalid batching options: lingerMs=%d, maxBatchBytes=%d, " +
+                    "maxInFlight=%d, maxBufferedEvents=%d", lingerMs, maxBatchBytes, maxInFlight, maxBufferedEvents));
+        }
+        this.name = Objects.requireNonNull(name);
+        this.sender = Objects.requireNonNull(sender);
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxInFlight = maxInFlight;
+        this.maxBufferedEvents = maxBufferedEvents;
+        this.packing = Objects.requireNonNull(packing);
+        this.compression = Objects.requireNonNull(compression);
+        flusher = new Thread(this::flush, "BatchingProducer-" + name);
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Queue the event for sending. Never blocks.
+     *
+     * @param onComplete invoked once the event was sent, or discarded because it can never be sent. May be null.
+     * @return false if the event was dropped because too many events are buffered, or because the producer is closed
+     */
+    public boolean add(Route route, EventData eventData, Runnable onComplete) {
+        Objects.requireNonNull(route);
+        Objects.requireNonNull(eventData);
+        lock.lock();
+        try {
+            if (closing || numBuffered >= maxBufferedEvents) {
+                dropped++;
+                return false;
+            }
+            enqueue(route, eventData, onComplete);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue the event for sending, waiting for room in the buffer if needed.
+     *
+     * @param onComplete invoked once the event was sent, or discarded because it can never be sent. May be null.
+     * @return false if the producer is closed
+     */
+    public boolean put(Route route, EventData eventData, Runnable onComplete) throws InterruptedException {
+        Objects.requireNonNull(route);
+        Objects.requireNonNull(eventData);
+        lock.lockInterruptibly();
+        try {
+            while (!closing && numBuffered >= maxBufferedEvents) {
+                changed.await();
+            }
+            if (closing) {
+                return false;
+            }
+            enqueue(route, eventData, onComplete);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(Route route, EventData eventData, Runnable onComplete) {
+        Lane lane = lanes.computeIfAbsent(route, Lane::new);
+        Record record = new Record(eventData, sizeOf(eventData), System.nanoTime(), onComplete);
+        lane.records.add(record);
+        lane.bytes += record.size;
+        numBuffered++;
+        // Wake the flusher when the lane needs a new deadline, or becomes full
+        if (lane.records.size() == 1 || (lane.bytes >= maxBatchBytes && lane.bytes - record.size < maxBatchBytes)) {
+            changed.signalAll();
+        }
+    }
+
+    private int sizeOf(EventData eventData) {
+        int length = eventData.getBody().length;
+        switch (packing) {
+            case NONE:
+                return length + EVENT_OVERHEAD_BYTES;
+            case EVENT_BATCH:
+                return CodedOutputStream.computeByteArraySize(EventBatch.EVENTS_FIELD_NUMBER, eventData.getBody());
+            default:
+                // Separator
+                return length + 1;
+        }
+    }
+
+    private void flush() {
+        List<Batch> batches = new ArrayList<>();
+        long closeDeadline = 0;
+        lock.lock();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                if (closing) {
+                    if (closeDeadline == 0) {
+                        closeDeadline = now + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MS);
+                    }
+                    if ((numBuffered == 0 && numInFlight == 0) || now - closeDeadline >= 0) {
+                        break;
+                    }
+                }
+                long waitNanos = takeReadyBatches(now, batches);
+                if (!batches.isEmpty()) {
+                    // Don't hold the lock while sending, the sender may complete on this thread
+                    lock.unlock();
+                    try {
+                        batches.forEach(this::send);
+                    } finally {
+                        lock.lock();
+                    }
+                    batches.clear();
+                    continue;
+                }
+                waitNanos = Math.min(waitNanos, logStats(now));
+                if (closing) {
+                    waitNanos = Math.min(waitNanos, closeDeadline - now);
+                }
+                changed.awaitNanos(waitNanos);
+            }
+            if (numBuffered > 0) {
+                LOG.warn("Closing producer for event hub {} with {} events that were not sent.", name, numBuffered);
+            }
+        } catch (InterruptedException e) {
+            LOG.info("Interrupted. Stopping producer for event hub: {}", name);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove a batch from every lane that is ready to send, as long as the in-flight limit allows it.
+     *
+     * @return how long to wait before a lane that is not ready yet becomes ready, in ns
+     */
+    private long takeReadyBatches(long now, List<Batch> batches) {
+        long waitNanos = TimeUnit.MILLISECONDS.toNanos(STATS_INTERVAL_MS);
+        List<Lane> sending = new ArrayList<>();
+        Iterator<Lane> it = lanes.values().iterator();
+        while (it.hasNext()) {
+            Lane lane = it.next();
+            if (lane.inFlight) {
+                continue;
+            }
+            if (lane.records.isEmpty()) {
+                it.remove();
+                continue;
+            }
+            long readyAt = closing || lane.bytes >= maxBatchBytes ? now : lane.records.peek().addedNanos + lingerNanos;
+            if (lane.retrying && lane.retryAtNanos - readyAt > 0) {
+                readyAt = lane.retryAtNanos;
+            }
+            if (readyAt - now > 0) {
+                waitNanos = Math.min(waitNanos, readyAt - now);
+                continue;
+            }
+            if (numInFlight + batches.size() >= maxInFlight) {
+                // We'll be woken up when a batch completes
+                continue;
+            }
+            batches.add(takeBatch(lane));
+            it.remove();
+            sending.add(lane);
+        }
+        for (Lane lane : sending) {
+            lanes.put(lane.route, lane);
+        }
+        numInFlight += batches.size();
+        return waitNanos;
+    }
+
+    private Batch takeBatch(Lane lane) {
+        List<Record> records = new ArrayList<>();
+        int bytes = 0;
+        Record record;
+        while ((record = lane.records.peek()) != null) {
+            if (!records.isEmpty() && bytes + record.size > maxBatchBytes) {
+                break;
+            }
+            records.add(lane.records.poll());
+            bytes += record.size;
+        }
+        lane.bytes -= bytes;
+        lane.inFlight = true;
+        return new Batch(lane, records);
+    }
+
+    private void send(Batch batch) {
+        long startedAt = System.nanoTime();
+        CompletableFuture<Integer> future;
+        try {
+            future = sender.send(batch.lane.route, pack(batch.records));
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        future.whenComplete((numSent, error) -> onSent(batch, numSent, error, System.nanoTime() - startedAt));
+    }
+
+    private List<EventData> pack(List<Record> records) {
+        List<EventData> events = new ArrayList<>(packing == Packing.NONE ? records.size() : 1);
+        if (packing == Packing.NONE) {
+            for (Record record : records) {
+                events.add(record.eventData);
+            }
+            return events;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(records.stream().mapToInt(r -> r.size).sum() + 2);
+        try {
+            OutputStream out = compression == Compression.GZIP ? new GZIPOutputStream(bytes) : bytes;
+            if (packing == Packing.EVENT_BATCH) {
+                CodedOutputStream codedOut = CodedOutputStream.newInstance(out);
+                for (Record record : records) {
+                    codedOut.writeByteArray(EventBatch.EVENTS_FIELD_NUMBER, record.eventData.getBody());
+                }
+                codedOut.flush();
+            } else {
+                if (packing == Packing.JSON_ARRAY) {
+                    out.write('[');
+                }
+                for (int i = 0; i < records.size(); i++) {
+                    if (i > 0) {
+                        out.write(packing == Packing.NDJSON ? '\n' : ',');
+                    }
+                    out.write(records.get(i).eventData.getBody());
+                }
+                if (packing == Packing.JSON_ARRAY) {
+                    out.write(']');
+                }
+            }
+            out.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        EventData packed = new EventData(bytes.toByteArray());
+        packed.getProperties().putAll(records.get(0).eventData.getProperties());
+        packed.getProperties().put(PACKING_PROPERTY, packing.name());
+        if (compression == Compression.GZIP) {
+            packed.getProperties().put(CONTENT_ENCODING_PROPERTY, "gzip");
+        }
+        return Collections.singletonList(packed);
+    }
+
+    private void onSent(Batch batch, Integer numSent, Throwable error, long latencyNanos) {
+        List<Record> records = batch.records;
+        Lane lane = batch.lane;
+        int numDone = 0;
+        lock.lock();
+        try {
+            lane.inFlight = false;
+            numInFlight--;
+            if (error != null) {
+                failedSends++;
+                LOG.warn("Sending {} events to event hub {} ({}) failed. Retrying in {}ms.",
+                        records.size(), name, lane.route, lane.backoffMs, error);
+                lane.retrying = true;
+                lane.retryAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lane.backoffMs);
+                lane.backoffMs = Math.min(lane.backoffMs * 2, MAX_BACKOFF_MS);
+            } else {
+                lane.retrying = false;
+                lane.backoffMs = MIN_BACKOFF_MS;
+                if (numSent == null || numSent < 1) {
+                    // Even an empty batch had no room for it, so it will never be sent
+                    LOG.error("Event of {} bytes does not fit in a batch for event hub {}. Dropping.", records.get(0).size, name);
+                    dropped++;
+                    numDone = 1;
+                } else {
+                    numDone = packing == Packing.NONE ? Math.min(numSent, records.size()) : records.size();
+                    int bytes = 0;
+                    for (int i = 0; i < numDone; i++) {
+                        bytes += records.get(i).size;
+                    }
+                    sentEvents += numDone;
+                    sentBatches++;
+                    sentBytes += bytes;
+                    fillRatioSum += Math.min(1.0d, bytes / (double)maxBatchBytes);
+                    latencyNanosSum += latencyNanos;
+                    maxLatencyNanos = Math.max(maxLatencyNanos, latencyNanos);
+                    intervalMaxLatencyNanos = Math.max(intervalMaxLatencyNanos, latencyNanos);
+                }
+            }
+            // Put back whatever wasn't sent, ahead of anything added since
+            for (int i = records.size() - 1; i >= numDone; i--) {
+                lane.records.addFirst(records.get(i));
+                lane.bytes += records.get(i).size;
+            }
+            numBuffered -= numDone;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (int i = 0; i < numDone; i++) {
+            Runnable onComplete = records.get(i).onComplete;
+            if (onComplete != null) {
+                try {
+                    onComplete.run();
+                } catch (RuntimeException e) {
+                    LOG.warn("Completion callback failed.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Log the stats for the last interval if it has elapsed.
+     *
+     * @return time until the stats are due again, in ns
+     */
+    private long logStats(long now) {
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(STATS_INTERVAL_MS);
+        long elapsed = now - statsLoggedAt;
+        if (elapsed < intervalNanos) {
+            return intervalNanos - elapsed;
+        }
+        long batches = sentBatches - statsLoggedSentBatches;
+        long events = sentEvents - statsLoggedSentEvents;
+        throughput = events / (elapsed / 1e9d);
+        if (batches > 0) {
+            LOG.info("Sent {} events in {} batches to event hub {} ({} events/s). Average batch fill: {}%, " +
+                            "average send latency: {}ms, max: {}ms. Buffered: {}, failed sends: {}, dropped: {}.",
+                    events, batches, name, String.format("%.1f", throughput),
+                    String.format("%.1f", 100 * (fillRatioSum - statsLoggedFillRatioSum) / batches),
+                    String.format("%.1f", (latencyNanosSum - statsLoggedLatencyNanosSum) / 1e6d / batches),
+                    String.format("%.1f", intervalMaxLatencyNanos / 1e6d),
+                    numBuffered, failedSends, dropped);
+        }
+        statsLoggedAt = now;
+        statsLoggedSentEvents = sentEvents;
+        statsLoggedSentBatches = sentBatches;
+        statsLoggedFillRatioSum = fillRatioSum;
+        statsLoggedLatencyNanosSum = latencyNanosSum;
+        intervalMaxLatencyNanos = 0;
+        return intervalNanos;
+    }
+
+    public long getSentEventCount() {
+        lock.lock();
+        try {
+            return sentEvents;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSentBatchCount() {
+        lock.lock();
+        try {
+            return sentBatches;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSentBytes() {
+        lock.lock();
+        try {
+            return sentBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getFailedSendCount() {
+        lock.lock();
+        try {
+            return failedSends;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of events that were rejected because the buffer was full, or that were too large to send
+     */
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of events waiting to be sent, including those in flight
+     */
+    public int getBufferedCount() {
+        lock.lock();
+        try {
+            return numBuffered;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlightCount() {
+        lock.lock();
+        try {
+            return numInFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return average size of the batches sent, relative to the maximum batch size
+     */
+    public double getAverageFillRatio() {
+        lock.lock();
+        try {
+            return sentBatches > 0 ? fillRatioSum / sentBatches : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getAverageSendLatencyMs() {
+        lock.lock();
+        try {
+            return sentBatches > 0 ? latencyNanosSum / 1e6d / sentBatches : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getMaxSendLatencyMs() {
+        lock.lock();
+        try {
+            return maxLatencyNanos / 1e6d;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return events sent per second over the last stats interval
+     */
+    public double getThroughput() {
+        lock.lock();
+        try {
+            return throughput;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop accepting events and wait for the buffered ones to be sent, for up to 10 seconds.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closing = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join(CLOSE_TIMEOUT_MS + TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            LOG.warn("Producer for event hub {} did not exit in time.", name);
+        }
+        sender.close();
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "BatchingProducer{" +
+                    "name='" + name + '\'' +
+                    ", buffered=" + numBuffered +
+                    ", inFlight=" + numInFlight +
+                    ", sentEvents=" + sentEvents +
+                    ", sentBatches=" + sentBatches +
+                    ", failedSends=" + failedSends +
+                    ", dropped=" + dropped +
+                    '}';
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Record {
+        private final EventData eventData;
+        private final int size;
+        private final long addedNanos;
+        private final Runnable onComplete;
+
+        private Record(EventData eventData, int size, long addedNanos, Runnable onComplete) {
+            this.eventData = eventData;
+            this.size = size;
+            this.addedNanos = addedNanos;
+            this.onComplete = onComplete;
+        }
+    }
+
+    private static class Lane {
+        private final Route route;
+        private final ArrayDeque<Record> records = new ArrayDeque<>();
+        private int bytes = 0;
+        private boolean inFlight = false;
+        private boolean retrying = false;
+        private long retryAtNanos = 0;
+        private long backoffMs = MIN_BACKOFF_MS;
+
+        private Lane(Route route) {
+            this.route = route;
+        }
+    }
+
+    private static class Batch {
+        private final Lane lane;
+        private final List<Record> records;
+
+        private Batch(Lane lane, List<Record> records) {
+            this.lane = lane;
+            this.records = records;
+        }
+    }
+}
@@ -28,62 +28,352 @@
 
 package org.opennms.iot.az;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
 
 import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.metrics.Collector;
+import org.opennms.iot.metrics.ExpositionBuffer;
+import org.opennms.iot.schema.MetricDef;
+import org.opennms.iot.spool.Spool;
+import org.opennms.iot.stats.PipelineLatency;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.azure.messaging.eventhubs.EventData;
-import com.azure.messaging.eventhubs.EventDataBatch;
-import com.azure.messaging.eventhubs.EventHubClientBuilder;
-import com.azure.messaging.eventhubs.EventHubProducerClient;
-import com.azure.messaging.eventhubs.models.CreateBatchOptions;
+import com.google.protobuf.InvalidProtocolBufferException;
 
 import io.grpc.stub.StreamObserver;
 
-public class EventHubExporter implements StreamObserver<Event> {
+/**
+ * Forwards events to an event hub.
+ *
+ * Events are handed to a {@link BatchingProducer}, which sends them asynchronously in batches, to the
+ * partitions chosen by the {@link PartitionStrategy}. By default, the hardware address of the sensor
+ * is used as the partition key.
+ *
+ * When given a spool, events are written there first and handed to the producer by a background
+ * thread. They are only acknowledged once the event hub has accepted them, so events received while
+ * the event hub is unreachable are forwarded once it is reachable again, even across restarts.
+ * Without a spool, events are dropped when the producer's buffer is full.
+ *
+ * The recovery, producer and spool stats are exposed to Prometheus, labelled with the name of the
+ * event hub. Use {@link #collectorOf(Collection)} when there are several exporters, so that each
+ * metric is only described once.
+ */
+public class EventHubExporter implements StreamObserver<Event>, Collector, AutoCloseable {
     private static final Logger LOG = LoggerFactory.getLogger(EventHubExporter.class);
 
+    private static final int MAX_RECORDS_PER_READ = 256;
+
     private final String eventHubName;
-    private final EventHubProducerClient producer;
+    private final BatchingProducer producer;
+    private final PartitionStrategy partitionStrategy;
     private final Function<Event, EventData> mapper;
+    private final Spool spool;
+    private final AckTracker ackTracker;
+    private final Thread drainer;
+    private volatile boolean closed = false;
+    // Rendered on first use, scrapes only append the values
+    private final Map<String, byte[]> samplePrefixes = new ConcurrentHashMap<>();
+
+    // Recovery stats, only updated by the drainer
+    private volatile long recoveries = 0;
+    private volatile long lastRecoveryEvents = 0;
+    private volatile double lastRecoveryRate = 0;
+    private volatile double maxRecoveryRate = 0;
 
     public EventHubExporter(String connectionString, String eventHubName, Function<Event, EventData> mapper) {
-        Objects.requireNonNull(connectionString);
+        this(connectionString, eventHubName, mapper, null);
+    }
+
+    /**
+     * @param spool where to store events until they are forwarded, or null to forward them directly
+     */
+    public EventHubExporter(String connectionString, String eventHubName, Function<Event, EventData> mapper, Spool spool) {
+        this(eventHubName, mapper, spool, new BatchingProducer(eventHubName, new EventHubSender(connectionString, eventHubName)));
+    }
+
+    /**
+     * @param spool where to store events until they are forwarded, or null to forward them directly
+     * @param producer used to send the events, closed along with the exporter
+     */
+    public EventHubExporter(String eventHubName, Function<Event, EventData> mapper, Spool spool, BatchingProducer producer) {
+        this(eventHubName, mapper, spool, producer, PartitionStrategy.byMac());
+    }
+
+    /**
+     * @param spool where to store events until they are forwarded, or null to forward them directly
+     * @param producer used to send the events, closed along with the exporter
+     * @param partitionStrategy decides which partition each event is sent to
+     */
+    public EventHubExporter(String eventHubName, Function<Event, EventData> mapper, Spool spool, BatchingProducer producer,
+                            PartitionStrategy partitionStrategy) {
         this.eventHubName = Objects.requireNonNull(eventHubName);
         this.mapper = Objects.requireNonNull(mapper);
-        producer = new EventHubClientBuilder()
-                .connectionString(connectionString, eventHubName)
-                .buildProducerClient();
+        this.producer = Objects.requireNonNull(producer);
+        this.partitionStrategy = Objects.requireNonNull(partitionStrategy);
+        this.spool = spool;
+        if (spool != null) {
+            ackTracker = new AckTracker(spool);
+            drainer = new Thread(this::drain, "EventHubExporter-" + eventHubName);
+            drainer.setDaemon(true);
+            drainer.start();
+        } else {
+            ackTracker = null;
+            drainer = null;
+        }
     }
 
     @Override
     public void onNext(Event event) {
         LOG.trace("onNext(): {}", event);
-
-        // Create a batch using the HW address as the partition key
-        CreateBatchOptions batchOptions = new CreateBatchOptions();
-        batchOptions.setPartitionKey(event.getSensor().getHwAddress());
-        EventDataBatch batch = producer.createBatch(batchOptions);
+        long start = System.nanoTime();
+        if (spool != null) {
+            try {
+                if (!spool.append(event.toByteArray())) {
+                    LOG.error("Event is too large to be spooled. Dropping. Event: {}", event);
+                }
+            } catch (IOException e) {
+                LOG.error("Spooling event failed. Dropping. Event: {}", event, e);
+            }
+            return;
+        }
 
         // Map & marshal the event
-        EventData eventData;
+        EventData eventData = map(event);
+        if (eventData == null) {
+            return;
+        }
+
+        // Forward
+        MetricDef metric = PipelineLatency.metricOf(event);
+        if (!producer.add(partitionStrategy.route(event), eventData, () -> PipelineLatency.get().record(PipelineLatency.Stage.EXPORT, metric, start))) {
+            LOG.debug("Producer for event hub {} is full. Dropping event: {}", eventHubName, event);
+        }
+    }
+
+    private EventData map(Event event) {
         try {
-            eventData = mapper.apply(event);
+            return mapper.apply(event);
         } catch (Exception e) {
             LOG.error("Mapping event to event date failed. Event: {}", event, e);
+            return null;
+        }
+    }
+
+    private void drain() {
+        long readPosition = spool.getAckPosition();
+        long failedSends = producer.getFailedSendCount();
+        // Set when sending fails, and cleared once the backlog at the time is gone
+        long recoveryStartedAt = 0;
+        long recoveryStartAcked = 0;
+        long recoveryTarget = -1;
+        while (!closed) {
+            try {
+                if (producer.getFailedSendCount() != failedSends) {
+                    failedSends = producer.getFailedSendCount();
+                    if (recoveryStartedAt == 0) {
+                        recoveryStartAcked = spool.getAckedCount();
+                    }
+                    // Measure from the time we retry, not from when the outage began
+                    recoveryStartedAt = System.nanoTime();
+                    recoveryTarget = -1;
+                }
+                List<Spool.Entry> entries = spool.read(readPosition, MAX_RECORDS_PER_READ);
+                if (entries.isEmpty()) {
+                    if (recoveryStartedAt != 0) {
+                        if (recoveryTarget < 0) {
+                            // Everything spooled during the outage has been read, wait for it to be acknowledged
+                            recoveryTarget = readPosition;
+                        } else if (spool.getAckPosition() >= recoveryTarget) {
+                            onRecovered(recoveryStartedAt, spool.getAckedCount() - recoveryStartAcked);
+                            recoveryStartedAt = 0;
+                        }
+                    }
+                    spool.awaitAppend(1, TimeUnit.SECONDS);
+                    continue;
+                }
+                for (Spool.Entry entry : entries) {
+                    readPosition = entry.getNextPosition();
+                    forward(entry);
+                }
+            } catch (InterruptedException e) {
+                LOG.info("Interrupted. Stopping forwarder for event hub: {}", eventHubName);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hand a spooled event to the producer, waiting for room if needed. The event is acknowledged once
+     * it is sent, and after all the events that were spooled before it.
+     */
+    private void forward(Spool.Entry entry) throws InterruptedException {
+        // The event was received when it was spooled, possibly before a restart, so only the wall clock will do
+        long receivedAt = entry.getTimestamp();
+        AckTracker.Pending pending = ackTracker.track(entry.getNextPosition());
+        Event event;
+        try {
+            event = Event.parseFrom(entry.getPayload());
+        } catch (InvalidProtocolBufferException e) {
+            LOG.error("Spooled event at position {} could not be parsed. Skipping.", entry.getPosition(), e);
+            ackTracker.complete(pending);
             return;
         }
+        EventData eventData = map(event);
+        MetricDef metric = PipelineLatency.metricOf(event);
+        if (eventData == null || !producer.put(partitionStrategy.route(event), eventData, () -> {
+            ackTracker.complete(pending);
+            long latencyMs = Math.max(0, System.currentTimeMillis() - receivedAt);
+            PipelineLatency.get().recordLatency(PipelineLatency.Stage.EXPORT, metric, TimeUnit.MILLISECONDS.toNanos(latencyMs));
+        })) {
+            ackTracker.complete(pending);
+        }
+    }
 
-        // Forward
-        LOG.debug("Sending event (eventHub={}, partition-key={}): {}", eventHubName, eventData.getPartitionKey(),
-                eventData.getBodyAsString());
-        if(!batch.tryAdd(eventData)) {
-            LOG.error("Adding to new batch failed?");
+    private void onRecovered(long recoveryStartedAt, long numEvents) {
+        double seconds = Math.max(System.nanoTime() - recoveryStartedAt, 1) / 1e9d;
+        recoveries++;
+        lastRecoveryEvents = numEvents;
+        lastRecoveryRate = numEvents / seconds;
+        maxRecoveryRate = Math.max(maxRecoveryRate, lastRecoveryRate);
+        LOG.info("Forwarded {} spooled events to event hub {} in {}s ({} events/s). Max backlog was {} events.",
+                numEvents, eventHubName, String.format("%.1f", seconds), String.format("%.1f", lastRecoveryRate),
+                spool.getMaxBacklog());
+    }
+
+    /**
+     * @return the spool, or null if events are forwarded directly
+     */
+    public Spool getSpool() {
+        return spool;
+    }
+
+    /**
+     * @return the producer, along with its throughput, batching and latency stats
+     */
+    public BatchingProducer getProducer() {
+        return producer;
+    }
+
+    /**
+     * @return number of times the forwarder caught up after failing to send
+     */
+    public long getRecoveryCount() {
+        return recoveries;
+    }
+
+    /**
+     * @return number of events forwarded during the last recovery
+     */
+    public long getLastRecoveryEvents() {
+        return lastRecoveryEvents;
+    }
+
+    /**
+     * @return rate at which the backlog was forwarded during the last recovery, in events per second
+     */
+    public double getLastRecoveryRate() {
+        return lastRecoveryRate;
+    }
+
+    public double getMaxRecoveryRate() {
+        return maxRecoveryRate;
+    }
+
+    @Override
+    public void writeTo(ExpositionBuffer buffer) {
+        writeTo(buffer, Collections.singletonList(this));
+    }
+
+    /**
+     * @return a collector exposing the stats of all the given exporters
+     */
+    public static Collector collectorOf(Collection<EventHubExporter> exporters) {
+        List<EventHubExporter> copy = new ArrayList<>(exporters);
+        return buffer -> writeTo(buffer, copy);
+    }
+
+    private static void writeTo(ExpositionBuffer buffer, List<EventHubExporter> exporters) {
+        write(buffer, "ble_eventhub_recoveries_total", "counter", "Times the forwarder caught up with the spool after failing to send.",
+                exporters, EventHubExporter::getRecoveryCount);
+        write(buffer, "ble_eventhub_last_recovery_events", "gauge", "Spooled events forwarded during the last recovery.",
+                exporters, EventHubExporter::getLastRecoveryEvents);
+        write(buffer, "ble_eventhub_last_recovery_events_per_second", "gauge", "Rate at which the spooled events were forwarded during the last recovery.",
+                exporters, EventHubExporter::getLastRecoveryRate);
+        write(buffer, "ble_eventhub_max_recovery_events_per_second", "gauge", "Highest rate at which spooled events were forwarded during a recovery.",
+                exporters, EventHubExporter::getMaxRecoveryRate);
+
+        write(buffer, "ble_eventhub_sent_events_total", "counter", "Events sent to the event hub.",
+                exporters, e -> e.producer.getSentEventCount());
+        write(buffer, "ble_eventhub_sent_batches_total", "counter", "Batches sent to the event hub.",
+                exporters, e -> e.producer.getSentBatchCount());
+        write(buffer, "ble_eventhub_sent_bytes_total", "counter", "Bytes sent to the event hub.",
+                exporters, e -> e.producer.getSentBytes());
+        write(buffer, "ble_eventhub_failed_sends_total", "counter", "Batches that failed to be sent, and were retried.",
+                exporters, e -> e.producer.getFailedSendCount());
+        write(buffer, "ble_eventhub_dropped_events_total", "counter", "Events dropped because the producer was full or they were too large.",
+                exporters, e -> e.producer.getDroppedCount());
+        write(buffer, "ble_eventhub_buffered_events", "gauge", "Events waiting to be sent, including those in flight.",
+                exporters, e -> e.producer.getBufferedCount());
+        write(buffer, "ble_eventhub_in_flight_batches", "gauge", "Batches sent but not yet acknowledged.",
+                exporters, e -> e.producer.getInFlightCount());
+        write(buffer, "ble_eventhub_batch_fill_ratio", "gauge", "Average size of the batches sent, relative to the maximum batch size.",
+                exporters, e -> e.producer.getAverageFillRatio());
+        write(buffer, "ble_eventhub_send_latency_seconds_max", "gauge", "Longest time taken by the event hub to acknowledge a batch.",
+                exporters, e -> e.producer.getMaxSendLatencyMs() / 1000d);
+
+        List<EventHubExporter> spooled = new ArrayList<>(exporters.size());
+        for (EventHubExporter exporter : exporters) {
+            if (exporter.spool != null) {
+                spooled.add(exporter);
+            }
         }
-        producer.send(batch);
+        write(buffer, "ble_spool_backlog_events", "gauge", "Spooled events waiting to be acknowledged by the event hub.",
+                spooled, e -> e.spool.getBacklog());
+        write(buffer, "ble_spool_max_backlog_events", "gauge", "Largest number of spooled events that were ever waiting to be acknowledged.",
+                spooled, e -> e.spool.getMaxBacklog());
+        write(buffer, "ble_spool_bytes", "gauge", "Bytes on disk used by the spool.",
+                spooled, e -> e.spool.getBytesUsed());
+        write(buffer, "ble_spool_appended_events_total", "counter", "Events written to the spool.",
+                spooled, e -> e.spool.getAppendedCount());
+        write(buffer, "ble_spool_acked_events_total", "counter", "Spooled events acknowledged by the event hub.",
+                spooled, e -> e.spool.getAckedCount());
+        write(buffer, "ble_spool_dropped_events_total", "counter", "Spooled events discarded before being acknowledged because the disk budget was exhausted.",
+                spooled, e -> e.spool.getDroppedCount());
+        write(buffer, "ble_spool_rejected_events_total", "counter", "Events too large to be spooled.",
+                spooled, e -> e.spool.getRejectedCount());
+        write(buffer, "ble_spool_corrupt_records_total", "counter", "Spooled records skipped because their checksum did not match.",
+                spooled, e -> e.spool.getCorruptCount());
+    }
+
+    private static void write(ExpositionBuffer buffer, String name, String type, String help,
+                              List<EventHubExporter> exporters, ToDoubleFunction<EventHubExporter> value) {
+        if (exporters.isEmpty()) {
+            return;
+        }
+        buffer.writeAscii("# HELP ").writeAscii(name).write(' ').writeAscii(help).write('\n')
+                .writeAscii("# TYPE ").writeAscii(name).write(' ').writeAscii(type).write('\n');
+        for (EventHubExporter exporter : exporters) {
+            buffer.write(exporter.samplePrefix(name))
+                    .writeDouble(value.applyAsDouble(exporter))
+                    .write('\n');
+        }
+    }
+
+    private byte[] samplePrefix(String name) {
+        return samplePrefixes.computeIfAbsent(name, n -> ExpositionBuffer.samplePrefix(n, "event_hub", eventHubName));
     }
 
     @Override
@@ -96,4 +386,66 @@ public class EventHubExporter implements StreamObserver<Event> {
         LOG.info("Local event stream over gRPC completed.");
     }
 
+    @Override
+    public void close() {
+        closed = true;
+        if (drainer != null) {
+            drainer.interrupt();
+            try {
+                drainer.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                LOG.warn("Forwarder for event hub {} did not exit in time.", eventHubName);
+            }
+        }
+        // Flushes whatever is buffered, so close the spool after
+        producer.close();
+        if (spool != null) {
+            spool.close();
+        }
+    }
+
+    /**
+     * Acknowledges spooled events in the order they were read, even though batches for
+     * different partition keys complete in any order.
+     */
+    private static class AckTracker {
+        private final Spool spool;
+        private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+
+        private AckTracker(Spool spool) {
+            this.spool = spool;
+        }
+
+        synchronized Pending track(long nextPosition) {
+            Pending p = new Pending(nextPosition);
+            pending.add(p);
+            return p;
+        }
+
+        synchronized void complete(Pending p) {
+            p.done = true;
+            long nextPosition = -1;
+            int numRecords = 0;
+            while (!pending.isEmpty() && pending.peek().done) {
+                nextPosition = pending.poll().nextPosition;
+                numRecords++;
+            }
+            if (numRecords > 0) {
+                try {
+                    spool.ack(nextPosition, numRecords);
+                } catch (IOException e) {
+                    LOG.error("Acknowledging {} spooled events failed. They will be sent again after a restart.", numRecords, e);
+                }
+            }
+        }
+
+        private static class Pending {
+            private final long nextPosition;
+            private boolean done = false;
+
+            private Pending(long nextPosition) {
+                this.nextPosition = nextPosition;
+            }
+        }
+    }
 }
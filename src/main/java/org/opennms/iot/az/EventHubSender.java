@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.az;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+import com.azure.messaging.eventhubs.EventData;
+import com.azure.messaging.eventhubs.EventHubClientBuilder;
+import com.azure.messaging.eventhubs.EventHubProducerAsyncClient;
+import com.azure.messaging.eventhubs.models.CreateBatchOptions;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Sends events using the asynchronous event hub producer.
+ */
+public class EventHubSender implements EventSender {
+
+    private final EventHubProducerAsyncClient producer;
+
+    public EventHubSender(String connectionString, String eventHubName) {
+        producer = new EventHubClientBuilder()
+                .connectionString(Objects.requireNonNull(connectionString), Objects.requireNonNull(eventHubName))
+                .buildAsyncProducerClient();
+    }
+
+    @Override
+    public CompletableFuture<Integer> send(Route route, List<EventData> events) {
+        CreateBatchOptions options = new CreateBatchOptions();
+        if (route.getPartitionId() != null) {
+            options.setPartitionId(route.getPartitionId());
+        } else {
+            options.setPartitionKey(route.getPartitionKey());
+        }
+        return producer.createBatch(options)
+                .flatMap(batch -> {
+                    int numAdded = 0;
+                    for (EventData event : events) {
+                        if (!batch.tryAdd(event)) {
+                            break;
+                        }
+                        numAdded++;
+                    }
+                    if (numAdded == 0) {
+                        return Mono.just(0);
+                    }
+                    return producer.send(batch).thenReturn(numAdded);
+                })
+                .toFuture();
+    }
+
+    /**
+     * Retrieve the ids of the partitions of the event hub. Blocks.
+     */
+    public List<String> getPartitionIds() {
+        return producer.getPartitionIds().collectList().block();
+    }
+
+    @Override
+    public void close() {
+        producer.close();
+    }
+}
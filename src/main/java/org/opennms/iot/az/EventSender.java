@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.az;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.azure.messaging.eventhubs.EventData;
+
+/**
+ * Sends batches of events to an event hub without blocking the caller.
+ */
+public interface EventSender extends AutoCloseable {
+
+    /**
+     * Send as many of the given events as fit in a single batch, in order.
+     *
+     * @return a future completed with the number of events that were sent, i.e. the length of the
+     * prefix that fit in the batch, or completed exceptionally if the batch could not be sent
+     */
+    CompletableFuture<Integer> send(Route route, List<EventData> events);
+
+    @Override
+    void close();
+
+}
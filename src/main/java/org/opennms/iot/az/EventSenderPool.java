@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.az;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import com.azure.messaging.eventhubs.EventData;
+
+/**
+ * Spreads the batches over several senders, i.e. several connections to the event hub, so that
+ * batches for different partitions are sent in parallel. Each route always uses the same sender.
+ */
+public class EventSenderPool implements EventSender {
+
+    private final List<EventSender> senders;
+
+    public EventSenderPool(int size, Supplier<EventSender> senderFactory) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Pool size must be positive: " + size);
+        }
+        senders = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            senders.add(senderFactory.get());
+        }
+    }
+
+    @Override
+    public CompletableFuture<Integer> send(Route route, List<EventData> events) {
+        return senders.get(Math.floorMod(route.hashCode(), senders.size())).send(route, events);
+    }
+
+    @Override
+    public void close() {
+        senders.forEach(EventSender::close);
+    }
+
+    public int size() {
+        return senders.size();
+    }
+}
@@ -26,79 +26,86 @@
  *     http://www.opennms.com/
  *******************************************************************************/
 
+
 package org.opennms.iot.az;
 
-import java.time.Instant;
+import java.io.IOException;
 import java.util.Map;
 
 import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.FieldValue;
 import org.opennms.iot.ble.proto.Metric;
 import org.opennms.iot.handlers.PolarH7Handler;
 
 import com.azure.messaging.eventhubs.EventData;
-import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.collect.Maps;
+import com.fasterxml.jackson.core.JsonGenerator;
 
+/**
+ * Maps heart rate readings to the JSON expected by the IoMT FHIR connector.
+ *
+ * Each heart rate metric is written as a message with the device id, the time of the reading, the heart rate
+ * and the first RR interval. Events with more than one heart rate metric are written as an array of messages.
+ * Events without any are written as a message with the device id only.
+ */
 public class IOMTMapper implements EventMapper {
 
-    private static final ObjectMapper objectMapper = new ObjectMapper();
-
-    public static String toEventHubJson(Event event) throws JsonProcessingException {
-        Message msg = new Message();
-        msg.body.deviceId = event.getSensor().getHwAddress();
-        addBPM(event, msg.body);
-        return objectMapper.writeValueAsString(msg);
-    }
-
-    @Override
-    public EventData mapEvent(Event event) {
-        try {
-            return new EventData(toEventHubJson(event));
-        } catch (JsonProcessingException ex) {
-            throw new RuntimeException(ex);
-        }
-    }
-
-    public static class Message {
-        @JsonProperty
-        Body body = new Body();
-    }
-
-    public static class Body {
-        @JsonProperty
-        String deviceId;
-        // "2020-05-03T20:40:11Z
-        @JsonProperty
-        String endDate;
-        @JsonProperty
-        String heartRate;
-        @JsonProperty
-        String rr;
-        @JsonProperty(required = true)
-        Map<String,String> properties = Maps.newLinkedHashMap();
-        @JsonProperty
-        Map<String,String> systemProperties = Maps.newLinkedHashMap();
+    public static byte[] toEventHubJson(Event event) {
+        return JsonBuffer.write(buffer -> {
+            JsonGenerator generator = buffer.generator();
+            String deviceId = event.getSensor().getHwAddress();
+            int numHeartRates = 0;
+            for (Metric metric : event.getMetricsList()) {
+                if (PolarH7Handler.METRIC_NAME.equals(metric.getName())) {
+                    numHeartRates++;
+                }
+            }
+            if (numHeartRates == 0) {
+                writeMessage(buffer, deviceId, null);
+                return;
+            }
+            if (numHeartRates > 1) {
+                generator.writeStartArray();
+            }
+            for (Metric metric : event.getMetricsList()) {
+                if (PolarH7Handler.METRIC_NAME.equals(metric.getName())) {
+                    writeMessage(buffer, deviceId, metric);
+                }
+            }
+            if (numHeartRates > 1) {
+                generator.writeEndArray();
+            }
+        });
     }
 
-    public static Integer addBPM(Event event, Body body) {
-        for (Metric metric : event.getMetricsList()) {
-            if(PolarH7Handler.METRIC_NAME.equals(metric.getName())) {
-                int bpm = (int)metric.getFieldsMap().get(PolarH7Handler.BPM_FIELD).getIntValue();
-                body.heartRate = Integer.toString(bpm);
-                body.endDate = Instant.ofEpochMilli(metric.getTimestamp()).toString();
-
-                for (String key : metric.getFieldsMap().keySet()) {
-                    // Use the first RR we find
-                    if (key.startsWith("rr")) {
-                        body.rr = Double.toString(metric.getFieldsMap().get(key).getFloatValue());
-                        break;
-                    }
+    private static void writeMessage(JsonBuffer buffer, String deviceId, Metric metric) throws IOException {
+        JsonGenerator generator = buffer.generator();
+        generator.writeStartObject();
+        generator.writeObjectFieldStart("body");
+        generator.writeStringField("deviceId", deviceId);
+        if (metric != null) {
+            buffer.writeTimestampField("endDate", metric.getTimestamp());
+            FieldValue bpm = metric.getFieldsMap().get(PolarH7Handler.BPM_FIELD);
+            if (bpm != null) {
+                generator.writeStringField("heartRate", Long.toString(bpm.getIntValue()));
+            }
+            for (Map.Entry<String, FieldValue> field : metric.getFieldsMap().entrySet()) {
+                // Use the first RR we find
+                if (field.getKey().startsWith("rr")) {
+                    generator.writeStringField("rr", Double.toString(field.getValue().getFloatValue()));
+                    break;
                 }
-
             }
         }
-        return null;
+        generator.writeObjectFieldStart("properties");
+        generator.writeEndObject();
+        generator.writeObjectFieldStart("systemProperties");
+        generator.writeEndObject();
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+
+    @Override
+    public EventData mapEvent(Event event) {
+        return new EventData(toEventHubJson(event));
     }
 }
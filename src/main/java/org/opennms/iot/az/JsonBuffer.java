@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.az;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * A JSON generator writing into a buffer that is reused for every document written by the same thread.
+ */
+class JsonBuffer {
+
+    @FunctionalInterface
+    interface Writer {
+        void write(JsonBuffer buffer) throws IOException;
+    }
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final ThreadLocal<JsonBuffer> BUFFERS = ThreadLocal.withInitial(JsonBuffer::new);
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+    private final JsonGenerator generator;
+
+    // Formatted timestamp, of which the part up to the seconds is reused while the second stays the same
+    private final char[] timestamp = new char[24];
+    private long timestampSecond = Long.MIN_VALUE;
+
+    private JsonBuffer() {
+        try {
+            generator = JSON_FACTORY.createGenerator(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // Documents are taken out one at a time, so don't separate them
+        generator.setRootValueSeparator(null);
+    }
+
+    /**
+     * Write a single JSON document using the current thread's buffer.
+     *
+     * @return the encoded document
+     */
+    static byte[] write(Writer writer) {
+        JsonBuffer buffer = BUFFERS.get();
+        try {
+            writer.write(buffer);
+            buffer.generator.flush();
+            return buffer.out.toByteArray();
+        } catch (IOException | RuntimeException e) {
+            // The generator may be left in the middle of a document, start over with a new one
+            BUFFERS.remove();
+            if (e instanceof IOException) {
+                throw new UncheckedIOException((IOException)e);
+            }
+            throw (RuntimeException)e;
+        } finally {
+            buffer.out.reset();
+        }
+    }
+
+    JsonGenerator generator() {
+        return generator;
+    }
+
+    /**
+     * Write the timestamp as a string in the same ISO-8601 format as {@link Instant#toString()}.
+     */
+    void writeTimestampField(String fieldName, long epochMillis) throws IOException {
+        long second = Math.floorDiv(epochMillis, 1000L);
+        int millis = (int)Math.floorMod(epochMillis, 1000L);
+        if (second != timestampSecond) {
+            LocalDateTime dateTime = LocalDateTime.ofEpochSecond(second, 0, ZoneOffset.UTC);
+            if (dateTime.getYear() < 0 || dateTime.getYear() > 9999) {
+                generator.writeStringField(fieldName, Instant.ofEpochMilli(epochMillis).toString());
+                return;
+            }
+            writeDigits(dateTime.getYear(), 0, 4);
+            timestamp[4] = '-';
+            writeDigits(dateTime.getMonthValue(), 5, 2);
+            timestamp[7] = '-';
+            writeDigits(dateTime.getDayOfMonth(), 8, 2);
+            timestamp[10] = 'T';
+            writeDigits(dateTime.getHour(), 11, 2);
+            timestamp[13] = ':';
+            writeDigits(dateTime.getMinute(), 14, 2);
+            timestamp[16] = ':';
+            writeDigits(dateTime.getSecond(), 17, 2);
+            timestampSecond = second;
+        }
+        int length = 19;
+        if (millis != 0) {
+            timestamp[length] = '.';
+            writeDigits(millis, length + 1, 3);
+            length += 4;
+        }
+        timestamp[length++] = 'Z';
+        generator.writeFieldName(fieldName);
+        generator.writeString(timestamp, 0, length);
+    }
+
+    private void writeDigits(int value, int offset, int numDigits) {
+        for (int i = offset + numDigits - 1; i >= offset; i--) {
+            timestamp[i] = (char)('0' + value % 10);
+            value /= 10;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.az;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opennms.iot.ble.proto.Event;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Decides which partition of the event hub each event goes to.
+ *
+ * Events with the same route are sent in order, so the strategy also decides which events keep their relative order.
+ */
+public interface PartitionStrategy {
+
+    enum Type {
+        /**
+         * Partition by the hardware address of the sensor. Keeps the events of each sensor in order.
+         */
+        MAC,
+        /**
+         * Send every event of the session to the same partition. Keeps all the events in order.
+         */
+        SESSION,
+        /**
+         * Partition by the name of the metric, falling back to the hardware address of the sensor
+         * for events without metrics. Keeps the events of each metric in order.
+         */
+        METRIC,
+        /**
+         * Spread the events evenly over the partitions. No ordering is kept.
+         */
+        ROUND_ROBIN,
+        /**
+         * Map the hardware address of the sensor to a partition using a consistent hash, so that
+         * sensors are spread evenly and few of them move when partitions are added.
+         * Keeps the events of each sensor in order.
+         */
+        CONSISTENT_HASH
+    }
+
+    Route route(Event event);
+
+    static PartitionStrategy byMac() {
+        return event -> Route.partitionKey(event.getSensor().getHwAddress());
+    }
+
+    /**
+     * @param type type of strategy
+     * @param sessionName name of the session, used by {@link Type#SESSION}
+     * @param partitionIds ids of the partitions of the event hub, used by {@link Type#ROUND_ROBIN}
+     *                     and {@link Type#CONSISTENT_HASH}
+     */
+    static PartitionStrategy create(Type type, String sessionName, List<String> partitionIds) {
+        switch (type) {
+            case MAC:
+                return byMac();
+            case SESSION:
+                Route route = Route.partitionKey(Objects.requireNonNull(sessionName));
+                return event -> route;
+            case METRIC:
+                return event -> {
+                    if (event.getBlocksCount() > 0) {
+                        return Route.partitionKey(event.getBlocks(0).getName());
+                    }
+                    if (event.getMetricsCount() > 0) {
+                        return Route.partitionKey(event.getMetrics(0).getName());
+                    }
+                    return Route.partitionKey(event.getSensor().getHwAddress());
+                };
+            case ROUND_ROBIN:
+                List<Route> partitions = toRoutes(partitionIds);
+                AtomicInteger next = new AtomicInteger();
+                return event -> partitions.get(Math.floorMod(next.getAndIncrement(), partitions.size()));
+            case CONSISTENT_HASH:
+                List<Route> buckets = toRoutes(partitionIds);
+                HashFunction hashFunction = Hashing.murmur3_128();
+                return event -> buckets.get(Hashing.consistentHash(
+                        hashFunction.hashUnencodedChars(event.getSensor().getHwAddress()), buckets.size()));
+            default:
+                throw new IllegalArgumentException("Unsupported partition strategy: " + type);
+        }
+    }
+
+    static List<Route> toRoutes(List<String> partitionIds) {
+        if (partitionIds == null || partitionIds.isEmpty()) {
+            throw new IllegalArgumentException("At least one partition id is required.");
+        }
+        List<Route> routes = new ArrayList<>(partitionIds.size());
+        for (String partitionId : partitionIds) {
+            routes.add(Route.partitionId(partitionId));
+        }
+        return routes;
+    }
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.az;
+
+import java.util.Objects;
+
+import org.opennms.iot.ble.proto.BLEExporterProto;
+import org.opennms.iot.ble.proto.Encoding;
+import org.opennms.iot.ble.proto.Event;
+
+import com.azure.messaging.eventhubs.EventData;
+import com.google.common.hash.Hashing;
+
+/**
+ * Maps events to their protobuf encoding.
+ *
+ * Events are sent as-is, so the encoding of the subscription decides whether they carry metrics or
+ * columnar sample blocks. The properties of each event identify the message type, the version of the
+ * schema it was encoded with, and the encoding.
+ */
+public class ProtobufMapper implements EventMapper {
+
+    public static final String CONTENT_TYPE_PROPERTY = "content-type";
+    public static final String SCHEMA_ID_PROPERTY = "schema-id";
+    public static final String ENCODING_PROPERTY = "encoding";
+
+    public static final String CONTENT_TYPE = "application/x-protobuf";
+
+    /**
+     * Full name of the message, followed by a fingerprint of the schema, i.e. "ble.Event@1a2b3c4d".
+     * Changes whenever the .proto file does.
+     */
+    public static final String SCHEMA_ID = Event.getDescriptor().getFullName() + "@" + Hashing.murmur3_32()
+            .hashBytes(BLEExporterProto.getDescriptor().toProto().toByteArray());
+
+    private final Encoding encoding;
+
+    /**
+     * @param encoding encoding of the events given to the mapper, recorded in the properties
+     */
+    public ProtobufMapper(Encoding encoding) {
+        if (encoding == Encoding.DICTIONARY) {
+            // Consumers of the event hub never see the dictionary announcement
+            throw new IllegalArgumentException("Events encoded with a dictionary cannot be exported.");
+        }
+        this.encoding = Objects.requireNonNull(encoding);
+    }
+
+    @Override
+    public EventData mapEvent(Event event) {
+        EventData eventData = new EventData(event.toByteArray());
+        eventData.getProperties().put(CONTENT_TYPE_PROPERTY, CONTENT_TYPE);
+        eventData.getProperties().put(SCHEMA_ID_PROPERTY, SCHEMA_ID);
+        eventData.getProperties().put(ENCODING_PROPERTY, encoding.name());
+        return eventData;
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.az;
+
+import java.util.Objects;
+
+/**
+ * Where to send a batch: either to the partition the event hub picks for a partition key,
+ * or directly to a given partition.
+ */
+public final class Route {
+
+    private final String partitionKey;
+    private final String partitionId;
+
+    private Route(String partitionKey, String partitionId) {
+        this.partitionKey = partitionKey;
+        this.partitionId = partitionId;
+    }
+
+    public static Route partitionKey(String partitionKey) {
+        return new Route(Objects.requireNonNull(partitionKey), null);
+    }
+
+    public static Route partitionId(String partitionId) {
+        return new Route(null, Objects.requireNonNull(partitionId));
+    }
+
+    /**
+     * @return the partition key, or null when routing to a partition id
+     */
+    public String getPartitionKey() {
+        return partitionKey;
+    }
+
+    /**
+     * @return the partition id, or null when routing by partition key
+     */
+    public String getPartitionId() {
+        return partitionId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Route route = (Route) o;
+        return Objects.equals(partitionKey, route.partitionKey) &&
+                Objects.equals(partitionId, route.partitionId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(partitionKey, partitionId);
+    }
+
+    @Override
+    public String toString() {
+        return partitionKey != null ? "key=" + partitionKey : "partition=" + partitionId;
+    }
+}
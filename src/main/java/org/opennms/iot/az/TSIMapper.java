@@ -26,82 +26,76 @@
  *     http://www.opennms.com/
  *******************************************************************************/
 
+
 package org.opennms.iot.az;
 
-import java.time.Instant;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
-import java.util.List;
+import java.io.IOException;
 import java.util.Map;
 
 import org.opennms.iot.ble.proto.Event;
 import org.opennms.iot.ble.proto.FieldValue;
 import org.opennms.iot.ble.proto.Metric;
-import org.opennms.iot.handlers.PolarH7Handler;
 
 import com.azure.messaging.eventhubs.EventData;
-import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.collect.Maps;
+import com.fasterxml.jackson.core.JsonGenerator;
 
+/**
+ * Maps events to the JSON expected by Time Series Insights.
+ *
+ * Each metric is written as an object with the device id, the timestamp and the numeric fields in a
+ * single element series. Events with more than one metric are written as an array of such objects,
+ * which TSI ingests as one event per element.
+ */
 public class TSIMapper implements EventMapper {
 
-    private static final ObjectMapper objectMapper = new ObjectMapper();
+    public static byte[] toTSIJson(Event event) {
+        return JsonBuffer.write(buffer -> {
+            JsonGenerator generator = buffer.generator();
+            String deviceId = event.getSensor().getHwAddress();
+            if (event.getMetricsCount() == 1) {
+                writeMetric(buffer, deviceId, event.getMetrics(0));
+                return;
+            }
+            generator.writeStartArray();
+            for (Metric metric : event.getMetricsList()) {
+                writeMetric(buffer, deviceId, metric);
+            }
+            generator.writeEndArray();
+        });
+    }
 
-    public static String toTSIJson(Event event) throws JsonProcessingException {
-        Message msg = new Message();
-        for (Metric metric : event.getMetricsList()) {
-            msg.deviceId = event.getSensor().getHwAddress();
-            msg.timestamp = Instant.ofEpochMilli(metric.getTimestamp()).toString();
-            for (String key : metric.getFieldsMap().keySet()) {
-                double valueAsDouble = Double.NaN;
-                FieldValue value = metric.getFieldsMap().get(key);
-                switch(value.getValueCase()) {
-                    case FLOAT_VALUE:
-                        valueAsDouble = value.getFloatValue();
-                        break;
-                    case INT_VALUE:
-                        valueAsDouble = value.getIntValue();
-                        break;
-                    case BOOL_VALUE:
-                        valueAsDouble = value.getBoolValue() ? 0 : 1;
-                        break;
-                    case STRING_VALUE:
-                    case VALUE_NOT_SET:
-                        // Skip
-                        continue;
-                }
-                msg.addValue(key, valueAsDouble);
+    private static void writeMetric(JsonBuffer buffer, String deviceId, Metric metric) throws IOException {
+        JsonGenerator generator = buffer.generator();
+        generator.writeStartObject();
+        generator.writeStringField("deviceId", deviceId);
+        buffer.writeTimestampField("timestamp", metric.getTimestamp());
+        generator.writeArrayFieldStart("series");
+        generator.writeStartObject();
+        for (Map.Entry<String, FieldValue> field : metric.getFieldsMap().entrySet()) {
+            FieldValue value = field.getValue();
+            switch(value.getValueCase()) {
+                case FLOAT_VALUE:
+                    generator.writeNumberField(field.getKey(), value.getFloatValue());
+                    break;
+                case INT_VALUE:
+                    generator.writeNumberField(field.getKey(), (double)value.getIntValue());
+                    break;
+                case BOOL_VALUE:
+                    generator.writeNumberField(field.getKey(), value.getBoolValue() ? 1.0d : 0.0d);
+                    break;
+                case STRING_VALUE:
+                case VALUE_NOT_SET:
+                    // Skip
+                    break;
             }
-            break;
         }
-        return objectMapper.writeValueAsString(msg);
+        generator.writeEndObject();
+        generator.writeEndArray();
+        generator.writeEndObject();
     }
 
     @Override
     public EventData mapEvent(Event event) {
-        try {
-            return new EventData(toTSIJson(event));
-        } catch (JsonProcessingException ex) {
-            throw new RuntimeException(ex);
-        }
-    }
-
-    public static class Message {
-        @JsonProperty
-        String deviceId;
-        @JsonProperty // "2020-05-03T20:40:11Z
-        String timestamp;
-        @JsonProperty
-        List<Map<String,Double>> series = new LinkedList<>();
-
-        public void addValue(String key, double value) {
-            if (series.isEmpty()) {
-                series.add(new LinkedHashMap<>());
-            }
-            Map<String,Double> values = series.get(0);
-            values.put(key, value);
-        }
+        return new EventData(toTSIJson(event));
     }
 }
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.connection;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Limits the number of connection attempts in progress on each adapter.
+ *
+ * BlueZ creates LE connections one at a time per adapter, so a burst of attempts only makes them
+ * time out. Attempts beyond the limit wait in a first-in first-out queue.
+ */
+public class AdmissionControl {
+
+    private final int maxConcurrent;
+    private final Map<String, Semaphore> permitsByAdapter = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxConcurrent maximum number of attempts in progress on each adapter
+     */
+    public AdmissionControl(int maxConcurrent) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("At least one connection attempt must be allowed: " + maxConcurrent);
+        }
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * Wait for our turn to connect through the given adapter.
+     *
+     * @return the permit to close once the attempt is over
+     */
+    public Permit acquire(String adapter) throws InterruptedException {
+        Semaphore permits = getPermits(adapter);
+        permits.acquire();
+        return new Permit(permits);
+    }
+
+    /**
+     * @return number of attempts waiting for their turn on the adapter
+     */
+    public int getQueueLength(String adapter) {
+        return getPermits(adapter).getQueueLength();
+    }
+
+    /**
+     * @return number of attempts in progress on the adapter
+     */
+    public int getInFlight(String adapter) {
+        return maxConcurrent - getPermits(adapter).availablePermits();
+    }
+
+    private Semaphore getPermits(String adapter) {
+        // Fair, so that attempts are admitted in the order in which they were queued
+        return permitsByAdapter.computeIfAbsent(Objects.requireNonNull(adapter), a -> new Semaphore(maxConcurrent, true));
+    }
+
+    public static class Permit implements AutoCloseable {
+        private final Semaphore permits;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(Semaphore permits) {
+            this.permits = permits;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+            }
+        }
+    }
+}
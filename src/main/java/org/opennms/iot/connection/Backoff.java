@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.connection;
+
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter, for the connection attempts to one device.
+ *
+ * Each delay is picked at random between half and all of the current backoff, which then doubles
+ * up to the maximum, so that devices that lost their connection at the same time, i.e. when the
+ * gateway reboots, spread out their attempts instead of retrying in lock step.
+ *
+ * Not thread safe.
+ */
+public class Backoff {
+
+    private final long initialMs;
+    private final long maxMs;
+    private final double multiplier;
+    private final Random random;
+
+    private long currentMs;
+    private int attempts;
+
+    public Backoff(long initialMs, long maxMs) {
+        this(initialMs, maxMs, 2, new Random());
+    }
+
+    public Backoff(long initialMs, long maxMs, double multiplier, Random random) {
+        if (initialMs <= 0 || maxMs < initialMs) {
+            throw new IllegalArgumentException("Backoff must be positive and at most the maximum: " + initialMs + ", " + maxMs);
+        }
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("Multiplier must be at least 1: " + multiplier);
+        }
+        this.initialMs = initialMs;
+        this.maxMs = maxMs;
+        this.multiplier = multiplier;
+        this.random = Objects.requireNonNull(random);
+        this.currentMs = initialMs;
+    }
+
+    /**
+     * @return how long to wait before the next attempt, in ms
+     */
+    public long nextDelayMs() {
+        long base = currentMs;
+        currentMs = Math.min(maxMs, (long)Math.ceil(currentMs * multiplier));
+        attempts++;
+        long half = base / 2;
+        return half + (long)(random.nextDouble() * (base - half + 1));
+    }
+
+    /**
+     * Start over from the initial backoff, i.e. once a connection was established and stayed up.
+     */
+    public void reset() {
+        currentMs = initialMs;
+        attempts = 0;
+    }
+
+    /**
+     * @return number of delays handed out since the last reset
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    @Override
+    public String toString() {
+        return "Backoff{" +
+                "currentMs=" + currentMs +
+                ", attempts=" + attempts +
+                '}';
+    }
+}
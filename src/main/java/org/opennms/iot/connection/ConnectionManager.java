@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.connection;
+
+import java.util.Objects;
+
+/**
+ * Shared by the sensor trackers to connect to their sensors: every connection backs off on its own,
+ * but attempts are admitted per adapter, and their outcome is recorded in the same {@link ConnectionStats}.
+ */
+public class ConnectionManager {
+
+    public static final int DEFAULT_MAX_CONCURRENT_CONNECTS = 1;
+    public static final long DEFAULT_INITIAL_BACKOFF_MS = 250;
+    public static final long DEFAULT_MAX_BACKOFF_MS = 30000;
+
+    private final AdmissionControl admissionControl;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private final ConnectionStats stats = new ConnectionStats();
+
+    public ConnectionManager() {
+        this(DEFAULT_MAX_CONCURRENT_CONNECTS, DEFAULT_INITIAL_BACKOFF_MS, DEFAULT_MAX_BACKOFF_MS);
+    }
+
+    /**
+     * @param maxConcurrentConnects maximum number of connection attempts in progress on each adapter
+     * @param initialBackoffMs delay before the first retry, which doubles on each retry
+     * @param maxBackoffMs maximum delay between retries
+     */
+    public ConnectionManager(int maxConcurrentConnects, long initialBackoffMs, long maxBackoffMs) {
+        this.admissionControl = new AdmissionControl(maxConcurrentConnects);
+        // Fail now rather than when the first connection is created
+        new Backoff(initialBackoffMs, maxBackoffMs);
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+    }
+
+    /**
+     * @return the connection to the sensor with the given address, to be used by a single thread
+     */
+    public DeviceConnection newConnection(String address) {
+        return new DeviceConnection(Objects.requireNonNull(address), admissionControl, stats,
+                new Backoff(initialBackoffMs, maxBackoffMs));
+    }
+
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    public ConnectionStats getStats() {
+        return stats;
+    }
+}
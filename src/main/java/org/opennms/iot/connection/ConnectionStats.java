@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.connection;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.opennms.iot.metrics.Collector;
+import org.opennms.iot.metrics.ExpositionBuffer;
+import org.opennms.iot.stats.Histogram;
+
+/**
+ * Outcome and latency of the connections to the sensors, since startup.
+ */
+public class ConnectionStats implements Collector {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    // All in ns
+    private final Histogram queueTime = new Histogram();
+    private final Histogram connectTime = new Histogram();
+    private final Histogram reconnectTime = new Histogram();
+
+    private final byte[][] queueTimePrefixes = summaryPrefixes("ble_connect_queue_seconds");
+    private final byte[][] connectTimePrefixes = summaryPrefixes("ble_connect_duration_seconds");
+    private final byte[][] reconnectTimePrefixes = summaryPrefixes("ble_reconnect_latency_seconds");
+
+    /**
+     * Record the time an attempt waited for its turn, since the given start, as returned by {@link System#nanoTime()}.
+     */
+    public void recordQueued(long startNanos) {
+        queueTime.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Record the outcome of an attempt that started at the given time, as returned by {@link System#nanoTime()}.
+     */
+    public void recordAttempt(boolean connected, long startNanos) {
+        connectTime.record(System.nanoTime() - startNanos);
+        attempts.increment();
+        if (!connected) {
+            failures.increment();
+        }
+    }
+
+    public void recordDisconnect() {
+        disconnects.increment();
+    }
+
+    /**
+     * Record a connection re-established after being lost at the given time, as returned by {@link System#nanoTime()}.
+     */
+    public void recordReconnect(long disconnectedNanos) {
+        reconnectTime.record(System.nanoTime() - disconnectedNanos);
+    }
+
+    public long getAttempts() {
+        return attempts.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public long getDisconnects() {
+        return disconnects.sum();
+    }
+
+    /**
+     * @return fraction of the attempts that succeeded, NaN if there were none
+     */
+    public double getSuccessRate() {
+        long n = attempts.sum();
+        return n == 0 ? Double.NaN : (n - failures.sum()) / (double) n;
+    }
+
+    public Histogram getQueueTime() {
+        return queueTime;
+    }
+
+    public Histogram getConnectTime() {
+        return connectTime;
+    }
+
+    public Histogram getReconnectTime() {
+        return reconnectTime;
+    }
+
+    @Override
+    public void writeTo(ExpositionBuffer buffer) {
+        buffer.writeAscii("# HELP ble_connect_attempts_total Connection attempts to the sensors.\n")
+                .writeAscii("# TYPE ble_connect_attempts_total counter\n")
+                .writeAscii("ble_connect_attempts_total ").writeLong(attempts.sum()).write('\n')
+                .writeAscii("# HELP ble_connect_failures_total Connection attempts to the sensors that failed.\n")
+                .writeAscii("# TYPE ble_connect_failures_total counter\n")
+                .writeAscii("ble_connect_failures_total ").writeLong(failures.sum()).write('\n')
+                .writeAscii("# HELP ble_connect_success_ratio Fraction of the connection attempts that succeeded, since startup.\n")
+                .writeAscii("# TYPE ble_connect_success_ratio gauge\n")
+                .writeAscii("ble_connect_success_ratio ").writeDouble(getSuccessRate()).write('\n')
+                .writeAscii("# HELP ble_disconnects_total Connections to the sensors that were lost.\n")
+                .writeAscii("# TYPE ble_disconnects_total counter\n")
+                .writeAscii("ble_disconnects_total ").writeLong(disconnects.sum()).write('\n');
+        writeSummary(buffer, "ble_connect_queue_seconds", "Time connection attempts waited for the adapter.",
+                queueTimePrefixes, queueTime);
+        writeSummary(buffer, "ble_connect_duration_seconds", "Duration of the connection attempts.",
+                connectTimePrefixes, connectTime);
+        writeSummary(buffer, "ble_reconnect_latency_seconds", "Time from losing the connection to a sensor to re-establishing it.",
+                reconnectTimePrefixes, reconnectTime);
+    }
+
+    private static void writeSummary(ExpositionBuffer buffer, String name, String help, byte[][] prefixes, Histogram histogram) {
+        buffer.writeAscii("# HELP ").writeAscii(name).write(' ').writeAscii(help).write('\n')
+                .writeAscii("# TYPE ").writeAscii(name).writeAscii(" summary\n");
+        for (int q = 0; q < QUANTILES.length; q++) {
+            buffer.write(prefixes[q]).writeDouble(histogram.getValueAtPercentile(QUANTILES[q] * 100) / 1e9d).write('\n');
+        }
+        buffer.write(prefixes[QUANTILES.length]).writeDouble(histogram.getSum() / 1e9d).write('\n');
+        buffer.write(prefixes[QUANTILES.length + 1]).writeLong(histogram.getCount()).write('\n');
+    }
+
+    // The quantiles, followed by the sum and the count
+    private static byte[][] summaryPrefixes(String name) {
+        byte[][] prefixes = new byte[QUANTILES.length + 2][];
+        for (int q = 0; q < QUANTILES.length; q++) {
+            prefixes[q] = ExpositionBuffer.samplePrefix(name, "quantile", Double.toString(QUANTILES[q]));
+        }
+        prefixes[QUANTILES.length] = ExpositionBuffer.samplePrefix(name + "_sum");
+        prefixes[QUANTILES.length + 1] = ExpositionBuffer.samplePrefix(name + "_count");
+        return prefixes;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionStats{" +
+                "attempts=" + attempts.sum() +
+                ", failures=" + failures.sum() +
+                ", disconnects=" + disconnects.sum() +
+                ", reconnectTime=" + reconnectTime +
+                '}';
+    }
+}
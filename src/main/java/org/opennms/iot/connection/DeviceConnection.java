@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.connection;
+
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import tinyb.BluetoothAdapter;
+import tinyb.BluetoothDevice;
+import tinyb.BluetoothException;
+
+/**
+ * The connection to one sensor, across reconnects.
+ *
+ * Disconnects are signalled by tinyb's connected notifications as soon as BlueZ sees them, rather than
+ * on the next poll. Attempts wait for their turn on the adapter, and retries back off with jitter.
+ * The backoff is only reset once a connection stayed up for {@link #STABLE_CONNECTION_MS}, so that
+ * a sensor that drops right after connecting doesn't retry in a tight loop.
+ *
+ * Not thread safe: used by the tracker of the sensor, while the notifications only count down a latch.
+ */
+public class DeviceConnection {
+    private static final Logger LOG = LoggerFactory.getLogger(DeviceConnection.class);
+
+    public static final long STABLE_CONNECTION_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final String DEFAULT_ADAPTER = "default";
+
+    private final String address;
+    private final AdmissionControl admissionControl;
+    private final ConnectionStats stats;
+    private final Backoff backoff;
+
+    private BluetoothDevice device;
+    private CountDownLatch disconnected;
+    private long connectedNanos;
+    // 0 until the first connection is lost
+    private long disconnectedNanos = 0;
+
+    DeviceConnection(String address, AdmissionControl admissionControl, ConnectionStats stats, Backoff backoff) {
+        this.address = Objects.requireNonNull(address);
+        this.admissionControl = Objects.requireNonNull(admissionControl);
+        this.stats = Objects.requireNonNull(stats);
+        this.backoff = Objects.requireNonNull(backoff);
+    }
+
+    /**
+     * Wait before the next attempt to find or connect to the sensor.
+     */
+    public void awaitRetry() throws InterruptedException {
+        long delayMs = backoff.nextDelayMs();
+        LOG.info("Retrying sensor {} in {} ms (attempt {}).", address, delayMs, backoff.getAttempts());
+        Thread.sleep(delayMs);
+    }
+
+    /**
+     * Connect to the device, once the adapter admits the attempt.
+     *
+     * @return true if connected, in which case {@link #onDisconnected()} must be called once the connection is over
+     */
+    public boolean connect(BluetoothDevice device) throws InterruptedException {
+        String adapter = getAdapter(device);
+        long queuedNanos = System.nanoTime();
+        AdmissionControl.Permit permit = admissionControl.acquire(adapter);
+        try {
+            stats.recordQueued(queuedNanos);
+            long startNanos = System.nanoTime();
+            boolean connected = false;
+            try {
+                connected = device.connect();
+                if (!connected) {
+                    LOG.warn("Could not connect to sensor: {}", address);
+                }
+            } catch (BluetoothException e) {
+                LOG.warn("Could not connect to sensor: {}", address, e);
+            }
+            stats.recordAttempt(connected, startNanos);
+            if (!connected) {
+                return false;
+            }
+        } finally {
+            permit.close();
+        }
+
+        this.device = device;
+        connectedNanos = System.nanoTime();
+        if (disconnectedNanos != 0) {
+            stats.recordReconnect(disconnectedNanos);
+        }
+        CountDownLatch latch = new CountDownLatch(1);
+        disconnected = latch;
+        try {
+            device.enableConnectedNotifications(connected -> {
+                if (!connected) {
+                    latch.countDown();
+                }
+            });
+        } catch (BluetoothException e) {
+            LOG.debug("Could not enable connected notifications for {}. Relying on polling.", address, e);
+        }
+        LOG.info("Connected to sensor: {}", address);
+        return true;
+    }
+
+    /**
+     * Wait for the connection to be lost, checking the connected property on timeout in case the notification was missed.
+     *
+     * @return true if the connection was lost
+     */
+    public boolean awaitDisconnect(long timeout, TimeUnit unit) throws InterruptedException {
+        if (device == null) {
+            return true;
+        }
+        return disconnected.await(timeout, unit) || !device.getConnected();
+    }
+
+    /**
+     * Called once the connection is over, whether it was lost or given up on.
+     */
+    public void onDisconnected() {
+        if (device == null) {
+            return;
+        }
+        disconnectedNanos = System.nanoTime();
+        stats.recordDisconnect();
+        if (disconnectedNanos - connectedNanos >= TimeUnit.MILLISECONDS.toNanos(STABLE_CONNECTION_MS)) {
+            backoff.reset();
+        }
+        try {
+            device.disableConnectedNotifications();
+        } catch (BluetoothException e) {
+            LOG.debug("Could not disable connected notifications for {}.", address, e);
+        }
+        device = null;
+        disconnected = null;
+    }
+
+    public boolean isConnected() {
+        return device != null;
+    }
+
+    private String getAdapter(BluetoothDevice device) {
+        try {
+            BluetoothAdapter adapter = device.getAdapter();
+            if (adapter != null) {
+                return adapter.getInterfaceName();
+            }
+        } catch (BluetoothException e) {
+            LOG.debug("Could not get the adapter of {}.", address, e);
+        }
+        return DEFAULT_ADAPTER;
+    }
+}
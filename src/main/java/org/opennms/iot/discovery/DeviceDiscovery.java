@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.discovery;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import tinyb.BluetoothDevice;
+import tinyb.BluetoothException;
+import tinyb.BluetoothManager;
+
+/**
+ * Discovers the devices for all the sensor trackers.
+ *
+ * A single thread lists the devices known to BlueZ and feeds them to a {@link DeviceIndex}, on which
+ * the trackers wait for their device. tinyb doesn't expose the D-Bus signals for new devices, so the
+ * list is fetched every scan interval, but once for all the sensors rather than once per sensor.
+ * While no tracker is waiting, the list is only refreshed every {@link #IDLE_SCAN_INTERVAL_MS}, to
+ * drop the devices BlueZ forgot about.
+ */
+public class DeviceDiscovery implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(DeviceDiscovery.class);
+
+    public static final long DEFAULT_SCAN_INTERVAL_MS = 500;
+    public static final long IDLE_SCAN_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private final BluetoothManager manager;
+    private final long scanIntervalMs;
+    private final DeviceIndex<BluetoothDevice> index = new DeviceIndex<>(BluetoothDevice::getAddress);
+    private ScheduledExecutorService scanner;
+    // Only accessed by the scanner thread
+    private long lastScanNanos;
+
+    public DeviceDiscovery(BluetoothManager manager, long scanIntervalMs) {
+        this.manager = Objects.requireNonNull(manager);
+        if (scanIntervalMs <= 0) {
+            throw new IllegalArgumentException("Scan interval must be positive: " + scanIntervalMs);
+        }
+        this.scanIntervalMs = scanIntervalMs;
+    }
+
+    /**
+     * Put the default adapter in discovery mode and start indexing the devices.
+     */
+    public synchronized void start() {
+        if (scanner != null) {
+            return;
+        }
+        boolean discoveryStarted = manager.startDiscovery();
+        LOG.info("Discovery started: {}", discoveryStarted);
+        scanner = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("device-discovery-%d")
+                .setDaemon(true)
+                .build());
+        scanner.scheduleWithFixedDelay(this::scan, 0, scanIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void scan() {
+        long now = System.nanoTime();
+        if (index.getPendingCount() == 0 && lastScanNanos != 0
+                && now - lastScanNanos < TimeUnit.MILLISECONDS.toNanos(IDLE_SCAN_INTERVAL_MS)) {
+            return;
+        }
+        lastScanNanos = now;
+        try {
+            List<BluetoothDevice> devices = manager.getDevices();
+            if (devices == null) {
+                return;
+            }
+            for (BluetoothDevice device : index.update(devices)) {
+                LOG.info("Discovered device: {} ({})", device.getAddress(), device.getName());
+            }
+        } catch (BluetoothException e) {
+            LOG.warn("Could not list the devices.", e);
+        } catch (RuntimeException e) {
+            // Keep scanning, the executor would otherwise silently stop
+            LOG.error("Unexpected error while listing the devices.", e);
+        }
+    }
+
+    /**
+     * @return the device with the given address, or null if it wasn't discovered within the timeout
+     */
+    public BluetoothDevice getDevice(String address, long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            return index.await(address).get(timeout, unit);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (ExecutionException e) {
+            // The futures are only ever completed normally
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public DeviceIndex<BluetoothDevice> getIndex() {
+        return index;
+    }
+
+    /**
+     * Stop indexing the devices and take the adapter out of discovery mode.
+     */
+    @Override
+    public synchronized void close() {
+        if (scanner == null) {
+            return;
+        }
+        scanner.shutdownNow();
+        scanner = null;
+        try {
+            manager.stopDiscovery();
+        } catch (BluetoothException e) {
+            LOG.warn("Could not stop discovery.", e);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.discovery;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Concurrent index of the devices seen by the scanner, by hardware address.
+ *
+ * The index is fed by a single thread, and any number of threads can look devices up, or wait for
+ * one to appear, without going back to BlueZ. Addresses are compared case-insensitively.
+ *
+ * @param <T> type of the devices
+ */
+public class DeviceIndex<T> {
+
+    private final Function<T, String> addressOf;
+    private final Map<String, T> devicesByAddress = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<T>> pendingByAddress = new ConcurrentHashMap<>();
+
+    /**
+     * @param addressOf gets the hardware address of a device
+     */
+    public DeviceIndex(Function<T, String> addressOf) {
+        this.addressOf = Objects.requireNonNull(addressOf);
+    }
+
+    /**
+     * Replace the content of the index with the devices currently known. Devices that were already
+     * indexed are kept as is, devices that are no longer known are removed, and those waiting for
+     * a new device are notified.
+     *
+     * Must only be called by one thread at a time.
+     *
+     * @return the devices that were added
+     */
+    public List<T> update(Collection<T> devices) {
+        Set<String> seen = new HashSet<>(devices.size() * 2);
+        List<T> added = new ArrayList<>();
+        for (T device : devices) {
+            String address = normalize(addressOf.apply(device));
+            seen.add(address);
+            if (devicesByAddress.putIfAbsent(address, device) == null) {
+                added.add(device);
+                CompletableFuture<T> pending = pendingByAddress.remove(address);
+                if (pending != null) {
+                    pending.complete(device);
+                }
+            }
+        }
+        devicesByAddress.keySet().retainAll(seen);
+        return added;
+    }
+
+    /**
+     * @return the device with the given address, or null if it wasn't seen by the last scan
+     */
+    public T get(String address) {
+        return devicesByAddress.get(normalize(address));
+    }
+
+    /**
+     * @return a future completed with the device with the given address as soon as it is seen.
+     *         The future is shared by all those waiting for the same device, and must not be cancelled.
+     */
+    public CompletableFuture<T> await(String address) {
+        String key = normalize(address);
+        T device = devicesByAddress.get(key);
+        if (device != null) {
+            return CompletableFuture.completedFuture(device);
+        }
+        CompletableFuture<T> pending = pendingByAddress.computeIfAbsent(key, k -> new CompletableFuture<>());
+        // The device may have been added before the future was registered
+        device = devicesByAddress.get(key);
+        if (device != null) {
+            pendingByAddress.remove(key, pending);
+            pending.complete(device);
+        }
+        return pending;
+    }
+
+    /**
+     * @return number of devices in the index
+     */
+    public int size() {
+        return devicesByAddress.size();
+    }
+
+    /**
+     * @return number of addresses being waited for
+     */
+    public int getPendingCount() {
+        return pendingByAddress.size();
+    }
+
+    // BlueZ reports addresses in upper case
+    private static String normalize(String address) {
+        return address.toUpperCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.gatt;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * UUIDs of the services of a device, and of the characteristics of each service.
+ *
+ * Unlike the tinyb objects, a layout outlives the connection it was read on, so it can be used to
+ * pick a handler and to know which services to expect when reconnecting. UUIDs are compared
+ * case-insensitively.
+ */
+public class GattLayout {
+
+    public static final GattLayout EMPTY = new GattLayout(Collections.emptyMap());
+
+    private final Map<String, List<String>> characteristicsByService;
+
+    /**
+     * @param characteristicsByService UUIDs of the characteristics of each service, by service UUID
+     */
+    public GattLayout(Map<String, ? extends Collection<String>> characteristicsByService) {
+        Map<String, List<String>> layout = new LinkedHashMap<>();
+        characteristicsByService.forEach((service, characteristics) -> {
+            List<String> uuids = new ArrayList<>(characteristics.size());
+            for (String characteristic : characteristics) {
+                uuids.add(normalize(characteristic));
+            }
+            layout.put(normalize(service), Collections.unmodifiableList(uuids));
+        });
+        this.characteristicsByService = Collections.unmodifiableMap(layout);
+    }
+
+    public boolean hasService(String serviceUuid) {
+        return characteristicsByService.containsKey(normalize(serviceUuid));
+    }
+
+    public boolean hasCharacteristic(String serviceUuid, String characteristicUuid) {
+        return getCharacteristicUuids(serviceUuid).contains(normalize(characteristicUuid));
+    }
+
+    public Set<String> getServiceUuids() {
+        return characteristicsByService.keySet();
+    }
+
+    /**
+     * @return the UUIDs of the characteristics of the service, none if the device doesn't have it
+     */
+    public List<String> getCharacteristicUuids(String serviceUuid) {
+        return characteristicsByService.getOrDefault(normalize(serviceUuid), Collections.emptyList());
+    }
+
+    /**
+     * @return true if every service and characteristic of the other layout is also in this one
+     */
+    public boolean containsAll(GattLayout other) {
+        for (Map.Entry<String, List<String>> entry : other.characteristicsByService.entrySet()) {
+            List<String> characteristics = characteristicsByService.get(entry.getKey());
+            if (characteristics == null || !characteristics.containsAll(entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return characteristicsByService.isEmpty();
+    }
+
+    /**
+     * Parse a layout written by {@link #toString()}, ignoring blank lines.
+     */
+    public static GattLayout parse(List<String> lines) {
+        Map<String, List<String>> layout = new LinkedHashMap<>();
+        for (String line : lines) {
+            String[] uuids = line.trim().split("\\s+");
+            if (uuids[0].isEmpty()) {
+                continue;
+            }
+            List<String> characteristics = new ArrayList<>(uuids.length - 1);
+            for (int i = 1; i < uuids.length; i++) {
+                characteristics.add(uuids[i]);
+            }
+            layout.put(uuids[0], characteristics);
+        }
+        return new GattLayout(layout);
+    }
+
+    // UUIDs are reported in lower case by BlueZ, but the constants are not always
+    private static String normalize(String uuid) {
+        return uuid.toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return characteristicsByService.equals(((GattLayout) o).characteristicsByService);
+    }
+
+    @Override
+    public int hashCode() {
+        return characteristicsByService.hashCode();
+    }
+
+    /**
+     * @return one line per service, with the UUID of the service followed by those of its characteristics
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        characteristicsByService.forEach((service, characteristics) -> {
+            sb.append(service);
+            for (String characteristic : characteristics) {
+                sb.append(' ').append(characteristic);
+            }
+            sb.append('\n');
+        });
+        return sb.toString();
+    }
+}
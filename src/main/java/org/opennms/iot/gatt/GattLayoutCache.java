@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.gatt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers the GATT layout of each device, by hardware address, so that reconnecting to a known
+ * device doesn't wait for service discovery to complete before picking a handler.
+ *
+ * Layouts are kept in memory, and in one file per device when a directory is given.
+ */
+public class GattLayoutCache {
+    private static final Logger LOG = LoggerFactory.getLogger(GattLayoutCache.class);
+
+    private static final String SUFFIX = ".gatt";
+
+    private final Path directory;
+    private final Map<String, GattLayout> layoutsByAddress = new ConcurrentHashMap<>();
+
+    /**
+     * @param directory where to persist the layouts, or null to only keep them in memory
+     */
+    public GattLayoutCache(Path directory) throws IOException {
+        this.directory = directory;
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+    }
+
+    /**
+     * @return the last layout stored for the device, or null if it was never seen
+     */
+    public GattLayout get(String address) {
+        String key = normalize(address);
+        GattLayout layout = layoutsByAddress.get(key);
+        if (layout != null || directory == null) {
+            return layout;
+        }
+        try {
+            layout = GattLayout.parse(Files.readAllLines(getPath(key), StandardCharsets.US_ASCII));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOG.warn("Could not read the GATT layout of {}.", address, e);
+            return null;
+        }
+        layoutsByAddress.putIfAbsent(key, layout);
+        return layout;
+    }
+
+    /**
+     * Remember the layout of the device, only writing it to disk when it changed.
+     */
+    public void put(String address, GattLayout layout) {
+        String key = normalize(address);
+        GattLayout previous = layoutsByAddress.put(key, layout);
+        if (directory == null || layout.equals(previous)) {
+            return;
+        }
+        Path path = getPath(key);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            // Replace the file atomically so that a crash never leaves a partial layout behind
+            Files.write(tmp, layout.toString().getBytes(StandardCharsets.US_ASCII));
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOG.debug("Stored the GATT layout of {} in {}.", address, path);
+        } catch (IOException e) {
+            LOG.warn("Could not store the GATT layout of {}.", address, e);
+        }
+    }
+
+    /**
+     * Forget the layout of the device, i.e. when it no longer matches the device.
+     */
+    public void remove(String address) {
+        String key = normalize(address);
+        layoutsByAddress.remove(key);
+        if (directory == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(getPath(key));
+        } catch (IOException e) {
+            LOG.warn("Could not delete the GATT layout of {}.", address, e);
+        }
+    }
+
+    private Path getPath(String key) {
+        // Colons are not allowed in file names on all platforms
+        return directory.resolve(key.replace(':', '-') + SUFFIX);
+    }
+
+    // BlueZ reports addresses in upper case
+    private static String normalize(String address) {
+        return address.toUpperCase(Locale.ROOT);
+    }
+}
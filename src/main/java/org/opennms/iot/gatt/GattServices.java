@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.gatt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import tinyb.BluetoothDevice;
+import tinyb.BluetoothGattCharacteristic;
+import tinyb.BluetoothGattService;
+
+/**
+ * The services and characteristics of a connected device, enumerated once per connection and
+ * indexed by UUID, so that picking a handler and subscribing don't go back to BlueZ for each lookup.
+ */
+public class GattServices {
+    private static final Logger LOG = LoggerFactory.getLogger(GattServices.class);
+
+    public static final long POLL_INTERVAL_MS = 100;
+
+    private final Map<String, BluetoothGattService> servicesByUuid = new HashMap<>();
+    private final Map<String, BluetoothGattCharacteristic> characteristicsByUuid = new HashMap<>();
+    private final GattLayout layout;
+
+    private GattServices(List<BluetoothGattService> services) {
+        Map<String, List<String>> characteristicsByService = new LinkedHashMap<>();
+        for (BluetoothGattService service : services) {
+            String serviceUuid = normalize(service.getUUID());
+            servicesByUuid.put(serviceUuid, service);
+            List<String> characteristicUuids = new ArrayList<>();
+            List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
+            if (characteristics != null) {
+                for (BluetoothGattCharacteristic characteristic : characteristics) {
+                    String characteristicUuid = normalize(characteristic.getUUID());
+                    characteristicUuids.add(characteristicUuid);
+                    characteristicsByUuid.put(key(serviceUuid, characteristicUuid), characteristic);
+                }
+            }
+            characteristicsByService.put(serviceUuid, characteristicUuids);
+        }
+        layout = new GattLayout(characteristicsByService);
+    }
+
+    /**
+     * Wait for the services of the device to be discovered, and enumerate them.
+     *
+     * The services are ready once BlueZ says they are resolved or, for a device that was seen before,
+     * as soon as all those of its known layout are there.
+     *
+     * @param knownLayout the layout of the device on its last connection, or null if it is unknown
+     * @return the services of the device, or null if none were discovered within the timeout
+     */
+    public static GattServices resolve(BluetoothDevice device, GattLayout knownLayout, long timeout, TimeUnit unit) throws InterruptedException {
+        Objects.requireNonNull(device);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            boolean resolved = device.getServicesResolved();
+            List<BluetoothGattService> services = device.getServices();
+            boolean timedOut = System.nanoTime() - deadline >= 0;
+            if (services != null && !services.isEmpty() && (resolved || timedOut || hasAllServices(services, knownLayout))) {
+                GattServices gatt = new GattServices(services);
+                if (resolved || (knownLayout != null && gatt.layout.containsAll(knownLayout))) {
+                    return gatt;
+                }
+                if (timedOut) {
+                    LOG.warn("Services of {} were not resolved within {} {}. Using those discovered so far: {}",
+                            device.getAddress(), timeout, unit, gatt.layout.getServiceUuids());
+                    return gatt;
+                }
+            } else if (timedOut) {
+                return null;
+            }
+            Thread.sleep(POLL_INTERVAL_MS);
+        }
+    }
+
+    private static boolean hasAllServices(List<BluetoothGattService> services, GattLayout knownLayout) {
+        if (knownLayout == null) {
+            return false;
+        }
+        Set<String> uuids = new HashSet<>();
+        for (BluetoothGattService service : services) {
+            uuids.add(normalize(service.getUUID()));
+        }
+        return uuids.containsAll(knownLayout.getServiceUuids());
+    }
+
+    public GattLayout getLayout() {
+        return layout;
+    }
+
+    public boolean hasService(String serviceUuid) {
+        return servicesByUuid.containsKey(normalize(serviceUuid));
+    }
+
+    /**
+     * @return the service with the given UUID, or null if the device doesn't have it
+     */
+    public BluetoothGattService getService(String serviceUuid) {
+        return servicesByUuid.get(normalize(serviceUuid));
+    }
+
+    /**
+     * @return the characteristic of the service with the given UUIDs, or null if the device doesn't have it
+     */
+    public BluetoothGattCharacteristic getCharacteristic(String serviceUuid, String characteristicUuid) {
+        return characteristicsByUuid.get(key(normalize(serviceUuid), normalize(characteristicUuid)));
+    }
+
+    /**
+     * @return the characteristic of the service with the given UUIDs
+     * @throws IllegalStateException if the device doesn't have it
+     */
+    public BluetoothGattCharacteristic requireCharacteristic(String serviceUuid, String characteristicUuid) {
+        BluetoothGattCharacteristic characteristic = getCharacteristic(serviceUuid, characteristicUuid);
+        if (characteristic == null) {
+            throw new IllegalStateException("Could not find the characteristic " + characteristicUuid
+                    + " of service " + serviceUuid + ".");
+        }
+        return characteristic;
+    }
+
+    private static String key(String serviceUuid, String characteristicUuid) {
+        return serviceUuid + '/' + characteristicUuid;
+    }
+
+    private static String normalize(String uuid) {
+        return uuid.toLowerCase(Locale.ROOT);
+    }
+}
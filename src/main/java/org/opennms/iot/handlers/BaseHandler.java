@@ -34,6 +34,7 @@ import java.util.function.Consumer;
 
 import org.opennms.iot.Handler;
 import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.stats.PipelineLatency;
 
 public abstract class BaseHandler implements Handler {
 
@@ -45,7 +46,19 @@ public abstract class BaseHandler implements Handler {
     }
 
     public void broadcast(Event event) {
-        consumers.forEach(c -> c.accept(event));
+        long start = System.nanoTime();
+        for (Consumer<Event> consumer : consumers) {
+            consumer.accept(event);
+        }
+        PipelineLatency.get().record(PipelineLatency.Stage.DISPATCH, event, start);
+    }
+
+    /**
+     * Broadcast an event decoded from the notification received at the given time, as returned by {@link System#nanoTime()}.
+     */
+    public void broadcast(Event event, long receivedNanos) {
+        PipelineLatency.get().record(PipelineLatency.Stage.DECODE, event, receivedNanos);
+        broadcast(event);
     }
 
     public void doIt() {
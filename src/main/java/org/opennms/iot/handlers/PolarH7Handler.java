@@ -28,71 +28,72 @@
 
 package org.opennms.iot.handlers;
 
-import static org.opennms.iot.Bluetooth.buildSensorFromDevice;
-import static org.opennms.iot.Bluetooth.getService;
+import static org.opennms.iot.Bluetooth.enableNotifications;
 
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.atomic.AtomicInteger;
 
+import org.opennms.iot.SensorDescriptor;
 import org.opennms.iot.ble.proto.Event;
-import org.opennms.iot.ble.proto.FieldValue;
-import org.opennms.iot.ble.proto.Metric;
+import org.opennms.iot.ble.proto.SampleBlock;
+import org.opennms.iot.ble.proto.Sensor;
+import org.opennms.iot.gatt.GattServices;
+import org.opennms.iot.schema.FieldDef;
+import org.opennms.iot.schema.MetricDef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import tinyb.BluetoothDevice;
 import tinyb.BluetoothGattCharacteristic;
-import tinyb.BluetoothGattService;
 
 public class PolarH7Handler extends BaseHandler {
     private static final Logger LOG = LoggerFactory.getLogger(PolarH7Handler.class);
 
-    public static final String METRIC_NAME = "polar-h7";
-    public static final String BPM_FIELD = "beats_per_minute";
+    public static final String METRIC_NAME = MetricDef.POLAR_H7.getName();
+    public static final String BPM_FIELD = FieldDef.POLAR_H7_BPM.getName();
+    public static final String ENERGY_EXPENDED_FIELD = FieldDef.POLAR_H7_ENERGY_EXPENDED.getName();
+    public static final String RR_FIELD = FieldDef.POLAR_H7_RR.getName();
 
     public static final String H7_HR_SVC = "0000180d-0000-1000-8000-00805f9b34fb";
     public static final String H7_HR_CHAR = "00002a37-0000-1000-8000-00805f9b34fb";
 
     private BluetoothDevice sensor;
+    private final GattServices gatt;
+    private final SensorDescriptor descriptor;
     BluetoothGattCharacteristic hrValue;
 
-    public PolarH7Handler(BluetoothDevice sensor) {
+    public PolarH7Handler(BluetoothDevice sensor, GattServices gatt) {
         this.sensor = Objects.requireNonNull(sensor);
-    }
-
-    public static boolean handles(BluetoothDevice sensor) {
-        try {
-            // FIXME: There is a better way to do this
-            return getService(sensor, H7_HR_SVC)  != null;
-        } catch (InterruptedException e) {
-            return false;
-        }
+        this.gatt = Objects.requireNonNull(gatt);
+        this.descriptor = SensorDescriptor.forDevice(sensor);
     }
 
     @Override
     public void startGatheringData() throws InterruptedException {
-        BluetoothGattService hrService = getService(sensor, H7_HR_SVC);
-        if (hrService == null) {
-            throw new IllegalStateException("Could not find HR service.");
-        }
-        LOG.debug("Found HR service:  {}", hrService.getUUID());
-
-        hrValue = hrService.find(H7_HR_CHAR);
-        hrValue.enableValueNotifications(this::handleHrValue);
+        hrValue = gatt.requireCharacteristic(H7_HR_SVC, H7_HR_CHAR);
+        enableNotifications(sensor, hrValue, "heart-rate", this::handleHrValue);
     }
 
     @Override
     public void onKeepAlive() {
         if (hrValue != null) {
-            hrValue.enableValueNotifications(this::handleHrValue);
+            enableNotifications(sensor, hrValue, "heart-rate", this::handleHrValue);
         }
     }
 
     private void handleHrValue(byte[] bytes) {
-        long received_at = System.currentTimeMillis();
+        long receivedNanos = System.nanoTime();
+        broadcast(toEvent(descriptor.getSensor(), bytes, System.currentTimeMillis()), receivedNanos);
+    }
+
+    /**
+     * Decode a heart rate measurement.
+     *
+     * @param received_at when the measurement was received, in ms since the epoch
+     */
+    public static Event toEvent(Sensor sensor, byte[] bytes, long received_at) {
         byte hr_format_mask = 0x01;
         byte energy_expended_mask = 0x08;
         byte rr_interval_mask = 0x10;
@@ -116,7 +117,6 @@ public class PolarH7Handler extends BaseHandler {
         } else {
             bpm = Optional.empty();
         }
-        LOG.info("Got BPM: {}", bpm);
 
         final Optional<Integer> ene;
         if ((bytes[0] & energy_expended_mask) != 0) {
@@ -125,7 +125,6 @@ public class PolarH7Handler extends BaseHandler {
         } else {
             ene = Optional.empty();
         }
-        LOG.info("Got ENE: {}", ene);
 
         final List<Double> rrs = new LinkedList<>();
         if ((bytes[0] & rr_interval_mask) != 0) {
@@ -136,30 +135,30 @@ public class PolarH7Handler extends BaseHandler {
                 offset+=2;
             }
         }
-        LOG.info("Got RRs: {}", rrs);
-
-        Event.Builder eventBuilder = Event.newBuilder()
-                .setSensor(buildSensorFromDevice(sensor));
 
-        Metric.Builder metricBuilder = Metric.newBuilder()
-                .setName(METRIC_NAME)
-                .setTimestamp(received_at);
+        SampleBlock.Builder blockBuilder = MetricDef.POLAR_H7.newBlock()
+                .setStartTimestamp(received_at);
         bpm.ifPresent(val -> {
             // Skip non-positive values
             if (val <= 0) {
                 return;
             }
-            metricBuilder.putFields(BPM_FIELD, FieldValue.newBuilder().setIntValue(val).build());
+            blockBuilder.addChannels(FieldDef.POLAR_H7_BPM.newChannel()
+                    .addIntValues(val));
         });
         ene.ifPresent(val -> {
-            metricBuilder.putFields("energy_expended", FieldValue.newBuilder().setIntValue(val).build());
+            blockBuilder.addChannels(FieldDef.POLAR_H7_ENERGY_EXPENDED.newChannel()
+                    .addIntValues(val));
         });
-        AtomicInteger rrIndex = new AtomicInteger();
-        rrs.forEach(rr -> {
-            metricBuilder.putFields("rr" + rrIndex.getAndIncrement(), FieldValue.newBuilder().setFloatValue(rr).build());
-        });
-        eventBuilder.addMetrics(metricBuilder);
+        if (!rrs.isEmpty()) {
+            blockBuilder.addChannels(FieldDef.POLAR_H7_RR.newChannel()
+                    .setEnumerated(true)
+                    .addAllDoubleValues(rrs));
+        }
 
-        broadcast(eventBuilder.build());
+        return Event.newBuilder()
+                .setSensor(sensor)
+                .addBlocks(blockBuilder)
+                .build();
     }
 }
@@ -28,41 +28,41 @@
 
 package org.opennms.iot.handlers;
 
-import static org.opennms.iot.Bluetooth.buildSensorFromDevice;
-import static org.opennms.iot.Bluetooth.getService;
+import static org.opennms.iot.Bluetooth.enableNotifications;
 
 import java.util.List;
 import java.util.Objects;
 import java.util.function.Consumer;
 
 import org.opennms.iot.Handler;
+import org.opennms.iot.SensorDescriptor;
 import org.opennms.iot.ble.proto.Event;
-import org.opennms.iot.ble.proto.FieldValue;
-import org.opennms.iot.ble.proto.Metric;
+import org.opennms.iot.ble.proto.Sensor;
+import org.opennms.iot.gatt.GattServices;
+import org.opennms.iot.schema.FieldDef;
+import org.opennms.iot.schema.MetricDef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import tinyb.BluetoothDevice;
 import tinyb.BluetoothException;
 import tinyb.BluetoothGattCharacteristic;
-import tinyb.BluetoothGattService;
 
 public class TICC2650Handler extends BaseHandler {
     private static final Logger LOG = LoggerFactory.getLogger(TICC2650Handler.class);
 
+    public static final String METRIC_NAME = MetricDef.CC2650.getName();
+    public static final String TEMPERATURE_FIELD = FieldDef.CC2650_TEMPERATURE.getName();
+    public static final String HUMIDITY_FIELD = FieldDef.CC2650_HUMIDITY.getName();
+
     private BluetoothDevice sensor;
+    private final GattServices gatt;
+    private final SensorDescriptor descriptor;
 
-    public TICC2650Handler(BluetoothDevice sensor) {
+    public TICC2650Handler(BluetoothDevice sensor, GattServices gatt) {
         this.sensor = Objects.requireNonNull(sensor);
-    }
-
-    public static boolean handles(BluetoothDevice sensor) {
-        try {
-            // FIXME: There is a better way to do this
-            return getService(sensor, TICC2650Constants.CC2650_HUMIDITY_SVC)  != null;
-        } catch (InterruptedException e) {
-            return false;
-        }
+        this.gatt = Objects.requireNonNull(gatt);
+        this.descriptor = SensorDescriptor.forDevice(sensor);
     }
 
     @Override
@@ -72,23 +72,10 @@ public class TICC2650Handler extends BaseHandler {
     }
 
     public void startGatheringHumidity() throws InterruptedException {
-        BluetoothGattService humidityService = getService(sensor, TICC2650Constants.CC2650_HUMIDITY_SVC);
-        if (humidityService == null) {
-            System.err.println("This device does not have the temperature service we are looking for.");
-            sensor.disconnect();
-            System.exit(-1);
-        }
-        LOG.debug("Found humidity service:  {}", humidityService.getUUID());
-
-        BluetoothGattCharacteristic humValue = humidityService.find(TICC2650Constants.CC2650_HUMIDITY_VALUE_CHAR);
-        BluetoothGattCharacteristic humConfig = humidityService.find(TICC2650Constants.CC2650_HUMIDITY_CONFIG_CHAR);
-        BluetoothGattCharacteristic humPeriod = humidityService.find(TICC2650Constants.CC2650_HUMIDITY_PERIOD_CHAR);
-
-        if (humValue == null || humConfig == null || humPeriod == null) {
-            System.err.println("Could not find the correct characteristics.");
-            sensor.disconnect();
-            System.exit(-1);
-        }
+        BluetoothGattCharacteristic humValue = gatt.requireCharacteristic(TICC2650Constants.CC2650_HUMIDITY_SVC,
+                TICC2650Constants.CC2650_HUMIDITY_VALUE_CHAR);
+        BluetoothGattCharacteristic humConfig = gatt.requireCharacteristic(TICC2650Constants.CC2650_HUMIDITY_SVC,
+                TICC2650Constants.CC2650_HUMIDITY_CONFIG_CHAR);
 
         LOG.debug("Found the humidity characteristics");
 
@@ -96,10 +83,7 @@ public class TICC2650Handler extends BaseHandler {
         byte[] config = { 0x01 };
         humConfig.writeValue(config);
 
-        subscribe(humConfig, (bytes) -> {
-            LOG.info("Got callback!");
-            onNewHumidityValue(bytes);
-        });
+        subscribe(humConfig, "humidity-config", this::onNewHumidityValue);
 
         LOG.debug("Subscribing to humidity value changes.");
         Thread t = new Thread(() -> {
@@ -117,6 +101,16 @@ public class TICC2650Handler extends BaseHandler {
     }
 
     private void onNewHumidityValue(byte[] bytes) {
+        long receivedNanos = System.nanoTime();
+        broadcast(toHumidityEvent(descriptor.getSensor(), bytes, System.currentTimeMillis()), receivedNanos);
+    }
+
+    /**
+     * Decode a humidity sensor reading, which includes the temperature.
+     *
+     * @param timestamp when the reading was received, in ms since the epoch
+     */
+    public static Event toHumidityEvent(Sensor sensor, byte[] bytes, long timestamp) {
         LOG.debug("Got new humidity value: {}", bytes);
 
         int rawTemp = (bytes[0] & 0xff) | (bytes[1] << 8);
@@ -126,35 +120,22 @@ public class TICC2650Handler extends BaseHandler {
         double hum = (rawHum / 65536d) * 100;
         LOG.debug("temperature: {}, humidity: {}", temp, hum);
 
-        Event.Builder eventBuilder = Event.newBuilder()
-                .setSensor(buildSensorFromDevice(sensor));
-
-        Metric.Builder metricBuilder = Metric.newBuilder()
-                .setName("cc2650")
-                .setTimestamp(System.currentTimeMillis());
-        metricBuilder.putFields("temperature", FieldValue.newBuilder().setFloatValue(temp).build());
-        metricBuilder.putFields("humidity", FieldValue.newBuilder().setFloatValue(hum).build());
-        eventBuilder.addMetrics(metricBuilder);
-
-        broadcast(eventBuilder.build());
+        return Event.newBuilder()
+                .setSensor(sensor)
+                .addBlocks(MetricDef.CC2650.newBlock()
+                        .setStartTimestamp(timestamp)
+                        .addChannels(FieldDef.CC2650_TEMPERATURE.newChannel()
+                                .addDoubleValues(temp))
+                        .addChannels(FieldDef.CC2650_HUMIDITY.newChannel()
+                                .addDoubleValues(hum)))
+                .build();
     }
 
     public void startGatheringTemperature() throws InterruptedException {
-        BluetoothGattService tempService = getService(sensor, TICC2650Constants.CC2650_TEMPERATURE_SVC);
-        if (tempService == null) {
-            throw new IllegalStateException("Could not find temperature service.");
-        }
-        LOG.debug("Found temperature service:  {}", tempService.getUUID());
-
-        BluetoothGattCharacteristic tempValue = tempService.find(TICC2650Constants.CC2650_TEMPERATURE_VALUE_CHAR);
-        BluetoothGattCharacteristic tempConfig = tempService.find(TICC2650Constants.CC2650_TEMPERATURE_CONFIG_CHAR);
-        BluetoothGattCharacteristic tempPeriod = tempService.find(TICC2650Constants.CC2650_TEMPERATURE_PERIOD_CHAR);
-
-        if (tempValue == null || tempConfig == null || tempPeriod == null) {
-            System.err.println("Could not find the correct characteristics.");
-            sensor.disconnect();
-            System.exit(-1);
-        }
+        BluetoothGattCharacteristic tempValue = gatt.requireCharacteristic(TICC2650Constants.CC2650_TEMPERATURE_SVC,
+                TICC2650Constants.CC2650_TEMPERATURE_VALUE_CHAR);
+        BluetoothGattCharacteristic tempConfig = gatt.requireCharacteristic(TICC2650Constants.CC2650_TEMPERATURE_SVC,
+                TICC2650Constants.CC2650_TEMPERATURE_CONFIG_CHAR);
 
         LOG.debug("Found the temperature characteristics");
 
@@ -166,10 +147,7 @@ public class TICC2650Handler extends BaseHandler {
         byte[] config = { 0x01 };
         tempConfig.writeValue(config);
 
-        subscribe(tempConfig, (bytes) -> {
-            LOG.info("Got callback!");
-            onNewTempValue(bytes);
-        });
+        subscribe(tempConfig, "temperature-config", this::onNewTempValue);
 
         LOG.debug("Subscribing to temperature value changes.");
         Thread t = new Thread(() -> {
@@ -200,16 +178,16 @@ public class TICC2650Handler extends BaseHandler {
         float objectTempCelsius = convertCelsius(objectTempRaw);
         float ambientTempCelsius = convertCelsius(ambientTempRaw);
 
-        LOG.info(String.format(" Temp: Object = %fC, Ambient = %fC", objectTempCelsius, ambientTempCelsius));
+        LOG.debug("Temp: Object = {}C, Ambient = {}C", objectTempCelsius, ambientTempCelsius);
     }
 
     static float convertCelsius(int raw) {
         return raw / 128f;
     }
 
-    private static void subscribe(BluetoothGattCharacteristic characteristic, Consumer<byte[]> callback) {
+    private void subscribe(BluetoothGattCharacteristic characteristic, String name, Consumer<byte[]> callback) {
         try {
-            characteristic.enableValueNotifications(callback::accept);
+            enableNotifications(sensor, characteristic, name, callback);
         } catch (BluetoothException be) {
             LOG.warn("enabling notifications failed.");
         }
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.handlers;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.opennms.iot.Handler;
+import org.opennms.iot.HandlerFactory;
+import org.opennms.iot.gatt.GattServices;
+
+import tinyb.BluetoothDevice;
+
+public class TICC2650HandlerFactory implements HandlerFactory {
+
+    @Override
+    public String getName() {
+        return "TI CC2650 SensorTag";
+    }
+
+    @Override
+    public Set<String> getServiceUuids() {
+        return Collections.singleton(TICC2650Constants.CC2650_HUMIDITY_SVC);
+    }
+
+    @Override
+    public Set<String> getNamePrefixes() {
+        return Collections.singleton("CC2650 SensorTag");
+    }
+
+    @Override
+    public Handler createHandler(BluetoothDevice device, GattServices gatt) {
+        return new TICC2650Handler(device, gatt);
+    }
+}
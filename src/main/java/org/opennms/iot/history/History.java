@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot.history;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import org.opennms.iot.SharedEvent;
+import org.opennms.iot.ble.proto.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recent events, kept in one {@link HistoryRing} per sensor so that a busy sensor
+ * cannot evict the history of a quiet one.
+ *
+ * Every event is assigned a sequence number as it is recorded. Subscribers use these to
+ * tell where the replay ends and the live stream begins.
+ *
+ * Events are encoded before any lock is taken, and appends for different sensors only
+ * contend on the ring they write to. Opening a cursor briefly excludes all appends so that
+ * its end is a consistent cut across the rings.
+ */
+public class History {
+    private static final Logger LOG = LoggerFactory.getLogger(History.class);
+
+    public static final int DEFAULT_BYTES_PER_SENSOR = 256 * 1024;
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    private final int bytesPerSensor;
+    private final long retentionMs;
+    private final long maxBytes;
+    private final Map<String, HistoryRing> ringsBySensor = new ConcurrentHashMap<>();
+    private final Set<String> sensorsOverCap = ConcurrentHashMap.newKeySet();
+    private final AtomicLong bytesAllocated = new AtomicLong();
+
+    private final AtomicLong lastSequence = new AtomicLong();
+    // Shared by appends, held exclusively while a cursor is opened
+    private final ReadWriteLock cursorLock = new ReentrantReadWriteLock();
+
+    /**
+     * @param retentionSeconds how long to keep events
+     * @param bytesPerSensor off-heap memory allocated for the history of each sensor
+     * @param maxBytes off-heap memory allocated across all sensors. Sensors seen once this is
+     *                 used up are not recorded.
+     */
+    public History(int retentionSeconds, int bytesPerSensor, long maxBytes) {
+        if (retentionSeconds < 1 || bytesPerSensor < HistoryRing.HEADER_SIZE || maxBytes < bytesPerSensor) {
+            throw new IllegalArgumentException("Retention and sizes must be positive, and the total must fit at least one sensor.");
+        }
+        this.bytesPerSensor = bytesPerSensor;
+        this.retentionMs = TimeUnit.SECONDS.toMillis(retentionSeconds);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Record the event, unless its sensor has no history because the overall limit was reached.
+     *
+     * @return the event, serialized and tagged with its sequence number
+     */
+    public SharedEvent append(Event event) {
+        String sensor = event.getSensor().getHwAddress();
+        HistoryRing ring = ringsBySensor.computeIfAbsent(sensor, this::allocateRing);
+        if (ring == null) {
+            return new SharedEvent(event);
+        }
+        SharedEvent unsequenced = new SharedEvent(event);
+        byte[] bytes = unsequenced.getBytes();
+        long sequence;
+        boolean recorded;
+        cursorLock.readLock().lock();
+        try {
+            sequence = lastSequence.incrementAndGet();
+            recorded = ring.append(sequence, System.currentTimeMillis(), bytes);
+        } finally {
+            cursorLock.readLock().unlock();
+        }
+        if (!recorded) {
+            LOG.debug("Event of {} bytes is too large for the history of sensor: {}", bytes.length, sensor);
+        }
+        return unsequenced.withSequence(sequence);
+    }
+
+    private HistoryRing allocateRing(String sensor) {
+        if (bytesAllocated.addAndGet(bytesPerSensor) > maxBytes) {
+            bytesAllocated.addAndGet(-bytesPerSensor);
+            if (sensorsOverCap.add(sensor)) {
+                LOG.warn("History is limited to {} bytes, which are all in use. Not keeping history for sensor: {}", maxBytes, sensor);
+            }
+            return null;
+        }
+        LOG.info("Allocating {} bytes of history for sensor: {}", bytesPerSensor, sensor);
+        return new HistoryRing(bytesPerSensor, retentionMs);
+    }
+
+    /**
+     * Open a cursor over the events recorded at or after the given time.
+     *
+     * The callback is invoked before any other event is recorded, so every event not
+     * covered by the cursor is seen by whatever the callback registers.
+     *
+     * @param sinceMs time of the oldest event to replay, in ms since the epoch
+     * @param onOpen invoked with the new cursor
+     */
+    public void openCursor(long sinceMs, Consumer<ReplayCursor> onOpen) {
+        cursorLock.writeLock().lock();
+        try {
+            List<ReplayCursor.RingPosition> positions = new ArrayList<>(ringsBySensor.size());
+            for (HistoryRing ring : ringsBySensor.values()) {
+                positions.add(new ReplayCursor.RingPosition(ring, ring.seek(sinceMs)));
+            }
+            onOpen.accept(new ReplayCursor(positions, lastSequence.get() + 1));
+        } finally {
+            cursorLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of events currently retained, across all sensors
+     */
+    public int size() {
+        return ringsBySensor.values().stream().mapToInt(HistoryRing::size).sum();
+    }
+
+    /**
+     * @return number of bytes currently used, across all sensors
+     */
+    public long getBytesUsed() {
+        return ringsBySensor.values().stream().mapToLong(HistoryRing::getBytesUsed).sum();
+    }
+
+    /**
+     * @return number of off-heap bytes allocated for the rings, across all sensors
+     */
+    public long getBytesAllocated() {
+        return bytesAllocated.get();
+    }
+}
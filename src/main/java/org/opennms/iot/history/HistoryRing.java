@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot.history;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed size ring of serialized events, stored off-heap.
+ *
+ * Records are addressed by their absolute offset, which only ever grows, and are evicted
+ * oldest first when space is needed or when they exceed the retention period.
+ */
+class HistoryRing {
+
+    /**
+     * length (int), sequence (long), timestamp (long)
+     */
+    static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Long.BYTES;
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final long retentionMs;
+    private final byte[] header = new byte[HEADER_SIZE];
+    private final ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+
+    private long head = 0;
+    private long tail = 0;
+    private int size = 0;
+    private long evicted = 0;
+
+    HistoryRing(int capacity, long retentionMs) {
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+        this.capacity = capacity;
+        this.retentionMs = retentionMs;
+    }
+
+    /**
+     * @return false if the payload is too large to ever fit in the ring
+     */
+    synchronized boolean append(long sequence, long timestamp, byte[] payload) {
+        int recordSize = HEADER_SIZE + payload.length;
+        if (recordSize > capacity) {
+            return false;
+        }
+        while (size > 0 && (capacity - (tail - head) < recordSize || readTimestamp(head) < timestamp - retentionMs)) {
+            head += HEADER_SIZE + readLength(head);
+            size--;
+            evicted++;
+        }
+        headerBuffer.clear();
+        headerBuffer.putInt(payload.length).putLong(sequence).putLong(timestamp);
+        write(tail, header, HEADER_SIZE);
+        write(tail + HEADER_SIZE, payload, payload.length);
+        tail += recordSize;
+        size++;
+        return true;
+    }
+
+    /**
+     * @return the position of the oldest record with a timestamp at or after the given one
+     */
+    synchronized long seek(long timestamp) {
+        long position = head;
+        while (position < tail && readTimestamp(position) < timestamp) {
+            position += HEADER_SIZE + readLength(position);
+        }
+        return position;
+    }
+
+    /**
+     * Read the record at the given position, or at the head if that record was already evicted.
+     *
+     * @return the record, or null if there are no records at or after the position
+     */
+    synchronized Record read(long position) {
+        if (position < head) {
+            position = head;
+        }
+        if (position >= tail) {
+            return null;
+        }
+        read(position, header, HEADER_SIZE);
+        headerBuffer.clear();
+        int length = headerBuffer.getInt();
+        long sequence = headerBuffer.getLong();
+        long timestamp = headerBuffer.getLong();
+        byte[] payload = new byte[length];
+        read(position + HEADER_SIZE, payload, length);
+        return new Record(sequence, timestamp, payload, position + HEADER_SIZE + length);
+    }
+
+    private int readLength(long position) {
+        read(position, header, Integer.BYTES);
+        return headerBuffer.getInt(0);
+    }
+
+    private long readTimestamp(long position) {
+        read(position + Integer.BYTES + Long.BYTES, header, Long.BYTES);
+        return headerBuffer.getLong(0);
+    }
+
+    private void write(long position, byte[] src, int length) {
+        int offset = (int)(position % capacity);
+        int first = Math.min(length, capacity - offset);
+        ByteBuffer dst = buffer.duplicate();
+        dst.position(offset);
+        dst.put(src, 0, first);
+        if (first < length) {
+            dst.position(0);
+            dst.put(src, first, length - first);
+        }
+    }
+
+    private void read(long position, byte[] dst, int length) {
+        int offset = (int)(position % capacity);
+        int first = Math.min(length, capacity - offset);
+        ByteBuffer src = buffer.duplicate();
+        src.position(offset);
+        src.get(dst, 0, first);
+        if (first < length) {
+            src.position(0);
+            src.get(dst, first, length - first);
+        }
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized long getBytesUsed() {
+        return tail - head;
+    }
+
+    synchronized long getEvictedCount() {
+        return evicted;
+    }
+
+    static class Record {
+        final long sequence;
+        final long timestamp;
+        final byte[] payload;
+        final long nextPosition;
+
+        Record(long sequence, long timestamp, byte[] payload, long nextPosition) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.payload = payload;
+            this.nextPosition = nextPosition;
+        }
+    }
+}
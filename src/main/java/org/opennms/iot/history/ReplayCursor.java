@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot.history;
+
+import java.util.List;
+
+import org.opennms.iot.SharedEvent;
+import org.opennms.iot.ble.proto.Event;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Iterates over the recorded events of all sensors in sequence order, stopping at the first
+ * event that was recorded after the cursor was opened.
+ *
+ * Not thread safe.
+ */
+public class ReplayCursor {
+
+    private final List<RingPosition> positions;
+    private final long endSequence;
+    private long lastSequence = 0;
+    private long skipped = 0;
+
+    ReplayCursor(List<RingPosition> positions, long endSequence) {
+        this.positions = positions;
+        this.endSequence = endSequence;
+    }
+
+    /**
+     * @return the next event, or null once the replay is complete
+     */
+    public SharedEvent next() {
+        RingPosition oldest = null;
+        for (RingPosition position : positions) {
+            HistoryRing.Record record = position.peek();
+            if (record != null && record.sequence < endSequence
+                    && (oldest == null || record.sequence < oldest.peek().sequence)) {
+                oldest = position;
+            }
+        }
+        if (oldest == null) {
+            return null;
+        }
+        HistoryRing.Record record = oldest.take();
+        if (lastSequence != 0 && record.sequence > lastSequence + 1) {
+            // Evicted before we got to them
+            skipped += record.sequence - lastSequence - 1;
+        }
+        lastSequence = record.sequence;
+        try {
+            return new SharedEvent(Event.parseFrom(record.payload), record.sequence);
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException("Corrupt history record: " + record.sequence, e);
+        }
+    }
+
+    /**
+     * @return number of events that were evicted before they could be replayed
+     */
+    public long getSkippedCount() {
+        return skipped;
+    }
+
+    /**
+     * @return sequence number of the first event that is not part of the replay
+     */
+    public long getEndSequence() {
+        return endSequence;
+    }
+
+    static class RingPosition {
+        private final HistoryRing ring;
+        private long position;
+        private HistoryRing.Record next;
+
+        RingPosition(HistoryRing ring, long position) {
+            this.ring = ring;
+            this.position = position;
+        }
+
+        HistoryRing.Record peek() {
+            if (next == null) {
+                next = ring.read(position);
+            }
+            return next;
+        }
+
+        HistoryRing.Record take() {
+            HistoryRing.Record record = peek();
+            position = record.nextPosition;
+            next = null;
+            return record;
+        }
+    }
+}
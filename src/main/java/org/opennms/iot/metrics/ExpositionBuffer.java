@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A growable buffer for the Prometheus text format, reused from one scrape to the next.
+ *
+ * Numbers are written without going through strings, so that once the buffer has grown
+ * to the size of a scrape, rendering one doesn't allocate.
+ */
+public class ExpositionBuffer {
+
+    // Above this, fixed point with 6 decimals would overflow a long
+    private static final double MAX_FIXED_POINT = 1e12;
+    private static final double MIN_FIXED_POINT = 1e-3;
+    private static final int DECIMALS = 6;
+    private static final long DECIMAL_SCALE = 1_000_000L;
+
+    private byte[] bytes;
+    private int size = 0;
+
+    public ExpositionBuffer() {
+        this(16 * 1024);
+    }
+
+    public ExpositionBuffer(int initialCapacity) {
+        bytes = new byte[initialCapacity];
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, size);
+    }
+
+    public ExpositionBuffer write(byte[] b) {
+        ensureCapacity(b.length);
+        System.arraycopy(b, 0, bytes, size, b.length);
+        size += b.length;
+        return this;
+    }
+
+    /**
+     * Write a string known to only contain ASCII characters.
+     */
+    public ExpositionBuffer writeAscii(String s) {
+        ensureCapacity(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            bytes[size++] = (byte)s.charAt(i);
+        }
+        return this;
+    }
+
+    public ExpositionBuffer write(char c) {
+        ensureCapacity(1);
+        bytes[size++] = (byte)c;
+        return this;
+    }
+
+    public ExpositionBuffer writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            return writeAscii(Long.toString(value));
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            bytes[size++] = '-';
+            value = -value;
+        }
+        int start = size;
+        do {
+            bytes[size++] = (byte)('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        reverse(start, size - 1);
+        return this;
+    }
+
+    /**
+     * Write the value with up to 6 decimals, or in scientific notation if it is very large or very small.
+     */
+    public ExpositionBuffer writeDouble(double value) {
+        if (Double.isNaN(value)) {
+            return writeAscii("NaN");
+        }
+        if (Double.isInfinite(value)) {
+            return writeAscii(value > 0 ? "+Inf" : "-Inf");
+        }
+        double abs = Math.abs(value);
+        if (abs == Math.rint(abs) && abs < MAX_FIXED_POINT) {
+            return writeLong((long)value);
+        }
+        if (abs >= MAX_FIXED_POINT || abs < MIN_FIXED_POINT) {
+            // Rare enough not to bother
+            return writeAscii(Double.toString(value));
+        }
+        long scaled = Math.round(abs * DECIMAL_SCALE);
+        if (value < 0) {
+            write('-');
+        }
+        writeLong(scaled / DECIMAL_SCALE);
+        long fraction = scaled % DECIMAL_SCALE;
+        if (fraction != 0) {
+            int numDecimals = DECIMALS;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                numDecimals--;
+            }
+            ensureCapacity(DECIMALS + 1);
+            bytes[size++] = '.';
+            int start = size;
+            for (int i = 0; i < numDecimals; i++) {
+                bytes[size++] = (byte)('0' + fraction % 10);
+                fraction /= 10;
+            }
+            reverse(start, size - 1);
+        }
+        return this;
+    }
+
+    private void reverse(int from, int to) {
+        while (from < to) {
+            byte tmp = bytes[from];
+            bytes[from++] = bytes[to];
+            bytes[to--] = tmp;
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+        }
+    }
+
+    /**
+     * Build the part of a sample line that precedes the value, i.e. 'name{label="value",...} '.
+     *
+     * @param labels alternating label names and values
+     */
+    public static byte[] samplePrefix(String name, String... labels) {
+        StringBuilder sb = new StringBuilder(name);
+        if (labels.length > 0) {
+            sb.append('{');
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(labels[i]).append("=\"");
+                escapeLabelValue(labels[i + 1], sb);
+                sb.append('"');
+            }
+            sb.append('}');
+        }
+        sb.append(' ');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void escapeLabelValue(String value, StringBuilder sb) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, size, StandardCharsets.UTF_8);
+    }
+}
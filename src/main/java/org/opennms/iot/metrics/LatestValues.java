@@ -0,0 +1,274 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.metrics;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.opennms.iot.SampleBlocks;
+import org.opennms.iot.ble.proto.Channel;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.SampleBlock;
+import org.opennms.iot.schema.FieldDef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the latest value of every field of every sensor, along with the RSSI and packet rate of
+ * each sensor, and exposes them to Prometheus.
+ *
+ * The table is allocated up front for a fixed number of sensors, and is indexed by the sensor's
+ * slot and the field's id. Updating it never locks or allocates once the sensor has a slot,
+ * so it can be done from the handlers' callbacks for every event. Only the channels identified by
+ * a {@link FieldDef} are tracked. The value and timestamp of a field are not updated atomically
+ * with respect to each other, which is fine for a gauge.
+ */
+public class LatestValues implements Collector {
+    private static final Logger LOG = LoggerFactory.getLogger(LatestValues.class);
+
+    public static final int DEFAULT_MAX_SENSORS = 64;
+
+    private static final FieldDef[] FIELDS = FieldDef.values();
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final int maxSensors;
+    private final ConcurrentHashMap<String, SensorSlot> slotsByAddress = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<SensorSlot> slots;
+    private final AtomicInteger numSlots = new AtomicInteger();
+    private final AtomicLong rejectedEvents = new AtomicLong();
+
+    // Indexed by slot * FIELDS.length + field id - 1
+    private final AtomicLongArray values;
+    private final AtomicLongArray timestamps;
+
+    public LatestValues() {
+        this(DEFAULT_MAX_SENSORS);
+    }
+
+    public LatestValues(int maxSensors) {
+        if (maxSensors < 1) {
+            throw new IllegalArgumentException("Maximum number of sensors must be positive: " + maxSensors);
+        }
+        this.maxSensors = maxSensors;
+        slots = new AtomicReferenceArray<>(maxSensors);
+        values = new AtomicLongArray(maxSensors * FIELDS.length);
+        timestamps = new AtomicLongArray(maxSensors * FIELDS.length);
+    }
+
+    /**
+     * Record the last sample of each field in the event.
+     */
+    public void update(Event event) {
+        SensorSlot slot = getSlot(event.getSensor().getHwAddress());
+        if (slot == null) {
+            rejectedEvents.incrementAndGet();
+            return;
+        }
+        slot.onPacket(event.getSensor().getRssi());
+        int base = slot.index * FIELDS.length;
+        for (int i = 0; i < event.getBlocksCount(); i++) {
+            SampleBlock block = event.getBlocks(i);
+            for (int j = 0; j < block.getChannelsCount(); j++) {
+                Channel channel = block.getChannels(j);
+                int fieldId = channel.getFieldId();
+                int numValues = SampleBlocks.size(channel);
+                if (fieldId < 1 || fieldId > FIELDS.length || numValues == 0) {
+                    continue;
+                }
+                // Enumerated readings were all taken at the start of the block
+                long timestamp = channel.getEnumerated() ? block.getStartTimestamp() : SampleBlocks.getTimestamp(block, numValues - 1);
+                int index = base + fieldId - 1;
+                values.lazySet(index, Double.doubleToRawLongBits(SampleBlocks.getValue(channel, numValues - 1)));
+                timestamps.lazySet(index, Math.max(timestamp, 1));
+            }
+        }
+    }
+
+    private SensorSlot getSlot(String address) {
+        SensorSlot slot = slotsByAddress.get(address);
+        if (slot != null) {
+            return slot;
+        }
+        if (numSlots.get() >= maxSensors) {
+            // Don't keep counting up for sensors that will never get a slot
+            return null;
+        }
+        return slotsByAddress.computeIfAbsent(address, a -> {
+            // Other addresses can be claiming slots concurrently, so this may overshoot
+            int index = numSlots.getAndIncrement();
+            if (index >= maxSensors) {
+                return null;
+            }
+            SensorSlot newSlot = new SensorSlot(a, index);
+            slots.set(index, newSlot);
+            LOG.debug("Tracking the latest values of sensor {} in slot {}.", a, index);
+            return newSlot;
+        });
+    }
+
+    /**
+     * @return the latest value of the field, or NaN if none was seen
+     */
+    public double getValue(String address, FieldDef field) {
+        SensorSlot slot = slotsByAddress.get(address);
+        if (slot == null) {
+            return Double.NaN;
+        }
+        int index = slot.index * FIELDS.length + field.ordinal();
+        return timestamps.get(index) != 0 ? Double.longBitsToDouble(values.get(index)) : Double.NaN;
+    }
+
+    /**
+     * @return number of events dropped because every slot was taken
+     */
+    public long getRejectedEventCount() {
+        return rejectedEvents.get();
+    }
+
+    @Override
+    public void writeTo(ExpositionBuffer buffer) {
+        int n = Math.min(numSlots.get(), maxSensors);
+        buffer.writeAscii("# HELP ble_sensor_value Latest value of each field of each sensor.\n")
+                .writeAscii("# TYPE ble_sensor_value gauge\n");
+        for (int i = 0; i < n; i++) {
+            SensorSlot slot = slots.get(i);
+            if (slot == null) {
+                continue;
+            }
+            int base = slot.index * FIELDS.length;
+            for (int f = 0; f < FIELDS.length; f++) {
+                if (timestamps.get(base + f) == 0) {
+                    continue;
+                }
+                buffer.write(slot.valuePrefixes[f])
+                        .writeDouble(Double.longBitsToDouble(values.get(base + f)))
+                        .write('\n');
+            }
+        }
+        buffer.writeAscii("# HELP ble_sensor_value_timestamp_seconds Time at which the latest value of each field was sampled.\n")
+                .writeAscii("# TYPE ble_sensor_value_timestamp_seconds gauge\n");
+        for (int i = 0; i < n; i++) {
+            SensorSlot slot = slots.get(i);
+            if (slot == null) {
+                continue;
+            }
+            int base = slot.index * FIELDS.length;
+            for (int f = 0; f < FIELDS.length; f++) {
+                long timestamp = timestamps.get(base + f);
+                if (timestamp == 0) {
+                    continue;
+                }
+                buffer.write(slot.timestampPrefixes[f])
+                        .writeDouble(timestamp / 1000d)
+                        .write('\n');
+            }
+        }
+        buffer.writeAscii("# HELP ble_sensor_rssi_dbm Signal strength of each sensor when its last packet was received.\n")
+                .writeAscii("# TYPE ble_sensor_rssi_dbm gauge\n");
+        for (int i = 0; i < n; i++) {
+            SensorSlot slot = slots.get(i);
+            if (slot != null) {
+                buffer.write(slot.rssiPrefix).writeDouble(slot.rssi).write('\n');
+            }
+        }
+        buffer.writeAscii("# HELP ble_sensor_packets_total Number of packets received from each sensor.\n")
+                .writeAscii("# TYPE ble_sensor_packets_total counter\n");
+        for (int i = 0; i < n; i++) {
+            SensorSlot slot = slots.get(i);
+            if (slot != null) {
+                buffer.write(slot.packetsPrefix).writeLong(slot.packets.get()).write('\n');
+            }
+        }
+        buffer.writeAscii("# HELP ble_sensor_packets_per_second Rate at which packets were received from each sensor over the last 10 seconds.\n")
+                .writeAscii("# TYPE ble_sensor_packets_per_second gauge\n");
+        long now = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            SensorSlot slot = slots.get(i);
+            if (slot != null) {
+                buffer.write(slot.ratePrefix).writeDouble(slot.getPacketRate(now)).write('\n');
+            }
+        }
+        buffer.writeAscii("# HELP ble_sensor_rejected_events_total Number of events not tracked because too many sensors were seen.\n")
+                .writeAscii("# TYPE ble_sensor_rejected_events_total counter\n")
+                .writeAscii("ble_sensor_rejected_events_total ").writeLong(rejectedEvents.get()).write('\n');
+    }
+
+    private static class SensorSlot {
+        private final int index;
+        private final byte[][] valuePrefixes = new byte[FIELDS.length][];
+        private final byte[][] timestampPrefixes = new byte[FIELDS.length][];
+        private final byte[] rssiPrefix;
+        private final byte[] packetsPrefix;
+        private final byte[] ratePrefix;
+
+        private final AtomicLong packets = new AtomicLong();
+        private volatile double rssi;
+
+        // Packets received over the last complete window, and since the start of the current one
+        private final AtomicLong windowStartNanos = new AtomicLong(System.nanoTime());
+        private volatile long windowStartPackets = 0;
+        private volatile double packetRate = 0;
+
+        private SensorSlot(String address, int index) {
+            Objects.requireNonNull(address);
+            this.index = index;
+            // Render the labels once, scrapes only append the values
+            for (FieldDef field : FIELDS) {
+                String[] labels = {"sensor", address, "metric", field.getMetric().getName(), "field", field.getName(), "unit", field.getUnit()};
+                valuePrefixes[field.ordinal()] = ExpositionBuffer.samplePrefix("ble_sensor_value", labels);
+                timestampPrefixes[field.ordinal()] = ExpositionBuffer.samplePrefix("ble_sensor_value_timestamp_seconds", labels);
+            }
+            rssiPrefix = ExpositionBuffer.samplePrefix("ble_sensor_rssi_dbm", "sensor", address);
+            packetsPrefix = ExpositionBuffer.samplePrefix("ble_sensor_packets_total", "sensor", address);
+            ratePrefix = ExpositionBuffer.samplePrefix("ble_sensor_packets_per_second", "sensor", address);
+        }
+
+        private void onPacket(double rssi) {
+            this.rssi = rssi;
+            long count = packets.incrementAndGet();
+            long start = windowStartNanos.get();
+            long now = System.nanoTime();
+            if (now - start >= RATE_WINDOW_NANOS && windowStartNanos.compareAndSet(start, now)) {
+                packetRate = (count - windowStartPackets) / ((now - start) / 1e9d);
+                windowStartPackets = count;
+            }
+        }
+
+        private double getPacketRate(long now) {
+            // Nothing received for a whole window means the rate dropped to 0
+            return now - windowStartNanos.get() >= 2 * RATE_WINDOW_NANOS ? 0 : packetRate;
+        }
+    }
+}
@@ -26,34 +26,178 @@
  *     http://www.opennms.com/
  *******************************************************************************/
 
+
 package org.opennms.iot.muse;
 
 import java.time.Instant;
+import java.util.AbstractList;
 import java.util.List;
 
+/**
+ * The samples of one EEG, or PPG, channel from a single packet.
+ *
+ * Samples are kept in primitive arrays so that an instance can be refilled for every packet
+ * without allocating. When decoded from a packet, the raw ADC counts are kept and the values
+ * in microvolts are computed from them, otherwise only the values are known.
+ */
 public class ChannelSamples {
     private int index;
-    private List<Double> values;
-    private Instant timestamp;
+    private final short[] rawValues;
+    private final double[] values;
+    private int size = 0;
+    private boolean raw = false;
+    private long timestampMillis;
+
+    /**
+     * Create an empty, reusable, instance.
+     *
+     * @param capacity maximum number of samples
+     */
+    public ChannelSamples(int capacity) {
+        rawValues = new short[capacity];
+        values = new double[capacity];
+    }
 
     public ChannelSamples(int index, List<Double> values) {
+        this(values.size());
         this.index = index;
-        this.values = values;
+        for (Double value : values) {
+            this.values[size++] = value;
+        }
+    }
+
+    public ChannelSamples(int index, List<Double> values, int[] rawValues) {
+        this(index, values);
+        for (int i = 0; i < rawValues.length; i++) {
+            this.rawValues[i] = (short)rawValues[i];
+        }
+        this.raw = true;
     }
 
     public int getIndex() {
         return index;
     }
 
-    public List<Double> getValues() {
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    /**
+     * @return number of samples
+     */
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return values.length;
+    }
+
+    /**
+     * @return the value of the given sample, in microvolts
+     */
+    public double getValue(int i) {
+        return raw ? EEGHandler.EEG_SCALE * rawValues[i] : values[i];
+    }
+
+    /**
+     * @return true if the raw ADC counts are known
+     */
+    public boolean hasRawValues() {
+        return raw;
+    }
+
+    /**
+     * @return the given sample as a centered ADC count, where value = {@link EEGHandler#EEG_SCALE} * raw
+     */
+    public int getRawValue(int i) {
+        return rawValues[i];
+    }
+
+    /**
+     * @return the array holding the raw ADC counts, to be filled by a decoder followed by a call to {@link #setRawSize(int)}
+     */
+    short[] getRawSlab() {
+        return rawValues;
+    }
+
+    void setRawSize(int size) {
+        this.size = size;
+        this.raw = true;
+    }
+
+    /**
+     * @return the array holding the values, to be filled by a decoder followed by a call to {@link #setSize(int)}
+     */
+    double[] getValueSlab() {
         return values;
     }
 
+    void setSize(int size) {
+        this.size = size;
+        this.raw = false;
+    }
+
+    public void clear() {
+        size = 0;
+        raw = false;
+    }
+
+    /**
+     * @return a view of the values, in microvolts. Boxes every value it returns.
+     */
+    public List<Double> getValues() {
+        return new AbstractList<Double>() {
+            @Override
+            public Double get(int i) {
+                if (i < 0 || i >= size) {
+                    throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+                }
+                return getValue(i);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * @return a copy of the samples as centered ADC counts, or null if unknown
+     */
+    public int[] getRawValues() {
+        if (!raw) {
+            return null;
+        }
+        int[] copy = new int[size];
+        for (int i = 0; i < size; i++) {
+            copy[i] = rawValues[i];
+        }
+        return copy;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    public void setTimestampMillis(long timestampMillis) {
+        this.timestampMillis = timestampMillis;
+    }
+
     public Instant getTimestamp() {
-        return timestamp;
+        return Instant.ofEpochMilli(timestampMillis);
     }
 
     public void setTimestamp(Instant timestamp) {
-        this.timestamp = timestamp;
+        this.timestampMillis = timestamp.toEpochMilli();
+    }
+
+    @Override
+    public String toString() {
+        return "ChannelSamples{" +
+                "index=" + index +
+                ", values=" + getValues() +
+                '}';
     }
-}
\ No newline at end of file
+}
@@ -28,23 +28,13 @@
 
 package org.opennms.iot.muse;
 
-import static org.opennms.iot.Bluetooth.buildSensorFromDevice;
 import static org.opennms.iot.muse.MuseConstants.MUSE_SAMPLING_EEG_RATE;
 
-import java.nio.ByteBuffer;
-import java.time.Instant;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
 import java.util.Objects;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.concurrent.TimeUnit;
 
-import org.opennms.iot.ble.proto.Event;
-import org.opennms.iot.ble.proto.Metric;
+import org.opennms.iot.schema.MetricDef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -70,75 +60,114 @@ import org.slf4j.LoggerFactory;
 public class EEGHandler {
     private static final Logger LOG = LoggerFactory.getLogger(MuseHandler.class);
 
-    private final MuseHandler parent;
+    /**
+     * 12 bits on a 2 mVpp range, in microvolts per count.
+     */
+    public static final double EEG_SCALE = 0.48828125;
+    private static final int EEG_ZERO = 2048;
 
-    private int sampleIndexEeg = 0;
-    private long regParmsEegTime;
-    private double regParmsEegRatio;
-    private long lastTimestampEeg = 0;
+    /**
+     * Number of EEG channels, identified by their index.
+     */
+    public static final int NUM_CHANNELS = 5;
+    /**
+     * Number of samples in each packet.
+     */
+    public static final int SAMPLES_PER_PACKET = 12;
 
-    private int lastTmEeg = 0;
-    private Map<Integer, ChannelSamples> eegData = new HashMap<>();
+    private final MuseHandler parent;
+    private final FrameAssembler assembler;
+    // Only used by the listener, which is called by one thread at a time
+    private final SampleClock clock = new SampleClock(MUSE_SAMPLING_EEG_RATE, SAMPLES_PER_PACKET);
+    private long lastTimestampEeg = 0;
 
     public EEGHandler(MuseHandler parent) {
-        this.parent = Objects.requireNonNull(parent);
-
-        // initial params for the timestamp correction
-        // initial params for the timestamp correction
-        sampleIndexEeg = 0;
+        this(parent, FrameAssembler.DEFAULT_MAX_LATENCY_MS);
+    }
 
-        regParmsEegTime = System.currentTimeMillis();
-        regParmsEegRatio = 1.0d / MUSE_SAMPLING_EEG_RATE;
+    /**
+     * @param maxLatencyMs how long an incomplete frame waits for its missing packets before being broadcast without them
+     */
+    public EEGHandler(MuseHandler parent, long maxLatencyMs) {
+        this.parent = Objects.requireNonNull(parent);
+        this.assembler = new FrameAssembler(NUM_CHANNELS, SAMPLES_PER_PACKET, FrameAssembler.DEFAULT_WINDOW,
+                maxLatencyMs, TimeUnit.MILLISECONDS, EEGHandler::unpack_eeg_channel, new FrameAssembler.Listener() {
+            @Override
+            public void onFrame(EEGSample frame, long sequence, long receivedNanos) {
+                broadcastFrame(frame, sequence, receivedNanos);
+            }
+
+            @Override
+            public void onGap(long fromSequence, long numFrames) {
+                broadcastGap(fromSequence, numFrames);
+            }
+        });
     }
 
-    public synchronized void handle_eeg(int handle, byte[] packet) {
-        if (LOG.isInfoEnabled()) {
-            LOG.info("handle_eeg({}): {}", handle, Arrays.toString(packet));
-        }
-        //  samples are received in this order : 44, 41, 38, 32, 35
-        //  wait until we get 35 and call the data callback
-        Instant timestamp = Instant.now();
+    /**
+     * Called by the notifications of each of the EEG characteristics, possibly concurrently.
+     */
+    public void handle_eeg(int handle, byte[] packet) {
+        long receivedNanos = System.nanoTime();
         int index = Math.floorDiv(handle - 32, 3);
-
-        ChannelSamples samples = unpack_eeg_channel(packet);
-        samples.setTimestamp(timestamp);
-        int tm = samples.getIndex();
-
-        if (lastTmEeg == 0) {
-            lastTmEeg = tm - 1;
+        if (index < 0 || index >= NUM_CHANNELS) {
+            LOG.warn("Unexpected EEG handle: {}", handle);
+            return;
         }
-
-        // Store the samples
-        eegData.put(index, samples);
-
-        if (handle != 35) {
+        if (packet.length < 2) {
+            LOG.warn("Truncated EEG packet on handle {}: {}", handle, Arrays.toString(packet));
             return;
         }
+        // Frames are assembled by sequence number, whatever the order in which the channels arrive
+        assembler.add(index, packet, receivedNanos);
+    }
 
-        if (tm != (lastTmEeg + 1)) {
-            LOG.warn("Missing sample {}: {}", tm, lastTmEeg);
+    /**
+     * Broadcast the incomplete frames that are past their latency bound, i.e. once the notifications stopped.
+     */
+    public void flush() {
+        assembler.flush(System.nanoTime());
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("EEG frames: {}, sampling rate: {} Hz, jitter: {} ms", assembler, clock.getSamplingRate(), clock.getJitterMs());
         }
-        lastTmEeg = tm;
+    }
+
+    public FrameAssembler getAssembler() {
+        return assembler;
+    }
 
-        // Calculate index of time samples
-        List<Integer> idxs = IntStream.range(0, 12)
-                .mapToObj(k->k+sampleIndexEeg)
-                .collect(Collectors.toList());
-        sampleIndexEeg += 12;
+    /**
+     * @return the sampling rate, as estimated from the arrival times of the frames, in Hz
+     */
+    public double getSamplingRate() {
+        return clock.getSamplingRate();
+    }
 
-        // Timestamps are extrapolated backwards based on sampling rate and current time
-        List<Long> timestamps = idxs.stream()
-                .map(idx -> (long)(regParmsEegRatio * idx) + regParmsEegTime)
-                .collect(Collectors.toList());
+    /**
+     * @return the root mean square deviation of the arrival times of the frames from the estimated clock, in ms
+     */
+    public double getJitterMs() {
+        return clock.getJitterMs();
+    }
+
+    private void broadcastFrame(EEGSample frame, long sequence, long receivedNanos) {
+        long sampleIndex = clock.onPacket(sequence, receivedNanos);
+        for (int k = 0; k < SAMPLES_PER_PACKET; k++) {
+            frame.setTimestamp(k, clock.getTimestamp(sampleIndex + k));
+        }
 
         // Push the data
-        parent.broadcastEegSample(new EEGSample(eegData, timestamps));
+        parent.broadcastEegSample(frame, clock.getSamplePeriodMs(), receivedNanos);
 
         // Save last timestamp for disconnection time
-        lastTimestampEeg = timestamps.get(11);
+        lastTimestampEeg = frame.getTimestamp(SAMPLES_PER_PACKET - 1);
+    }
 
-        // Reset sample
-        eegData.clear();
+    private void broadcastGap(long fromSequence, long numFrames) {
+        LOG.warn("Missing EEG frames {} to {}.", fromSequence, fromSequence + numFrames - 1);
+        long startTimestamp = clock.getTimestamp(clock.getSampleIndex(fromSequence));
+        parent.broadcastGap(MetricDef.EEG, startTimestamp, clock.getSamplePeriodMs(), numFrames * SAMPLES_PER_PACKET);
+        clock.onGap();
     }
 
     /**
@@ -150,22 +179,67 @@ public class EEGHandler {
      * @param bytes
      */
     protected static ChannelSamples unpack_eeg_channel(byte[] bytes) {
+        ChannelSamples samples = new ChannelSamples(getNumSamples(bytes));
+        unpack_eeg_channel(bytes, samples);
+        return samples;
+    }
+
+    /**
+     * Decode data packet of one EEG channel into the given, reusable, samples.
+     */
+    static void unpack_eeg_channel(byte[] bytes, ChannelSamples samples) {
+        int numSamples = getNumSamples(bytes);
+        if (numSamples > samples.capacity()) {
+            throw new IllegalArgumentException("EEG packet has " + numSamples + " samples, expected at most " + samples.capacity());
+        }
+        samples.setIndex(decodeEegChannel(bytes, samples.getRawSlab(), 0));
+        samples.setRawSize(numSamples);
+    }
+
+    /**
+     * Decode data packet of one EEG channel into centered ADC counts, without allocating.
+     *
+     * @param raw where to write the samples, where value = {@link #EEG_SCALE} * raw
+     * @param offset index of the first sample in raw
+     * @return the packet's sequence number
+     */
+    public static int decodeEegChannel(byte[] bytes, short[] raw, int offset) {
         // pattern = "uint:16,uint:12,uint:12,uint:12,uint:12,uint:12,uint:12, \
         //               uint:12,uint:12,uint:12,uint:12,uint:12,uint:12"
-        int index = (bytes[0] << 8) | (bytes[1] & 0xFF);
+        int index = ((bytes[0] & 0xFF) << 8) | (bytes[1] & 0xFF);
 
-        List<Integer> values = new LinkedList<>();
         // Unpack the 12-bit integers in pairs so we can deal with 3 bytes at a time
-        for (int i = 2; i < bytes.length; i+=3) {
-            values.add(0xFFF & ((bytes[i] << 4) | ((bytes[i+1] >> 4) & 0x0F)));
-            values.add(0xFFF & (((bytes[i+1] << 8) & 0xF00) | (bytes[i+2] & 0xFF)));
+        int j = offset;
+        for (int i = 2; i + 2 < bytes.length; i+=3) {
+            raw[j++] = (short)((0xFFF & ((bytes[i] << 4) | ((bytes[i+1] >> 4) & 0x0F))) - EEG_ZERO);
+            raw[j++] = (short)((0xFFF & (((bytes[i+1] << 8) & 0xF00) | (bytes[i+2] & 0xFF))) - EEG_ZERO);
+        }
+        return index;
+    }
+
+    /**
+     * Decode data packet of one EEG channel into microvolts, without allocating.
+     *
+     * @param values where to write the samples
+     * @param offset index of the first sample in values
+     * @return the packet's sequence number
+     */
+    public static int decodeEegChannel(byte[] bytes, double[] values, int offset) {
+        int index = ((bytes[0] & 0xFF) << 8) | (bytes[1] & 0xFF);
+        int j = offset;
+        for (int i = 2; i + 2 < bytes.length; i+=3) {
+            // 12 bits on a 2 mVpp range
+            values[j++] = EEG_SCALE * ((0xFFF & ((bytes[i] << 4) | ((bytes[i+1] >> 4) & 0x0F))) - EEG_ZERO);
+            values[j++] = EEG_SCALE * ((0xFFF & (((bytes[i+1] << 8) & 0xF00) | (bytes[i+2] & 0xFF))) - EEG_ZERO);
         }
+        return index;
+    }
 
-        // 12 bits on a 2 mVpp range
-        List<Double> data = values.stream()
-                .map(v -> 0.48828125 * (v - 2048))
-                .collect(Collectors.toList());
-        return new ChannelSamples(index, data);
+    /**
+     * @return the number of samples in an EEG packet of the given size
+     */
+    public static int getNumSamples(byte[] bytes) {
+        return Math.max(bytes.length - 2, 0) / 3 * 2;
     }
 
 }
@@ -26,42 +26,150 @@
  *     http://www.opennms.com/
  *******************************************************************************/
 
+
 package org.opennms.iot.muse;
 
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.stream.Collectors;
 
+/**
+ * The samples of every channel for the same points in time.
+ *
+ * Channels and timestamps are kept in arrays indexed by channel and sample, so that a frame
+ * can be allocated once and refilled for every set of packets. The map and list accessors
+ * are views, and allocate.
+ */
 public class EEGSample {
-    private final Map<Integer, ChannelSamples> data;
-    private final List<Long> timestamps;
+    private final ChannelSamples[] channels;
+    private final long[] timestamps;
+    private int numTimestamps = 0;
+
+    /**
+     * Create an empty, reusable, frame.
+     */
+    public EEGSample(int numChannels, int samplesPerChannel) {
+        channels = new ChannelSamples[numChannels];
+        for (int i = 0; i < numChannels; i++) {
+            channels[i] = new ChannelSamples(samplesPerChannel);
+            channels[i].setIndex(i);
+        }
+        timestamps = new long[samplesPerChannel];
+    }
 
     public EEGSample(Map<Integer, ChannelSamples> data, List<Long> timestamps) {
-        this.data = Objects.requireNonNull(data);
-        this.timestamps = Objects.requireNonNull(timestamps);
+        Objects.requireNonNull(data);
+        int numChannels = data.keySet().stream().mapToInt(Integer::intValue).max().orElse(-1) + 1;
+        channels = new ChannelSamples[numChannels];
+        data.forEach((channel, samples) -> channels[channel] = samples);
+        this.timestamps = timestamps.stream().mapToLong(Long::longValue).toArray();
+        numTimestamps = this.timestamps.length;
     }
 
     public EEGSample(EegChunkDTO eegChunkDTO) {
-        data = new LinkedHashMap<>();
+        channels = new ChannelSamples[eegChunkDTO.data.size() + 1];
         int i = 1;
         for (List<Double> datas : eegChunkDTO.data) {
-            data.put(i, new ChannelSamples(i, datas));
+            channels[i] = new ChannelSamples(i, datas);
             i++;
         }
         timestamps = eegChunkDTO.timestamps.stream()
-                .map(t -> (long)(t * 1000))
-                .collect(Collectors.toList());
+                .mapToLong(t -> (long)(t * 1000))
+                .toArray();
+        numTimestamps = timestamps.length;
     }
 
+    public int getNumChannels() {
+        return channels.length;
+    }
 
+    /**
+     * @return the samples of the given channel, or null if there are none
+     */
+    public ChannelSamples getChannel(int channel) {
+        ChannelSamples samples = channel >= 0 && channel < channels.length ? channels[channel] : null;
+        return samples != null && samples.size() > 0 ? samples : null;
+    }
+
+    /**
+     * @return the reusable samples of the given channel, to be filled by a decoder
+     */
+    ChannelSamples getChannelSlab(int channel) {
+        return channels[channel];
+    }
+
+    public int getNumTimestamps() {
+        return numTimestamps;
+    }
+
+    /**
+     * @return the timestamp of the given sample, in ms since the epoch
+     */
+    public long getTimestamp(int i) {
+        return timestamps[i];
+    }
+
+    public void setTimestamp(int i, long timestamp) {
+        timestamps[i] = timestamp;
+        numTimestamps = Math.max(numTimestamps, i + 1);
+    }
+
+    /**
+     * @return true if no channel has samples
+     */
+    public boolean isEmpty() {
+        for (ChannelSamples samples : channels) {
+            if (samples != null && samples.size() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Empty the frame, keeping its arrays for the next set of packets.
+     */
+    public void clear() {
+        for (ChannelSamples samples : channels) {
+            if (samples != null) {
+                samples.clear();
+            }
+        }
+        numTimestamps = 0;
+    }
+
+    /**
+     * @return the channels with samples, by channel index
+     */
     public Map<Integer, ChannelSamples> getData() {
+        Map<Integer, ChannelSamples> data = new LinkedHashMap<>();
+        for (int i = 0; i < channels.length; i++) {
+            ChannelSamples samples = getChannel(i);
+            if (samples != null) {
+                data.put(i, samples);
+            }
+        }
         return data;
     }
 
     public List<Long> getTimestamps() {
-        return timestamps;
+        return new AbstractList<Long>() {
+            @Override
+            public Long get(int i) {
+                if (i < 0 || i >= numTimestamps) {
+                    throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + numTimestamps);
+                }
+                return timestamps[i];
+            }
+
+            @Override
+            public int size() {
+                return numTimestamps;
+            }
+        };
     }
 
     @Override
@@ -69,19 +177,23 @@ public class EEGSample {
         if (this == o) return true;
         if (!(o instanceof EEGSample)) return false;
         EEGSample eegSample = (EEGSample) o;
-        return Objects.equals(timestamps, eegSample.timestamps);
+        return Arrays.equals(Arrays.copyOf(timestamps, numTimestamps), Arrays.copyOf(eegSample.timestamps, eegSample.numTimestamps));
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(timestamps);
+        int result = 1;
+        for (int i = 0; i < numTimestamps; i++) {
+            result = 31 * result + Long.hashCode(timestamps[i]);
+        }
+        return result;
     }
 
     @Override
     public String toString() {
         return "EEGSample{" +
-                "data=" + data +
-                ", timestamps=" + timestamps +
+                "data=" + getData() +
+                ", timestamps=" + getTimestamps() +
                 '}';
     }
 }
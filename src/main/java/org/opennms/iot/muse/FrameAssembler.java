@@ -0,0 +1,438 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot.muse;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Reassembles the packets of a stream that is split over several characteristics, i.e. the EEG
+ * or PPG channels, into frames, using the 16-bit sequence number that starts every packet rather
+ * than the order in which the notifications arrive.
+ *
+ * Frames are kept in a ring indexed by sequence number, and are handed to the listener in
+ * sequence order: as soon as all of their channels are in, or once their first packet is older
+ * than the latency bound, in which case the channels that never arrived are left out. Frames for
+ * which no packet was received at all are reported as gaps.
+ *
+ * Packets may be added from any number of threads. Each channel of a frame is claimed with a
+ * CAS on the state of its slot, and the frames are flushed by whichever thread wins the drain flag,
+ * so the callbacks of the different characteristics never wait on each other.
+ */
+public class FrameAssembler {
+
+    /**
+     * Decodes the samples of one channel from a packet, without allocating.
+     */
+    @FunctionalInterface
+    public interface Decoder {
+        void decode(byte[] packet, ChannelSamples samples);
+    }
+
+    public interface Listener {
+        /**
+         * Called with each assembled frame, in sequence order. Only called by one thread at a time.
+         *
+         * The frame, without timestamps, is only valid for the duration of the call.
+         *
+         * @param sequence sequence number of the frame, unwrapped so that it keeps increasing past 0xFFFF
+         * @param receivedNanos when the first packet of the frame was received, as returned by {@link System#nanoTime()}
+         */
+        void onFrame(EEGSample frame, long sequence, long receivedNanos);
+
+        /**
+         * Called in place of the frames for which no packet was received, in sequence order.
+         * Only called by one thread at a time.
+         */
+        void onGap(long fromSequence, long numFrames);
+    }
+
+    /**
+     * Number of frames that can be in flight, ~750ms worth of samples.
+     */
+    public static final int DEFAULT_WINDOW = 16;
+    /**
+     * How long an incomplete frame waits for its missing packets. The packets of one frame are
+     * normally received within a few ms of each other, and frames are ~47ms apart.
+     */
+    public static final long DEFAULT_MAX_LATENCY_MS = 100;
+
+    // State of a slot: the sequence number of its frame, whether it was sealed for flushing,
+    // and a bit per channel for the packets that were claimed and those that were written
+    private static final long FREE = -1L;
+    private static final int WRITTEN_SHIFT = 8;
+    private static final long SEALED = 1L << 16;
+    private static final int SEQUENCE_SHIFT = 20;
+    private static final int MAX_CHANNELS = 8;
+
+    private final int numChannels;
+    private final long completeMask;
+    private final int window;
+    private final long maxLatencyNanos;
+    private final Decoder decoder;
+    private final Listener listener;
+
+    private final EEGSample[] frames;
+    private final AtomicLongArray states;
+    private final AtomicLongArray firstPacketNanos;
+    private final AtomicLong nextSequence = new AtomicLong(FREE);
+    // Frames before this one are flushed even if they are neither complete nor expired
+    private final AtomicLong flushBefore = new AtomicLong(FREE);
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    private final AtomicLong completeFrames = new AtomicLong();
+    private final AtomicLong partialFrames = new AtomicLong();
+    private final AtomicLong missingFrames = new AtomicLong();
+    private final AtomicLong missingPackets = new AtomicLong();
+    private final AtomicLong latePackets = new AtomicLong();
+    private final AtomicLong duplicatePackets = new AtomicLong();
+
+    public FrameAssembler(int numChannels, int samplesPerChannel, Decoder decoder, Listener listener) {
+        this(numChannels, samplesPerChannel, DEFAULT_WINDOW, DEFAULT_MAX_LATENCY_MS, TimeUnit.MILLISECONDS, decoder, listener);
+    }
+
+    /**
+     * @param window number of frames that can be in flight, must be a power of 2
+     * @param maxLatency how long an incomplete frame waits for its missing packets
+     */
+    public FrameAssembler(int numChannels, int samplesPerChannel, int window, long maxLatency, TimeUnit unit,
+                          Decoder decoder, Listener listener) {
+        if (numChannels < 1 || numChannels > MAX_CHANNELS) {
+            throw new IllegalArgumentException("Number of channels must be between 1 and " + MAX_CHANNELS + ": " + numChannels);
+        }
+        if (window < 2 || Integer.bitCount(window) != 1) {
+            throw new IllegalArgumentException("Window must be a power of 2: " + window);
+        }
+        if (maxLatency < 0) {
+            throw new IllegalArgumentException("Latency bound must not be negative: " + maxLatency);
+        }
+        this.numChannels = numChannels;
+        this.completeMask = (1L << numChannels) - 1;
+        this.window = window;
+        this.maxLatencyNanos = unit.toNanos(maxLatency);
+        this.decoder = Objects.requireNonNull(decoder);
+        this.listener = Objects.requireNonNull(listener);
+
+        frames = new EEGSample[window];
+        for (int i = 0; i < window; i++) {
+            frames[i] = new EEGSample(numChannels, samplesPerChannel);
+        }
+        states = new AtomicLongArray(window);
+        firstPacketNanos = new AtomicLongArray(window);
+        for (int i = 0; i < window; i++) {
+            states.set(i, FREE);
+        }
+    }
+
+    /**
+     * Decode the packet into its frame, and flush the frames that are ready.
+     *
+     * @param channel index of the channel the packet was received on
+     * @param receivedNanos when the packet was received, as returned by {@link System#nanoTime()}
+     */
+    public void add(int channel, byte[] packet, long receivedNanos) {
+        if (channel < 0 || channel >= numChannels) {
+            throw new IllegalArgumentException("Invalid channel: " + channel);
+        }
+        long sequence = toSequence(((packet[0] & 0xFF) << 8) | (packet[1] & 0xFF));
+        int slot = (int)(sequence & (window - 1));
+        long bit = 1L << channel;
+
+        while (true) {
+            long next = nextSequence.get();
+            if (sequence < next) {
+                latePackets.incrementAndGet();
+                return;
+            }
+            if (sequence - next >= window) {
+                // Make room by flushing the frames that fell out of the window, whatever their state
+                flushBefore.accumulateAndGet(sequence - window + 1, Math::max);
+                drain(receivedNanos);
+                if (nextSequence.get() == next) {
+                    // Someone else is draining
+                    Thread.yield();
+                }
+                continue;
+            }
+
+            long state = states.get(slot);
+            long claimed;
+            if (state == FREE) {
+                claimed = (sequence << SEQUENCE_SHIFT) | bit;
+            } else if ((state >> SEQUENCE_SHIFT) == sequence) {
+                if ((state & SEALED) != 0) {
+                    latePackets.incrementAndGet();
+                    return;
+                }
+                if ((state & bit) != 0) {
+                    duplicatePackets.incrementAndGet();
+                    return;
+                }
+                claimed = state | bit;
+            } else if ((state >> SEQUENCE_SHIFT) > sequence) {
+                latePackets.incrementAndGet();
+                return;
+            } else {
+                // The slot of an older frame is being released
+                Thread.yield();
+                continue;
+            }
+            if (!states.compareAndSet(slot, state, claimed)) {
+                continue;
+            }
+            if (sequence < nextSequence.get()) {
+                // The frame was skipped as a gap while we were claiming it
+                unclaim(slot, bit);
+                latePackets.incrementAndGet();
+                return;
+            }
+            break;
+        }
+
+        firstPacketNanos.compareAndSet(slot, 0, receivedNanos);
+        decoder.decode(packet, frames[slot].getChannelSlab(channel));
+        long state;
+        do {
+            state = states.get(slot);
+        } while (!states.compareAndSet(slot, state, state | (bit << WRITTEN_SHIFT)));
+
+        drain(receivedNanos);
+    }
+
+    /**
+     * Flush the frames whose latency bound has passed, i.e. after the notifications stopped.
+     */
+    public void flush(long nowNanos) {
+        drain(nowNanos);
+    }
+
+    // Resolve the 16-bit sequence number to the one closest to the next frame to flush
+    private long toSequence(int tm) {
+        long next = nextSequence.get();
+        if (next == FREE) {
+            nextSequence.compareAndSet(FREE, tm);
+            next = nextSequence.get();
+        }
+        return next + (short)(tm - (int)(next & 0xFFFF));
+    }
+
+    private void unclaim(int slot, long bit) {
+        long state;
+        long unclaimed;
+        do {
+            state = states.get(slot);
+            unclaimed = state & ~bit;
+            if ((unclaimed & completeMask) == 0) {
+                unclaimed = FREE;
+            }
+        } while (!states.compareAndSet(slot, state, unclaimed));
+    }
+
+    private void drain(long nowNanos) {
+        if (!draining.compareAndSet(false, true)) {
+            return;
+        }
+        do {
+            try {
+                flushReady(nowNanos);
+            } finally {
+                draining.set(false);
+            }
+            // Re-check: a frame may have completed after we last looked but before we released the flag
+        } while (isReady(nextSequence.get(), nowNanos) && draining.compareAndSet(false, true));
+    }
+
+    private void flushReady(long nowNanos) {
+        long sequence;
+        while (isReady(sequence = nextSequence.get(), nowNanos)) {
+            int slot = (int)(sequence & (window - 1));
+            long state = states.get(slot);
+            if (state != FREE && (state >> SEQUENCE_SHIFT) == sequence) {
+                long written = (state >> WRITTEN_SHIFT) & completeMask;
+                if ((state & completeMask) != written) {
+                    // A packet started decoding since we checked, its writer will drain again
+                    return;
+                }
+                // Keep late packets out while the listener reads the frame
+                if (!states.compareAndSet(slot, state, state | SEALED)) {
+                    continue;
+                }
+                if (written == completeMask) {
+                    completeFrames.incrementAndGet();
+                } else {
+                    partialFrames.incrementAndGet();
+                    missingPackets.addAndGet(numChannels - Long.bitCount(written));
+                }
+                EEGSample frame = frames[slot];
+                try {
+                    listener.onFrame(frame, sequence, firstPacketNanos.get(slot));
+                } finally {
+                    frame.clear();
+                    firstPacketNanos.set(slot, 0);
+                    nextSequence.set(sequence + 1);
+                    states.set(slot, FREE);
+                }
+            } else {
+                long end = reserveGap(sequence, getGapEnd(sequence, nowNanos));
+                if (end == sequence) {
+                    continue;
+                }
+                nextSequence.set(end);
+                for (long k = sequence; k < end && k < sequence + window; k++) {
+                    states.set((int)(k & (window - 1)), FREE);
+                }
+                missingFrames.addAndGet(end - sequence);
+                missingPackets.addAndGet((end - sequence) * numChannels);
+                listener.onGap(sequence, end - sequence);
+            }
+        }
+    }
+
+    /**
+     * Seal the free slots of the frames in the gap, so that no packet is decoded into a frame
+     * that is being skipped.
+     *
+     * @return the end of the gap, shortened to the first frame that got a packet in the meantime
+     */
+    private long reserveGap(long sequence, long end) {
+        for (long k = sequence; k < end && k < sequence + window; k++) {
+            if (!states.compareAndSet((int)(k & (window - 1)), FREE, (k << SEQUENCE_SHIFT) | SEALED)) {
+                return k;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * @return true if the given frame can be flushed, or skipped as a gap
+     */
+    private boolean isReady(long sequence, long nowNanos) {
+        if (sequence == FREE) {
+            return false;
+        }
+        int slot = (int)(sequence & (window - 1));
+        long state = states.get(slot);
+        if (state != FREE && (state >> SEQUENCE_SHIFT) == sequence) {
+            long claimed = state & completeMask;
+            long written = (state >> WRITTEN_SHIFT) & completeMask;
+            if (claimed != written) {
+                // A packet is being decoded
+                return false;
+            }
+            return written == completeMask || sequence < flushBefore.get() || isExpired(slot, written, nowNanos);
+        }
+        return getGapEnd(sequence, nowNanos) > sequence;
+    }
+
+    /**
+     * Nothing was received for the given frame. It is only missing once a later frame is past
+     * its latency bound, or once it falls out of the window.
+     *
+     * @return the sequence number of the first frame after the gap, or the given one if it is not a gap (yet)
+     */
+    private long getGapEnd(long sequence, long nowNanos) {
+        long following = Long.MAX_VALUE;
+        boolean expired = false;
+        for (int slot = 0; slot < window; slot++) {
+            long state = states.get(slot);
+            long pending = state >> SEQUENCE_SHIFT;
+            if (state != FREE && pending > sequence && pending < following) {
+                following = pending;
+                expired = isExpired(slot, (state >> WRITTEN_SHIFT) & completeMask, nowNanos);
+            }
+        }
+        long bound = flushBefore.get();
+        if (following != Long.MAX_VALUE && (expired || following <= bound)) {
+            return following;
+        }
+        return Math.max(sequence, Math.min(bound, following));
+    }
+
+    private boolean isExpired(int slot, long written, long nowNanos) {
+        return written != 0 && nowNanos - firstPacketNanos.get(slot) >= maxLatencyNanos;
+    }
+
+    /**
+     * @return number of frames flushed with all of their channels
+     */
+    public long getCompleteFrameCount() {
+        return completeFrames.get();
+    }
+
+    /**
+     * @return number of frames flushed without some of their channels
+     */
+    public long getPartialFrameCount() {
+        return partialFrames.get();
+    }
+
+    /**
+     * @return number of frames for which no packet was received, and that were reported as gaps
+     */
+    public long getMissingFrameCount() {
+        return missingFrames.get();
+    }
+
+    /**
+     * @return number of packets missing from the partial frames and the gaps
+     */
+    public long getMissingPacketCount() {
+        return missingPackets.get();
+    }
+
+    /**
+     * @return number of packets received after their frame was flushed
+     */
+    public long getLatePacketCount() {
+        return latePackets.get();
+    }
+
+    /**
+     * @return number of packets received more than once for the same frame and channel
+     */
+    public long getDuplicatePacketCount() {
+        return duplicatePackets.get();
+    }
+
+    @Override
+    public String toString() {
+        return "FrameAssembler{" +
+                "nextSequence=" + nextSequence +
+                ", complete=" + completeFrames +
+                ", partial=" + partialFrames +
+                ", missingFrames=" + missingFrames +
+                ", missingPackets=" + missingPackets +
+                ", late=" + latePackets +
+                ", duplicate=" + duplicatePackets +
+                '}';
+    }
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.muse;
+
+import static org.opennms.iot.muse.MuseConstants.LSL_ACC_CHUNK;
+import static org.opennms.iot.muse.MuseConstants.LSL_GYRO_CHUNK;
+import static org.opennms.iot.muse.MuseConstants.MUSE_IMU_SAMPLES_PER_PACKET;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import org.opennms.iot.ble.proto.Channel;
+import org.opennms.iot.ble.proto.SampleBlock;
+import org.opennms.iot.schema.FieldDef;
+import org.opennms.iot.schema.MetricDef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decodes the accelerometer or the gyroscope stream of the Muse.
+ *
+ * Each packet holds 3 samples of the x, y and z axes, i.e. 3 LSL chunks, and is broadcast as a single
+ * block with the raw 16-bit readings and their scale.
+ *
+ * Called by the notifications of a single characteristic, one at a time.
+ */
+public class IMUHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(IMUHandler.class);
+
+    public static final int NUM_AXES = 3;
+    public static final int SAMPLES_PER_PACKET = MUSE_IMU_SAMPLES_PER_PACKET;
+
+    static {
+        if (SAMPLES_PER_PACKET % LSL_ACC_CHUNK != 0 || SAMPLES_PER_PACKET % LSL_GYRO_CHUNK != 0) {
+            throw new IllegalStateException("IMU packets must hold whole chunks.");
+        }
+    }
+
+    private final MuseHandler parent;
+    private final MetricDef metric;
+    private final FieldDef[] axes;
+    private final double scale;
+    private final SampleClock clock;
+
+    // Samples of the current packet, x, y and z of each sample in turn
+    private final short[] raw = new short[SAMPLES_PER_PACKET * NUM_AXES];
+    private long lastSequence = -1;
+    private volatile long latePackets = 0;
+    private volatile long missingPackets = 0;
+
+    /**
+     * @param axes fields of the x, y and z axes
+     * @param scale value of one count, in the unit of the fields
+     * @param rate nominal sampling rate, in Hz
+     */
+    public IMUHandler(MuseHandler parent, MetricDef metric, FieldDef[] axes, double scale, double rate) {
+        this.parent = Objects.requireNonNull(parent);
+        this.metric = Objects.requireNonNull(metric);
+        if (axes.length != NUM_AXES) {
+            throw new IllegalArgumentException("Expected " + NUM_AXES + " axes, got " + axes.length);
+        }
+        this.axes = axes;
+        this.scale = scale;
+        this.clock = new SampleClock(rate, SAMPLES_PER_PACKET);
+    }
+
+    public void handle(byte[] packet) {
+        long receivedNanos = System.nanoTime();
+        if (packet.length < getPacketSize()) {
+            LOG.warn("Truncated {} packet: {}", metric.getName(), Arrays.toString(packet));
+            return;
+        }
+        int tm = decodeImu(packet, raw, 0);
+
+        long sequence = lastSequence < 0 ? tm : lastSequence + (short)(tm - (int)(lastSequence & 0xFFFF));
+        if (lastSequence >= 0) {
+            if (sequence <= lastSequence) {
+                latePackets++;
+                return;
+            }
+            if (sequence > lastSequence + 1) {
+                long numPackets = sequence - lastSequence - 1;
+                missingPackets += numPackets;
+                long startTimestamp = clock.getTimestamp(clock.getSampleIndex(lastSequence + 1));
+                parent.broadcastGap(metric, startTimestamp, clock.getSamplePeriodMs(), numPackets * SAMPLES_PER_PACKET);
+                clock.onGap();
+            }
+        }
+        lastSequence = sequence;
+
+        long sampleIndex = clock.onPacket(sequence, receivedNanos);
+        SampleBlock.Builder blockBuilder = metric.newBlock()
+                .setStartTimestamp(clock.getTimestamp(sampleIndex))
+                .setSamplePeriodMs(clock.getSamplePeriodMs());
+        for (int axis = 0; axis < NUM_AXES; axis++) {
+            Channel.Builder channelBuilder = axes[axis].newChannel()
+                    .setScale(scale);
+            for (int k = 0; k < SAMPLES_PER_PACKET; k++) {
+                channelBuilder.addIntValues(raw[k * NUM_AXES + axis]);
+            }
+            blockBuilder.addChannels(channelBuilder);
+        }
+        parent.broadcastBlock(blockBuilder, receivedNanos);
+    }
+
+    public SampleClock getClock() {
+        return clock;
+    }
+
+    /**
+     * @return number of packets received out of order, or more than once, and dropped
+     */
+    public long getLatePacketCount() {
+        return latePackets;
+    }
+
+    /**
+     * @return number of packets that were never received
+     */
+    public long getMissingPacketCount() {
+        return missingPackets;
+    }
+
+    /**
+     * Decode an accelerometer or gyroscope packet into raw readings, without allocating.
+     *
+     * Each packet is encoded with a 16bit sequence number followed by 3 samples of the
+     * x, y and z axes, as signed 16bit integers.
+     *
+     * @param raw where to write the readings, x, y and z of each sample in turn
+     * @param offset index of the first reading in raw
+     * @return the packet's sequence number
+     */
+    public static int decodeImu(byte[] bytes, short[] raw, int offset) {
+        // pattern = "uint:16,int:16,int:16,int:16,int:16,int:16,int:16,int:16,int:16,int:16"
+        int index = ((bytes[0] & 0xFF) << 8) | (bytes[1] & 0xFF);
+        int end = offset + SAMPLES_PER_PACKET * NUM_AXES;
+        int j = offset;
+        for (int i = 2; i + 1 < bytes.length && j < end; i+=2) {
+            raw[j++] = (short)((bytes[i] << 8) | (bytes[i+1] & 0xFF));
+        }
+        return index;
+    }
+
+    private static int getPacketSize() {
+        return 2 + 2 * SAMPLES_PER_PACKET * NUM_AXES;
+    }
+}
@@ -52,6 +52,13 @@ public class MuseConstants {
     public static final int MUSE_SAMPLING_GYRO_RATE = 52;
     public static final int LSL_GYRO_CHUNK = 1;
 
+    // Samples in each packet
+    public static final int MUSE_PPG_SAMPLES_PER_PACKET = 6;
+    public static final int MUSE_IMU_SAMPLES_PER_PACKET = 3;
+
+    public static final double MUSE_ACCELEROMETER_SCALE_FACTOR = 0.0000610352;
+    public static final double MUSE_GYRO_SCALE_FACTOR = 0.0074768;
+
     public static final String MUSE_SVC = "0000fe8d-0000-1000-8000-00805f9b34fb";
 
     public static final String MUSE_GATT_ATTR_STREAM_TOGGLE = "273e0001-4c4d-454d-96be-f03bac821358";
@@ -28,10 +28,9 @@
 
 package org.opennms.iot.muse;
 
-import static org.opennms.iot.Bluetooth.buildSensorFromDevice;
-import static org.opennms.iot.Bluetooth.getCharacteristic;
-import static org.opennms.iot.Bluetooth.getService;
+import static org.opennms.iot.Bluetooth.enableNotifications;
 import static org.opennms.iot.muse.MuseConstants.EEG_UUID_TO_HANDLE_MAP;
+import static org.opennms.iot.muse.MuseConstants.MUSE_ACCELEROMETER_SCALE_FACTOR;
 import static org.opennms.iot.muse.MuseConstants.MUSE_GATT_ATTR_ACCELEROMETER;
 import static org.opennms.iot.muse.MuseConstants.MUSE_GATT_ATTR_GYRO;
 import static org.opennms.iot.muse.MuseConstants.MUSE_GATT_ATTR_PPG1;
@@ -39,90 +38,111 @@ import static org.opennms.iot.muse.MuseConstants.MUSE_GATT_ATTR_PPG2;
 import static org.opennms.iot.muse.MuseConstants.MUSE_GATT_ATTR_PPG3;
 import static org.opennms.iot.muse.MuseConstants.MUSE_GATT_ATTR_STREAM_TOGGLE;
 import static org.opennms.iot.muse.MuseConstants.MUSE_GATT_ATTR_TELEMETRY;
+import static org.opennms.iot.muse.MuseConstants.MUSE_GYRO_SCALE_FACTOR;
+import static org.opennms.iot.muse.MuseConstants.MUSE_SAMPLING_ACC_RATE;
+import static org.opennms.iot.muse.MuseConstants.MUSE_SAMPLING_EEG_RATE;
+import static org.opennms.iot.muse.MuseConstants.MUSE_SAMPLING_GYRO_RATE;
 import static org.opennms.iot.muse.MuseConstants.MUSE_SVC;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.Map;
+import java.util.List;
 import java.util.Objects;
 
+import org.opennms.iot.SensorDescriptor;
+import org.opennms.iot.ble.proto.Channel;
 import org.opennms.iot.ble.proto.Event;
-import org.opennms.iot.ble.proto.FieldValue;
-import org.opennms.iot.ble.proto.Metric;
+import org.opennms.iot.ble.proto.SampleBlock;
+import org.opennms.iot.gatt.GattServices;
 import org.opennms.iot.handlers.BaseHandler;
+import org.opennms.iot.schema.FieldDef;
+import org.opennms.iot.schema.MetricDef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import tinyb.BluetoothDevice;
 import tinyb.BluetoothGattCharacteristic;
-import tinyb.BluetoothGattService;
 
 public class MuseHandler extends BaseHandler {
     private static final Logger LOG = LoggerFactory.getLogger(MuseHandler.class);
 
+    public static final String EEG_METRIC_NAME = MetricDef.EEG.getName();
+    public static final String EEG_UNIT = FieldDef.EEG_TP9.getUnit();
+
+    private static final FieldDef[] EEG_CHANNELS = {
+            FieldDef.EEG_TP9, FieldDef.EEG_AF7, FieldDef.EEG_AF8, FieldDef.EEG_TP10, FieldDef.EEG_RIGHT_AUX
+    };
+    private static final FieldDef[] ACCELEROMETER_AXES = {
+            FieldDef.ACCELEROMETER_X, FieldDef.ACCELEROMETER_Y, FieldDef.ACCELEROMETER_Z
+    };
+    private static final FieldDef[] GYRO_AXES = {
+            FieldDef.GYRO_X, FieldDef.GYRO_Y, FieldDef.GYRO_Z
+    };
+    private static final List<String> PPG_UUIDS = Arrays.asList(MUSE_GATT_ATTR_PPG1, MUSE_GATT_ATTR_PPG2, MUSE_GATT_ATTR_PPG3);
+    private static final int TELEMETRY_FIELDS = 4;
+
     private final BluetoothDevice sensor;
+    private final GattServices gatt;
+    private final SensorDescriptor descriptor;
     private final EEGHandler eegHandler = new EEGHandler(this);
+    private final PPGHandler ppgHandler = new PPGHandler(this);
+    private final IMUHandler accelerometerHandler = new IMUHandler(this, MetricDef.ACCELEROMETER, ACCELEROMETER_AXES,
+            MUSE_ACCELEROMETER_SCALE_FACTOR, MUSE_SAMPLING_ACC_RATE);
+    private final IMUHandler gyroHandler = new IMUHandler(this, MetricDef.GYRO, GYRO_AXES,
+            MUSE_GYRO_SCALE_FACTOR, MUSE_SAMPLING_GYRO_RATE);
+    // Only used by the telemetry notifications
+    private final double[] telemetry = new double[TELEMETRY_FIELDS];
 
     private BluetoothGattCharacteristic control;
 
-    public MuseHandler(BluetoothDevice sensor) {
+    public MuseHandler(BluetoothDevice sensor, GattServices gatt) {
         this.sensor = Objects.requireNonNull(sensor);
+        this.gatt = Objects.requireNonNull(gatt);
+        this.descriptor = SensorDescriptor.forDevice(sensor);
     }
 
-    public static boolean handles(BluetoothDevice sensor) {
-        try {
-            // FIXME: There is a better way to do this
-            return getService(sensor, MUSE_SVC)  != null;
-        } catch (InterruptedException e) {
-            return false;
-        }
+    /**
+     * Create a handler that can only decode packets, i.e. to replay recorded ones.
+     */
+    MuseHandler(SensorDescriptor descriptor) {
+        this.sensor = null;
+        this.gatt = null;
+        this.descriptor = Objects.requireNonNull(descriptor);
     }
 
     @Override
     public void startGatheringData() throws InterruptedException {
-        BluetoothGattService museSvc = getService(sensor, MUSE_SVC);
-        if (museSvc == null) {
-            throw new IllegalStateException("Could not find Muse service.");
-        }
-        control = getCharacteristic(museSvc, MUSE_GATT_ATTR_STREAM_TOGGLE);
-        if (control == null) {
-            throw new IllegalStateException("Could not find the correct characteristics.");
-        }
+        control = gatt.requireCharacteristic(MUSE_SVC, MUSE_GATT_ATTR_STREAM_TOGGLE);
         LOG.info("Found the control characteristic. Subscribing.");
-        control.enableValueNotifications(this::handle_control);
+        enableNotifications(sensor, control, "control", this::handle_control);
 
         LOG.info("Subscribing to telemetry");
-        BluetoothGattCharacteristic telemetry = getCharacteristic(museSvc, MUSE_GATT_ATTR_TELEMETRY);
-        telemetry.enableValueNotifications(this::handle_telemetry);
+        BluetoothGattCharacteristic telemetry = gatt.requireCharacteristic(MUSE_SVC, MUSE_GATT_ATTR_TELEMETRY);
+        enableNotifications(sensor, telemetry, "telemetry", this::handle_telemetry);
 
         LOG.info("Subscribing to EEG stream.");
         for (String uuid : EEG_UUID_TO_HANDLE_MAP.keySet()) {
-            BluetoothGattCharacteristic eeg = getCharacteristic(museSvc, uuid);
-            if (eeg == null) {
-                throw new IllegalStateException("Could not find the EEG characteristic with UUID: " + uuid);
-            }
-            eeg.enableValueNotifications((bytes) -> {
-                eegHandler.handle_eeg(EEG_UUID_TO_HANDLE_MAP.get(uuid), bytes);
+            BluetoothGattCharacteristic eeg = gatt.requireCharacteristic(MUSE_SVC, uuid);
+            int handle = EEG_UUID_TO_HANDLE_MAP.get(uuid);
+            enableNotifications(sensor, eeg, "eeg-" + handle, (bytes) -> {
+                eegHandler.handle_eeg(handle, bytes);
             });
         }
         LOG.info("Done subscribing to EEG stream.");
 
         LOG.info("Subscribing to accelerometer");
-        BluetoothGattCharacteristic acc = getCharacteristic(museSvc, MUSE_GATT_ATTR_ACCELEROMETER);
-        acc.enableValueNotifications(this::handle_acc);
+        BluetoothGattCharacteristic acc = gatt.requireCharacteristic(MUSE_SVC, MUSE_GATT_ATTR_ACCELEROMETER);
+        enableNotifications(sensor, acc, "accelerometer", this::handle_acc);
 
         LOG.info("Subscribing to gyro");
-        BluetoothGattCharacteristic gyro = getCharacteristic(museSvc, MUSE_GATT_ATTR_GYRO);
-        gyro.enableValueNotifications(this::handle_gyro);
+        BluetoothGattCharacteristic gyro = gatt.requireCharacteristic(MUSE_SVC, MUSE_GATT_ATTR_GYRO);
+        enableNotifications(sensor, gyro, "gyro", this::handle_gyro);
 
         LOG.info("Subscribing to PPG");
-        for (String uuid : Arrays.asList(MUSE_GATT_ATTR_PPG1, MUSE_GATT_ATTR_PPG2, MUSE_GATT_ATTR_PPG3)) {
-            BluetoothGattCharacteristic ppg = getCharacteristic(museSvc, uuid);
-            if (ppg == null) {
-                throw new IllegalStateException("Could not find the PPG characteristic with UUID: " + uuid);
-            }
-            ppg.enableValueNotifications( (bytes) -> {
+        for (String uuid : PPG_UUIDS) {
+            BluetoothGattCharacteristic ppg = gatt.requireCharacteristic(MUSE_SVC, uuid);
+            enableNotifications(sensor, ppg, "ppg" + (PPG_UUIDS.indexOf(uuid) + 1), (bytes) -> {
                 handle_ppg(uuid, bytes);
             });
         }
@@ -142,6 +162,8 @@ public class MuseHandler extends BaseHandler {
     public void onKeepAlive() {
         LOG.info("Sending keep-alive.");
         control.writeValue(new byte[]{0x02, 0x6b, 0x0a});
+        eegHandler.flush();
+        ppgHandler.flush();
     }
 
     private StringBuilder controlStringBuilder = new StringBuilder();
@@ -165,10 +187,6 @@ public class MuseHandler extends BaseHandler {
      * @param packet
      */
     public void handle_control(byte[] packet) {
-        if (LOG.isInfoEnabled()) {
-            LOG.info("handle_control: {}", Arrays.toString(packet));
-        }
-
         ByteBuffer byteBuffer = ByteBuffer.wrap(packet);
         int n_chars = (int)byteBuffer.get();
 
@@ -183,27 +201,52 @@ public class MuseHandler extends BaseHandler {
     }
 
     public void handle_telemetry(byte[] bytes) {
-        if (LOG.isInfoEnabled()) {
-            LOG.info("handle_telemetry: {}", Arrays.toString(bytes));
+        long receivedNanos = System.nanoTime();
+        if (bytes.length < 2 + 2 * TELEMETRY_FIELDS) {
+            LOG.warn("Truncated telemetry packet: {}", Arrays.toString(bytes));
+            return;
         }
+        decodeTelemetry(bytes, telemetry);
+        // Sent every few seconds, so the readings are simply timestamped on arrival
+        broadcastBlock(MetricDef.MUSE_TELEMETRY.newBlock()
+                .setStartTimestamp(System.currentTimeMillis())
+                .addChannels(FieldDef.MUSE_BATTERY.newChannel().addDoubleValues(telemetry[0]))
+                .addChannels(FieldDef.MUSE_FUEL_GAUGE.newChannel().addDoubleValues(telemetry[1]))
+                .addChannels(FieldDef.MUSE_ADC_VOLTAGE.newChannel().addIntValues((int)telemetry[2]))
+                .addChannels(FieldDef.MUSE_TEMPERATURE.newChannel().addIntValues((int)telemetry[3])), receivedNanos);
     }
 
     public void handle_acc(byte[] bytes) {
-        if (LOG.isInfoEnabled()) {
-            LOG.info("handle_acc: {}", Arrays.toString(bytes));
-        }
+        accelerometerHandler.handle(bytes);
     }
 
     public void handle_gyro(byte[] bytes) {
-        if (LOG.isInfoEnabled()) {
-            LOG.info("handle_gyro: {}", Arrays.toString(bytes));
-        }
+        gyroHandler.handle(bytes);
     }
 
     public void handle_ppg(String uuid, byte[] bytes) {
-        if (LOG.isInfoEnabled()) {
-            LOG.info("handle_ppg: {}", Arrays.toString(bytes));
-        }
+        ppgHandler.handle_ppg(PPG_UUIDS.indexOf(uuid), bytes);
+    }
+
+    /**
+     * Decode a telemetry packet, without allocating.
+     *
+     * @param values where to write the battery level in percent, the fuel gauge in mV, the ADC voltage
+     *               and the temperature in celsius
+     * @return the packet's sequence number
+     */
+    public static int decodeTelemetry(byte[] bytes, double[] values) {
+        // pattern = "uint:16,uint:16,uint:16,uint:16,uint:16"
+        int index = getUnsignedShort(bytes, 0);
+        values[0] = getUnsignedShort(bytes, 2) / 512.0d;
+        values[1] = getUnsignedShort(bytes, 4) * 2.2d;
+        values[2] = getUnsignedShort(bytes, 6);
+        values[3] = getUnsignedShort(bytes, 8);
+        return index;
+    }
+
+    private static int getUnsignedShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
     }
 
     public void onControlMessage(String controlMessage) {
@@ -232,42 +275,78 @@ public class MuseHandler extends BaseHandler {
         LOG.info("Got control message: {}", controlMessage);
     }
 
-    public void broadcastEegSample(EEGSample eegSample) {
-        Event.Builder eventBuilder = Event.newBuilder()
-                .setSensor(buildSensorFromDevice(sensor));
+    /**
+     * @param receivedNanos when the first packet of the sample was received, as returned by {@link System#nanoTime()}
+     */
+    public void broadcastEegSample(EEGSample eegSample, long receivedNanos) {
+        broadcastEegSample(eegSample, 1000.0d / MUSE_SAMPLING_EEG_RATE, receivedNanos);
+    }
 
-        int i = 0;
-        for (Long ts : eegSample.getTimestamps()) {
-            Metric.Builder metricBuilder = Metric.newBuilder()
-                    .setName("eeg")
-                    .setTimestamp(ts);
+    /**
+     * @param samplePeriodMs time between samples, as estimated from the arrival times
+     * @param receivedNanos when the first packet of the sample was received, as returned by {@link System#nanoTime()}
+     */
+    public void broadcastEegSample(EEGSample eegSample, double samplePeriodMs, long receivedNanos) {
+        broadcastFrame(MetricDef.EEG, EEG_CHANNELS, eegSample, samplePeriodMs, receivedNanos);
+    }
 
-            for (Map.Entry<Integer,ChannelSamples> entry : eegSample.getData().entrySet()) {
-                int channelIndex = entry.getKey();
-                double value = entry.getValue().getValues().get(i);
-                metricBuilder.putFields(getChannelFieldName(channelIndex), FieldValue.newBuilder().setFloatValue(value).build());
+    /**
+     * Broadcast a frame assembled from several characteristics.
+     *
+     * @param fields field of each channel of the frame
+     */
+    void broadcastFrame(MetricDef metric, FieldDef[] fields, EEGSample frame, double samplePeriodMs, long receivedNanos) {
+        SampleBlock.Builder blockBuilder = metric.newBlock()
+                .setStartTimestamp(frame.getTimestamp(0))
+                .setSamplePeriodMs(samplePeriodMs);
+
+        for (int c = 0; c < frame.getNumChannels(); c++) {
+            ChannelSamples samples = frame.getChannel(c);
+            if (samples == null) {
+                continue;
             }
-
-            eventBuilder.addMetrics(metricBuilder);
+            Channel.Builder channelBuilder = newChannel(fields, c);
+            if (samples.hasRawValues()) {
+                channelBuilder.setScale(EEGHandler.EEG_SCALE);
+                for (int i = 0; i < samples.size(); i++) {
+                    channelBuilder.addIntValues(samples.getRawValue(i));
+                }
+            } else {
+                for (int i = 0; i < samples.size(); i++) {
+                    channelBuilder.addDoubleValues(samples.getValue(i));
+                }
+            }
+            blockBuilder.addChannels(channelBuilder);
         }
+        broadcastBlock(blockBuilder, receivedNanos);
+    }
+
+    /**
+     * Mark the samples that were lost, so that consumers can tell a gap from a pause in the stream.
+     */
+    void broadcastGap(MetricDef metric, long startTimestamp, double samplePeriodMs, long numSamples) {
+        broadcast(Event.newBuilder()
+                .setSensor(descriptor.getSensor())
+                .addBlocks(metric.newBlock()
+                        .setStartTimestamp(startTimestamp)
+                        .setSamplePeriodMs(samplePeriodMs)
+                        .setGapSamples((int)Math.min(numSamples, Integer.MAX_VALUE)))
+                .build());
+    }
 
-        broadcast(eventBuilder.build());
+    void broadcastBlock(SampleBlock.Builder blockBuilder, long receivedNanos) {
+        broadcast(Event.newBuilder()
+                .setSensor(descriptor.getSensor())
+                .addBlocks(blockBuilder)
+                .build(), receivedNanos);
     }
 
-    private static String getChannelFieldName(int channelIndex) {
-        switch(channelIndex) {
-            case 0:
-                return "tp9";
-            case 1:
-                return "af7";
-            case 2:
-                return "af8";
-            case 3:
-                return "tp10";
-            case 4:
-                return "right_aux";
-            default:
-                return "unknown";
+    private static Channel.Builder newChannel(FieldDef[] fields, int channelIndex) {
+        if (channelIndex >= 0 && channelIndex < fields.length) {
+            return fields[channelIndex].newChannel();
         }
+        return Channel.newBuilder()
+                .setName("unknown")
+                .setUnit(fields[0].getUnit());
     }
 }
@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.muse;
+
+import static org.opennms.iot.muse.MuseConstants.LSL_PPG_CHUNK;
+import static org.opennms.iot.muse.MuseConstants.MUSE_NB_PPG_CHANNELS;
+import static org.opennms.iot.muse.MuseConstants.MUSE_PPG_SAMPLES_PER_PACKET;
+import static org.opennms.iot.muse.MuseConstants.MUSE_SAMPLING_PPG_RATE;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import org.opennms.iot.schema.FieldDef;
+import org.opennms.iot.schema.MetricDef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decodes the photoplethysmography (PPG) stream of the Muse 2, whose 3 channels are sent on separate
+ * characteristics, the same way as EEG.
+ *
+ * Each packet holds 6 samples, i.e. one LSL chunk, so every frame is broadcast as a block of its own.
+ */
+public class PPGHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(PPGHandler.class);
+
+    public static final int NUM_CHANNELS = MUSE_NB_PPG_CHANNELS;
+    public static final int SAMPLES_PER_PACKET = MUSE_PPG_SAMPLES_PER_PACKET;
+
+    static final FieldDef[] CHANNELS = {FieldDef.PPG_AMBIENT, FieldDef.PPG_INFRARED, FieldDef.PPG_RED};
+
+    static {
+        if (SAMPLES_PER_PACKET % LSL_PPG_CHUNK != 0) {
+            throw new IllegalStateException("PPG packets must hold whole chunks.");
+        }
+    }
+
+    private final MuseHandler parent;
+    private final FrameAssembler assembler;
+    // Only used by the listener, which is called by one thread at a time
+    private final SampleClock clock = new SampleClock(MUSE_SAMPLING_PPG_RATE, SAMPLES_PER_PACKET);
+
+    public PPGHandler(MuseHandler parent) {
+        this.parent = Objects.requireNonNull(parent);
+        this.assembler = new FrameAssembler(NUM_CHANNELS, SAMPLES_PER_PACKET, PPGHandler::unpack_ppg_channel, new FrameAssembler.Listener() {
+            @Override
+            public void onFrame(EEGSample frame, long sequence, long receivedNanos) {
+                long sampleIndex = clock.onPacket(sequence, receivedNanos);
+                for (int k = 0; k < SAMPLES_PER_PACKET; k++) {
+                    frame.setTimestamp(k, clock.getTimestamp(sampleIndex + k));
+                }
+                parent.broadcastFrame(MetricDef.PPG, CHANNELS, frame, clock.getSamplePeriodMs(), receivedNanos);
+            }
+
+            @Override
+            public void onGap(long fromSequence, long numFrames) {
+                LOG.debug("Missing PPG frames {} to {}.", fromSequence, fromSequence + numFrames - 1);
+                long startTimestamp = clock.getTimestamp(clock.getSampleIndex(fromSequence));
+                parent.broadcastGap(MetricDef.PPG, startTimestamp, clock.getSamplePeriodMs(), numFrames * SAMPLES_PER_PACKET);
+                clock.onGap();
+            }
+        });
+    }
+
+    /**
+     * Called by the notifications of each of the PPG characteristics, possibly concurrently.
+     *
+     * @param channel index of the channel, in the order of the PPG1, PPG2 and PPG3 characteristics
+     */
+    public void handle_ppg(int channel, byte[] packet) {
+        long receivedNanos = System.nanoTime();
+        if (channel < 0 || channel >= NUM_CHANNELS) {
+            LOG.warn("Unexpected PPG channel: {}", channel);
+            return;
+        }
+        if (getNumSamples(packet) != SAMPLES_PER_PACKET) {
+            LOG.warn("Unexpected PPG packet on channel {}: {}", channel, Arrays.toString(packet));
+            return;
+        }
+        assembler.add(channel, packet, receivedNanos);
+    }
+
+    /**
+     * Broadcast the incomplete frames that are past their latency bound, i.e. once the notifications stopped.
+     */
+    public void flush() {
+        assembler.flush(System.nanoTime());
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("PPG frames: {}, sampling rate: {} Hz, jitter: {} ms", assembler, clock.getSamplingRate(), clock.getJitterMs());
+        }
+    }
+
+    public FrameAssembler getAssembler() {
+        return assembler;
+    }
+
+    public SampleClock getClock() {
+        return clock;
+    }
+
+    static void unpack_ppg_channel(byte[] bytes, ChannelSamples samples) {
+        samples.setIndex(decodePpgChannel(bytes, samples.getValueSlab(), 0));
+        samples.setSize(getNumSamples(bytes));
+    }
+
+    /**
+     * Decode data packet of one PPG channel, without allocating.
+     *
+     * Each packet is encoded with a 16bit sequence number followed by 6 samples with a 24 bit resolution.
+     *
+     * @param values where to write the samples
+     * @param offset index of the first sample in values
+     * @return the packet's sequence number
+     */
+    public static int decodePpgChannel(byte[] bytes, double[] values, int offset) {
+        // pattern = "uint:16,uint:24,uint:24,uint:24,uint:24,uint:24,uint:24"
+        int index = ((bytes[0] & 0xFF) << 8) | (bytes[1] & 0xFF);
+        int j = offset;
+        for (int i = 2; i + 2 < bytes.length; i+=3) {
+            values[j++] = ((bytes[i] & 0xFF) << 16) | ((bytes[i+1] & 0xFF) << 8) | (bytes[i+2] & 0xFF);
+        }
+        return index;
+    }
+
+    /**
+     * @return the number of samples in a PPG packet of the given size
+     */
+    public static int getNumSamples(byte[] bytes) {
+        return Math.max(bytes.length - 2, 0) / 3;
+    }
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.muse;
+
+import org.opennms.iot.stats.ClockRegression;
+
+/**
+ * Timestamps the samples of a Muse stream from their index in the stream, rather than from the
+ * time at which their packet happened to be received.
+ *
+ * Sample indices are derived from the sequence numbers of the packets, so lost packets do not shift
+ * the samples that follow, and the arrival times are fitted against them to follow the drift of the
+ * headset's clock.
+ *
+ * Not thread safe, the methods that update the fit must be called by one thread at a time.
+ * The estimates can be read from any thread.
+ */
+public class SampleClock {
+
+    /**
+     * Arrival times further than this from the fitted clock are taken as a clock step, and re-anchor the fit.
+     */
+    private static final double MAX_RESIDUAL_MS = 1000;
+
+    private final int samplesPerPacket;
+    // Arrival times are taken from the monotonic clock, so that the fit is immune to wall clock steps
+    private final long originMillis;
+    private final long originNanos;
+    private final ClockRegression regression;
+
+    // Sequence number of the first packet, from which the sample indices are counted
+    private long firstSequence = -1;
+
+    private volatile double samplePeriodMs;
+    private volatile double jitterMs = 0;
+
+    public SampleClock(double nominalRate, int samplesPerPacket) {
+        this.samplesPerPacket = samplesPerPacket;
+        this.samplePeriodMs = 1000.0d / nominalRate;
+        this.originMillis = System.currentTimeMillis();
+        this.originNanos = System.nanoTime();
+        this.regression = new ClockRegression(samplePeriodMs, MAX_RESIDUAL_MS);
+    }
+
+    /**
+     * Fit the arrival time of a packet.
+     *
+     * @param sequence unwrapped sequence number of the packet
+     * @param receivedNanos when the packet was received, as returned by {@link System#nanoTime()}
+     * @return the index of the first sample of the packet
+     */
+    public long onPacket(long sequence, long receivedNanos) {
+        long sampleIndex = getSampleIndex(sequence);
+        // The packet is sent once its last sample was taken, fit the arrival times against that
+        regression.observe(sampleIndex + samplesPerPacket - 1, originMillis + (receivedNanos - originNanos) / 1e6d);
+        samplePeriodMs = regression.getPeriod();
+        jitterMs = regression.getJitter();
+        return sampleIndex;
+    }
+
+    /**
+     * Start a new fit from the next packet. Called after a gap, since the packets that follow
+     * it may have been held back, or the headset may have stalled.
+     */
+    public void onGap() {
+        regression.reanchor();
+    }
+
+    public long getSampleIndex(long sequence) {
+        if (firstSequence < 0) {
+            firstSequence = sequence;
+        }
+        return (sequence - firstSequence) * samplesPerPacket;
+    }
+
+    /**
+     * @return the estimated timestamp of the given sample, in ms since the epoch. The current time until the first packet.
+     */
+    public long getTimestamp(long sampleIndex) {
+        return regression.isAnchored() ? Math.round(regression.getTime(sampleIndex)) : System.currentTimeMillis();
+    }
+
+    /**
+     * @return the estimated time between samples, in ms
+     */
+    public double getSamplePeriodMs() {
+        return samplePeriodMs;
+    }
+
+    /**
+     * @return the estimated sampling rate, in Hz
+     */
+    public double getSamplingRate() {
+        return 1000.0d / samplePeriodMs;
+    }
+
+    /**
+     * @return the root mean square deviation of the arrival times from the estimated clock, in ms
+     */
+    public double getJitterMs() {
+        return jitterMs;
+    }
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot.schema;
+
+import org.opennms.iot.SharedEvent;
+import org.opennms.iot.ble.proto.Channel;
+import org.opennms.iot.ble.proto.Encoding;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.SampleBlock;
+
+/**
+ * Support for the {@link Encoding#DICTIONARY} encoding.
+ */
+public class Dictionary {
+
+    /**
+     * The event carrying every definition, sent first on each stream using the dictionary.
+     * The dictionary only changes when the exporter is upgraded, so a single announcement suffices.
+     */
+    public static final SharedEvent ANNOUNCEMENT = new SharedEvent(buildAnnouncement());
+
+    private Dictionary() {}
+
+    private static Event buildAnnouncement() {
+        Event.Builder eventBuilder = Event.newBuilder();
+        for (MetricDef metric : MetricDef.values()) {
+            eventBuilder.addDictionary(metric.toDefinition());
+        }
+        for (FieldDef field : FieldDef.values()) {
+            eventBuilder.addDictionary(field.toDefinition());
+        }
+        return eventBuilder.build();
+    }
+
+    /**
+     * Strip the names and units from the blocks and channels that have ids.
+     *
+     * @param event event to compact
+     * @return the event itself if there is nothing to strip, otherwise a compacted copy
+     */
+    public static Event compact(Event event) {
+        if (event.getBlocksCount() == 0) {
+            return event;
+        }
+        Event.Builder eventBuilder = event.toBuilder();
+        for (SampleBlock.Builder blockBuilder : eventBuilder.getBlocksBuilderList()) {
+            if (blockBuilder.getMetricId() != 0) {
+                blockBuilder.clearName();
+            }
+            for (Channel.Builder channelBuilder : blockBuilder.getChannelsBuilderList()) {
+                if (channelBuilder.getFieldId() != 0) {
+                    channelBuilder.clearName();
+                    channelBuilder.clearUnit();
+                }
+            }
+        }
+        return eventBuilder.build();
+    }
+
+    /**
+     * @return the name of the block's metric, resolving the id if the block was compacted
+     */
+    public static String getName(SampleBlock block) {
+        if (block.getMetricId() != 0 && block.getName().isEmpty()) {
+            MetricDef metric = MetricDef.forId(block.getMetricId());
+            if (metric != null) {
+                return metric.getName();
+            }
+        }
+        return block.getName();
+    }
+
+    /**
+     * @return the name of the channel's field, resolving the id if the channel was compacted
+     */
+    public static String getName(Channel channel) {
+        if (channel.getFieldId() != 0 && channel.getName().isEmpty()) {
+            FieldDef field = FieldDef.forId(channel.getFieldId());
+            if (field != null) {
+                return field.getName();
+            }
+        }
+        return channel.getName();
+    }
+}
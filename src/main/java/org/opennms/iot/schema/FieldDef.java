@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot.schema;
+
+import org.opennms.iot.ble.proto.Channel;
+import org.opennms.iot.ble.proto.Definition;
+import org.opennms.iot.ble.proto.ValueType;
+
+/**
+ * The fields known to the exporter, along with the metric they belong to.
+ *
+ * Handlers use these instead of building field names so that the names are never
+ * re-created, and so that clients using the dictionary can be sent ids instead.
+ */
+public enum FieldDef {
+    POLAR_H7_BPM(MetricDef.POLAR_H7, "beats_per_minute", "bpm", ValueType.INT),
+    POLAR_H7_ENERGY_EXPENDED(MetricDef.POLAR_H7, "energy_expended", "kJ", ValueType.INT),
+    POLAR_H7_RR(MetricDef.POLAR_H7, "rr", "ms", ValueType.DOUBLE),
+
+    CC2650_TEMPERATURE(MetricDef.CC2650, "temperature", "celsius", ValueType.DOUBLE),
+    CC2650_HUMIDITY(MetricDef.CC2650, "humidity", "percent", ValueType.DOUBLE),
+
+    EEG_TP9(MetricDef.EEG, "tp9", "microvolts", ValueType.INT),
+    EEG_AF7(MetricDef.EEG, "af7", "microvolts", ValueType.INT),
+    EEG_AF8(MetricDef.EEG, "af8", "microvolts", ValueType.INT),
+    EEG_TP10(MetricDef.EEG, "tp10", "microvolts", ValueType.INT),
+    EEG_RIGHT_AUX(MetricDef.EEG, "right_aux", "microvolts", ValueType.INT),
+
+    PPG_AMBIENT(MetricDef.PPG, "ambient", "counts", ValueType.DOUBLE),
+    PPG_INFRARED(MetricDef.PPG, "infrared", "counts", ValueType.DOUBLE),
+    PPG_RED(MetricDef.PPG, "red", "counts", ValueType.DOUBLE),
+
+    ACCELEROMETER_X(MetricDef.ACCELEROMETER, "x", "g", ValueType.INT),
+    ACCELEROMETER_Y(MetricDef.ACCELEROMETER, "y", "g", ValueType.INT),
+    ACCELEROMETER_Z(MetricDef.ACCELEROMETER, "z", "g", ValueType.INT),
+
+    GYRO_X(MetricDef.GYRO, "x", "deg/s", ValueType.INT),
+    GYRO_Y(MetricDef.GYRO, "y", "deg/s", ValueType.INT),
+    GYRO_Z(MetricDef.GYRO, "z", "deg/s", ValueType.INT),
+
+    MUSE_BATTERY(MetricDef.MUSE_TELEMETRY, "battery", "percent", ValueType.DOUBLE),
+    MUSE_FUEL_GAUGE(MetricDef.MUSE_TELEMETRY, "fuel_gauge", "mV", ValueType.DOUBLE),
+    MUSE_ADC_VOLTAGE(MetricDef.MUSE_TELEMETRY, "adc_voltage", "counts", ValueType.INT),
+    MUSE_TEMPERATURE(MetricDef.MUSE_TELEMETRY, "temperature", "celsius", ValueType.INT);
+
+    private static final FieldDef[] BY_ID = values();
+
+    private final MetricDef metric;
+    private final String name;
+    private final String unit;
+    private final ValueType type;
+
+    FieldDef(MetricDef metric, String name, String unit, ValueType type) {
+        this.metric = metric;
+        this.name = name;
+        this.unit = unit;
+        this.type = type;
+    }
+
+    public int getId() {
+        return ordinal() + 1;
+    }
+
+    public MetricDef getMetric() {
+        return metric;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    public ValueType getType() {
+        return type;
+    }
+
+    /**
+     * @return a new channel, identified by both name and id
+     */
+    public Channel.Builder newChannel() {
+        return Channel.newBuilder()
+                .setName(name)
+                .setUnit(unit)
+                .setFieldId(getId());
+    }
+
+    public Definition toDefinition() {
+        return Definition.newBuilder()
+                .setId(getId())
+                .setName(name)
+                .setMetricId(metric.getId())
+                .setUnit(unit)
+                .setType(type)
+                .build();
+    }
+
+    /**
+     * @return the field with the given id, or null if there is none
+     */
+    public static FieldDef forId(int id) {
+        return id > 0 && id <= BY_ID.length ? BY_ID[id - 1] : null;
+    }
+}
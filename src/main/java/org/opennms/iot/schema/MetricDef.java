@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot.schema;
+
+import org.opennms.iot.ble.proto.Definition;
+import org.opennms.iot.ble.proto.SampleBlock;
+
+/**
+ * The metrics known to the exporter.
+ *
+ * Ids are only stable for the lifetime of the process, clients must resolve them using the
+ * dictionary sent on their stream.
+ */
+public enum MetricDef {
+    POLAR_H7("polar-h7"),
+    CC2650("cc2650"),
+    EEG("eeg"),
+    PPG("ppg"),
+    ACCELEROMETER("accelerometer"),
+    GYRO("gyro"),
+    MUSE_TELEMETRY("muse-telemetry");
+
+    private static final MetricDef[] BY_ID = values();
+
+    private final String name;
+
+    MetricDef(String name) {
+        this.name = name;
+    }
+
+    public int getId() {
+        return ordinal() + 1;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return a new block, identified by both name and id
+     */
+    public SampleBlock.Builder newBlock() {
+        return SampleBlock.newBuilder()
+                .setName(name)
+                .setMetricId(getId());
+    }
+
+    public Definition toDefinition() {
+        return Definition.newBuilder()
+                .setId(getId())
+                .setName(name)
+                .build();
+    }
+
+    /**
+     * @return the metric with the given id, or null if there is none
+     */
+    public static MetricDef forId(int id) {
+        return id > 0 && id <= BY_ID.length ? BY_ID[id - 1] : null;
+    }
+}
@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot.spool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A fixed size, memory-mapped file of records.
+ *
+ * Each record is its length (int), the CRC32 of its payload and timestamp (int), the time at which
+ * it was appended (long, in ms since the epoch), and the payload. A zero length marks the end of the
+ * records, the rest of the file being zero filled.
+ */
+class Segment {
+
+    static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES + Long.BYTES;
+    private static final int TIMESTAMP_OFFSET = Integer.BYTES + Integer.BYTES;
+
+    private final Path path;
+    private final long index;
+    private final int size;
+    private final MappedByteBuffer buffer;
+    private final CRC32 crc = new CRC32();
+    private final byte[] timestampBytes = new byte[Long.BYTES];
+    private int writePosition = 0;
+    private int numRecords = 0;
+
+    private Segment(Path path, long index, int size, MappedByteBuffer buffer) {
+        this.path = path;
+        this.index = index;
+        this.size = size;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Map the file at the given path, creating it if needed, and find the end of the
+     * records. Anything after the last intact record is discarded.
+     */
+    static Segment open(Path path, long index, int size) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        Segment segment = new Segment(path, index, size, buffer);
+        segment.recover();
+        return segment;
+    }
+
+    private void recover() {
+        int position = 0;
+        Record record;
+        while ((record = read(position)) != null && !record.isCorrupt()) {
+            position = record.getNextOffset();
+            numRecords++;
+        }
+        writePosition = position;
+        // Wipe anything after the last intact record, so that neither a partially written record
+        // nor an intact one following it can be mistaken for a record appended later
+        if (buffer.getInt(Math.min(writePosition, size - Integer.BYTES)) != 0) {
+            ByteBuffer dst = buffer.duplicate();
+            dst.position(writePosition);
+            while (dst.hasRemaining()) {
+                dst.put((byte)0);
+            }
+        }
+    }
+
+    /**
+     * @return false if the record does not fit in the remaining space
+     */
+    boolean append(byte[] payload, long timestamp) {
+        int recordSize = HEADER_SIZE + payload.length;
+        if (writePosition + recordSize > size) {
+            return false;
+        }
+        // Write the payload first and the length last, so that a torn write leaves a zero length behind
+        buffer.putInt(writePosition + Integer.BYTES, checksum(payload, timestamp));
+        buffer.putLong(writePosition + TIMESTAMP_OFFSET, timestamp);
+        ByteBuffer dst = buffer.duplicate();
+        dst.position(writePosition + HEADER_SIZE);
+        dst.put(payload);
+        buffer.putInt(writePosition, payload.length);
+        writePosition += recordSize;
+        numRecords++;
+        return true;
+    }
+
+    /**
+     * @return the record at the given offset, or null if there is none
+     */
+    Record read(int offset) {
+        if (offset + HEADER_SIZE > size) {
+            return null;
+        }
+        int length = buffer.getInt(offset);
+        if (length == 0) {
+            return null;
+        }
+        if (length < 0 || offset + HEADER_SIZE + length > size) {
+            return Record.corrupt(offset);
+        }
+        byte[] payload = new byte[length];
+        ByteBuffer src = buffer.duplicate();
+        src.position(offset + HEADER_SIZE);
+        src.get(payload);
+        long timestamp = buffer.getLong(offset + TIMESTAMP_OFFSET);
+        if (checksum(payload, timestamp) != buffer.getInt(offset + Integer.BYTES)) {
+            return Record.corrupt(offset);
+        }
+        return new Record(payload, timestamp, offset, offset + HEADER_SIZE + length);
+    }
+
+    private int checksum(byte[] payload, long timestamp) {
+        crc.reset();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer.wrap(timestampBytes).putLong(0, timestamp);
+        crc.update(timestampBytes, 0, timestampBytes.length);
+        return (int)crc.getValue();
+    }
+
+    /**
+     * @return number of records at or after the given offset
+     */
+    int countRecords(int offset) {
+        int count = 0;
+        Record record;
+        while ((record = read(offset)) != null && !record.isCorrupt()) {
+            offset = record.getNextOffset();
+            count++;
+        }
+        return count;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long getIndex() {
+        return index;
+    }
+
+    int getWritePosition() {
+        return writePosition;
+    }
+
+    int getNumRecords() {
+        return numRecords;
+    }
+
+    static class Record {
+        private final byte[] payload;
+        private final long timestamp;
+        private final int offset;
+        private final int nextOffset;
+
+        Record(byte[] payload, long timestamp, int offset, int nextOffset) {
+            this.payload = payload;
+            this.timestamp = timestamp;
+            this.offset = offset;
+            this.nextOffset = nextOffset;
+        }
+
+        static Record corrupt(int offset) {
+            return new Record(null, 0, offset, -1);
+        }
+
+        boolean isCorrupt() {
+            return payload == null;
+        }
+
+        byte[] getPayload() {
+            return payload;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        int getOffset() {
+            return offset;
+        }
+
+        int getNextOffset() {
+            return nextOffset;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot.spool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable, bounded FIFO of opaque records, stored in memory-mapped segment files.
+ *
+ * Records are addressed by their absolute position: the index of their segment times the
+ * segment size, plus their offset in the segment. The consumer reads from the last
+ * acknowledged position and acknowledges what it has handled. The acknowledged position
+ * is persisted, so unacknowledged records are read again after a restart.
+ *
+ * When the disk budget is exhausted, the oldest segment is discarded, acknowledged or not.
+ */
+public class Spool implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(Spool.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String ACK_FILE_NAME = "ack";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final MappedByteBuffer ackBuffer;
+    private long ackPosition;
+
+    private long backlog = 0;
+    private long maxBacklog = 0;
+    private long appended = 0;
+    private long acked = 0;
+    private long dropped = 0;
+    private long rejected = 0;
+    private long corrupt = 0;
+
+    public Spool(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_BYTES);
+    }
+
+    public Spool(Path directory, int segmentSize, long maxBytes) throws IOException {
+        this.directory = Objects.requireNonNull(directory);
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int)Math.max(2, maxBytes / segmentSize);
+        Files.createDirectories(directory);
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String fileName = path.getFileName().toString();
+                long index = Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length()));
+                if (Files.size(path) != segmentSize) {
+                    throw new IOException("Segment " + path + " was written with a different segment size.");
+                }
+                segments.put(index, Segment.open(path, index, segmentSize));
+            }
+        }
+        if (segments.isEmpty()) {
+            addSegment(0);
+        }
+
+        try (FileChannel channel = FileChannel.open(directory.resolve(ACK_FILE_NAME), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ackBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+        }
+        ackPosition = Math.max(ackBuffer.getLong(0), getBasePosition(segments.firstKey()));
+
+        for (Segment segment : segments.values()) {
+            long base = getBasePosition(segment.getIndex());
+            if (ackPosition < base) {
+                backlog += segment.getNumRecords();
+            } else if (ackPosition < base + segmentSize) {
+                backlog += segment.countRecords((int)(ackPosition - base));
+            }
+        }
+        maxBacklog = backlog;
+        LOG.info("Opened spool in {} with {} segments and {} records to forward.", directory, segments.size(), backlog);
+    }
+
+    /**
+     * Append a record, stamped with the current time, discarding the oldest segment if the disk budget is exhausted.
+     *
+     * @return false if the record is too large to ever fit in a segment
+     */
+    public synchronized boolean append(byte[] payload) throws IOException {
+        if (Segment.HEADER_SIZE + payload.length > segmentSize) {
+            rejected++;
+            return false;
+        }
+        Segment segment = segments.lastEntry().getValue();
+        long timestamp = System.currentTimeMillis();
+        if (!segment.append(payload, timestamp)) {
+            while (segments.size() >= maxSegments) {
+                dropOldestSegment();
+            }
+            segment = addSegment(segment.getIndex() + 1);
+            segment.append(payload, timestamp);
+        }
+        appended++;
+        backlog++;
+        maxBacklog = Math.max(maxBacklog, backlog);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Read up to the given number of records, starting at the given position.
+     *
+     * @return the records, in the order they were appended
+     */
+    public synchronized List<Entry> read(long position, int maxRecords) {
+        List<Entry> entries = new ArrayList<>(Math.min(maxRecords, 64));
+        position = Math.max(position, getBasePosition(segments.firstKey()));
+        while (entries.size() < maxRecords) {
+            long index = position / segmentSize;
+            Segment segment = segments.get(index);
+            if (segment == null) {
+                Long nextIndex = segments.higherKey(index);
+                if (nextIndex == null) {
+                    break;
+                }
+                position = getBasePosition(nextIndex);
+                continue;
+            }
+            Segment.Record record = segment.read((int)(position - getBasePosition(index)));
+            if (record == null || record.isCorrupt()) {
+                if (record != null) {
+                    LOG.warn("Corrupt record at position {} in {}. Skipping the rest of the segment.", position, segment.getPath());
+                    corrupt++;
+                }
+                if (segment == segments.lastEntry().getValue()) {
+                    break;
+                }
+                position = getBasePosition(index + 1);
+                continue;
+            }
+            long nextPosition = getBasePosition(index) + record.getNextOffset();
+            entries.add(new Entry(record.getPayload(), record.getTimestamp(), position, nextPosition));
+            position = nextPosition;
+        }
+        return entries;
+    }
+
+    /**
+     * Wait for a record to be appended.
+     *
+     * @return true if a record may have been appended, false if the timeout elapsed first
+     */
+    public synchronized boolean awaitAppend(long timeout, TimeUnit unit) throws InterruptedException {
+        long appendedBefore = appended;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long remaining;
+        while (appended == appendedBefore && (remaining = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return appended != appendedBefore;
+    }
+
+    /**
+     * Acknowledge the given number of records, up to the given position. Segments that
+     * only contain acknowledged records are deleted.
+     */
+    public synchronized void ack(long nextPosition, int numRecords) throws IOException {
+        if (nextPosition <= ackPosition) {
+            // Already dropped
+            return;
+        }
+        setAckPosition(nextPosition);
+        acked += numRecords;
+        backlog = Math.max(0, backlog - numRecords);
+        long writeIndex = segments.lastKey();
+        while (segments.firstKey() < Math.min(nextPosition / segmentSize, writeIndex)) {
+            deleteSegment(segments.pollFirstEntry().getValue());
+        }
+    }
+
+    private void dropOldestSegment() throws IOException {
+        Segment segment = segments.pollFirstEntry().getValue();
+        long base = getBasePosition(segment.getIndex());
+        long lost = 0;
+        if (ackPosition < base) {
+            lost = segment.getNumRecords();
+        } else if (ackPosition < base + segmentSize) {
+            lost = segment.countRecords((int)(ackPosition - base));
+        }
+        if (lost > 0) {
+            LOG.warn("Spool in {} is full. Dropping {} records that were not forwarded.", directory, lost);
+            dropped += lost;
+            backlog = Math.max(0, backlog - lost);
+        }
+        setAckPosition(Math.max(ackPosition, getBasePosition(segments.firstKey())));
+        deleteSegment(segment);
+    }
+
+    private Segment addSegment(long index) throws IOException {
+        Segment segment = Segment.open(directory.resolve(String.format("%020d%s", index, SEGMENT_SUFFIX)), index, segmentSize);
+        segments.put(index, segment);
+        return segment;
+    }
+
+    private void deleteSegment(Segment segment) throws IOException {
+        LOG.debug("Deleting segment: {}", segment.getPath());
+        Files.deleteIfExists(segment.getPath());
+    }
+
+    private void setAckPosition(long position) {
+        ackPosition = position;
+        ackBuffer.putLong(0, position);
+    }
+
+    private long getBasePosition(long index) {
+        return index * segmentSize;
+    }
+
+    /**
+     * @return position of the oldest record that was not acknowledged
+     */
+    public synchronized long getAckPosition() {
+        return ackPosition;
+    }
+
+    /**
+     * @return number of records waiting to be acknowledged
+     */
+    public synchronized long getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * @return largest number of records that were ever waiting to be acknowledged
+     */
+    public synchronized long getMaxBacklog() {
+        return maxBacklog;
+    }
+
+    /**
+     * @return number of bytes on disk, including unused space in the segments
+     */
+    public synchronized long getBytesUsed() {
+        return (long)segments.size() * segmentSize;
+    }
+
+    public synchronized long getAppendedCount() {
+        return appended;
+    }
+
+    public synchronized long getAckedCount() {
+        return acked;
+    }
+
+    /**
+     * @return number of records discarded before being acknowledged because the disk budget was exhausted
+     */
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * @return number of records that were too large to be spooled
+     */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * @return number of records skipped because their checksum did not match
+     */
+    public synchronized long getCorruptCount() {
+        return corrupt;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Map.Entry<Long, Segment> entry : segments.entrySet()) {
+            entry.getValue().force();
+        }
+        ackBuffer.force();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Spool{" +
+                "directory=" + directory +
+                ", segments=" + segments.size() +
+                ", backlog=" + backlog +
+                ", maxBacklog=" + maxBacklog +
+                ", appended=" + appended +
+                ", acked=" + acked +
+                ", dropped=" + dropped +
+                ", rejected=" + rejected +
+                ", corrupt=" + corrupt +
+                '}';
+    }
+
+    public static class Entry {
+        private final byte[] payload;
+        private final long timestamp;
+        private final long position;
+        private final long nextPosition;
+
+        Entry(byte[] payload, long timestamp, long position, long nextPosition) {
+            this.payload = payload;
+            this.timestamp = timestamp;
+            this.position = position;
+            this.nextPosition = nextPosition;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        /**
+         * @return time at which the record was appended, in ms since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * @return position to acknowledge once this record has been handled
+         */
+        public long getNextPosition() {
+            return nextPosition;
+        }
+    }
+}
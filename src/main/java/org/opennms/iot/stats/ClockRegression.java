@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot.stats;
+
+/**
+ * Online linear regression of arrival time against sample index, used to timestamp the samples
+ * of a sensor that only counts them, in the style of muse-lsl's dejittering.
+ *
+ * The fit is an exponentially weighted least squares, updated in O(1) per observation from the
+ * running means and co-moments, so that older observations fade out and the estimated period
+ * follows the drift between the sensor's clock and ours. Until enough observations are in, the
+ * period is held at its prior, i.e. the nominal period or the last estimate, and only the offset is fitted.
+ *
+ * Not thread safe.
+ */
+public class ClockRegression {
+
+    /**
+     * Weight of the previous observations at each update, ~500 observations worth of memory.
+     */
+    public static final double DEFAULT_FORGETTING_FACTOR = 0.998;
+    public static final int DEFAULT_MIN_OBSERVATIONS = 16;
+
+    private final double nominalPeriod;
+    private final double forgettingFactor;
+    private final int minObservations;
+    private final double maxResidual;
+
+    private double priorPeriod;
+
+    // Observations are relative to the first one since the last anchor
+    private boolean anchored = false;
+    private long anchorIndex;
+    private double anchorTime;
+    private long numObservations;
+    private double weight;
+    private double meanIndex;
+    private double meanTime;
+    private double indexMoment;
+    private double coMoment;
+    private double jitterWeight;
+    private double meanSquaredResidual;
+    private long numReanchors;
+
+    /**
+     * @param nominalPeriod expected time between samples
+     * @param maxResidual re-anchor when an observation is further than this from the fit, i.e. when a clock steps
+     */
+    public ClockRegression(double nominalPeriod, double maxResidual) {
+        this(nominalPeriod, maxResidual, DEFAULT_FORGETTING_FACTOR, DEFAULT_MIN_OBSERVATIONS);
+    }
+
+    public ClockRegression(double nominalPeriod, double maxResidual, double forgettingFactor, int minObservations) {
+        if (nominalPeriod <= 0) {
+            throw new IllegalArgumentException("Period must be positive: " + nominalPeriod);
+        }
+        if (forgettingFactor <= 0 || forgettingFactor > 1) {
+            throw new IllegalArgumentException("Forgetting factor must be in (0, 1]: " + forgettingFactor);
+        }
+        this.nominalPeriod = nominalPeriod;
+        this.maxResidual = maxResidual;
+        this.forgettingFactor = forgettingFactor;
+        this.minObservations = Math.max(2, minObservations);
+        this.priorPeriod = nominalPeriod;
+    }
+
+    /**
+     * Add the time at which the sample with the given index was received.
+     */
+    public void observe(long index, double time) {
+        if (!anchored) {
+            anchored = true;
+            anchorIndex = index;
+            anchorTime = time;
+        } else {
+            double residual = time - getTime(index);
+            if (numObservations >= minObservations && Math.abs(residual) > maxResidual) {
+                reanchor();
+                observe(index, time);
+                return;
+            }
+            jitterWeight = forgettingFactor * jitterWeight + 1;
+            meanSquaredResidual += (residual * residual - meanSquaredResidual) / jitterWeight;
+        }
+
+        double x = index - anchorIndex;
+        double y = time - anchorTime;
+        weight = forgettingFactor * weight + 1;
+        double dx = x - meanIndex;
+        meanIndex += dx / weight;
+        meanTime += (y - meanTime) / weight;
+        indexMoment = forgettingFactor * indexMoment + dx * (x - meanIndex);
+        coMoment = forgettingFactor * coMoment + dx * (y - meanTime);
+        numObservations++;
+    }
+
+    /**
+     * Start a new fit from the next observation, keeping the estimated period as the prior.
+     * Called when the relation between index and time was broken, i.e. after a gap.
+     */
+    public void reanchor() {
+        if (!anchored) {
+            return;
+        }
+        priorPeriod = getPeriod();
+        anchored = false;
+        numObservations = 0;
+        weight = 0;
+        meanIndex = 0;
+        meanTime = 0;
+        indexMoment = 0;
+        coMoment = 0;
+        numReanchors++;
+    }
+
+    /**
+     * @return true once there was at least one observation since the last anchor
+     */
+    public boolean isAnchored() {
+        return anchored;
+    }
+
+    /**
+     * @return the estimated time of the sample with the given index, NaN until there is an observation
+     */
+    public double getTime(long index) {
+        if (!anchored) {
+            return Double.NaN;
+        }
+        return anchorTime + meanTime + getPeriod() * (index - anchorIndex - meanIndex);
+    }
+
+    /**
+     * @return the estimated time between samples
+     */
+    public double getPeriod() {
+        if (numObservations < minObservations || indexMoment <= 0) {
+            return priorPeriod;
+        }
+        double period = coMoment / indexMoment;
+        // Guard against a degenerate fit, i.e. all observations in a burst
+        return period > nominalPeriod / 2 && period < nominalPeriod * 2 ? period : priorPeriod;
+    }
+
+    /**
+     * @return the estimated number of samples per unit of time
+     */
+    public double getRate() {
+        return 1.0d / getPeriod();
+    }
+
+    /**
+     * @return root mean square of the distance between the observations and the fit
+     */
+    public double getJitter() {
+        return Math.sqrt(meanSquaredResidual);
+    }
+
+    public long getObservationCount() {
+        return numObservations;
+    }
+
+    public long getReanchorCount() {
+        return numReanchors;
+    }
+
+    @Override
+    public String toString() {
+        return "ClockRegression{" +
+                "period=" + getPeriod() +
+                ", jitter=" + getJitter() +
+                ", observations=" + numObservations +
+                ", reanchors=" + numReanchors +
+                '}';
+    }
+}
@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.stats;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.Stats;
+import org.opennms.iot.ble.proto.StageLatency;
+import org.opennms.iot.metrics.Collector;
+import org.opennms.iot.metrics.ExpositionBuffer;
+import org.opennms.iot.schema.MetricDef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Latency of each stage of the pipeline, from the Bluetooth notification to the consumers, by metric.
+ *
+ * Every stage and metric has its own {@link Histogram}, allocated up front, so recording is a call
+ * to {@link System#nanoTime()} and a few atomic increments. The histograms are cumulative: the
+ * periodic log reports the percentiles of each interval by diffing consecutive snapshots.
+ */
+public class PipelineLatency implements Collector {
+    private static final Logger LOG = LoggerFactory.getLogger(PipelineLatency.class);
+
+    private static final MetricDef[] METRICS = MetricDef.values();
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    public enum Stage {
+        /**
+         * From the notification callback to the decoded event being broadcast by the handler.
+         * For EEG, from the first of the packets making up the event.
+         */
+        DECODE("decode"),
+        /**
+         * Handing the event to every consumer registered on the handler.
+         */
+        DISPATCH("dispatch"),
+        /**
+         * Recording the event and queuing it for every subscriber.
+         */
+        FANOUT("fanout"),
+        /**
+         * From the event being queued for a subscriber to it being handed to the subscriber's stream.
+         */
+        DELIVERY("delivery"),
+        /**
+         * From an event hub exporter receiving the event to Event hub acknowledging it, including any
+         * time spent in the spool. Spooled events are timed with the wall clock, to the ms.
+         */
+        EXPORT("export");
+
+        private final String name;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private static final PipelineLatency INSTANCE = new PipelineLatency();
+
+    // Indexed by stage, then by metric
+    private final Histogram[][] histograms = new Histogram[Stage.values().length][METRICS.length];
+    // The quantiles, followed by the sum and the count
+    private final byte[][][][] samplePrefixes = new byte[Stage.values().length][METRICS.length][QUANTILES.length + 2][];
+
+    private ScheduledExecutorService logExecutor;
+    private Histogram.Snapshot[][] lastLogged;
+
+    PipelineLatency() {
+        for (Stage stage : Stage.values()) {
+            for (MetricDef metric : METRICS) {
+                histograms[stage.ordinal()][metric.ordinal()] = new Histogram();
+                byte[][] prefixes = samplePrefixes[stage.ordinal()][metric.ordinal()];
+                for (int q = 0; q < QUANTILES.length; q++) {
+                    prefixes[q] = ExpositionBuffer.samplePrefix("ble_pipeline_latency_seconds",
+                            "stage", stage.getName(), "metric", metric.getName(), "quantile", Double.toString(QUANTILES[q]));
+                }
+                prefixes[QUANTILES.length] = ExpositionBuffer.samplePrefix("ble_pipeline_latency_seconds_sum",
+                        "stage", stage.getName(), "metric", metric.getName());
+                prefixes[QUANTILES.length + 1] = ExpositionBuffer.samplePrefix("ble_pipeline_latency_seconds_count",
+                        "stage", stage.getName(), "metric", metric.getName());
+            }
+        }
+    }
+
+    public static PipelineLatency get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Record the time elapsed since the given start, as returned by {@link System#nanoTime()}.
+     * Events that aren't made of a known metric are ignored.
+     */
+    public void record(Stage stage, Event event, long startNanos) {
+        record(stage, metricOf(event), startNanos);
+    }
+
+    public void record(Stage stage, MetricDef metric, long startNanos) {
+        recordLatency(stage, metric, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Record a latency that was already measured, in ns. Events that aren't made of a known metric are ignored.
+     */
+    public void recordLatency(Stage stage, Event event, long latencyNanos) {
+        recordLatency(stage, metricOf(event), latencyNanos);
+    }
+
+    public void recordLatency(Stage stage, MetricDef metric, long latencyNanos) {
+        if (metric != null) {
+            histograms[stage.ordinal()][metric.ordinal()].record(latencyNanos);
+        }
+    }
+
+    public Histogram getHistogram(Stage stage, MetricDef metric) {
+        return histograms[stage.ordinal()][metric.ordinal()];
+    }
+
+    /**
+     * @return the metric of the first block or metric in the event, or null if there is none or it is unknown
+     */
+    public static MetricDef metricOf(Event event) {
+        if (event.getBlocksCount() > 0) {
+            return MetricDef.forId(event.getBlocks(0).getMetricId());
+        }
+        if (event.getMetricsCount() > 0) {
+            String name = event.getMetrics(0).getName();
+            for (MetricDef metric : METRICS) {
+                if (metric.getName().equals(name)) {
+                    return metric;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the percentiles of every stage and metric with samples, in microseconds
+     */
+    public Stats toStats() {
+        Stats.Builder statsBuilder = Stats.newBuilder();
+        for (Stage stage : Stage.values()) {
+            for (MetricDef metric : METRICS) {
+                Histogram.Snapshot snapshot = getHistogram(stage, metric).getSnapshot();
+                if (snapshot.getCount() == 0) {
+                    continue;
+                }
+                statsBuilder.addLatencies(StageLatency.newBuilder()
+                        .setStage(stage.getName())
+                        .setMetric(metric.getName())
+                        .setCount(snapshot.getCount())
+                        .setMeanMicros(snapshot.getMean() / 1000d)
+                        .setP50Micros(toMicros(snapshot.getValueAtPercentile(50)))
+                        .setP90Micros(toMicros(snapshot.getValueAtPercentile(90)))
+                        .setP99Micros(toMicros(snapshot.getValueAtPercentile(99)))
+                        .setP999Micros(toMicros(snapshot.getValueAtPercentile(99.9)))
+                        .setMaxMicros(toMicros(snapshot.getMax())));
+            }
+        }
+        return statsBuilder.build();
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * Log the percentiles of the values recorded since the previous call at INFO.
+     */
+    public synchronized void logInterval() {
+        if (lastLogged == null) {
+            lastLogged = new Histogram.Snapshot[Stage.values().length][METRICS.length];
+        }
+        for (Stage stage : Stage.values()) {
+            for (MetricDef metric : METRICS) {
+                Histogram.Snapshot snapshot = getHistogram(stage, metric).getSnapshot();
+                Histogram.Snapshot previous = lastLogged[stage.ordinal()][metric.ordinal()];
+                lastLogged[stage.ordinal()][metric.ordinal()] = snapshot;
+                Histogram.Snapshot interval = previous != null ? snapshot.minus(previous) : snapshot;
+                if (interval.getCount() == 0) {
+                    continue;
+                }
+                LOG.info("Latency of {} for {}: count={}, mean={}us, p50={}us, p90={}us, p99={}us, p99.9={}us, max={}us",
+                        stage.getName(), metric.getName(), interval.getCount(), Math.round(interval.getMean() / 1000d),
+                        toMicros(interval.getValueAtPercentile(50)), toMicros(interval.getValueAtPercentile(90)),
+                        toMicros(interval.getValueAtPercentile(99)), toMicros(interval.getValueAtPercentile(99.9)),
+                        toMicros(interval.getMax()));
+            }
+        }
+    }
+
+    /**
+     * Call {@link #logInterval()} periodically, on a daemon thread, until {@link #stopLogging()} is called.
+     */
+    public synchronized void startLogging(long period, TimeUnit unit) {
+        if (logExecutor != null) {
+            return;
+        }
+        logExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("pipeline-latency-%d")
+                .setDaemon(true)
+                .build());
+        logExecutor.scheduleAtFixedRate(this::logInterval, period, period, unit);
+    }
+
+    public synchronized void stopLogging() {
+        if (logExecutor != null) {
+            logExecutor.shutdownNow();
+            logExecutor = null;
+        }
+    }
+
+    @Override
+    public void writeTo(ExpositionBuffer buffer) {
+        buffer.writeAscii("# HELP ble_pipeline_latency_seconds Latency of each stage of the pipeline, since startup.\n")
+                .writeAscii("# TYPE ble_pipeline_latency_seconds summary\n");
+        for (Stage stage : Stage.values()) {
+            for (MetricDef metric : METRICS) {
+                Histogram histogram = getHistogram(stage, metric);
+                if (histogram.getCount() == 0) {
+                    continue;
+                }
+                byte[][] prefixes = samplePrefixes[stage.ordinal()][metric.ordinal()];
+                for (int q = 0; q < QUANTILES.length; q++) {
+                    buffer.write(prefixes[q]).writeDouble(histogram.getValueAtPercentile(QUANTILES[q] * 100) / 1e9d).write('\n');
+                }
+                buffer.write(prefixes[QUANTILES.length]).writeDouble(histogram.getSum() / 1e9d).write('\n');
+                buffer.write(prefixes[QUANTILES.length + 1]).writeLong(histogram.getCount()).write('\n');
+            }
+        }
+    }
+}
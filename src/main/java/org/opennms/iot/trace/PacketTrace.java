@@ -0,0 +1,295 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.opennms.iot.ble.proto.PacketTraceDump;
+import org.opennms.iot.ble.proto.PacketTraceRequest;
+import org.opennms.iot.ble.proto.TracedPacket;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Fixed-size ring of the most recent raw BLE notifications, kept for diagnostics in place of
+ * logging every packet.
+ *
+ * Recording a packet claims a slot with a single atomic increment and copies the packet into
+ * preallocated memory, so it never blocks nor allocates. Each record is guarded by its sequence number,
+ * which is cleared while the record is being written, so that a dump running concurrently skips
+ * the records that are being overwritten instead of returning torn ones.
+ */
+public class PacketTrace {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    /**
+     * Bytes kept from each packet. Notifications are 20 bytes with the default ATT MTU.
+     */
+    public static final int MAX_PAYLOAD = 32;
+
+    // Sequence number, timestamp, source and length, followed by the payload
+    private static final int HEADER_LONGS = 3;
+    private static final int STRIDE = HEADER_LONGS + MAX_PAYLOAD / Long.BYTES;
+    private static final long WRITING = -1L;
+
+    private static final PacketTrace INSTANCE = new PacketTrace(DEFAULT_CAPACITY);
+
+    public static PacketTrace get() {
+        return INSTANCE;
+    }
+
+    private final int capacity;
+    private final AtomicLongArray records;
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final ConcurrentHashMap<String, Source> sourcesByName = new ConcurrentHashMap<>();
+    private final List<Source> sources = new CopyOnWriteArrayList<>();
+    private volatile int sampleEvery = 1;
+
+    /**
+     * @param capacity number of packets kept, must be a power of 2
+     */
+    public PacketTrace(int capacity) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of 2: " + capacity);
+        }
+        this.capacity = capacity;
+        records = new AtomicLongArray(capacity * STRIDE);
+        for (int i = 0; i < capacity; i++) {
+            records.set(i * STRIDE, WRITING);
+        }
+    }
+
+    /**
+     * Where packets come from, typically a characteristic of a sensor.
+     */
+    public class Source {
+        private final int id;
+        private final String name;
+        // Only used by the notifications of the source, one at a time
+        private int count = 0;
+
+        private Source(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        /**
+         * Record the packet, if it is sampled.
+         */
+        public void record(byte[] packet) {
+            int n = sampleEvery;
+            if (n <= 0 || (n > 1 && ++count % n != 0)) {
+                return;
+            }
+            PacketTrace.this.record(id, packet);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * @return the source with the given name, created on first use so that handlers can look it up again after reconnecting
+     */
+    public Source getSource(String name) {
+        Objects.requireNonNull(name);
+        return sourcesByName.computeIfAbsent(name, n -> {
+            synchronized (sources) {
+                Source source = new Source(sources.size(), n);
+                sources.add(source);
+                return source;
+            }
+        });
+    }
+
+    /**
+     * Record 1 in every N packets of each source.
+     *
+     * @param n 1 to record every packet, 0 to stop recording
+     */
+    public void setSampleEvery(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("Sampling must not be negative: " + n);
+        }
+        sampleEvery = n;
+    }
+
+    public int getSampleEvery() {
+        return sampleEvery;
+    }
+
+    private void record(int source, byte[] packet) {
+        long sequence = nextSequence.getAndIncrement();
+        int base = (int)(sequence & (capacity - 1)) * STRIDE;
+        records.set(base, WRITING);
+        records.lazySet(base + 1, System.currentTimeMillis());
+        records.lazySet(base + 2, ((long)source << 32) | packet.length);
+        int length = Math.min(packet.length, MAX_PAYLOAD);
+        for (int w = 0; w * Long.BYTES < length; w++) {
+            long word = 0;
+            for (int b = 0; b < Long.BYTES; b++) {
+                int i = w * Long.BYTES + b;
+                if (i < length) {
+                    word |= (long)(packet[i] & 0xFF) << (56 - 8 * b);
+                }
+            }
+            records.lazySet(base + HEADER_LONGS + w, word);
+        }
+        records.lazySet(base, sequence);
+    }
+
+    /**
+     * @return number of packets recorded since startup, including those that were overwritten
+     */
+    public long getRecordedCount() {
+        return nextSequence.get();
+    }
+
+    /**
+     * @param max maximum number of packets to return, all those retained if 0
+     * @return the most recent packets, oldest first
+     */
+    public List<Packet> getPackets(int max) {
+        long end = nextSequence.get();
+        long count = Math.min(end, max > 0 ? Math.min(max, capacity) : capacity);
+        List<Packet> packets = new ArrayList<>((int)count);
+        for (long sequence = end - count; sequence < end; sequence++) {
+            int base = (int)(sequence & (capacity - 1)) * STRIDE;
+            if (records.get(base) != sequence) {
+                continue;
+            }
+            long timestamp = records.get(base + 1);
+            long meta = records.get(base + 2);
+            int length = (int)meta;
+            byte[] payload = new byte[Math.min(length, MAX_PAYLOAD)];
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = (byte)(records.get(base + HEADER_LONGS + i / Long.BYTES) >>> (56 - 8 * (i % Long.BYTES)));
+            }
+            // Overwritten while we were reading it
+            if (records.get(base) != sequence) {
+                continue;
+            }
+            packets.add(new Packet(sequence, timestamp, sources.get((int)(meta >>> 32)).getName(), length, payload));
+        }
+        return packets;
+    }
+
+    /**
+     * Apply the sampling requested, if any, and return the most recent packets.
+     */
+    public PacketTraceDump toProto(PacketTraceRequest request) {
+        if (request.getSampleEvery() > 0) {
+            setSampleEvery(request.getSampleEvery());
+        } else if (request.getSampleEvery() < 0) {
+            setSampleEvery(0);
+        }
+        PacketTraceDump.Builder dump = PacketTraceDump.newBuilder()
+                .setRecorded(getRecordedCount())
+                .setSampleEvery(sampleEvery);
+        for (Packet packet : getPackets(request.getMaxPackets())) {
+            dump.addPackets(TracedPacket.newBuilder()
+                    .setSequence(packet.getSequence())
+                    .setTimestamp(packet.getTimestamp())
+                    .setSource(packet.getSource())
+                    .setLength(packet.getLength())
+                    .setPayload(ByteString.copyFrom(packet.getPayload())));
+        }
+        return dump.build();
+    }
+
+    public static class Packet {
+        private final long sequence;
+        private final long timestamp;
+        private final String source;
+        private final int length;
+        private final byte[] payload;
+
+        public Packet(long sequence, long timestamp, String source, int length, byte[] payload) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.source = source;
+            this.length = length;
+            this.payload = payload;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return when the packet was received, in ms since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * @return length of the packet, the payload is truncated to {@link #MAX_PAYLOAD} bytes
+         */
+        public int getLength() {
+            return length;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder()
+                    .append(sequence).append(' ')
+                    .append(timestamp).append(' ')
+                    .append(source).append(' ');
+            for (byte b : payload) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            if (length > payload.length) {
+                sb.append("... (").append(length).append(" bytes)");
+            }
+            return sb.toString();
+        }
+    }
+}
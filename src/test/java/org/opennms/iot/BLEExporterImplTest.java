@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasItems;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.iot.ble.proto.BLEExporterGrpc;
+import org.opennms.iot.ble.proto.BatchingClient;
+import org.opennms.iot.ble.proto.Client;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.EventBatch;
+import org.opennms.iot.ble.proto.StageLatency;
+import org.opennms.iot.ble.proto.Stats;
+import org.opennms.iot.ble.proto.StatsRequest;
+import org.opennms.iot.history.History;
+import org.opennms.iot.metrics.ExpositionBuffer;
+import org.opennms.iot.schema.MetricDef;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+public class BLEExporterImplTest {
+
+    private BLEExporterImpl bleExporterSvc;
+    private Server server;
+    private ManagedChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        String serverName = InProcessServerBuilder.generateName();
+        bleExporterSvc = new BLEExporterImpl(BLEExporterImpl.DEFAULT_QUEUE_SIZE, AbstractSubscriber.OverflowPolicy.DROP_OLDEST,
+                new History(60, 64 * 1024, 256 * 1024));
+        server = InProcessServerBuilder.forName(serverName)
+                .directExecutor()
+                .addService(bleExporterSvc)
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(serverName).directExecutor().build();
+    }
+
+    @After
+    public void tearDown() {
+        channel.shutdownNow();
+        server.shutdownNow();
+        bleExporterSvc.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void canStreamPreSerializedEventsToStubs() throws InterruptedException {
+        BLEExporterGrpc.BLEExporterBlockingStub stub = BLEExporterGrpc.newBlockingStub(channel);
+        Iterator<Event> events = stub.streamEvents(Client.newBuilder().setName("events").build());
+        Iterator<EventBatch> batches = stub.streamEventBatches(BatchingClient.newBuilder()
+                .setClient(Client.newBuilder().setName("batches"))
+                .setLingerMs(1)
+                .build());
+        while (bleExporterSvc.getSubscribers().size() < 2) {
+            Thread.sleep(5);
+        }
+
+        Event event = Event.newBuilder().setMessage("hello").build();
+        bleExporterSvc.broadcast(event);
+
+        assertThat(events.next(), equalTo(event));
+        assertThat(batches.next().getEvents(0), equalTo(event));
+    }
+
+    @Test(timeout = 10000)
+    public void canReplayHistoryBeforeLiveEvents() {
+        for (int i = 0; i < 5; i++) {
+            bleExporterSvc.broadcast(Event.newBuilder().setMessage(Integer.toString(i)).build());
+        }
+
+        BLEExporterGrpc.BLEExporterBlockingStub stub = BLEExporterGrpc.newBlockingStub(channel);
+        Iterator<Event> events = stub.streamEvents(Client.newBuilder()
+                .setName("late")
+                .setReplaySeconds(60)
+                .build());
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            messages.add(events.next().getMessage());
+        }
+        for (int i = 5; i < 10; i++) {
+            bleExporterSvc.broadcast(Event.newBuilder().setMessage(Integer.toString(i)).build());
+        }
+        for (int i = 5; i < 10; i++) {
+            messages.add(events.next().getMessage());
+        }
+
+        assertThat(messages, contains("0", "1", "2", "3", "4", "5", "6", "7", "8", "9"));
+    }
+
+    @Test(timeout = 10000)
+    public void canDropNewestForLocalConsumers() throws InterruptedException {
+        // The gRPC subscribers drop the oldest events, the local ones must not
+        BLEExporterImpl svc = new BLEExporterImpl(2, AbstractSubscriber.OverflowPolicy.DROP_OLDEST, null);
+        try {
+            CountDownLatch blocked = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            List<String> messages = new CopyOnWriteArrayList<>();
+            svc.streamEvents(Client.newBuilder().setName("exporter").build(), new StreamObserver<Event>() {
+                @Override
+                public void onNext(Event event) {
+                    messages.add(event.getMessage());
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) { }
+
+                @Override
+                public void onCompleted() { }
+            });
+
+            svc.broadcast(Event.newBuilder().setMessage("0").build());
+            blocked.await();
+            for (int i = 1; i < 6; i++) {
+                svc.broadcast(Event.newBuilder().setMessage(Integer.toString(i)).build());
+            }
+            release.countDown();
+            while (messages.size() < 3) {
+                Thread.sleep(5);
+            }
+
+            assertThat(messages, contains("0", "1", "2"));
+            AbstractSubscriber<?> subscriber = svc.getSubscribers().iterator().next();
+            assertThat(subscriber.getDroppedCount(), equalTo(3L));
+
+            ExpositionBuffer buffer = new ExpositionBuffer();
+            svc.getSubscriberStats().writeTo(buffer);
+            String labels = "{subscriber=\"exporter\",id=\"" + subscriber.getId() + "\"} ";
+            assertThat(buffer.toString(), containsString("ble_subscribers 1\n"));
+            assertThat(buffer.toString(), containsString("ble_subscriber_enqueued_events_total" + labels + "3\n"));
+            assertThat(buffer.toString(), containsString("ble_subscriber_dropped_events_total" + labels + "3\n"));
+            assertThat(buffer.toString(), containsString("ble_subscriber_max_lag_events" + labels + "2\n"));
+        } finally {
+            svc.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void canGetStats() {
+        BLEExporterGrpc.BLEExporterBlockingStub stub = BLEExporterGrpc.newBlockingStub(channel);
+        Iterator<Event> events = stub.streamEvents(Client.newBuilder().setName("events").build());
+        while (bleExporterSvc.getSubscribers().isEmpty()) {
+            Thread.yield();
+        }
+
+        bleExporterSvc.broadcast(Event.newBuilder().addBlocks(MetricDef.CC2650.newBlock()).build());
+        events.next();
+
+        Stats stats = stub.getStats(StatsRequest.getDefaultInstance());
+        assertThat(stats.getLatenciesList().stream()
+                .filter(l -> l.getMetric().equals(MetricDef.CC2650.getName()))
+                .map(StageLatency::getStage)
+                .collect(Collectors.toList()), hasItems("fanout", "delivery"));
+    }
+}
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasSize;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.opennms.iot.ble.proto.BatchingClient;
+import org.opennms.iot.ble.proto.Client;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.metrics.ExpositionBuffer;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import io.grpc.stub.StreamObserver;
+
+public class BatchSubscriberTest {
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final List<SharedEventBatch> batches = new CopyOnWriteArrayList<>();
+
+    private final StreamObserver<SharedEventBatch> observer = new StreamObserver<SharedEventBatch>() {
+        @Override
+        public void onNext(SharedEventBatch batch) {
+            batches.add(batch);
+        }
+
+        @Override
+        public void onError(Throwable t) { }
+
+        @Override
+        public void onCompleted() { }
+    };
+
+    @After
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    @Test
+    public void canFlushWhenBatchIsFull() {
+        Event event = Event.newBuilder().setMessage("0123456789").build();
+        BatchSubscriber subscriber = new BatchSubscriber(BatchingClient.newBuilder()
+                .setClient(Client.newBuilder().setName("test"))
+                .setLingerMs(60000)
+                .setMaxBatchBytes(3 * (event.getSerializedSize() + 2))
+                .build(), observer, 16, AbstractSubscriber.OverflowPolicy.DROP_OLDEST, MoreExecutors.directExecutor(), timer);
+
+        for (int i = 0; i < 7; i++) {
+            subscriber.offer(event);
+        }
+
+        assertThat(batches, hasSize(2));
+        assertThat(batches.get(0).getEventsCount(), equalTo(3));
+        assertThat(batches.get(1).getEventsCount(), equalTo(3));
+        assertThat(subscriber.getDeliveredCount(), equalTo(6L));
+        assertThat(subscriber.getBatchEvents().getMax(), equalTo(3L));
+
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        new SubscriberStats(Collections.singletonList(subscriber)).writeTo(buffer);
+        String labels = "subscriber=\"test\",id=\"" + subscriber.getId() + "\"";
+        assertThat(buffer.toString(), containsString("ble_subscriber_batch_events{" + labels + ",quantile=\"0.5\"} 3\n"));
+        assertThat(buffer.toString(), containsString("ble_subscriber_batch_events_count{" + labels + "} 2\n"));
+        assertThat(buffer.toString(), containsString("ble_subscriber_batch_linger_seconds_count{" + labels + "} 2\n"));
+    }
+
+    @Test(timeout = 10000)
+    public void canFlushWhenLingerExpires() throws InterruptedException {
+        BatchSubscriber subscriber = new BatchSubscriber(BatchingClient.newBuilder()
+                .setClient(Client.newBuilder().setName("test"))
+                .setLingerMs(10)
+                .build(), observer, 16, AbstractSubscriber.OverflowPolicy.DROP_OLDEST, MoreExecutors.directExecutor(), timer);
+
+        subscriber.offer(Event.newBuilder().setMessage("a").build());
+        subscriber.offer(Event.newBuilder().setMessage("b").build());
+        while (batches.isEmpty()) {
+            Thread.sleep(5);
+        }
+
+        assertThat(batches.get(0).getEventsCount(), equalTo(2));
+        assertThat(subscriber.getLingerMicros().getMax() >= TimeUnit.MILLISECONDS.toMicros(10), equalTo(true));
+    }
+}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import org.opennms.iot.gatt.GattLayout;
+import org.opennms.iot.gatt.GattServices;
+import org.opennms.iot.handlers.PolarH7Handler;
+import org.opennms.iot.handlers.PolarH7HandlerFactory;
+import org.opennms.iot.handlers.TICC2650Constants;
+import org.opennms.iot.handlers.TICC2650HandlerFactory;
+import org.opennms.iot.muse.MuseConstants;
+import org.opennms.iot.muse.MuseHandlerFactory;
+
+import tinyb.BluetoothDevice;
+
+public class HandlerRegistryTest {
+
+    @Test
+    public void canLoadTheFactoriesFromTheClassPath() {
+        HandlerRegistry registry = HandlerRegistry.load();
+        assertThat(registry.getFactories().stream().map(HandlerFactory::getName).collect(Collectors.toList()),
+                contains("TI CC2650 SensorTag", "Polar H7", "Muse"));
+
+        assertThat(registry.lookup(layout(MuseConstants.MUSE_SVC), null), instanceOf(MuseHandlerFactory.class));
+        assertThat(registry.lookup(layout(PolarH7Handler.H7_HR_SVC.toUpperCase()), "H7 12345"), instanceOf(PolarH7HandlerFactory.class));
+        // The SensorTag also has a temperature service
+        assertThat(registry.lookup(layout(TICC2650Constants.CC2650_TEMPERATURE_SVC, TICC2650Constants.CC2650_HUMIDITY_SVC), null),
+                instanceOf(TICC2650HandlerFactory.class));
+
+        // Fall back to the advertised name when no service is claimed
+        assertThat(registry.lookup(GattLayout.EMPTY, "Muse-5A4B"), instanceOf(MuseHandlerFactory.class));
+        assertThat(registry.lookup(GattLayout.EMPTY, "Mus"), nullValue());
+        assertThat(registry.lookup(layout("0000180a-0000-1000-8000-00805f9b34fb"), "Unknown"), nullValue());
+    }
+
+    @Test
+    public void firstFactoryWinsWhenSeveralMatch() {
+        HandlerFactory heartRate = new TestFactory("heart rate", Collections.singleton(PolarH7Handler.H7_HR_SVC), Collections.singleton("Polar"));
+        HandlerFactory polar = new TestFactory("polar", Collections.singleton(PolarH7Handler.H7_HR_SVC), Collections.singleton("Polar H7"));
+        HandlerFactory battery = new TestFactory("battery", Collections.singleton("0000180f-0000-1000-8000-00805f9b34fb"), Collections.emptySet());
+        HandlerRegistry registry = new HandlerRegistry(Arrays.asList(heartRate, polar, battery));
+
+        assertThat(registry.lookup(layout("0000180f-0000-1000-8000-00805f9b34fb", PolarH7Handler.H7_HR_SVC), null), equalTo(heartRate));
+        assertThat(registry.lookup(layout("0000180f-0000-1000-8000-00805f9b34fb"), "Polar H7"), equalTo(battery));
+        assertThat(registry.lookup(GattLayout.EMPTY, "Polar H7 1234"), equalTo(heartRate));
+    }
+
+    private static GattLayout layout(String... serviceUuids) {
+        Map<String, List<String>> layout = new LinkedHashMap<>();
+        for (String uuid : serviceUuids) {
+            layout.put(uuid, Collections.emptyList());
+        }
+        return new GattLayout(layout);
+    }
+
+    private static class TestFactory implements HandlerFactory {
+        private final String name;
+        private final Set<String> serviceUuids;
+        private final Set<String> namePrefixes;
+
+        TestFactory(String name, Set<String> serviceUuids, Set<String> namePrefixes) {
+            this.name = name;
+            this.serviceUuids = serviceUuids;
+            this.namePrefixes = namePrefixes;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Set<String> getServiceUuids() {
+            return serviceUuids;
+        }
+
+        @Override
+        public Set<String> getNamePrefixes() {
+            return namePrefixes;
+        }
+
+        @Override
+        public Handler createHandler(BluetoothDevice device, GattServices gatt) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
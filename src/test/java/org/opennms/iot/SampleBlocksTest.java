@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.lessThan;
+
+import org.junit.Test;
+import org.opennms.iot.ble.proto.Channel;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.FieldValue;
+import org.opennms.iot.ble.proto.Metric;
+import org.opennms.iot.ble.proto.SampleBlock;
+import org.opennms.iot.ble.proto.Sensor;
+import org.opennms.iot.handlers.PolarH7Handler;
+import org.opennms.iot.muse.EEGHandler;
+
+public class SampleBlocksTest {
+
+    @Test
+    public void canConvertReadingsToMetrics() {
+        Event event = Event.newBuilder()
+                .setSensor(Sensor.newBuilder().setHwAddress("00:22:D0:26:58:91"))
+                .addBlocks(SampleBlock.newBuilder()
+                        .setName(PolarH7Handler.METRIC_NAME)
+                        .setStartTimestamp(1588538411000L)
+                        .addChannels(Channel.newBuilder()
+                                .setName(PolarH7Handler.BPM_FIELD)
+                                .addIntValues(72))
+                        .addChannels(Channel.newBuilder()
+                                .setName(PolarH7Handler.RR_FIELD)
+                                .setEnumerated(true)
+                                .addDoubleValues(833.0)
+                                .addDoubleValues(812.5)))
+                .build();
+
+        Event expected = Event.newBuilder()
+                .setSensor(Sensor.newBuilder().setHwAddress("00:22:D0:26:58:91"))
+                .addMetrics(Metric.newBuilder()
+                        .setName(PolarH7Handler.METRIC_NAME)
+                        .setTimestamp(1588538411000L)
+                        .putFields(PolarH7Handler.BPM_FIELD, FieldValue.newBuilder().setIntValue(72).build())
+                        .putFields("rr0", FieldValue.newBuilder().setFloatValue(833.0).build())
+                        .putFields("rr1", FieldValue.newBuilder().setFloatValue(812.5).build()))
+                .build();
+
+        assertThat(SampleBlocks.toMetrics(event), equalTo(expected));
+    }
+
+    @Test
+    public void canConvertSamplesToMetrics() {
+        SampleBlock.Builder blockBuilder = SampleBlock.newBuilder()
+                .setName("eeg")
+                .setStartTimestamp(1588222530705L)
+                .setSamplePeriodMs(1000.0d / 256);
+        for (String channel : new String[]{"tp9", "af7", "af8", "tp10", "right_aux"}) {
+            Channel.Builder channelBuilder = blockBuilder.addChannelsBuilder()
+                    .setName(channel)
+                    .setScale(EEGHandler.EEG_SCALE);
+            for (int i = 0; i < 12; i++) {
+                channelBuilder.addIntValues(i * 100 - 2048);
+            }
+        }
+        Event event = Event.newBuilder()
+                .setSensor(Sensor.newBuilder().setHwAddress("00:55:DA:B5:35:5A"))
+                .addBlocks(blockBuilder)
+                .build();
+
+        Event metricsEvent = SampleBlocks.toMetrics(event);
+        assertThat(metricsEvent.getMetricsCount(), equalTo(12));
+        assertThat(metricsEvent.getMetrics(0).getTimestamp(), equalTo(1588222530705L));
+        assertThat(metricsEvent.getMetrics(11).getTimestamp(), equalTo(1588222530705L + 42));
+        assertThat(metricsEvent.getMetrics(0).getFieldsOrThrow("tp9").getFloatValue(), closeTo(-1000.0d, 0.00001d));
+        assertThat(metricsEvent.getMetrics(11).getFieldsOrThrow("right_aux").getFloatValue(), closeTo(-462.890625d, 0.00001d));
+
+        // The whole point
+        assertThat(event.getSerializedSize() * 5, lessThan(metricsEvent.getSerializedSize()));
+    }
+}
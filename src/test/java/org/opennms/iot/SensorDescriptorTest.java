@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.junit.Test;
+import org.opennms.iot.ble.proto.Sensor;
+
+public class SensorDescriptorTest {
+
+    @Test
+    public void canReuseSensorUntilLinkQualityChanges() {
+        SensorDescriptor descriptor = new SensorDescriptor("00:22:D0:26:58:91", null);
+        Sensor sensor = descriptor.getSensor();
+        assertThat(sensor.getHwAddress(), equalTo("00:22:D0:26:58:91"));
+        assertThat(descriptor.getSensor(), sameInstance(sensor));
+
+        descriptor.updateRssi((short)-67);
+        descriptor.updateTxPower((short)4);
+        Sensor updated = descriptor.getSensor();
+        assertThat(updated, not(sameInstance(sensor)));
+        assertThat(updated.getRssi(), equalTo(-67.0d));
+        assertThat(updated.getTxPower(), equalTo(4.0d));
+
+        // Same values, same message
+        descriptor.updateRssi((short)-67);
+        assertThat(descriptor.getSensor(), sameInstance(updated));
+    }
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasSize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.opennms.iot.ble.proto.Client;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.EventBatch;
+import org.opennms.iot.ble.proto.FieldValue;
+import org.opennms.iot.ble.proto.Metric;
+import org.opennms.iot.ble.proto.Sensor;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import io.grpc.Drainable;
+import io.grpc.stub.StreamObserver;
+
+public class SharedEventTest {
+
+    private static final Event EVENT = Event.newBuilder()
+            .setSensor(Sensor.newBuilder().setHwAddress("00:22:D0:26:58:91"))
+            .addMetrics(Metric.newBuilder()
+                    .setName("hr")
+                    .setTimestamp(1588538411000L)
+                    .putFields("beats_per_minute", FieldValue.newBuilder().setIntValue(72).build()))
+            .addMetrics(Metric.newBuilder()
+                    .setName("cc2650")
+                    .setTimestamp(1588538411000L)
+                    .putFields("temperature", FieldValue.newBuilder().setFloatValue(21.5).build()))
+            .build();
+
+    @Test
+    public void canShareSerializedEventAcrossSubscribers() {
+        List<SharedEvent> received = new ArrayList<>();
+        SharedEvent event = new SharedEvent(EVENT);
+        List<Subscriber> subscribers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            subscribers.add(new Subscriber(Client.newBuilder().setName("s" + i).build(), observer(received), 16,
+                    AbstractSubscriber.OverflowPolicy.DROP_OLDEST, MoreExecutors.directExecutor()));
+        }
+        subscribers.forEach(s -> s.offer(event));
+
+        assertThat(received, hasSize(3));
+        for (SharedEvent r : received) {
+            assertThat(r, sameInstance(event));
+            assertThat(r.getBytes(), sameInstance(event.getBytes()));
+        }
+    }
+
+    @Test
+    public void canGiveFilteredSubscribersTheirOwnCopy() {
+        List<SharedEvent> received = new ArrayList<>();
+        Subscriber subscriber = new Subscriber(Client.newBuilder().setName("hr-only").addMetrics("hr").build(),
+                observer(received), 16, AbstractSubscriber.OverflowPolicy.DROP_OLDEST, MoreExecutors.directExecutor());
+
+        SharedEvent event = new SharedEvent(EVENT);
+        subscriber.offer(event);
+
+        assertThat(received, hasSize(1));
+        assertThat(received.get(0), not(sameInstance(event)));
+        assertThat(received.get(0).getEvent().getMetricsCount(), equalTo(1));
+    }
+
+    @Test
+    public void canStreamSerializedEvent() throws IOException {
+        SharedEvent event = new SharedEvent(EVENT);
+        InputStream is = SharedEvent.MARSHALLER.stream(event);
+        assertThat(is.available(), equalTo(EVENT.getSerializedSize()));
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ((Drainable)is).drainTo(os);
+        assertThat(os.toByteArray(), equalTo(EVENT.toByteArray()));
+        assertThat(SharedEvent.MARSHALLER.parse(SharedEvent.MARSHALLER.stream(event)).getEvent(), equalTo(EVENT));
+    }
+
+    @Test
+    public void canSerializeBatchFromSharedEvents() {
+        Event other = Event.newBuilder().setMessage("hello").build();
+        SharedEventBatch batch = new SharedEventBatch(Arrays.asList(new SharedEvent(EVENT), new SharedEvent(other)));
+
+        byte[] expected = EventBatch.newBuilder().addEvents(EVENT).addEvents(other).build().toByteArray();
+        assertThat(batch.toByteArray(), equalTo(expected));
+        assertThat(batch.toEventBatch().getEventsCount(), equalTo(2));
+    }
+
+    private static StreamObserver<SharedEvent> observer(List<SharedEvent> received) {
+        return new StreamObserver<SharedEvent>() {
+            @Override
+            public void onNext(SharedEvent value) {
+                received.add(value);
+            }
+
+            @Override
+            public void onError(Throwable t) { }
+
+            @Override
+            public void onCompleted() { }
+        };
+    }
+}
@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.instanceOf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import org.opennms.iot.ble.proto.Client;
+import org.opennms.iot.ble.proto.Event;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+
+public class SubscriberTest {
+
+    private static final Client CLIENT = Client.newBuilder().setName("test").build();
+
+    @Test
+    public void canDeliverWhenReady() {
+        MockCallObserver observer = new MockCallObserver();
+        Subscriber subscriber = new Subscriber(CLIENT, observer, 2, Subscriber.OverflowPolicy.DROP_OLDEST,
+                MoreExecutors.directExecutor());
+
+        subscriber.offer(event("a"));
+        subscriber.offer(event("b"));
+        subscriber.offer(event("c"));
+
+        assertThat(messages(observer), contains("a", "b", "c"));
+        assertThat(subscriber.getDeliveredCount(), equalTo(3L));
+        assertThat(subscriber.getDroppedCount(), equalTo(0L));
+    }
+
+    @Test
+    public void canDropOldestWhenNotReady() {
+        MockCallObserver observer = new MockCallObserver();
+        observer.ready = false;
+        Subscriber subscriber = new Subscriber(CLIENT, observer, 2, Subscriber.OverflowPolicy.DROP_OLDEST,
+                MoreExecutors.directExecutor());
+
+        subscriber.offer(event("a"));
+        subscriber.offer(event("b"));
+        subscriber.offer(event("c"));
+        assertThat(observer.events, hasSize(0));
+        assertThat(subscriber.getLag(), equalTo(2));
+
+        observer.becomeReady();
+        assertThat(messages(observer), contains("b", "c"));
+        assertThat(subscriber.getDroppedCount(), equalTo(1L));
+        assertThat(subscriber.getLag(), equalTo(0));
+        assertThat(subscriber.getMaxLag(), equalTo(2));
+    }
+
+    @Test
+    public void canDropNewestWhenNotReady() {
+        MockCallObserver observer = new MockCallObserver();
+        observer.ready = false;
+        Subscriber subscriber = new Subscriber(CLIENT, observer, 2, Subscriber.OverflowPolicy.DROP_NEWEST,
+                MoreExecutors.directExecutor());
+
+        subscriber.offer(event("a"));
+        subscriber.offer(event("b"));
+        subscriber.offer(event("c"));
+
+        observer.becomeReady();
+        assertThat(messages(observer), contains("a", "b"));
+        assertThat(subscriber.getDroppedCount(), equalTo(1L));
+    }
+
+    @Test
+    public void canDisconnectWhenFull() {
+        MockCallObserver observer = new MockCallObserver();
+        observer.ready = false;
+        Subscriber subscriber = new Subscriber(CLIENT, observer, 2, Subscriber.OverflowPolicy.DISCONNECT,
+                MoreExecutors.directExecutor());
+
+        subscriber.offer(event("a"));
+        subscriber.offer(event("b"));
+        subscriber.offer(event("c"));
+
+        assertThat(subscriber.isClosed(), equalTo(true));
+        assertThat(observer.error, instanceOf(StatusRuntimeException.class));
+        assertThat(Status.fromThrowable(observer.error).getCode(), equalTo(Status.Code.RESOURCE_EXHAUSTED));
+        observer.becomeReady();
+        assertThat(observer.events, hasSize(0));
+    }
+
+    @Test
+    public void canCloseWhenCancelled() {
+        MockCallObserver observer = new MockCallObserver();
+        Subscriber subscriber = new Subscriber(CLIENT, observer, 2, Subscriber.OverflowPolicy.DROP_OLDEST,
+                MoreExecutors.directExecutor());
+        AtomicInteger closeCount = new AtomicInteger();
+        subscriber.setOnClose(closeCount::incrementAndGet);
+
+        observer.onCancelHandler.run();
+        assertThat(subscriber.isClosed(), equalTo(true));
+        assertThat(closeCount.get(), equalTo(1));
+        assertThat(subscriber.offer(event("a")), equalTo(false));
+        assertThat(observer.events, hasSize(0));
+    }
+
+    private static Event event(String message) {
+        return Event.newBuilder().setMessage(message).build();
+    }
+
+    private static List<String> messages(MockCallObserver observer) {
+        return observer.events.stream().map(e -> e.getEvent().getMessage()).collect(Collectors.toList());
+    }
+
+    private static class MockCallObserver extends ServerCallStreamObserver<SharedEvent> {
+        final List<SharedEvent> events = new ArrayList<>();
+        Throwable error;
+        boolean ready = true;
+        Runnable onReadyHandler;
+        Runnable onCancelHandler;
+
+        void becomeReady() {
+            ready = true;
+            onReadyHandler.run();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public void setOnCancelHandler(Runnable onCancelHandler) {
+            this.onCancelHandler = onCancelHandler;
+        }
+
+        @Override
+        public void setCompression(String compression) { }
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setOnReadyHandler(Runnable onReadyHandler) {
+            this.onReadyHandler = onReadyHandler;
+        }
+
+        @Override
+        public void disableAutoInboundFlowControl() { }
+
+        @Override
+        public void request(int count) { }
+
+        @Override
+        public void setMessageCompression(boolean enable) { }
+
+        @Override
+        public void onNext(SharedEvent value) {
+            events.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onCompleted() { }
+    }
+}
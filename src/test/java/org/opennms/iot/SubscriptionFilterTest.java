@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+import org.junit.Test;
+import org.opennms.iot.ble.proto.Client;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.FieldValue;
+import org.opennms.iot.ble.proto.Metric;
+import org.opennms.iot.ble.proto.Sensor;
+import org.opennms.iot.handlers.PolarH7Handler;
+
+public class SubscriptionFilterTest {
+
+    private static final Event POLAR_EVENT = Event.newBuilder()
+            .setSensor(Sensor.newBuilder()
+                    .setHwAddress("00:22:D0:26:58:91"))
+            .addMetrics(Metric.newBuilder()
+                    .setName(PolarH7Handler.METRIC_NAME)
+                    .putFields(PolarH7Handler.BPM_FIELD, FieldValue.newBuilder().setIntValue(72).build())
+                    .putFields("rr0", FieldValue.newBuilder().setFloatValue(833.0).build()))
+            .build();
+
+    @Test
+    public void canMatchEverything() {
+        SubscriptionFilter filter = SubscriptionFilter.fromClient(Client.getDefaultInstance());
+        assertThat(filter.apply(POLAR_EVENT), sameInstance(POLAR_EVENT));
+    }
+
+    @Test
+    public void canFilterBySensor() {
+        SubscriptionFilter filter = SubscriptionFilter.fromClient(Client.newBuilder()
+                .addSensors("00:22:d0:26:58:91")
+                .build());
+        assertThat(filter.apply(POLAR_EVENT), sameInstance(POLAR_EVENT));
+
+        filter = SubscriptionFilter.fromClient(Client.newBuilder()
+                .addSensors("00:55:DA:B5:35:5A")
+                .build());
+        assertThat(filter.apply(POLAR_EVENT), nullValue());
+    }
+
+    @Test
+    public void canFilterByMetricAndField() {
+        SubscriptionFilter filter = SubscriptionFilter.fromClient(Client.newBuilder()
+                .addMetrics("eeg")
+                .build());
+        assertThat(filter.apply(POLAR_EVENT), nullValue());
+
+        filter = SubscriptionFilter.fromClient(Client.newBuilder()
+                .addMetrics(PolarH7Handler.METRIC_NAME)
+                .addFields(PolarH7Handler.BPM_FIELD)
+                .build());
+        Event filtered = filter.apply(POLAR_EVENT);
+        assertThat(filtered.getSensor(), equalTo(POLAR_EVENT.getSensor()));
+        assertThat(filtered.getMetrics(0).getFieldsMap().keySet(), contains(PolarH7Handler.BPM_FIELD));
+    }
+}
@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.az;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Test;
+import org.opennms.iot.ble.proto.Encoding;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.EventBatch;
+import org.opennms.iot.ble.proto.Sensor;
+
+import com.azure.messaging.eventhubs.EventData;
+
+public class BatchingProducerTest {
+
+    private final FakeSender sender = new FakeSender();
+    private BatchingProducer producer;
+
+    @After
+    public void tearDown() {
+        if (producer != null) {
+            sender.completeAll();
+            producer.close();
+        }
+    }
+
+    @Test
+    public void canBatchEventsByPartitionKey() throws InterruptedException {
+        producer = new BatchingProducer("test", sender, 20, 1024, 4, 100, BatchingProducer.Packing.NONE,
+                BatchingProducer.Compression.NONE);
+        producer.add(Route.partitionKey("a"), event("a0"), null);
+        producer.add(Route.partitionKey("b"), event("b0"), null);
+        producer.add(Route.partitionKey("a"), event("a1"), null);
+        producer.add(Route.partitionKey("a"), event("a2"), null);
+
+        Send first = sender.next();
+        Send second = sender.next();
+        Send sendA = first.route.equals(Route.partitionKey("a")) ? first : second;
+        Send sendB = first.route.equals(Route.partitionKey("a")) ? second : first;
+        assertThat(sendA.bodies, contains("a0", "a1", "a2"));
+        assertThat(sendB.bodies, contains("b0"));
+    }
+
+    @Test
+    public void sendsFullBatchesWithoutLingering() throws InterruptedException {
+        // Each event takes 34 bytes, so 2 fit in a batch
+        producer = new BatchingProducer("test", sender, TimeUnit.MINUTES.toMillis(1), 80, 4, 100, BatchingProducer.Packing.NONE,
+                BatchingProducer.Compression.NONE);
+        for (int i = 0; i < 5; i++) {
+            producer.add(Route.partitionKey("a"), event("e" + i), null);
+        }
+        Send send = sender.next();
+        assertThat(send.bodies, contains("e0", "e1"));
+        // Only one batch per key in flight
+        assertThat(sender.sends.poll(100, TimeUnit.MILLISECONDS), nullValue());
+
+        send.complete();
+        assertThat(sender.next().bodies, contains("e2", "e3"));
+        // The last one waits for the linger time
+        assertThat(sender.sends.poll(100, TimeUnit.MILLISECONDS), nullValue());
+        assertThat(producer.getBufferedCount(), equalTo(3));
+        assertThat(producer.getSentEventCount(), equalTo(2L));
+        assertThat(producer.getAverageFillRatio(), equalTo(68 / 80d));
+    }
+
+    @Test
+    public void boundsBatchesInFlight() throws InterruptedException {
+        producer = new BatchingProducer("test", sender, 0, 1024, 2, 100, BatchingProducer.Packing.NONE,
+                BatchingProducer.Compression.NONE);
+        producer.add(Route.partitionKey("a"), event("a0"), null);
+        producer.add(Route.partitionKey("b"), event("b0"), null);
+        producer.add(Route.partitionKey("c"), event("c0"), null);
+
+        Send first = sender.next();
+        sender.next();
+        assertThat(sender.sends.poll(100, TimeUnit.MILLISECONDS), nullValue());
+        assertThat(producer.getInFlightCount(), equalTo(2));
+
+        first.complete();
+        assertThat(sender.next().bodies, contains("c0"));
+    }
+
+    @Test
+    public void canRetryFailedAndPartialBatchesInOrder() throws InterruptedException {
+        producer = new BatchingProducer("test", sender, 20, 1024, 4, 100, BatchingProducer.Packing.NONE,
+                BatchingProducer.Compression.NONE);
+        AtomicInteger completed = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            producer.add(Route.partitionKey("a"), event("e" + i), completed::incrementAndGet);
+        }
+        Send send = sender.next();
+        assertThat(send.bodies, contains("e0", "e1", "e2"));
+        send.future.completeExceptionally(new RuntimeException("Unreachable"));
+        producer.add(Route.partitionKey("a"), event("e3"), completed::incrementAndGet);
+
+        // Retried after the backoff, ahead of the new event. Only the first one fits this time.
+        send = sender.next(5);
+        assertThat(send.bodies, contains("e0", "e1", "e2", "e3"));
+        send.future.complete(1);
+        send = sender.next();
+        assertThat(send.bodies, contains("e1", "e2", "e3"));
+        send.complete();
+        awaitBuffered(0);
+
+        assertThat(producer.getFailedSendCount(), equalTo(1L));
+        assertThat(producer.getSentEventCount(), equalTo(4L));
+        assertThat(producer.getSentBatchCount(), equalTo(2L));
+        assertThat(completed.get(), equalTo(4));
+    }
+
+    @Test
+    public void canPackEvents() throws InterruptedException {
+        producer = new BatchingProducer("test", sender, 20, 1024, 4, 100, BatchingProducer.Packing.NDJSON,
+                BatchingProducer.Compression.NONE);
+        producer.add(Route.partitionKey("a"), event("{\"v\":1}"), null);
+        producer.add(Route.partitionKey("a"), event("{\"v\":2}"), null);
+        Send send = sender.next();
+        assertThat(send.bodies, contains("{\"v\":1}\n{\"v\":2}"));
+        send.complete();
+        producer.close();
+
+        producer = new BatchingProducer("test", sender, 20, 1024, 4, 100, BatchingProducer.Packing.JSON_ARRAY,
+                BatchingProducer.Compression.NONE);
+        producer.add(Route.partitionKey("a"), event("{\"v\":1}"), null);
+        producer.add(Route.partitionKey("a"), event("{\"v\":2}"), null);
+        assertThat(sender.next().bodies, contains("[{\"v\":1},{\"v\":2}]"));
+    }
+
+    @Test
+    public void canPackProtobufEventsAndCompress() throws IOException, InterruptedException {
+        producer = new BatchingProducer("test", sender, 20, 1024, 4, 100, BatchingProducer.Packing.EVENT_BATCH,
+                BatchingProducer.Compression.GZIP);
+        ProtobufMapper mapper = new ProtobufMapper(Encoding.SAMPLE_BLOCKS);
+        Event first = Event.newBuilder().setSensor(Sensor.newBuilder().setHwAddress("00:55:DA:B5:35:5A")).setTimestamp(1).build();
+        Event second = first.toBuilder().setTimestamp(2).build();
+        producer.add(Route.partitionKey("a"), mapper.mapEvent(first), null);
+        producer.add(Route.partitionKey("a"), mapper.mapEvent(second), null);
+
+        EventData packed = sender.next().events.get(0);
+        assertThat(packed.getProperties().get(ProtobufMapper.SCHEMA_ID_PROPERTY), equalTo(ProtobufMapper.SCHEMA_ID));
+        assertThat(packed.getProperties().get(ProtobufMapper.ENCODING_PROPERTY), equalTo("SAMPLE_BLOCKS"));
+        assertThat(packed.getProperties().get(BatchingProducer.PACKING_PROPERTY), equalTo("EVENT_BATCH"));
+        assertThat(packed.getProperties().get(BatchingProducer.CONTENT_ENCODING_PROPERTY), equalTo("gzip"));
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(packed.getBody()))) {
+            assertThat(EventBatch.parseFrom(in).getEventsList(), contains(first, second));
+        }
+    }
+
+    @Test
+    public void dropsEventsWhenTheBufferIsFull() throws InterruptedException {
+        producer = new BatchingProducer("test", sender, 0, 1024, 4, 2, BatchingProducer.Packing.NONE,
+                BatchingProducer.Compression.NONE);
+        assertThat(producer.add(Route.partitionKey("a"), event("e0"), null), equalTo(true));
+        assertThat(producer.add(Route.partitionKey("a"), event("e1"), null), equalTo(true));
+        assertThat(producer.add(Route.partitionKey("a"), event("e2"), null), equalTo(false));
+        assertThat(producer.getDroppedCount(), equalTo(1L));
+
+        // Room is made once the events are sent
+        Send send = sender.next();
+        send.complete();
+        awaitBuffered(0);
+        assertThat(producer.add(Route.partitionKey("a"), event("e3"), null), equalTo(true));
+        assertThat(sender.next().bodies.size(), greaterThan(0));
+    }
+
+    private void awaitBuffered(int numEvents) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (producer.getBufferedCount() > numEvents && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(producer.getBufferedCount(), equalTo(numEvents));
+    }
+
+    private static EventData event(String body) {
+        return new EventData(body);
+    }
+
+    private static class Send {
+        private final Route route;
+        private final List<EventData> events;
+        private final List<String> bodies;
+        private final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        private Send(Route route, List<EventData> events) {
+            this.route = route;
+            this.events = events;
+            this.bodies = events.stream()
+                    .map(e -> new String(e.getBody(), StandardCharsets.UTF_8))
+                    .collect(Collectors.toList());
+        }
+
+        private void complete() {
+            future.complete(bodies.size());
+        }
+    }
+
+    private static class FakeSender implements EventSender {
+        private final BlockingQueue<Send> sends = new LinkedBlockingQueue<>();
+        private final BlockingQueue<Send> all = new LinkedBlockingQueue<>();
+        private volatile boolean autoComplete = false;
+
+        @Override
+        public CompletableFuture<Integer> send(Route route, List<EventData> events) {
+            Send send = new Send(route, events);
+            sends.add(send);
+            all.add(send);
+            if (autoComplete) {
+                send.complete();
+            }
+            return send.future;
+        }
+
+        private Send next() throws InterruptedException {
+            return next(1);
+        }
+
+        private Send next(int timeoutSeconds) throws InterruptedException {
+            Send send = sends.poll(timeoutSeconds, TimeUnit.SECONDS);
+            assertThat(send, notNullValue());
+            return send;
+        }
+
+        private void completeAll() {
+            autoComplete = true;
+            all.forEach(Send::complete);
+        }
+
+        @Override
+        public void close() {
+            // Nothing to close
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.az;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.metrics.ExpositionBuffer;
+import org.opennms.iot.spool.Spool;
+
+import com.azure.messaging.eventhubs.EventData;
+
+public class EventHubExporterTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test(timeout = 10000)
+    public void canExposeExporterStats() throws Exception {
+        Spool spool = new Spool(tempFolder.newFolder("spool").toPath());
+        try (EventHubExporter spooled = new EventHubExporter("spooled", e -> new EventData(e.getMessage()), spool,
+                new BatchingProducer("spooled", new AckingSender()));
+             EventHubExporter direct = new EventHubExporter("direct", e -> new EventData(e.getMessage()), null,
+                new BatchingProducer("direct", new AckingSender()))) {
+            spooled.onNext(Event.newBuilder().setMessage("hello").build());
+            while (spool.getAckedCount() < 1) {
+                Thread.sleep(5);
+            }
+
+            ExpositionBuffer buffer = new ExpositionBuffer();
+            EventHubExporter.collectorOf(Arrays.asList(spooled, direct)).writeTo(buffer);
+            String text = buffer.toString();
+            assertThat(text, containsString("ble_eventhub_sent_events_total{event_hub=\"spooled\"} 1\n"));
+            assertThat(text, containsString("ble_eventhub_sent_events_total{event_hub=\"direct\"} 0\n"));
+            assertThat(text, containsString("ble_spool_acked_events_total{event_hub=\"spooled\"} 1\n"));
+            assertThat(text, containsString("ble_spool_max_backlog_events{event_hub=\"spooled\"} 1\n"));
+            assertThat(text, containsString("ble_eventhub_recoveries_total{event_hub=\"spooled\"} 0\n"));
+            // Each metric is described once, and only the exporters with a spool have spool stats
+            assertThat(text.split("# TYPE ble_eventhub_sent_events_total ").length, equalTo(2));
+            assertThat(text, not(containsString("ble_spool_backlog_events{event_hub=\"direct\"}")));
+        }
+    }
+
+    private static class AckingSender implements EventSender {
+        @Override
+        public CompletableFuture<Integer> send(Route route, List<EventData> events) {
+            return CompletableFuture.completedFuture(events.size());
+        }
+
+        @Override
+        public void close() {
+            // Nothing to close
+        }
+    }
+}
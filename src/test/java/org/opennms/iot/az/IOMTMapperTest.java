@@ -63,4 +63,29 @@ public class IOMTMapperTest {
         System.out.println("Actual JSON:   " + json);
         JSONAssert.assertEquals(expectedJson, json, JSONCompareMode.LENIENT);
     }
+
+    @Test
+    public void canMapEveryHeartRate() throws JSONException {
+        String expectedJson = "[{\"body\":{\"deviceId\":\"00:22:D0:26:58:91\",\"endDate\":\"2020-05-03T20:40:11Z\"," +
+                "\"heartRate\":\"72\",\"rr\":\"833.0\",\"properties\":{},\"systemProperties\":{}}}," +
+                "{\"body\":{\"deviceId\":\"00:22:D0:26:58:91\",\"endDate\":\"2020-05-03T20:40:12.250Z\"," +
+                "\"heartRate\":\"74\",\"properties\":{},\"systemProperties\":{}}}]";
+
+        Event event = Event.newBuilder()
+                .setSensor(Sensor.newBuilder()
+                        .setHwAddress("00:22:D0:26:58:91"))
+                .addMetrics(Metric.newBuilder()
+                        .setName(PolarH7Handler.METRIC_NAME)
+                        .setTimestamp(1588538411000L)
+                        .putFields(PolarH7Handler.BPM_FIELD, FieldValue.newBuilder().setIntValue(72).build())
+                        .putFields("rr0", FieldValue.newBuilder().setFloatValue(833.0).build()))
+                .addMetrics(Metric.newBuilder()
+                        .setName(PolarH7Handler.METRIC_NAME)
+                        .setTimestamp(1588538412250L)
+                        .putFields(PolarH7Handler.BPM_FIELD, FieldValue.newBuilder().setIntValue(74).build()))
+                .build();
+
+        String json = new IOMTMapper().mapEvent(event).getBodyAsString();
+        JSONAssert.assertEquals(expectedJson, json, JSONCompareMode.STRICT);
+    }
 }
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.az;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.SampleBlock;
+import org.opennms.iot.ble.proto.Sensor;
+
+public class PartitionStrategyTest {
+
+    private static final List<String> PARTITION_IDS = Arrays.asList("0", "1", "2", "3");
+
+    private static final Event EEG_EVENT = Event.newBuilder()
+            .setSensor(Sensor.newBuilder().setHwAddress("00:55:DA:B5:35:5A"))
+            .addBlocks(SampleBlock.newBuilder().setName("eeg"))
+            .build();
+
+    private static final Event HR_EVENT = Event.newBuilder()
+            .setSensor(Sensor.newBuilder().setHwAddress("00:22:D0:26:58:91"))
+            .addBlocks(SampleBlock.newBuilder().setName("polar-h7"))
+            .build();
+
+    @Test
+    public void canRouteByKey() {
+        PartitionStrategy byMac = PartitionStrategy.create(PartitionStrategy.Type.MAC, "session", PARTITION_IDS);
+        assertThat(byMac.route(EEG_EVENT), equalTo(Route.partitionKey("00:55:DA:B5:35:5A")));
+
+        PartitionStrategy bySession = PartitionStrategy.create(PartitionStrategy.Type.SESSION, "session", PARTITION_IDS);
+        assertThat(bySession.route(EEG_EVENT), equalTo(Route.partitionKey("session")));
+        assertThat(bySession.route(HR_EVENT), equalTo(Route.partitionKey("session")));
+
+        PartitionStrategy byMetric = PartitionStrategy.create(PartitionStrategy.Type.METRIC, "session", PARTITION_IDS);
+        assertThat(byMetric.route(EEG_EVENT), equalTo(Route.partitionKey("eeg")));
+        assertThat(byMetric.route(Event.newBuilder().setSensor(HR_EVENT.getSensor()).build()),
+                equalTo(Route.partitionKey("00:22:D0:26:58:91")));
+    }
+
+    @Test
+    public void canRouteRoundRobin() {
+        PartitionStrategy strategy = PartitionStrategy.create(PartitionStrategy.Type.ROUND_ROBIN, "session", PARTITION_IDS);
+        List<String> partitions = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            partitions.add(strategy.route(EEG_EVENT).getPartitionId());
+        }
+        assertThat(partitions, contains("0", "1", "2", "3", "0", "1"));
+    }
+
+    @Test
+    public void canRouteByConsistentHash() {
+        PartitionStrategy strategy = PartitionStrategy.create(PartitionStrategy.Type.CONSISTENT_HASH, "session", PARTITION_IDS);
+        Route route = strategy.route(EEG_EVENT);
+        assertThat(strategy.route(EEG_EVENT), equalTo(route));
+        assertThat(route.getPartitionKey(), equalTo(null));
+
+        // Sensors are spread over every partition
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 400; i++) {
+            Event event = Event.newBuilder()
+                    .setSensor(Sensor.newBuilder().setHwAddress(String.format("00:55:DA:B5:%02X:%02X", i / 256, i % 256)))
+                    .build();
+            counts.merge(strategy.route(event).getPartitionId(), 1, Integer::sum);
+        }
+        assertThat(counts.keySet().size(), equalTo(PARTITION_IDS.size()));
+        counts.values().forEach(count -> assertThat(count, greaterThan(50)));
+
+        // Adding a partition only moves some of the sensors
+        PartitionStrategy grown = PartitionStrategy.create(PartitionStrategy.Type.CONSISTENT_HASH, "session",
+                Arrays.asList("0", "1", "2", "3", "4"));
+        int moved = 0;
+        for (int i = 0; i < 400; i++) {
+            Event event = Event.newBuilder()
+                    .setSensor(Sensor.newBuilder().setHwAddress(String.format("00:55:DA:B5:%02X:%02X", i / 256, i % 256)))
+                    .build();
+            if (!strategy.route(event).equals(grown.route(event))) {
+                moved++;
+            }
+        }
+        assertThat(moved, not(equalTo(0)));
+        assertThat(moved, lessThan(400 / 3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannotRouteToPartitionsWithoutIds() {
+        PartitionStrategy.create(PartitionStrategy.Type.ROUND_ROBIN, "session", Collections.emptyList());
+    }
+}
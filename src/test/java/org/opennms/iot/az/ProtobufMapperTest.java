@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.az;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.startsWith;
+
+import org.junit.Test;
+import org.opennms.iot.SampleBlocks;
+import org.opennms.iot.ble.proto.Channel;
+import org.opennms.iot.ble.proto.Encoding;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.SampleBlock;
+import org.opennms.iot.ble.proto.Sensor;
+import org.opennms.iot.muse.EEGHandler;
+
+import com.azure.messaging.eventhubs.EventData;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+public class ProtobufMapperTest {
+
+    @Test
+    public void canMapEventToProtobuf() throws InvalidProtocolBufferException {
+        Event event = eegEvent();
+        EventData eventData = new ProtobufMapper(Encoding.SAMPLE_BLOCKS).mapEvent(event);
+
+        assertThat(Event.parseFrom(eventData.getBody()), equalTo(event));
+        assertThat(eventData.getProperties().get(ProtobufMapper.CONTENT_TYPE_PROPERTY), equalTo(ProtobufMapper.CONTENT_TYPE));
+        assertThat(eventData.getProperties().get(ProtobufMapper.SCHEMA_ID_PROPERTY), equalTo(ProtobufMapper.SCHEMA_ID));
+        assertThat(eventData.getProperties().get(ProtobufMapper.ENCODING_PROPERTY), equalTo("SAMPLE_BLOCKS"));
+        assertThat(ProtobufMapper.SCHEMA_ID, startsWith("ble.Event@"));
+
+        // Columnar protobuf is a fraction of the size of the JSON we'd otherwise send
+        int jsonSize = new TSIMapper().mapEvent(SampleBlocks.toMetrics(event)).getBody().length;
+        assertThat(eventData.getBody().length * 5, lessThan(jsonSize));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannotMapDictionaryEncodedEvents() {
+        new ProtobufMapper(Encoding.DICTIONARY);
+    }
+
+    private static Event eegEvent() {
+        SampleBlock.Builder blockBuilder = SampleBlock.newBuilder()
+                .setName("eeg")
+                .setStartTimestamp(1588222530705L)
+                .setSamplePeriodMs(1000.0d / 256);
+        for (String channel : new String[]{"tp9", "af7", "af8", "tp10", "right_aux"}) {
+            Channel.Builder channelBuilder = blockBuilder.addChannelsBuilder()
+                    .setName(channel)
+                    .setScale(EEGHandler.EEG_SCALE);
+            for (int i = 0; i < 12; i++) {
+                channelBuilder.addIntValues(i * 100 - 2048);
+            }
+        }
+        return Event.newBuilder()
+                .setSensor(Sensor.newBuilder().setHwAddress("00:55:DA:B5:35:5A"))
+                .addBlocks(blockBuilder)
+                .build();
+    }
+}
@@ -28,11 +28,21 @@
 
 package org.opennms.iot.az;
 
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.time.Instant;
+
+import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 import org.junit.Test;
+import org.opennms.iot.SampleBlocks;
+import org.opennms.iot.ble.proto.Channel;
 import org.opennms.iot.ble.proto.Event;
 import org.opennms.iot.ble.proto.FieldValue;
 import org.opennms.iot.ble.proto.Metric;
+import org.opennms.iot.ble.proto.SampleBlock;
 import org.opennms.iot.ble.proto.Sensor;
 import org.opennms.iot.handlers.PolarH7Handler;
 import org.skyscreamer.jsonassert.JSONAssert;
@@ -72,4 +82,49 @@ public class TSIMapperTest {
         System.out.println("Actual JSON:   " + json);
         JSONAssert.assertEquals(expectedJson, json, JSONCompareMode.LENIENT);
     }
+
+    @Test
+    public void canMapEveryMetric() throws JSONException {
+        SampleBlock.Builder blockBuilder = SampleBlock.newBuilder()
+                .setName("eeg")
+                .setStartTimestamp(1588222530705L)
+                .setSamplePeriodMs(1000.0d / 256);
+        for (String channel : new String[]{"tp9", "af7"}) {
+            Channel.Builder channelBuilder = blockBuilder.addChannelsBuilder().setName(channel);
+            for (int i = 0; i < 12; i++) {
+                channelBuilder.addDoubleValues(i);
+            }
+        }
+        Event event = SampleBlocks.toMetrics(Event.newBuilder()
+                .setSensor(Sensor.newBuilder().setHwAddress("00:55:DA:B5:35:5A"))
+                .addBlocks(blockBuilder)
+                .build());
+
+        JSONArray messages = new JSONArray(new TSIMapper().mapEvent(event).getBodyAsString());
+        assertThat(messages.length(), equalTo(12));
+        for (int i = 0; i < 12; i++) {
+            JSONObject message = messages.getJSONObject(i);
+            assertThat(message.getString("deviceId"), equalTo("00:55:DA:B5:35:5A"));
+            assertThat(message.getString("timestamp"), equalTo(Instant.ofEpochMilli(event.getMetrics(i).getTimestamp()).toString()));
+            assertThat(message.getJSONArray("series").getJSONObject(0).getDouble("af7"), equalTo((double)i));
+        }
+    }
+
+    @Test
+    public void canFormatTimestampsLikeInstant() throws JSONException {
+        TSIMapper tsiMapper = new TSIMapper();
+        long[] timestamps = {0L, 1L, 999L, 1000L, 1516151820000L, 1588222530705L, 1588222530750L, 1588222531000L,
+                -1L, 253402300799999L};
+        for (long timestamp : timestamps) {
+            Event event = Event.newBuilder()
+                    .setSensor(Sensor.newBuilder().setHwAddress("FXXX"))
+                    .addMetrics(Metric.newBuilder()
+                            .setName("m")
+                            .setTimestamp(timestamp)
+                            .putFields("v", FieldValue.newBuilder().setFloatValue(1).build()))
+                    .build();
+            JSONObject message = new JSONObject(tsiMapper.mapEvent(event).getBodyAsString());
+            assertThat(message.getString("timestamp"), equalTo(Instant.ofEpochMilli(timestamp).toString()));
+        }
+    }
 }
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.connection;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class AdmissionControlTest {
+
+    @Test
+    public void limitsConcurrentAttemptsPerAdapter() throws Exception {
+        AdmissionControl admissionControl = new AdmissionControl(2);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        List<String> admitted = Collections.synchronizedList(new ArrayList<>());
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            // Another adapter is not held up by the first one
+            try (AdmissionControl.Permit hci0 = admissionControl.acquire("hci0");
+                 AdmissionControl.Permit other = admissionControl.acquire("hci0")) {
+                assertThat(admissionControl.getInFlight("hci0"), equalTo(2));
+                admissionControl.acquire("hci1").close();
+                assertThat(admissionControl.getInFlight("hci1"), equalTo(0));
+            }
+
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> attempts = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                String name = "sensor-" + i;
+                attempts.add(executor.submit(() -> {
+                    start.await();
+                    try (AdmissionControl.Permit permit = admissionControl.acquire("hci0")) {
+                        admitted.add(name);
+                        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                        Thread.sleep(20);
+                        inFlight.decrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> attempt : attempts) {
+                attempt.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(admitted.size(), equalTo(8));
+        assertThat(maxInFlight.get(), equalTo(2));
+        assertThat(admissionControl.getInFlight("hci0"), equalTo(0));
+        assertThat(admissionControl.getQueueLength("hci0"), equalTo(0));
+    }
+}
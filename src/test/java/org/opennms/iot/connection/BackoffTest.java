@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.connection;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class BackoffTest {
+
+    @Test
+    public void canBackOffExponentiallyWithJitter() {
+        Backoff backoff = new Backoff(250, 4000, 2, new Random(42));
+        long[] bases = {250, 500, 1000, 2000, 4000, 4000};
+        for (long base : bases) {
+            assertThat(backoff.nextDelayMs(), allOf(greaterThanOrEqualTo(base / 2), lessThanOrEqualTo(base)));
+        }
+        assertThat(backoff.getAttempts(), equalTo(bases.length));
+
+        backoff.reset();
+        assertThat(backoff.getAttempts(), equalTo(0));
+        assertThat(backoff.nextDelayMs(), lessThanOrEqualTo(250L));
+    }
+
+    @Test
+    public void spreadsOutDevicesThatRetryTogether() {
+        // Every device retries after the same number of failures, i.e. after the gateway rebooted
+        Random random = new Random(42);
+        Set<Long> delays = new HashSet<>();
+        for (int device = 0; device < 30; device++) {
+            Backoff backoff = new Backoff(1000, 30000, 2, random);
+            backoff.nextDelayMs();
+            delays.add(backoff.nextDelayMs());
+        }
+        assertThat(delays.size(), greaterThan(25));
+    }
+}
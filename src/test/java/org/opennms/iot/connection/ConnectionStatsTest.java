@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.connection;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.opennms.iot.metrics.ExpositionBuffer;
+
+public class ConnectionStatsTest {
+
+    @Test
+    public void canExposeConnectionStats() {
+        ConnectionStats stats = new ConnectionStats();
+        long now = System.nanoTime();
+        stats.recordQueued(now);
+        stats.recordAttempt(false, now - TimeUnit.SECONDS.toNanos(5));
+        stats.recordAttempt(true, now - TimeUnit.MILLISECONDS.toNanos(800));
+        stats.recordDisconnect();
+        stats.recordReconnect(now - TimeUnit.SECONDS.toNanos(2));
+        assertThat(stats.getSuccessRate(), equalTo(0.5d));
+        // Within the relative error of the histogram
+        assertThat(stats.getReconnectTime().getValueAtPercentile(50) / 1e9d, closeTo(2, 0.25));
+
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        stats.writeTo(buffer);
+        String text = buffer.toString();
+        assertThat(text, containsString("ble_connect_attempts_total 2\n"));
+        assertThat(text, containsString("ble_connect_failures_total 1\n"));
+        assertThat(text, containsString("ble_connect_success_ratio 0.5\n"));
+        assertThat(text, containsString("ble_disconnects_total 1\n"));
+        assertThat(text, containsString("# TYPE ble_reconnect_latency_seconds summary\n"));
+        assertThat(text, containsString("ble_reconnect_latency_seconds{quantile=\"0.5\"} "));
+        assertThat(text, containsString("ble_reconnect_latency_seconds_count 1\n"));
+        assertThat(text, containsString("ble_connect_duration_seconds_count 2\n"));
+    }
+}
@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.discovery;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class DeviceIndexTest {
+
+    // The devices are their address
+    private final DeviceIndex<String> index = new DeviceIndex<>(address -> address);
+
+    @Test
+    public void canIndexAndWaitForDevices() throws Exception {
+        CompletableFuture<String> muse = index.await("00:55:da:b0:00:01");
+        assertThat(index.await("00:55:DA:B0:00:01"), equalTo(muse));
+        assertThat(index.getPendingCount(), equalTo(1));
+
+        assertThat(index.update(Arrays.asList("A4:34:F1:00:00:02")), contains("A4:34:F1:00:00:02"));
+        assertThat(muse.isDone(), equalTo(false));
+        assertThat(index.get("a4:34:f1:00:00:02"), equalTo("A4:34:F1:00:00:02"));
+
+        // Only the new devices are reported
+        assertThat(index.update(Arrays.asList("A4:34:F1:00:00:02", "00:55:DA:B0:00:01")), contains("00:55:DA:B0:00:01"));
+        assertThat(muse.get(0, TimeUnit.SECONDS), equalTo("00:55:DA:B0:00:01"));
+        assertThat(index.getPendingCount(), equalTo(0));
+        assertThat(index.await("00:55:DA:B0:00:01").isDone(), equalTo(true));
+
+        // Devices no longer known by BlueZ are removed
+        assertThat(index.update(Collections.singletonList("00:55:DA:B0:00:01")), empty());
+        assertThat(index.get("A4:34:F1:00:00:02"), nullValue());
+        assertThat(index.size(), equalTo(1));
+        assertThat(index.await("A4:34:F1:00:00:02").isDone(), equalTo(false));
+    }
+
+    @Test
+    public void doesNotMissDevicesAddedWhileWaiting() throws Exception {
+        int numDevices = 1000;
+        List<String> devices = new ArrayList<>();
+        for (int i = 0; i < numDevices; i++) {
+            devices.add(String.format("00:00:00:00:%02X:%02X", i >> 8, i & 0xFF));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<String>> waiters = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                waiters.add(executor.submit(() -> {
+                    start.await();
+                    for (String device : devices) {
+                        index.await(device);
+                    }
+                    return index.await(devices.get(numDevices - 1)).get(10, TimeUnit.SECONDS);
+                }));
+            }
+            start.countDown();
+            // Devices appear one scan at a time, concurrently with the lookups
+            for (int i = 1; i <= numDevices; i++) {
+                index.update(devices.subList(0, i));
+            }
+            for (Future<String> waiter : waiters) {
+                assertThat(waiter.get(10, TimeUnit.SECONDS), equalTo(devices.get(numDevices - 1)));
+            }
+            for (String device : devices) {
+                assertThat(index.await(device).get(0, TimeUnit.SECONDS), equalTo(device));
+            }
+            assertThat(index.getPendingCount(), equalTo(0));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
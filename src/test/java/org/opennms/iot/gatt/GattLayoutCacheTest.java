@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.gatt;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opennms.iot.handlers.PolarH7Handler;
+import org.opennms.iot.muse.MuseConstants;
+
+public class GattLayoutCacheTest {
+
+    private static final String MUSE = "00:55:DA:B5:35:5A";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void canMatchServicesAndCharacteristics() {
+        GattLayout layout = museLayout();
+        assertThat(layout.hasService(MuseConstants.MUSE_SVC), equalTo(true));
+        assertThat(layout.hasService(PolarH7Handler.H7_HR_SVC), equalTo(false));
+        assertThat(layout.hasCharacteristic(MuseConstants.MUSE_SVC.toUpperCase(), MuseConstants.MUSE_GATT_ATTR_TP9), equalTo(true));
+        assertThat(layout.hasCharacteristic(MuseConstants.MUSE_SVC, PolarH7Handler.H7_HR_CHAR), equalTo(false));
+        assertThat(layout.getCharacteristicUuids(PolarH7Handler.H7_HR_SVC), equalTo(Collections.<String>emptyList()));
+
+        // A partially discovered layout doesn't contain the full one
+        Map<String, List<String>> partial = new LinkedHashMap<>();
+        partial.put(MuseConstants.MUSE_SVC, Collections.singletonList(MuseConstants.MUSE_GATT_ATTR_TP9));
+        assertThat(layout.containsAll(new GattLayout(partial)), equalTo(true));
+        assertThat(new GattLayout(partial).containsAll(layout), equalTo(false));
+        assertThat(layout.containsAll(GattLayout.EMPTY), equalTo(true));
+
+        assertThat(GattLayout.parse(Arrays.asList(layout.toString().split("\n"))), equalTo(layout));
+    }
+
+    @Test
+    public void canPersistLayoutsByAddress() throws Exception {
+        Path directory = tempFolder.newFolder().toPath();
+        GattLayoutCache cache = new GattLayoutCache(directory);
+        assertThat(cache.get(MUSE), nullValue());
+
+        cache.put(MUSE.toLowerCase(), museLayout());
+        assertThat(cache.get(MUSE), equalTo(museLayout()));
+
+        // Read back by another run
+        GattLayoutCache reloaded = new GattLayoutCache(directory);
+        assertThat(reloaded.get(MUSE), equalTo(museLayout()));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files.map(p -> p.getFileName().toString()).toArray(), equalTo(new Object[]{"00-55-DA-B5-35-5A.gatt"}));
+        }
+
+        reloaded.remove(MUSE);
+        assertThat(reloaded.get(MUSE), nullValue());
+        assertThat(new GattLayoutCache(directory).get(MUSE), nullValue());
+
+        // Without a directory, layouts are only kept in memory
+        GattLayoutCache memory = new GattLayoutCache(null);
+        memory.put(MUSE, museLayout());
+        assertThat(memory.get(MUSE).getServiceUuids(), contains("00001800-0000-1000-8000-00805f9b34fb", MuseConstants.MUSE_SVC));
+    }
+
+    private static GattLayout museLayout() {
+        Map<String, List<String>> layout = new LinkedHashMap<>();
+        layout.put("00001800-0000-1000-8000-00805f9b34fb", Arrays.asList("00002a00-0000-1000-8000-00805f9b34fb"));
+        layout.put(MuseConstants.MUSE_SVC, Arrays.asList(MuseConstants.MUSE_GATT_ATTR_STREAM_TOGGLE,
+                MuseConstants.MUSE_GATT_ATTR_TP9, MuseConstants.MUSE_GATT_ATTR_AF7));
+        return new GattLayout(layout);
+    }
+}
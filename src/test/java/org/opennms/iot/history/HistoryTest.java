@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot.history;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.opennms.iot.SharedEvent;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.Sensor;
+
+public class HistoryTest {
+
+    @Test
+    public void canEvictOldestRecordsWhenFull() {
+        // Room for 3 records of 10 bytes, so the writes wrap around the end of the buffer
+        HistoryRing ring = new HistoryRing(3 * (HistoryRing.HEADER_SIZE + 10) + 5, 60000);
+        for (int i = 0; i < 10; i++) {
+            byte[] payload = new byte[10];
+            payload[0] = (byte)i;
+            payload[9] = (byte)i;
+            ring.append(i + 1, 1000, payload);
+        }
+
+        assertThat(ring.size(), equalTo(3));
+        assertThat(ring.getEvictedCount(), equalTo(7L));
+        HistoryRing.Record record = ring.read(0);
+        assertThat(record.sequence, equalTo(8L));
+        for (int i = 7; i < 10; i++) {
+            assertThat(record.payload[0], equalTo((byte)i));
+            assertThat(record.payload[9], equalTo((byte)i));
+            record = ring.read(record.nextPosition);
+        }
+        assertThat(record, nullValue());
+    }
+
+    @Test
+    public void canEvictExpiredRecords() {
+        HistoryRing ring = new HistoryRing(1024, 1000);
+        ring.append(1, 1000, new byte[1]);
+        ring.append(2, 1500, new byte[1]);
+        ring.append(3, 2200, new byte[1]);
+
+        assertThat(ring.size(), equalTo(2));
+        assertThat(ring.read(ring.seek(0)).sequence, equalTo(2L));
+        assertThat(ring.read(ring.seek(1600)).sequence, equalTo(3L));
+    }
+
+    @Test
+    public void canReplayAllSensorsInOrder() {
+        History history = new History(60, 4096, 8192);
+        for (int i = 0; i < 6; i++) {
+            history.append(event(i % 2 == 0 ? "00:00:00:00:00:01" : "00:00:00:00:00:02", i));
+        }
+
+        AtomicReference<ReplayCursor> cursorRef = new AtomicReference<>();
+        history.openCursor(0, cursorRef::set);
+        // Recorded after the cursor was opened, so it is not replayed
+        history.append(event("00:00:00:00:00:01", 6));
+
+        ReplayCursor cursor = cursorRef.get();
+        List<String> messages = new ArrayList<>();
+        SharedEvent event;
+        while ((event = cursor.next()) != null) {
+            messages.add(event.getEvent().getMessage());
+        }
+        assertThat(messages, contains("0", "1", "2", "3", "4", "5"));
+        assertThat(cursor.getEndSequence(), equalTo(7L));
+        assertThat(cursor.getSkippedCount(), equalTo(0L));
+    }
+
+    @Test(timeout = 10000)
+    public void canOpenCursorWhileAppending() throws InterruptedException {
+        History history = new History(60, 64 * 1024, 256 * 1024);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            String sensor = "00:00:00:00:00:0" + t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    history.append(event(sensor, i));
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        AtomicReference<ReplayCursor> cursorRef = new AtomicReference<>();
+        while (cursorRef.get() == null || cursorRef.get().getEndSequence() < 500) {
+            history.openCursor(0, cursorRef::set);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Every event before the end of the cursor must have been recorded by the time it was opened
+        ReplayCursor cursor = cursorRef.get();
+        long expectedSequence = 1;
+        SharedEvent event;
+        while ((event = cursor.next()) != null) {
+            assertThat(event.getSequence(), equalTo(expectedSequence++));
+        }
+        assertThat(expectedSequence, equalTo(cursor.getEndSequence()));
+        assertThat(cursor.getSkippedCount(), equalTo(0L));
+    }
+
+    @Test
+    public void canSkipSensorsBeyondTheLimit() {
+        History history = new History(60, 4096, 2 * 4096);
+        history.append(event("00:00:00:00:00:01", 0));
+        history.append(event("00:00:00:00:00:02", 1));
+        SharedEvent unrecorded = history.append(event("00:00:00:00:00:03", 2));
+
+        assertThat(unrecorded.getSequence(), equalTo(0L));
+        assertThat(history.size(), equalTo(2));
+        assertThat(history.getBytesAllocated(), equalTo(2 * 4096L));
+    }
+
+    private static Event event(String sensor, int i) {
+        return Event.newBuilder()
+                .setSensor(Sensor.newBuilder().setHwAddress(sensor))
+                .setMessage(Integer.toString(i))
+                .build();
+    }
+}
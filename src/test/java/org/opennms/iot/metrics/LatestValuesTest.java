@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.metrics;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.SampleBlock;
+import org.opennms.iot.ble.proto.Sensor;
+import org.opennms.iot.schema.FieldDef;
+import org.opennms.iot.schema.MetricDef;
+
+public class LatestValuesTest {
+
+    private static final String POLAR = "00:22:D0:26:58:91";
+    private static final String MUSE = "00:55:DA:B5:35:5A";
+
+    @Test
+    public void canTrackLatestValues() {
+        LatestValues latestValues = new LatestValues();
+        latestValues.update(heartRate(72, 1588538411000L));
+        latestValues.update(heartRate(75, 1588538412000L));
+        latestValues.update(eeg(1588222530705L, -1000, 12, 24));
+
+        assertThat(latestValues.getValue(POLAR, FieldDef.POLAR_H7_BPM), equalTo(75d));
+        assertThat(latestValues.getValue(POLAR, FieldDef.POLAR_H7_RR), equalTo(812.5d));
+        assertThat(Double.isNaN(latestValues.getValue(POLAR, FieldDef.EEG_TP9)), equalTo(true));
+        assertThat(latestValues.getValue(MUSE, FieldDef.EEG_TP9), closeTo(24 * 0.48828125d, 0.00001d));
+
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        latestValues.writeTo(buffer);
+        String text = buffer.toString();
+        assertThat(text, containsString("ble_sensor_value{sensor=\"00:22:D0:26:58:91\",metric=\"polar-h7\",field=\"beats_per_minute\",unit=\"bpm\"} 75\n"));
+        assertThat(text, containsString("ble_sensor_value{sensor=\"00:22:D0:26:58:91\",metric=\"polar-h7\",field=\"rr\",unit=\"ms\"} 812.5\n"));
+        assertThat(text, containsString("ble_sensor_value{sensor=\"00:55:DA:B5:35:5A\",metric=\"eeg\",field=\"tp9\",unit=\"microvolts\"} 11.71875\n"));
+        // The timestamp of the last sample of the block
+        assertThat(text, containsString("ble_sensor_value_timestamp_seconds{sensor=\"00:55:DA:B5:35:5A\",metric=\"eeg\",field=\"tp9\",unit=\"microvolts\"} 1588222530.712\n"));
+        assertThat(text, containsString("ble_sensor_rssi_dbm{sensor=\"00:22:D0:26:58:91\"} -67\n"));
+        assertThat(text, containsString("ble_sensor_packets_total{sensor=\"00:22:D0:26:58:91\"} 2\n"));
+        assertThat(text, containsString("ble_sensor_packets_total{sensor=\"00:55:DA:B5:35:5A\"} 1\n"));
+        assertThat(text, containsString("# TYPE ble_sensor_packets_per_second gauge\n"));
+        // Only fields that were seen
+        assertThat(text, not(containsString("energy_expended")));
+    }
+
+    @Test
+    public void canRejectSensorsWhenFull() {
+        LatestValues latestValues = new LatestValues(1);
+        latestValues.update(heartRate(72, 1588538411000L));
+        latestValues.update(eeg(1588222530705L, 1, 2));
+        assertThat(latestValues.getRejectedEventCount(), equalTo(1L));
+        assertThat(Double.isNaN(latestValues.getValue(MUSE, FieldDef.EEG_TP9)), equalTo(true));
+    }
+
+    @Test(timeout = 10000)
+    public void canAssignSlotsConcurrently() throws InterruptedException {
+        LatestValues latestValues = new LatestValues(64);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 16; i++) {
+                    latestValues.update(heartRate(String.format("00:00:00:00:%02X:%02X", thread, i), 60 + i, 1588538411000L));
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Every slot was handed out exactly once
+        int tracked = 0;
+        for (int t = 0; t < 8; t++) {
+            for (int i = 0; i < 16; i++) {
+                double bpm = latestValues.getValue(String.format("00:00:00:00:%02X:%02X", t, i), FieldDef.POLAR_H7_BPM);
+                if (!Double.isNaN(bpm)) {
+                    assertThat(bpm, equalTo(60d + i));
+                    tracked++;
+                }
+            }
+        }
+        assertThat(tracked, equalTo(64));
+        assertThat(latestValues.getRejectedEventCount(), equalTo(64L));
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        latestValues.writeTo(buffer);
+        assertThat(buffer.toString().split("ble_sensor_packets_total\\{").length - 1, equalTo(64));
+    }
+
+    @Test
+    public void canServeMetrics() throws Exception {
+        LatestValues latestValues = new LatestValues();
+        latestValues.update(heartRate(72, 1588538411000L));
+        try (MetricsEndpoint endpoint = new MetricsEndpoint(0, latestValues)) {
+            // Twice, the buffer is reused
+            for (int i = 0; i < 2; i++) {
+                HttpURLConnection connection = (HttpURLConnection)new URL("http://localhost:" + endpoint.getPort() + MetricsEndpoint.PATH).openConnection();
+                assertThat(connection.getResponseCode(), equalTo(200));
+                assertThat(connection.getContentType(), equalTo(MetricsEndpoint.CONTENT_TYPE));
+                String text = read(connection.getInputStream());
+                assertThat(text, containsString("ble_sensor_value{sensor=\"00:22:D0:26:58:91\",metric=\"polar-h7\",field=\"beats_per_minute\",unit=\"bpm\"} 72\n"));
+            }
+        }
+    }
+
+    @Test
+    public void canFormatNumbers() {
+        ExpositionBuffer buffer = new ExpositionBuffer(4);
+        buffer.writeDouble(0).write(' ')
+                .writeDouble(-42).write(' ')
+                .writeDouble(3.25).write(' ')
+                .writeDouble(-0.1).write(' ')
+                .writeDouble(1.0000004).write(' ')
+                .writeDouble(1e-9).write(' ')
+                .writeDouble(Double.NaN).write(' ')
+                .writeDouble(Double.NEGATIVE_INFINITY).write(' ')
+                .writeLong(Long.MAX_VALUE);
+        assertThat(buffer.toString(), equalTo("0 -42 3.25 -0.1 1 1.0E-9 NaN -Inf 9223372036854775807"));
+    }
+
+    private static Event heartRate(int bpm, long timestamp) {
+        return heartRate(POLAR, bpm, timestamp);
+    }
+
+    private static Event heartRate(String address, int bpm, long timestamp) {
+        return Event.newBuilder()
+                .setSensor(Sensor.newBuilder().setHwAddress(address).setRssi(-67))
+                .addBlocks(MetricDef.POLAR_H7.newBlock()
+                        .setStartTimestamp(timestamp)
+                        .addChannels(FieldDef.POLAR_H7_BPM.newChannel().addIntValues(bpm))
+                        .addChannels(FieldDef.POLAR_H7_RR.newChannel()
+                                .setEnumerated(true)
+                                .addDoubleValues(833.0)
+                                .addDoubleValues(812.5)))
+                .build();
+    }
+
+    private static Event eeg(long timestamp, int... samples) {
+        SampleBlock.Builder blockBuilder = MetricDef.EEG.newBlock()
+                .setStartTimestamp(timestamp)
+                .setSamplePeriodMs(1000.0d / 256);
+        for (FieldDef field : new FieldDef[]{FieldDef.EEG_TP9, FieldDef.EEG_AF7}) {
+            blockBuilder.addChannels(field.newChannel().setScale(0.48828125d));
+            for (int sample : samples) {
+                blockBuilder.getChannelsBuilder(blockBuilder.getChannelsCount() - 1).addIntValues(sample);
+            }
+        }
+        return Event.newBuilder()
+                .setSensor(Sensor.newBuilder().setHwAddress(MUSE).setRssi(-80))
+                .addBlocks(blockBuilder)
+                .build();
+    }
+
+    private static String read(InputStream in) throws Exception {
+        try (InputStream is = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -29,8 +29,10 @@
 package org.opennms.iot.muse;
 
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.hasSize;
 
 import java.util.Base64;
@@ -69,4 +71,39 @@ public class EEGHandlerTest {
         assertThat(values.get(10), closeTo(-96.6796875 , epsilon));
         assertThat(values.get(11), closeTo(-1000. , epsilon));
     }
+
+    @Test
+    public void canDecodeEegPacketIntoArrays() {
+        byte[] eegChannelData = Base64.getDecoder().decode("FQYW2p8AAavp7mcdoACPUYBzoAA=");
+        assertThat(EEGHandler.getNumSamples(eegChannelData), equalTo(EEGHandler.SAMPLES_PER_PACKET));
+
+        short[] raw = new short[EEGHandler.SAMPLES_PER_PACKET + 2];
+        assertThat(EEGHandler.decodeEegChannel(eegChannelData, raw, 2), equalTo(5382));
+        double[] values = new double[EEGHandler.SAMPLES_PER_PACKET];
+        assertThat(EEGHandler.decodeEegChannel(eegChannelData, values, 0), equalTo(5382));
+
+        double epsilon = 0.00001d;
+        assertThat(raw[2] * EEGHandler.EEG_SCALE, closeTo(-821.77734375, epsilon));
+        assertThat(raw[13] * EEGHandler.EEG_SCALE, closeTo(-1000., epsilon));
+        assertThat(values[0], closeTo(-821.77734375, epsilon));
+        assertThat(values[11], closeTo(-1000., epsilon));
+    }
+
+    @Test
+    public void canReuseSamples() {
+        byte[] eegChannelData = Base64.getDecoder().decode("FQYW2p8AAavp7mcdoACPUYBzoAA=");
+        EEGSample frame = new EEGSample(EEGHandler.NUM_CHANNELS, EEGHandler.SAMPLES_PER_PACKET);
+        assertThat(frame.isEmpty(), equalTo(true));
+
+        EEGHandler.unpack_eeg_channel(eegChannelData, frame.getChannelSlab(3));
+        assertThat(frame.isEmpty(), equalTo(false));
+        assertThat(frame.getChannel(0), nullValue());
+        assertThat(frame.getChannel(3).getIndex(), equalTo(5382));
+        assertThat(frame.getChannel(3).getRawValue(1) * EEGHandler.EEG_SCALE, closeTo(327.63671875, 0.00001d));
+        assertThat(frame.getData().keySet(), contains(3));
+
+        frame.clear();
+        assertThat(frame.isEmpty(), equalTo(true));
+        assertThat(frame.getChannel(3), nullValue());
+    }
 }
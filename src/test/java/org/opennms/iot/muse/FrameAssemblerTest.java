@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.muse;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.startsWith;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class FrameAssemblerTest {
+
+    private static final byte[] PACKET = Base64.getDecoder().decode("FQYW2p8AAavp7mcdoACPUYBzoAA=");
+    private static final long LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(FrameAssembler.DEFAULT_MAX_LATENCY_MS);
+
+    private final List<String> flushed = new ArrayList<>();
+
+    private final FrameAssembler assembler = new FrameAssembler(EEGHandler.NUM_CHANNELS, EEGHandler.SAMPLES_PER_PACKET,
+            EEGHandler::unpack_eeg_channel, new FrameAssembler.Listener() {
+        @Override
+        public void onFrame(EEGSample frame, long sequence, long receivedNanos) {
+            StringBuilder sb = new StringBuilder("frame ").append(sequence).append(':');
+            frame.getData().forEach((channel, samples) -> {
+                assertThat(samples.getIndex(), equalTo((int)(sequence & 0xFFFF)));
+                sb.append(channel);
+            });
+            flushed.add(sb.toString());
+        }
+
+        @Override
+        public void onGap(long fromSequence, long numFrames) {
+            flushed.add("gap " + fromSequence + "+" + numFrames);
+        }
+    });
+
+    private static byte[] packet(int tm) {
+        byte[] packet = PACKET.clone();
+        packet[0] = (byte)(tm >> 8);
+        packet[1] = (byte)tm;
+        return packet;
+    }
+
+    @Test
+    public void canAssembleFramesInAnyOrder() {
+        for (int channel : new int[]{4, 3, 2, 0}) {
+            assembler.add(channel, packet(100), 0);
+        }
+        assembler.add(2, packet(100), 0);
+        assertThat(flushed, empty());
+        assertThat(assembler.getDuplicatePacketCount(), equalTo(1L));
+
+        // The next frame completes before the previous one
+        for (int channel : new int[]{0, 1, 2, 3, 4}) {
+            assembler.add(channel, packet(101), 0);
+        }
+        assertThat(flushed, empty());
+
+        assembler.add(1, packet(100), 0);
+        assertThat(flushed, contains("frame 100:01234", "frame 101:01234"));
+        assertThat(assembler.getCompleteFrameCount(), equalTo(2L));
+
+        assembler.add(1, packet(100), 0);
+        assertThat(assembler.getLatePacketCount(), equalTo(1L));
+    }
+
+    @Test
+    public void canFlushIncompleteFramesWithGaps() {
+        for (int channel : new int[]{0, 1, 3, 4}) {
+            assembler.add(channel, packet(7), 0);
+        }
+        // Frames 8 and 9 never arrive
+        for (int channel = 0; channel < EEGHandler.NUM_CHANNELS; channel++) {
+            assembler.add(channel, packet(10), 10);
+        }
+        assembler.flush(LATENCY_NANOS - 1);
+        assertThat(flushed, empty());
+
+        assembler.flush(LATENCY_NANOS + 10);
+        assertThat(flushed, contains("frame 7:0134", "gap 8+2", "frame 10:01234"));
+        assertThat(assembler.getPartialFrameCount(), equalTo(1L));
+        assertThat(assembler.getMissingFrameCount(), equalTo(2L));
+        assertThat(assembler.getMissingPacketCount(), equalTo(11L));
+
+        assembler.add(2, packet(7), LATENCY_NANOS + 20);
+        assertThat(assembler.getLatePacketCount(), equalTo(1L));
+    }
+
+    @Test
+    public void canWrapAroundAndSkipAhead() {
+        for (int tm : new int[]{0xFFFF, 0, 1}) {
+            for (int channel = 0; channel < EEGHandler.NUM_CHANNELS; channel++) {
+                assembler.add(channel, packet(tm), 0);
+            }
+        }
+        assertThat(flushed, contains("frame 65535:01234", "frame 65536:01234", "frame 65537:01234"));
+
+        // A jump larger than the window flushes whatever is in flight
+        flushed.clear();
+        assembler.add(0, packet(2), 0);
+        assembler.add(0, packet(2 + FrameAssembler.DEFAULT_WINDOW + 3), 0);
+        assertThat(flushed, contains("frame 65538:0", "gap 65539+3"));
+    }
+
+    @Test
+    public void canAssembleFromConcurrentCallbacks() throws InterruptedException {
+        int numFrames = 5000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < EEGHandler.NUM_CHANNELS; c++) {
+            int channel = c;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int tm = 0; tm < numFrames; tm++) {
+                    assembler.add(channel, packet(tm), 0);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // Channels that ran ahead of the others pushed out some frames early, the rest are all there
+        assembler.flush(LATENCY_NANOS);
+
+        // Every frame is flushed or skipped exactly once, in order, and every packet is either in a frame or late
+        long nextSequence = 0;
+        long numPackets = 0;
+        for (String entry : flushed) {
+            if (entry.startsWith("gap ")) {
+                assertThat(entry, startsWith("gap " + nextSequence + "+"));
+                nextSequence += Long.parseLong(entry.substring(entry.indexOf('+') + 1));
+            } else {
+                assertThat(entry, startsWith("frame " + nextSequence + ":"));
+                nextSequence++;
+                numPackets += entry.length() - entry.indexOf(':') - 1;
+            }
+        }
+        assertThat(nextSequence, equalTo((long)numFrames));
+        assertThat(numPackets + assembler.getLatePacketCount(), equalTo((long)numFrames * EEGHandler.NUM_CHANNELS));
+        assertThat(assembler.getDuplicatePacketCount(), equalTo(0L));
+    }
+}
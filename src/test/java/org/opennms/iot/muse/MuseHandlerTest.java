@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.muse;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.hasSize;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.iot.SampleBlocks;
+import org.opennms.iot.SensorDescriptor;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.SampleBlock;
+import org.opennms.iot.schema.FieldDef;
+import org.opennms.iot.schema.MetricDef;
+
+public class MuseHandlerTest {
+
+    private final List<Event> events = new ArrayList<>();
+    private MuseHandler museHandler;
+
+    @Before
+    public void setUp() {
+        museHandler = new MuseHandler(SensorDescriptor.forAddress("00:55:DA:B5:35:5A"));
+        museHandler.registerConsumer(events::add);
+    }
+
+    private static byte[] packet(int tm, int bytesPerValue, long... values) {
+        byte[] packet = new byte[2 + bytesPerValue * values.length];
+        packet[0] = (byte)(tm >> 8);
+        packet[1] = (byte)tm;
+        for (int i = 0; i < values.length; i++) {
+            for (int b = 0; b < bytesPerValue; b++) {
+                packet[2 + i * bytesPerValue + b] = (byte)(values[i] >> (8 * (bytesPerValue - b - 1)));
+            }
+        }
+        return packet;
+    }
+
+    @Test
+    public void canDecodeAccelerometer() {
+        museHandler.handle_acc(packet(0xFFFF, 2, 16384, -16384, 1, 0, 0, 0, -1, 2, 3));
+        assertThat(events, hasSize(1));
+        SampleBlock block = events.get(0).getBlocks(0);
+        assertThat(block.getMetricId(), equalTo(MetricDef.ACCELEROMETER.getId()));
+        assertThat(block.getSamplePeriodMs(), closeTo(1000.0d / MuseConstants.MUSE_SAMPLING_ACC_RATE, 0.001));
+        assertThat(block.getChannelsCount(), equalTo(IMUHandler.NUM_AXES));
+        assertThat(block.getChannels(0).getFieldId(), equalTo(FieldDef.ACCELEROMETER_X.getId()));
+        assertThat(block.getChannels(0).getIntValuesList(), equalTo(Arrays.asList(16384, 0, -1)));
+        assertThat(SampleBlocks.getValue(block.getChannels(0), 0), closeTo(1.0d, 0.0001));
+        assertThat(SampleBlocks.getValue(block.getChannels(1), 0), closeTo(-1.0d, 0.0001));
+        assertThat(block.getChannels(2).getIntValuesList(), equalTo(Arrays.asList(1, 0, 3)));
+
+        // The sequence number wraps around, and two packets are lost
+        events.clear();
+        museHandler.handle_acc(packet(2, 2, new long[9]));
+        assertThat(events, hasSize(2));
+        assertThat(events.get(0).getBlocks(0).getGapSamples(), equalTo(2 * IMUHandler.SAMPLES_PER_PACKET));
+        assertThat(events.get(0).getBlocks(0).getChannelsCount(), equalTo(0));
+        assertThat(events.get(1).getBlocks(0).getChannelsCount(), equalTo(IMUHandler.NUM_AXES));
+
+        // Repeated
+        museHandler.handle_acc(packet(2, 2, new long[9]));
+        assertThat(events, hasSize(2));
+    }
+
+    @Test
+    public void canDecodeGyro() {
+        museHandler.handle_gyro(packet(1, 2, 1000, 0, 0, 0, 0, 0, 0, 0, 0));
+        SampleBlock block = events.get(0).getBlocks(0);
+        assertThat(block.getName(), equalTo(MetricDef.GYRO.getName()));
+        assertThat(SampleBlocks.getValue(block.getChannels(0), 0), closeTo(7.4768d, 0.0001));
+    }
+
+    @Test
+    public void canDecodePpg() {
+        long[] values = {0x010203, 0xFFFFFF, 0, 1, 2, 3};
+        museHandler.handle_ppg(MuseConstants.MUSE_GATT_ATTR_PPG3, packet(7, 3, values));
+        museHandler.handle_ppg(MuseConstants.MUSE_GATT_ATTR_PPG1, packet(7, 3, values));
+        assertThat(events, hasSize(0));
+        museHandler.handle_ppg(MuseConstants.MUSE_GATT_ATTR_PPG2, packet(7, 3, values));
+        assertThat(events, hasSize(1));
+
+        SampleBlock block = events.get(0).getBlocks(0);
+        assertThat(block.getMetricId(), equalTo(MetricDef.PPG.getId()));
+        assertThat(block.getChannelsCount(), equalTo(PPGHandler.NUM_CHANNELS));
+        assertThat(block.getChannels(2).getFieldId(), equalTo(FieldDef.PPG_RED.getId()));
+        assertThat(block.getChannels(2).getDoubleValuesList(), equalTo(Arrays.asList(66051.0d, 16777215.0d, 0.0d, 1.0d, 2.0d, 3.0d)));
+    }
+
+    @Test
+    public void canDecodeTelemetry() {
+        museHandler.handle_telemetry(packet(3, 2, 51200, 1000, 3000, 30, 0));
+        SampleBlock block = events.get(0).getBlocks(0);
+        assertThat(block.getMetricId(), equalTo(MetricDef.MUSE_TELEMETRY.getId()));
+        assertThat(block.getChannels(0).getDoubleValues(0), closeTo(100.0d, 0.0001));
+        assertThat(block.getChannels(1).getDoubleValues(0), closeTo(2200.0d, 0.0001));
+        assertThat(block.getChannels(2).getIntValues(0), equalTo(3000));
+        assertThat(block.getChannels(3).getIntValues(0), equalTo(30));
+    }
+}
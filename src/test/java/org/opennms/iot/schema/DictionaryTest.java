@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot.schema;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.opennms.iot.AbstractSubscriber;
+import org.opennms.iot.SharedEvent;
+import org.opennms.iot.Subscriber;
+import org.opennms.iot.SubscriptionFilter;
+import org.opennms.iot.ble.proto.Client;
+import org.opennms.iot.ble.proto.Encoding;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.SampleBlock;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import io.grpc.stub.StreamObserver;
+
+public class DictionaryTest {
+
+    private static final Event EVENT = Event.newBuilder()
+            .addBlocks(MetricDef.CC2650.newBlock()
+                    .setStartTimestamp(1588538411000L)
+                    .addChannels(FieldDef.CC2650_TEMPERATURE.newChannel().addDoubleValues(21.5))
+                    .addChannels(FieldDef.CC2650_HUMIDITY.newChannel().addDoubleValues(40.1)))
+            .build();
+
+    @Test
+    public void canCompactBlocks() {
+        Event compacted = Dictionary.compact(EVENT);
+        SampleBlock block = compacted.getBlocks(0);
+
+        assertThat(block.getName(), equalTo(""));
+        assertThat(block.getMetricId(), equalTo(MetricDef.CC2650.getId()));
+        assertThat(block.getChannels(0).getName(), equalTo(""));
+        assertThat(block.getChannels(0).getUnit(), equalTo(""));
+        assertThat(FieldDef.forId(block.getChannels(1).getFieldId()), equalTo(FieldDef.CC2650_HUMIDITY));
+        assertThat(Dictionary.getName(block), equalTo(MetricDef.CC2650.getName()));
+        assertThat(Dictionary.getName(block.getChannels(0)), equalTo(FieldDef.CC2650_TEMPERATURE.getName()));
+        assertThat(compacted.getSerializedSize(), lessThan(EVENT.getSerializedSize()));
+    }
+
+    @Test
+    public void canFilterCompactedBlocks() {
+        SubscriptionFilter filter = SubscriptionFilter.fromClient(Client.newBuilder()
+                .addFields(FieldDef.CC2650_HUMIDITY.getName())
+                .build());
+
+        Event filtered = filter.apply(Dictionary.compact(EVENT));
+
+        assertThat(filtered.getBlocks(0).getChannelsCount(), equalTo(1));
+        assertThat(filtered.getBlocks(0).getChannels(0).getFieldId(), equalTo(FieldDef.CC2650_HUMIDITY.getId()));
+    }
+
+    @Test
+    public void canAnnounceDictionaryFirst() {
+        List<SharedEvent> received = new ArrayList<>();
+        Subscriber subscriber = new Subscriber(Client.newBuilder().setEncoding(Encoding.DICTIONARY).build(),
+                new StreamObserver<SharedEvent>() {
+                    @Override
+                    public void onNext(SharedEvent value) {
+                        received.add(value);
+                    }
+
+                    @Override
+                    public void onError(Throwable t) { }
+
+                    @Override
+                    public void onCompleted() { }
+                }, 16, AbstractSubscriber.OverflowPolicy.DROP_OLDEST, MoreExecutors.directExecutor());
+
+        SharedEvent event = new SharedEvent(Dictionary.compact(EVENT));
+        subscriber.offer(event);
+        subscriber.offer(event);
+
+        assertThat(received, contains(sameInstance(Dictionary.ANNOUNCEMENT), sameInstance(event), sameInstance(event)));
+        assertThat(Dictionary.ANNOUNCEMENT.getEvent().getDictionaryCount(),
+                equalTo(MetricDef.values().length + FieldDef.values().length));
+    }
+}
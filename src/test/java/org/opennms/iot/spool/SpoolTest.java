@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.iot.spool;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpoolTest {
+
+    private static final int SEGMENT_SIZE = 96;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void canReadAcrossSegmentsAndDeleteAckedSegments() throws IOException {
+        Path dir = tempFolder.getRoot().toPath();
+        try (Spool spool = new Spool(dir, SEGMENT_SIZE, 1024)) {
+            // 4 records of 24 bytes per segment
+            for (int i = 0; i < 10; i++) {
+                spool.append(payload(i));
+            }
+            assertThat(numSegments(dir), equalTo(3));
+
+            List<Spool.Entry> entries = spool.read(spool.getAckPosition(), 100);
+            assertThat(payloads(entries), contains("record-0", "record-1", "record-2", "record-3", "record-4",
+                    "record-5", "record-6", "record-7", "record-8", "record-9"));
+
+            spool.ack(entries.get(6).getNextPosition(), 7);
+            assertThat(spool.getBacklog(), equalTo(3L));
+            assertThat(numSegments(dir), equalTo(2));
+            assertThat(payloads(spool.read(spool.getAckPosition(), 100)), contains("record-7", "record-8", "record-9"));
+        }
+    }
+
+    @Test
+    public void canResumeAfterRestart() throws IOException {
+        Path dir = tempFolder.getRoot().toPath();
+        long before = System.currentTimeMillis();
+        try (Spool spool = new Spool(dir, SEGMENT_SIZE, 1024)) {
+            for (int i = 0; i < 5; i++) {
+                spool.append(payload(i));
+            }
+            List<Spool.Entry> entries = spool.read(spool.getAckPosition(), 2);
+            spool.ack(entries.get(1).getNextPosition(), 2);
+        }
+
+        try (Spool spool = new Spool(dir, SEGMENT_SIZE, 1024)) {
+            assertThat(spool.getBacklog(), equalTo(3L));
+            spool.append(payload(5));
+            List<Spool.Entry> entries = spool.read(spool.getAckPosition(), 100);
+            assertThat(payloads(entries), contains("record-2", "record-3", "record-4", "record-5"));
+            // Records keep the time at which they were appended
+            for (Spool.Entry entry : entries) {
+                assertThat(entry.getTimestamp(), greaterThanOrEqualTo(before));
+                assertThat(entry.getTimestamp(), lessThanOrEqualTo(System.currentTimeMillis()));
+            }
+        }
+    }
+
+    @Test
+    public void canDropOldestSegmentWhenFull() throws IOException {
+        Path dir = tempFolder.getRoot().toPath();
+        try (Spool spool = new Spool(dir, SEGMENT_SIZE, 2 * SEGMENT_SIZE)) {
+            for (int i = 0; i < 10; i++) {
+                spool.append(payload(i));
+            }
+            assertThat(numSegments(dir), equalTo(2));
+            assertThat(spool.getDroppedCount(), equalTo(4L));
+            assertThat(spool.getBacklog(), equalTo(6L));
+            assertThat(spool.getMaxBacklog(), equalTo(8L));
+            assertThat(payloads(spool.read(spool.getAckPosition(), 100)), contains("record-4", "record-5",
+                    "record-6", "record-7", "record-8", "record-9"));
+        }
+    }
+
+    @Test
+    public void canDetectCorruptRecords() throws IOException {
+        Path dir = tempFolder.getRoot().toPath();
+        try (Spool spool = new Spool(dir, SEGMENT_SIZE, 1024)) {
+            for (int i = 0; i < 3; i++) {
+                spool.append(payload(i));
+            }
+        }
+        // Flip a byte in the payload of the second record
+        try (RandomAccessFile file = new RandomAccessFile(dir.resolve(String.format("%020d.segment", 0)).toFile(), "rw")) {
+            long offset = (Segment.HEADER_SIZE + 8) + Segment.HEADER_SIZE + 2;
+            file.seek(offset);
+            int b = file.read();
+            file.seek(offset);
+            file.write(b ^ 0xff);
+        }
+
+        try (Spool spool = new Spool(dir, SEGMENT_SIZE, 1024)) {
+            // Everything from the corrupt record on is treated as a torn write
+            assertThat(spool.getBacklog(), equalTo(1L));
+            spool.append(payload(3));
+            assertThat(payloads(spool.read(spool.getAckPosition(), 100)), contains("record-0", "record-3"));
+        }
+    }
+
+    @Test
+    public void canRejectOversizedRecords() throws IOException {
+        try (Spool spool = new Spool(tempFolder.getRoot().toPath(), SEGMENT_SIZE, 1024)) {
+            assertThat(spool.append(new byte[SEGMENT_SIZE]), equalTo(false));
+            assertThat(spool.getRejectedCount(), greaterThan(0L));
+            assertThat(spool.read(spool.getAckPosition(), 100), hasSize(0));
+        }
+    }
+
+    private static byte[] payload(int i) {
+        return ("record-" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> payloads(List<Spool.Entry> entries) {
+        return entries.stream()
+                .map(e -> new String(e.getPayload(), StandardCharsets.UTF_8))
+                .collect(Collectors.toList());
+    }
+
+    private static int numSegments(Path dir) {
+        File[] files = dir.toFile().listFiles((d, name) -> name.endsWith(".segment"));
+        return files == null ? 0 : files.length;
+    }
+}
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.stats;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ClockRegressionTest {
+
+    private static final double NOMINAL_PERIOD_MS = 1000.0d / 256;
+
+    @Test
+    public void canTrackClockDrift() {
+        // The sensor's clock runs 0.1% fast, and packets are delayed by 5 to 25ms
+        double actualPeriod = NOMINAL_PERIOD_MS / 1.001;
+        Random random = new Random(42);
+        ClockRegression clock = new ClockRegression(NOMINAL_PERIOD_MS, 1000);
+        double start = 1588222530705.0d;
+        for (long index = 11; index < 256 * 600; index += 12) {
+            clock.observe(index, start + index * actualPeriod + 5 + random.nextDouble() * 20);
+        }
+
+        assertThat(clock.getRate(), closeTo(1.001 / NOMINAL_PERIOD_MS, 0.0001));
+        assertThat(clock.getJitter(), closeTo(20 / Math.sqrt(12), 1));
+        // Timestamps carry the average delay, but no longer drift
+        long index = 256 * 600;
+        assertThat(clock.getTime(index) - (start + index * actualPeriod), closeTo(15, 2));
+        // Where the nominal rate would be off by 600ms after 10 minutes
+        assertThat(start + index * NOMINAL_PERIOD_MS - (start + index * actualPeriod), closeTo(600, 1));
+    }
+
+    @Test
+    public void canReanchor() {
+        ClockRegression clock = new ClockRegression(NOMINAL_PERIOD_MS, 1000);
+        assertThat(Double.isNaN(clock.getTime(0)), equalTo(true));
+
+        // Holds the nominal period until there are enough observations
+        clock.observe(100, 1000);
+        assertThat(clock.getTime(356), closeTo(2000, 0.001));
+        for (long index = 112; index < 12 * 100; index += 12) {
+            clock.observe(index, 1000 + (index - 100) * 4);
+        }
+        assertThat(clock.getPeriod(), closeTo(4, 0.000001));
+        // Including the residuals from before the period was estimated
+        assertThat(clock.getJitter(), lessThan(NOMINAL_PERIOD_MS));
+
+        // The clock steps, so the fit starts over from there, keeping the estimated period
+        clock.observe(1204, 100000);
+        assertThat(clock.getReanchorCount(), equalTo(1L));
+        assertThat(clock.getObservationCount(), equalTo(1L));
+        assertThat(clock.getTime(1216), closeTo(100048, 0.000001));
+
+        // Explicitly, i.e. after a gap
+        clock.reanchor();
+        assertThat(clock.isAnchored(), equalTo(false));
+        clock.observe(5000, 500000);
+        assertThat(clock.getTime(5001), closeTo(500004, 0.000001));
+    }
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.stats;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.opennms.iot.ble.proto.Event;
+import org.opennms.iot.ble.proto.Metric;
+import org.opennms.iot.ble.proto.StageLatency;
+import org.opennms.iot.ble.proto.Stats;
+import org.opennms.iot.metrics.ExpositionBuffer;
+import org.opennms.iot.schema.MetricDef;
+
+public class PipelineLatencyTest {
+
+    @Test
+    public void canRecordLatencyByStageAndMetric() {
+        PipelineLatency latency = new PipelineLatency();
+        Event eeg = Event.newBuilder().addBlocks(MetricDef.EEG.newBlock()).build();
+        Event heartRate = Event.newBuilder().addMetrics(Metric.newBuilder().setName(MetricDef.POLAR_H7.getName())).build();
+
+        latency.recordLatency(PipelineLatency.Stage.DECODE, eeg, TimeUnit.MILLISECONDS.toNanos(2));
+        latency.recordLatency(PipelineLatency.Stage.DECODE, eeg, TimeUnit.MILLISECONDS.toNanos(4));
+        latency.recordLatency(PipelineLatency.Stage.DELIVERY, heartRate, TimeUnit.MICROSECONDS.toNanos(50));
+        // Not a known metric
+        latency.recordLatency(PipelineLatency.Stage.DELIVERY, Event.getDefaultInstance(), TimeUnit.MICROSECONDS.toNanos(50));
+
+        assertThat(latency.getHistogram(PipelineLatency.Stage.DECODE, MetricDef.EEG).getCount(), equalTo(2L));
+        assertThat(latency.getHistogram(PipelineLatency.Stage.DELIVERY, MetricDef.POLAR_H7).getCount(), equalTo(1L));
+        assertThat(latency.getHistogram(PipelineLatency.Stage.DECODE, MetricDef.POLAR_H7).getCount(), equalTo(0L));
+        assertThat(PipelineLatency.metricOf(Event.getDefaultInstance()), nullValue());
+
+        Stats stats = latency.toStats();
+        assertThat(stats.getLatenciesCount(), equalTo(2));
+        StageLatency decode = stats.getLatencies(0);
+        assertThat(decode.getStage(), equalTo("decode"));
+        assertThat(decode.getMetric(), equalTo("eeg"));
+        assertThat(decode.getCount(), equalTo(2L));
+        // Within the 1/8th error of the histogram
+        assertThat(decode.getP50Micros(), greaterThanOrEqualTo(2000L));
+        assertThat(decode.getP50Micros(), lessThanOrEqualTo(2250L));
+        assertThat(decode.getMaxMicros(), greaterThanOrEqualTo(4000L));
+        assertThat(decode.getMaxMicros(), lessThanOrEqualTo(4500L));
+
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        latency.writeTo(buffer);
+        String text = buffer.toString();
+        assertThat(text, containsString("# TYPE ble_pipeline_latency_seconds summary\n"));
+        assertThat(text, containsString("ble_pipeline_latency_seconds{stage=\"decode\",metric=\"eeg\",quantile=\"0.99\"} 0.00"));
+        assertThat(text, containsString("ble_pipeline_latency_seconds_count{stage=\"decode\",metric=\"eeg\"} 2\n"));
+        assertThat(text, containsString("ble_pipeline_latency_seconds_count{stage=\"delivery\",metric=\"polar-h7\"} 1\n"));
+
+        // Doesn't blow up
+        latency.logInterval();
+        latency.logInterval();
+    }
+
+    @Test
+    public void canDiffSnapshots() {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 100; i++) {
+            histogram.record(10);
+        }
+        Histogram.Snapshot first = histogram.getSnapshot();
+        for (int i = 0; i < 10; i++) {
+            histogram.record(1000);
+        }
+        Histogram.Snapshot interval = histogram.getSnapshot().minus(first);
+
+        assertThat(interval.getCount(), equalTo(10L));
+        assertThat(interval.getSum(), equalTo(10000L));
+        assertThat(interval.getValueAtPercentile(50), equalTo(1000L));
+        assertThat(interval.getMax(), equalTo(1000L));
+        assertThat(first.getValueAtPercentile(99), equalTo(10L));
+        assertThat(histogram.getSnapshot().getValueAtPercentile(50), equalTo(10L));
+    }
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.iot.trace;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasSize;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.opennms.iot.ble.proto.PacketTraceDump;
+import org.opennms.iot.ble.proto.PacketTraceRequest;
+
+public class PacketTraceTest {
+
+    @Test
+    public void canRecordAndWrapAround() {
+        PacketTrace trace = new PacketTrace(4);
+        PacketTrace.Source eeg = trace.getSource("00:55:DA:B0:00:00 eeg-32");
+        PacketTrace.Source ppg = trace.getSource("00:55:DA:B0:00:00 ppg1");
+        assertThat(trace.getSource("00:55:DA:B0:00:00 eeg-32"), equalTo(eeg));
+
+        for (int i = 0; i < 6; i++) {
+            (i % 2 == 0 ? eeg : ppg).record(new byte[]{0, (byte)i, (byte)0xFF});
+        }
+
+        // Only the last 4 are retained, oldest first
+        List<PacketTrace.Packet> packets = trace.getPackets(0);
+        assertThat(trace.getRecordedCount(), equalTo(6L));
+        assertThat(packets, hasSize(4));
+        for (int i = 0; i < 4; i++) {
+            PacketTrace.Packet packet = packets.get(i);
+            assertThat(packet.getSequence(), equalTo(i + 2L));
+            assertThat(packet.getSource(), equalTo(i % 2 == 0 ? eeg.getName() : ppg.getName()));
+            assertThat(packet.getLength(), equalTo(3));
+            assertThat(packet.getPayload(), equalTo(new byte[]{0, (byte)(i + 2), (byte)0xFF}));
+        }
+
+        assertThat(trace.getPackets(1).get(0).getSequence(), equalTo(5L));
+    }
+
+    @Test
+    public void canSampleAndTruncate() {
+        PacketTrace trace = new PacketTrace(16);
+        PacketTrace.Source source = trace.getSource("eeg");
+        byte[] packet = new byte[PacketTrace.MAX_PAYLOAD + 8];
+        for (int i = 0; i < packet.length; i++) {
+            packet[i] = (byte)i;
+        }
+
+        trace.setSampleEvery(3);
+        for (int i = 0; i < 9; i++) {
+            source.record(packet);
+        }
+        assertThat(trace.getRecordedCount(), equalTo(3L));
+
+        PacketTrace.Packet recorded = trace.getPackets(0).get(0);
+        assertThat(recorded.getLength(), equalTo(packet.length));
+        assertThat(recorded.getPayload(), equalTo(Arrays.copyOf(packet, PacketTrace.MAX_PAYLOAD)));
+
+        // Stop recording through the request
+        PacketTraceDump dump = trace.toProto(PacketTraceRequest.newBuilder().setSampleEvery(-1).setMaxPackets(2).build());
+        source.record(packet);
+        assertThat(trace.getRecordedCount(), equalTo(3L));
+        assertThat(dump.getSampleEvery(), equalTo(0));
+        assertThat(dump.getRecorded(), equalTo(3L));
+        assertThat(dump.getPacketsCount(), equalTo(2));
+        assertThat(dump.getPackets(1).getSequence(), equalTo(2L));
+        assertThat(dump.getPackets(1).getSource(), equalTo("eeg"));
+        assertThat(dump.getPackets(1).getPayload().size(), equalTo(PacketTrace.MAX_PAYLOAD));
+    }
+}